@@ -0,0 +1,150 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tigase.criteria.Criteria;
+import tigase.criteria.ElementCriteria;
+import tigase.xml.Element;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares filtering of message and presence children with compiled {@link ContentFilter.Matcher} and with the loop
+ * over set of {@link Criteria} previously used by message and presence modules.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class ContentFilterBenchmark {
+
+	@Param({"0", "20"})
+	public int additionalAllowedElements;
+
+	private Set<Criteria> messageCriteria;
+	private Element[] messageChildren;
+	private ContentFilter.Matcher messageMatcher;
+	private Set<Criteria> presenceCriteria;
+	private Element[] presenceChildren;
+	private ContentFilter.Matcher presenceMatcher;
+
+	/**
+	 * Creates criteria matching the same elements as passed patterns.
+	 */
+	private static Set<Criteria> toCriteria(List<String> patterns) {
+		Set<Criteria> result = new HashSet<>();
+		for (String pattern : patterns) {
+			if (pattern.charAt(0) != '{') {
+				result.add(ElementCriteria.name(pattern));
+				continue;
+			}
+			int idx = pattern.indexOf('}');
+			String xmlns = pattern.substring(1, idx);
+			String name = pattern.substring(idx + 1);
+			result.add("*".equals(name) ? ElementCriteria.xmlns(xmlns) : ElementCriteria.name(name, xmlns));
+		}
+		return result;
+	}
+
+	private static Element child(String name, String xmlns) {
+		return new Element(name, new String[]{"xmlns"}, new String[]{xmlns});
+	}
+
+	private static int filter(Set<Criteria> criteria, Element[] children, Blackhole blackhole) {
+		int allowed = 0;
+		for (Element child : children) {
+			for (Criteria crit : criteria) {
+				if (crit.match(child)) {
+					blackhole.consume(child);
+					allowed++;
+					break;
+				}
+			}
+		}
+		return allowed;
+	}
+
+	private static int filter(ContentFilter.Matcher matcher, Element[] children, Blackhole blackhole) {
+		int allowed = 0;
+		for (Element child : children) {
+			if (matcher.match(child)) {
+				blackhole.consume(child);
+				allowed++;
+			}
+		}
+		return allowed;
+	}
+
+	@Setup
+	public void setup() {
+		ContentFilter defaults = new ContentFilter();
+		List<String> messagePatterns = new ArrayList<>();
+		List<String> presencePatterns = new ArrayList<>();
+		for (String pattern : defaults.getMessageAllowedElements()) {
+			messagePatterns.add(pattern);
+		}
+		for (String pattern : defaults.getPresenceAllowedElements()) {
+			presencePatterns.add(pattern);
+		}
+		for (int i = 0; i < additionalAllowedElements; i++) {
+			messagePatterns.add("{urn:example:" + i + "}element-" + i);
+			presencePatterns.add("{urn:example:" + i + "}element-" + i);
+		}
+		messageCriteria = toCriteria(messagePatterns);
+		messageMatcher = ContentFilter.Matcher.compile(messagePatterns.toArray(new String[0]));
+		presenceCriteria = toCriteria(presencePatterns);
+		presenceMatcher = ContentFilter.Matcher.compile(presencePatterns.toArray(new String[0]));
+
+		messageChildren = new Element[]{new Element("body", "Hello"), child("oob", "jabber:x:oob"),
+										child("encrypted", "eu.siacs.conversations.axolotl"),
+										child("markable", "urn:xmpp:chat-markers:0"),
+										child("origin-id", "urn:xmpp:sid:0"),
+										child("active", "http://jabber.org/protocol/chatstates")};
+		presenceChildren = new Element[]{new Element("show", "away"), new Element("status", "Busy"),
+										 new Element("priority", "5"), child("c", "http://jabber.org/protocol/caps"),
+										 child("x", "vcard-temp:x:update"), child("x", "http://jabber.org/protocol/muc")};
+	}
+
+	@Benchmark
+	public int messageCriteriaLoop(Blackhole blackhole) {
+		return filter(messageCriteria, messageChildren, blackhole);
+	}
+
+	@Benchmark
+	public int messageMatcher(Blackhole blackhole) {
+		return filter(messageMatcher, messageChildren, blackhole);
+	}
+
+	@Benchmark
+	public int presenceCriteriaLoop(Blackhole blackhole) {
+		return filter(presenceCriteria, presenceChildren, blackhole);
+	}
+
+	@Benchmark
+	public int presenceMatcher(Blackhole blackhole) {
+		return filter(presenceMatcher, presenceChildren, blackhole);
+	}
+
+}
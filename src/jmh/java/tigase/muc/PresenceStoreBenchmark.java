@@ -0,0 +1,90 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cost of updating and removing presences of a single user and of retrieving its best presence, for users
+ * with different number of resources.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class PresenceStoreBenchmark {
+
+	@Param({"PREFERE_PRIORITY", "PREFERE_LAST"})
+	public PresenceStore.PresenceDeliveryLogic logic;
+	@Param({"1", "5", "20"})
+	public int resources;
+
+	private BareJID jid;
+	private JID[] jids;
+	private int next;
+	private Element[] presences;
+	private PresenceStore store;
+
+	@Setup
+	public void setup() throws Exception {
+		jid = BareJID.bareJIDInstance("user@test");
+		jids = new JID[resources];
+		presences = new Element[resources];
+		store = new PresenceStore(logic);
+		for (int i = 0; i < resources; i++) {
+			jids[i] = JID.jidInstance(jid, "res-" + i);
+			presences[i] = new Element("presence", new String[]{"from", "to"},
+									   new String[]{jids[i].toString(), "room@muc.test/nick"});
+			// resources with the same priority, so the best resource changes with presence updates
+			presences[i].addChild(new Element("priority", String.valueOf(i % 3)));
+			store.update(presences[i]);
+		}
+	}
+
+	@Benchmark
+	public Element getBestPresence() {
+		return store.getBestPresence(jid);
+	}
+
+	@Benchmark
+	public void update() throws Exception {
+		store.update(presences[nextResource()]);
+	}
+
+	@Benchmark
+	public void removeAndUpdate() throws Exception {
+		int i = nextResource();
+		store.remove(jids[i]);
+		store.update(presences[i]);
+	}
+
+	private int nextResource() {
+		int i = next++;
+		if (next == resources) {
+			next = 0;
+		}
+		return i;
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares throughput of {@link Room} and {@link SerializedRoom} in a busy room, where one thread keeps updating
+ * presences, roles and occupants while other threads look up occupants as it is done for each routed stanza.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Group)
+public class RoomBenchmark {
+
+	@Param({"100", "1000"})
+	public int occupants;
+	@Param({"room", "serialized"})
+	public String implementation;
+
+	private JID[] jids;
+	private String[] nicknames;
+	private Room room;
+
+	private static Element presence(JID from, Room room, String nickname, String show) {
+		Element presence = new Element("presence", new String[]{"from", "to"},
+									   new String[]{from.toString(), room.getRoomJID() + "/" + nickname});
+		if (show != null) {
+			presence.addChild(new Element("show", show));
+		}
+		return presence;
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		RoomConfig rc = new RoomConfig(BareJID.bareJIDInstance("room@muc.test"));
+		BareJID creator = BareJID.bareJIDInstance("owner@test");
+		room = "serialized".equals(implementation)
+			   ? new SerializedRoom<>(1L, rc, new Date(), creator)
+			   : new Room(rc, new Date(), creator);
+		jids = new JID[occupants];
+		nicknames = new String[occupants];
+		for (int i = 0; i < occupants; i++) {
+			jids[i] = JID.jidInstance("user-" + i + "@test/res");
+			nicknames[i] = "nick-" + i;
+			room.addOccupantByJid(jids[i], nicknames[i], Role.participant, presence(jids[i], room, nicknames[i], null));
+			room.addAffiliationByJid(jids[i].getBareJID(), RoomAffiliation.member);
+		}
+	}
+
+	@Benchmark
+	@Group("busyRoom")
+	@GroupThreads(1)
+	public void modify() throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int i = random.nextInt(occupants);
+		switch (random.nextInt(4)) {
+			case 0:
+				room.setNewRole(nicknames[i], random.nextBoolean() ? Role.visitor : Role.participant);
+				break;
+			case 1:
+				room.removeOccupant(jids[i]);
+				room.addOccupantByJid(jids[i], nicknames[i], Role.participant,
+									  presence(jids[i], room, nicknames[i], null));
+				break;
+			default:
+				room.updatePresenceByJid(jids[i], nicknames[i],
+										 presence(jids[i], room, nicknames[i], random.nextBoolean() ? "away" : null));
+				break;
+		}
+	}
+
+	@Benchmark
+	@Group("busyRoom")
+	@GroupThreads(3)
+	public Object lookup() {
+		int i = ThreadLocalRandom.current().nextInt(occupants);
+		String nickname = room.getOccupantsNickname(jids[i]);
+		Role role = room.getRole(nickname);
+		RoomAffiliation affiliation = room.getAffiliation(jids[i].getBareJID());
+		Element presence = room.getPresenceByJid(jids[i]);
+		return role.isReceiveMessages() && affiliation != null ? presence : null;
+	}
+
+}
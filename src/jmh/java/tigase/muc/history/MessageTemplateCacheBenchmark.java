@@ -0,0 +1,88 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares rendering of room history sent to joining occupant using cached message templates and parsing each
+ * stored message (template cache size set to <code>0</code>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class MessageTemplateCacheBenchmark {
+
+	private static final int HISTORY_SIZE = 50;
+
+	@Param({"0", "1000"})
+	public int templateCacheSize;
+
+	private String[] bodies;
+	private String[] ids;
+	private String[] messages;
+	private MemoryHistoryProvider provider;
+	private JID recipient;
+	private BareJID roomJID;
+	private Date[] timestamps;
+
+	@Setup
+	public void setup() throws Exception {
+		provider = new MemoryHistoryProvider();
+		provider.setMessageTemplateCacheSize(templateCacheSize);
+		roomJID = BareJID.bareJIDInstance("coven@chat.shakespeare.lit");
+		recipient = JID.jidInstance("hag66@shakespeare.lit/pda");
+
+		bodies = new String[HISTORY_SIZE];
+		ids = new String[HISTORY_SIZE];
+		messages = new String[HISTORY_SIZE];
+		timestamps = new Date[HISTORY_SIZE];
+		long start = System.currentTimeMillis() - HISTORY_SIZE * 1000L;
+		for (int i = 0; i < HISTORY_SIZE; i++) {
+			bodies[i] = "Thrice the brinded cat hath mew'd. Message " + i;
+			ids[i] = "stanza-id-" + i;
+			timestamps[i] = new Date(start + i * 1000L);
+			Element message = new Element("message", new String[]{"type", "id"},
+										  new String[]{"groupchat", "msg-" + i});
+			message.addChild(new Element("body", bodies[i]));
+			message.addChild(new Element("origin-id", new String[]{"xmlns", "id"},
+										 new String[]{"urn:xmpp:sid:0", "origin-" + i}));
+			message.addChild(new Element("markable", new String[]{"xmlns"}, new String[]{"urn:xmpp:chat-markers:0"}));
+			messages[i] = message.toString();
+		}
+	}
+
+	@Benchmark
+	public void renderHistory(Blackhole blackhole) throws Exception {
+		for (int i = 0; i < HISTORY_SIZE; i++) {
+			blackhole.consume(
+					provider.createMessage(roomJID, recipient, "secondwitch", ids[i], messages[i], bodies[i], null,
+										   false, timestamps[i]));
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.db.jdbc.DataRepositoryImpl;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.muc.StanzaId;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares throughput of appending messages to room history and reading recent history of the room stored in segment
+ * log files and in database (embedded Derby kept in memory, with schema loaded from <code>src/main/database</code>).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class SegmentLogHistoryProviderBenchmark {
+
+	private static final String DERBY_URI = "jdbc:derby:memory:muc-history-benchmark";
+	private static final int HISTORY_SIZE = 1000;
+	private static final String[] SCHEMA_FILES = {"derby-muc-3.0.0.sql", "derby-muc-3.1.0.sql",
+												  "derby-muc-3.2.0.sql"};
+
+	@Param({"segmentLog", "derby"})
+	public String implementation;
+
+	private Path dir;
+	private long lastTs;
+	private HistoryProvider provider;
+	private Room room;
+	private final JID sender = JID.jidInstanceNS("hag66@shakespeare.lit/pda");
+
+	@Setup
+	public void setup() throws Exception {
+		switch (implementation) {
+			case "segmentLog":
+				dir = Files.createTempDirectory("muc-history-benchmark");
+				SegmentLogHistoryProvider segmentLog = new SegmentLogHistoryProvider();
+				segmentLog.setPath(dir.toString());
+				provider = segmentLog;
+				break;
+			case "derby":
+				loadSchema();
+				DataRepositoryImpl repository = new DataRepositoryImpl();
+				repository.initialize(DERBY_URI);
+				JDBCHistoryProvider database = new JDBCHistoryProvider();
+				database.setDataSource(repository);
+				database.initialize();
+				provider = database;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown implementation: " + implementation);
+		}
+
+		BareJID roomJID = BareJID.bareJIDInstance("coven@chat.shakespeare.lit");
+		RoomConfig rc = new RoomConfig(roomJID);
+		rc.setValue(RoomConfig.MUC_ROOMCONFIG_PERSISTENTROOM_KEY, Boolean.TRUE);
+		room = new Room.RoomFactoryImpl().newInstance(null, rc, new Date(), sender.getBareJID());
+
+		lastTs = System.currentTimeMillis() - HISTORY_SIZE * 1000L;
+		for (int i = 0; i < HISTORY_SIZE; i++) {
+			append();
+		}
+		provider.flush();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		provider.removeHistory(room);
+		provider.destroy();
+		if (dir != null) {
+			try (Stream<Path> files = Files.walk(dir)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+		if ("derby".equals(implementation)) {
+			try {
+				DriverManager.getConnection(DERBY_URI + ";drop=true").close();
+			} catch (SQLException ex) {
+				// Derby reports dropping of database with an exception
+			}
+		}
+	}
+
+	@Benchmark
+	public void append() {
+		String body = "Thrice the brinded cat hath mew'd.";
+		Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+		message.addChild(new Element("body", body));
+		message.addChild(StanzaId.create(StanzaId.next(), room.getRoomJID()));
+		provider.addMessage(room, message, body, sender, "secondwitch", new Date(++lastTs));
+	}
+
+	@Benchmark
+	public void readHistory(Blackhole blackhole) {
+		provider.getHistoryMessages(room, sender, null, 20, null, null, new BlackholeWriter(blackhole));
+	}
+
+	private void loadSchema() throws IOException, SQLException {
+		try (Connection conn = DriverManager.getConnection(DERBY_URI + ";create=true");
+			 Statement stmt = conn.createStatement()) {
+			for (String file : SCHEMA_FILES) {
+				String script = new String(Files.readAllBytes(Paths.get("src/main/database", file)),
+										   StandardCharsets.UTF_8);
+				for (String part : script.split("-- QUERY START:")) {
+					int end = part.indexOf("-- QUERY END:");
+					if (end < 0) {
+						continue;
+					}
+					String query = part.substring(0, end).trim();
+					if (query.endsWith(";")) {
+						query = query.substring(0, query.length() - 1);
+					}
+					stmt.execute(query);
+				}
+			}
+		}
+	}
+
+	private static class BlackholeWriter
+			implements PacketWriter {
+
+		private final Blackhole blackhole;
+
+		BlackholeWriter(Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void write(Collection<Packet> packets) {
+			packets.forEach(this::write);
+		}
+
+		@Override
+		public void write(Packet packet) {
+			blackhole.consume(packet);
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+	}
+
+}
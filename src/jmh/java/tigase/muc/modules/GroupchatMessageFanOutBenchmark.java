@@ -0,0 +1,94 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares delivery of a groupchat message to all recipients by copying the message for each recipient and by
+ * sharing its payload ({@link GroupchatMessageModule.SharedPayloadMessage}). Each operation is a single delivered
+ * message, so allocated bytes per delivered message are reported as <code>gc.alloc.rate.norm</code> when run with GC
+ * profiler: <code>mvn -Pjmh verify -Djmh.args="-f 1 -prof gc GroupchatMessageFanOutBenchmark"</code>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class GroupchatMessageFanOutBenchmark {
+
+	private static final int RECIPIENTS = 2000;
+
+	@Param({"1024", "10240"})
+	public int payloadSize;
+
+	private JID from;
+	private Packet msg;
+	private JID[] recipients;
+
+	@Setup
+	public void setup() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < payloadSize; i++) {
+			sb.append((char) ('a' + (i % 26)));
+		}
+		Element message = new Element("message", new String[]{"type", "id", "from", "to"},
+									  new String[]{"groupchat", "msg-1", "crone1@shakespeare.lit/desktop",
+												   "coven@chat.shakespeare.lit"});
+		Element encrypted = new Element("encrypted", new String[]{"xmlns"},
+										new String[]{"eu.siacs.conversations.axolotl"});
+		encrypted.addChild(new Element("payload", sb.toString()));
+		message.addChild(encrypted);
+		message.addChild(new Element("body", "I'm encrypted"));
+
+		msg = Packet.packetInstance(message);
+		from = JID.jidInstance("coven@chat.shakespeare.lit/firstwitch");
+		recipients = new JID[RECIPIENTS];
+		for (int i = 0; i < RECIPIENTS; i++) {
+			recipients[i] = JID.jidInstance("user-" + i + "@shakespeare.lit/desktop");
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECIPIENTS)
+	public void copyElement(Blackhole blackhole) {
+		for (JID jid : recipients) {
+			Packet message = msg.copyElementOnly();
+			message.initVars(from, jid);
+			message.setXMLNS(Packet.CLIENT_XMLNS);
+			blackhole.consume(message);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECIPIENTS)
+	public void sharedPayload(Blackhole blackhole) throws Exception {
+		GroupchatMessageModule.SharedPayloadMessage message = new GroupchatMessageModule.SharedPayloadMessage(
+				msg.getElement());
+		for (JID jid : recipients) {
+			blackhole.consume(message.createPacket(from, jid));
+		}
+	}
+
+}
@@ -16,3 +16,70 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+
+-- QUERY START:
+create procedure Tig_MUC_UPGRADE()
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.migrateFromOldSchema';
+-- QUERY END:
+
+-- QUERY START:
+call Tig_MUC_UPGRADE();
+-- QUERY END:
+
+-- QUERY START:
+drop procedure Tig_MUC_UPGRADE;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure Tig_MUC_AddMessage;
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_AddMessage(roomJid varchar(2049), "ts" timestamp, senderJid varchar(3074),
+        senderNick varchar(1024), "body" varchar(32672), publicEvent boolean, "msg" varchar(32672), stableId varchar(64))
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    MODIFIES SQL DATA
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucAddMessage';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessageTimestamp(roomJid varchar(2049), stableId varchar(64))
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    READS SQL DATA
+    DYNAMIC RESULT SETS 1
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucMamGetMessageTimestamp';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessagesAfter(roomJid varchar(2049), "since" timestamp, "to" timestamp, "nickname" varchar(1024),
+        afterTs timestamp, afterId varchar(64), "limit" int)
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    READS SQL DATA
+    DYNAMIC RESULT SETS 1
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucMamGetMessagesAfter';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessagesBefore(roomJid varchar(2049), "since" timestamp, "to" timestamp, "nickname" varchar(1024),
+        beforeTs timestamp, beforeId varchar(64), "limit" int)
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    READS SQL DATA
+    DYNAMIC RESULT SETS 1
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucMamGetMessagesBefore';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_DeleteMessagesBefore(roomJid varchar(2049), "before" timestamp, "limit" int)
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    MODIFIES SQL DATA
+    DYNAMIC RESULT SETS 1
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucDeleteMessagesBefore';
+-- QUERY END:
@@ -16,3 +16,158 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+
+delimiter //
+
+-- QUERY START:
+create procedure TigUpgradeMuc()
+begin
+    if not exists (select 1 from information_schema.columns where table_schema = database() and table_name = 'tig_muc_room_history' and column_name = 'stable_id') then
+        alter table tig_muc_room_history add stable_id varchar(64);
+        create index tig_muc_room_history_room_jid_stable_id using hash on tig_muc_room_history ( room_jid_sha1, stable_id );
+    end if;
+    if exists (select 1 from information_schema.columns where table_schema = database() and table_name = 'tig_muc_room_history' and column_name = 'stable_id' and is_nullable = 'YES') then
+        -- messages stored before stable ids were introduced get one derived from their timestamp and position
+        set @legacy_row = 0;
+        update tig_muc_room_history
+            set stable_id = concat('legacy-', date_format(ts, '%Y%m%d%H%i%s%f'), '-', lpad(@legacy_row := @legacy_row + 1, 10, '0'))
+            where stable_id is null
+            order by ts asc;
+        alter table tig_muc_room_history modify stable_id varchar(64) not null;
+    end if;
+    if not exists (select 1 from information_schema.statistics where table_schema = database() and table_name = 'tig_muc_room_history' and index_name = 'tig_muc_room_history_room_jid_ts_stable_id') then
+        create index tig_muc_room_history_room_jid_ts_stable_id on tig_muc_room_history ( room_jid_sha1, ts, stable_id );
+    end if;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+call TigUpgradeMuc();
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigUpgradeMuc;
+-- QUERY END:
+
+-- ---------------------
+-- Stored procedures
+-- ---------------------
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_AddMessage;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_GetMessages;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_MAM_GetMessages;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_MAM_GetMessageTimestamp;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_MAM_GetMessagesAfter;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_MAM_GetMessagesBefore;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_DeleteMessagesBefore;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure Tig_MUC_AddMessage(_roomJid varchar(2049), _ts timestamp(6), _senderJid varchar(3074), _senderNick varchar(1024), _body text charset utf8mb4 collate utf8mb4_bin, _publicEvent boolean, _msg text charset utf8mb4 collate utf8mb4_bin, _stableId varchar(64))
+begin
+    insert into tig_muc_room_history (room_jid, room_jid_sha1, event_type, ts, sender_jid, sender_nickname, body, public_event, msg, stable_id)
+        values (_roomJid, SHA1( LOWER( _roomJid ) ), 1, _ts, _senderJid, _senderNick, _body, _publicEvent, _msg, coalesce(_stableId, replace(uuid(), '-', '')));
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_GetMessages(_roomJid varchar(2049), _maxMessages int, _since timestamp(6))
+begin
+    select t.sender_nickname, t.ts, t.sender_jid, t.body, t.msg, t.stable_id from (
+        select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id
+            from tig_muc_room_history h
+            where h.room_jid_sha1 = SHA1( LOWER( _roomJid ) )
+                and (_since is null or h.ts >= _since)
+            order by h.ts desc, h.stable_id desc limit _maxMessages
+    ) AS t order by t.ts asc, t.stable_id asc;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessages(_roomJid varchar(2049), _since timestamp(6), _to timestamp(6), _nickname varchar(1024), _limit int, _offset int)
+begin
+    select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id
+        from tig_muc_room_history h
+        where h.room_jid_sha1 = SHA1( LOWER( _roomJid ) )
+            and (_since is null or h.ts >= _since)
+            and (_to is null or h.ts <= _to)
+            and (_nickname is null or h.sender_nickname = _nickname)
+        order by h.ts asc, h.stable_id asc limit _limit offset _offset;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessageTimestamp(_roomJid varchar(2049), _stableId varchar(64))
+begin
+    select h.ts
+        from tig_muc_room_history h
+        where h.room_jid_sha1 = SHA1( LOWER( _roomJid ) )
+            and h.stable_id = _stableId;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessagesAfter(_roomJid varchar(2049), _since timestamp(6), _to timestamp(6), _nickname varchar(1024), _afterTs timestamp(6), _afterId varchar(64), _limit int)
+begin
+    select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id
+        from tig_muc_room_history h
+        where h.room_jid_sha1 = SHA1( LOWER( _roomJid ) )
+            and (_since is null or h.ts >= _since)
+            and (_to is null or h.ts <= _to)
+            and (_nickname is null or h.sender_nickname = _nickname)
+            and (_afterTs is null or h.ts > _afterTs or (h.ts = _afterTs and h.stable_id > coalesce(_afterId, '')))
+        order by h.ts asc, h.stable_id asc limit _limit;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessagesBefore(_roomJid varchar(2049), _since timestamp(6), _to timestamp(6), _nickname varchar(1024), _beforeTs timestamp(6), _beforeId varchar(64), _limit int)
+begin
+    select t.sender_nickname, t.ts, t.sender_jid, t.body, t.msg, t.stable_id from (
+        select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id
+            from tig_muc_room_history h
+            where h.room_jid_sha1 = SHA1( LOWER( _roomJid ) )
+                and (_since is null or h.ts >= _since)
+                and (_to is null or h.ts <= _to)
+                and (_nickname is null or h.sender_nickname = _nickname)
+                and (_beforeTs is null or h.ts < _beforeTs or (h.ts = _beforeTs and h.stable_id < coalesce(_beforeId, '')))
+            order by h.ts desc, h.stable_id desc limit _limit
+    ) AS t order by t.ts asc, t.stable_id asc;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_DeleteMessagesBefore(_roomJid varchar(2049), _before timestamp(6), _limit int)
+begin
+    delete from tig_muc_room_history
+        where room_jid_sha1 = SHA1( LOWER( _roomJid ) )
+            and (_before is null or ts < _before)
+        order by ts asc limit _limit;
+    select row_count() as deleted;
+end //
+-- QUERY END:
+
+delimiter ;
@@ -16,3 +16,188 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+
+-- QUERY START:
+do $$
+begin
+    if not exists (select 1 from information_schema.columns where table_catalog = current_database() and table_schema = 'public' and table_name = 'tig_muc_room_history' and column_name = 'stable_id') then
+        alter table tig_muc_room_history
+            add stable_id varchar(64);
+    end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+    if exists (select 1 from information_schema.columns where table_catalog = current_database() and table_schema = 'public' and table_name = 'tig_muc_room_history' and column_name = 'stable_id' and is_nullable = 'YES') then
+        -- messages stored before stable ids were introduced get one derived from their timestamp and position
+        update tig_muc_room_history h
+            set stable_id = 'legacy-' || to_char(h.ts at time zone 'UTC', 'YYYYMMDDHH24MISSUS') || '-' || lpad(l.legacy_row::text, 10, '0')
+            from (
+                select ctid as legacy_ctid, row_number() over (order by ts asc) as legacy_row
+                    from tig_muc_room_history
+                    where stable_id is null
+            ) l
+            where h.ctid = l.legacy_ctid;
+        alter table tig_muc_room_history
+            alter column stable_id set not null;
+    end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_muc_room_history_room_jid_stable_id')) is null) then
+    create index tig_muc_room_history_room_jid_stable_id on tig_muc_room_history ( lower(room_jid), stable_id );
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_muc_room_history_room_jid_ts_stable_id')) is null) then
+    create index tig_muc_room_history_room_jid_ts_stable_id on tig_muc_room_history ( lower(room_jid), ts, stable_id );
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists( select 1 from pg_proc where proname = lower('Tig_MUC_AddMessage') and pg_get_function_arguments(oid) = '_roomjid character varying, _ts timestamp with time zone, _senderjid character varying, _sendernick character varying, _body text, _publicevent boolean, _msg text') then
+    drop function Tig_MUC_AddMessage(_roomjid character varying, _ts timestamp with time zone, _senderjid character varying, _sendernick character varying, _body text, _publicevent boolean, _msg text);
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_AddMessage(_roomJid varchar(2049), _ts timestamp with time zone, _senderJid varchar(3074), _senderNick varchar(1024), _body text, _publicEvent boolean, _msg text, _stableId varchar(64)) returns void as $$
+begin
+    insert into tig_muc_room_history (room_jid, event_type, ts, sender_jid, sender_nickname, body, public_event, msg, stable_id)
+        values (_roomJid, 1, _ts, _senderJid, _senderNick, _body, _publicEvent, _msg, coalesce(_stableId, md5(random()::text || clock_timestamp()::text)));
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists( select 1 from pg_proc where proname = lower('Tig_MUC_GetMessages') and pg_get_function_result(oid) = 'TABLE(sender_nickname character varying, ts timestamp with time zone, sender_jid character varying, body text, msg text)') then
+    drop function Tig_MUC_GetMessages(_roomjid character varying, _maxmessages integer, _since timestamp with time zone);
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_GetMessages(_roomJid varchar(2049), _maxMessages int, _since timestamp with time zone) returns table(
+    "sender_nickname" varchar(1024), "ts" timestamp with time zone, "sender_jid" varchar(3074), "body" text, "msg" text, "stable_id" varchar(64)
+) as $$
+begin
+    return query select t.sender_nickname, t.ts, t.sender_jid, t.body, t.msg, t.stable_id from (
+        select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id
+            from tig_muc_room_history h
+            where lower(h.room_jid) = lower(_roomJid)
+                and (_since is null or h.ts >= _since)
+            order by h.ts desc, h.stable_id desc limit _maxMessages
+    ) AS t order by t.ts asc, t.stable_id asc;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists( select 1 from pg_proc where proname = lower('Tig_MUC_MAM_GetMessages') and pg_get_function_result(oid) = 'TABLE(sender_nickname character varying, ts timestamp with time zone, sender_jid character varying, body text, msg text)') then
+    drop function Tig_MUC_MAM_GetMessages(_roomjid character varying, _since timestamp with time zone, _to timestamp with time zone, _nickname character varying, _limit integer, _offset integer);
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_MAM_GetMessages(_roomJid varchar(2049), _since timestamp with time zone, _to timestamp with time zone, _nickname varchar(1024), _limit int, _offset int) returns table(
+    "sender_nickname" varchar(1024), "ts" timestamp with time zone, "sender_jid" varchar(3074), "body" text, "msg" text, "stable_id" varchar(64)
+) as $$
+begin
+    return query select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id
+        from tig_muc_room_history h
+        where lower(h.room_jid) = lower(_roomJid)
+            and (_since is null or h.ts >= _since)
+            and (_to is null or h.ts <= _to)
+            and (_nickname is null or h.sender_nickname = _nickname)
+        order by h.ts asc, h.stable_id asc
+        limit _limit offset _offset;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_MAM_GetMessageTimestamp(_roomJid varchar(2049), _stableId varchar(64)) returns table(
+    "ts" timestamp with time zone
+) as $$
+begin
+    return query select h.ts from tig_muc_room_history h
+        where lower(h.room_jid) = lower(_roomJid)
+            and h.stable_id = _stableId;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_MAM_GetMessagesAfter(_roomJid varchar(2049), _since timestamp with time zone, _to timestamp with time zone, _nickname varchar(1024), _afterTs timestamp with time zone, _afterId varchar(64), _limit int) returns table(
+    "sender_nickname" varchar(1024), "ts" timestamp with time zone, "sender_jid" varchar(3074), "body" text, "msg" text, "stable_id" varchar(64)
+) as $$
+begin
+    return query select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id
+        from tig_muc_room_history h
+        where lower(h.room_jid) = lower(_roomJid)
+            and (_since is null or h.ts >= _since)
+            and (_to is null or h.ts <= _to)
+            and (_nickname is null or h.sender_nickname = _nickname)
+            and (_afterTs is null or h.ts > _afterTs or (h.ts = _afterTs and h.stable_id > coalesce(_afterId, '')))
+        order by h.ts asc, h.stable_id asc
+        limit _limit;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_MAM_GetMessagesBefore(_roomJid varchar(2049), _since timestamp with time zone, _to timestamp with time zone, _nickname varchar(1024), _beforeTs timestamp with time zone, _beforeId varchar(64), _limit int) returns table(
+    "sender_nickname" varchar(1024), "ts" timestamp with time zone, "sender_jid" varchar(3074), "body" text, "msg" text, "stable_id" varchar(64)
+) as $$
+begin
+    return query select t.sender_nickname, t.ts, t.sender_jid, t.body, t.msg, t.stable_id from (
+        select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id
+            from tig_muc_room_history h
+            where lower(h.room_jid) = lower(_roomJid)
+                and (_since is null or h.ts >= _since)
+                and (_to is null or h.ts <= _to)
+                and (_nickname is null or h.sender_nickname = _nickname)
+                and (_beforeTs is null or h.ts < _beforeTs or (h.ts = _beforeTs and h.stable_id < coalesce(_beforeId, '')))
+            order by h.ts desc, h.stable_id desc
+            limit _limit
+    ) AS t order by t.ts asc, t.stable_id asc;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_DeleteMessagesBefore(_roomJid varchar(2049), _before timestamp with time zone, _limit int) returns int as $$
+declare
+    _deleted int;
+begin
+    delete from tig_muc_room_history
+        where ctid in (
+            select h.ctid from tig_muc_room_history h
+                where lower(h.room_jid) = lower(_roomJid)
+                    and (_before is null or h.ts < _before)
+                order by h.ts asc
+                limit _limit
+        );
+    get diagnostics _deleted = row_count;
+    return _deleted;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
@@ -16,3 +16,242 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+
+-- QUERY START:
+if not exists (select 1 from sys.columns where object_id = object_id('dbo.tig_muc_room_history') and name = 'stable_id')
+begin
+    alter table tig_muc_room_history add stable_id nvarchar(64);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+if exists (select 1 from sys.columns where object_id = object_id('dbo.tig_muc_room_history') and name = 'stable_id' and is_nullable = 1)
+begin
+    -- messages stored before stable ids were introduced get one derived from their timestamp and position
+    ;with legacy_cte as (
+        select stable_id, ts, row_number() over (order by ts asc) as legacy_row
+        from dbo.tig_muc_room_history
+        where stable_id is null
+    )
+    update legacy_cte
+        set stable_id = 'legacy-' + format(ts, 'yyyyMMddHHmmssfff') + '-' + right('0000000000' + cast(legacy_row as nvarchar(10)), 10);
+    alter table tig_muc_room_history alter column stable_id nvarchar(64) not null;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_muc_room_history') AND NAME ='IX_tig_muc_room_history_room_jid_sha1_stable_id')
+	CREATE INDEX IX_tig_muc_room_history_room_jid_sha1_stable_id ON [dbo].[tig_muc_room_history](room_jid_sha1, stable_id);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_muc_room_history') AND NAME ='IX_tig_muc_room_history_room_jid_sha1_ts_stable_id')
+	CREATE INDEX IX_tig_muc_room_history_room_jid_sha1_ts_stable_id ON [dbo].[tig_muc_room_history](room_jid_sha1, ts, stable_id);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_AddMessage')
+	DROP PROCEDURE Tig_MUC_AddMessage
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_AddMessage
+    @_roomJid [nvarchar](2049),
+    @_ts [datetime],
+    @_senderJid [nvarchar](3074),
+    @_senderNick [nvarchar](1024),
+    @_body [nvarchar](MAX),
+    @_publicEvent [bit],
+    @_msg [nvarchar](MAX),
+    @_stableId [nvarchar](64)
+AS
+BEGIN
+    SET NOCOUNT ON;
+    DECLARE @_roomJidSha1 [varbinary](40);
+
+    SET @_roomJidSha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) );
+    INSERT INTO tig_muc_room_history (room_jid, room_jid_sha1, event_type, ts, sender_jid, sender_nickname, body, public_event, msg, stable_id)
+        VALUES (@_roomJid, @_roomJidSha1, 1, @_ts, @_senderJid, @_senderNick, @_body, @_publicEvent, @_msg, COALESCE(@_stableId, REPLACE(CONVERT(nvarchar(36), NEWID()), '-', '')));
+    SET NOCOUNT OFF;
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_GetMessages')
+	DROP PROCEDURE Tig_MUC_GetMessages
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_GetMessages
+    @_roomJid [nvarchar](2049),
+    @_maxMessages [int],
+    @_since [datetime]
+AS
+BEGIN
+    ;WITH results_cte AS (
+        SELECT TOP (@_maxMessages) sender_nickname, ts, sender_jid, body, msg, stable_id
+        FROM dbo.tig_muc_room_history
+        WHERE room_jid_sha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) )
+            AND (
+                @_since IS NULL OR ts >= @_since
+            )
+        ORDER BY ts DESC, stable_id DESC
+    )
+    SELECT sender_nickname, ts, sender_jid, body, msg, stable_id
+    FROM results_cte
+    ORDER BY ts ASC, stable_id ASC;
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_MAM_GetMessages')
+	DROP PROCEDURE Tig_MUC_MAM_GetMessages
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_MAM_GetMessages
+    @_roomJid [nvarchar](2049),
+    @_since [datetime],
+    @_to [datetime],
+    @_nickname [nvarchar](1024),
+    @_limit [int],
+    @_offset [int]
+AS
+BEGIN
+    ;WITH results_cte AS (
+        SELECT sender_nickname, ts, sender_jid, body, msg, stable_id,
+            ROW_NUMBER() OVER (ORDER BY ts, stable_id) AS row_num
+        FROM dbo.tig_muc_room_history
+        WHERE room_jid_sha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) )
+            AND ( @_since IS NULL OR ts >= @_since )
+            AND ( @_to IS NULL OR ts <= @_to )
+            AND ( @_nickname IS NULL OR sender_nickname = @_nickname )
+    )
+    SELECT sender_nickname, ts, sender_jid, body, msg, stable_id
+    FROM results_cte
+    WHERE row_num > @_offset
+        AND row_num <= @_offset + @_limit
+    ORDER BY row_num ASC;
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_MAM_GetMessageTimestamp')
+	DROP PROCEDURE Tig_MUC_MAM_GetMessageTimestamp
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_MAM_GetMessageTimestamp
+    @_roomJid [nvarchar](2049),
+    @_stableId [nvarchar](64)
+AS
+BEGIN
+    SELECT ts
+    FROM dbo.tig_muc_room_history
+    WHERE room_jid_sha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) )
+        AND stable_id = @_stableId
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_MAM_GetMessagesAfter')
+	DROP PROCEDURE Tig_MUC_MAM_GetMessagesAfter
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_MAM_GetMessagesAfter
+    @_roomJid [nvarchar](2049),
+    @_since [datetime],
+    @_to [datetime],
+    @_nickname [nvarchar](1024),
+    @_afterTs [datetime],
+    @_afterId [nvarchar](64),
+    @_limit [int]
+AS
+BEGIN
+    SELECT TOP (@_limit) sender_nickname, ts, sender_jid, body, msg, stable_id
+    FROM dbo.tig_muc_room_history
+    WHERE room_jid_sha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) )
+        AND ( @_since IS NULL OR ts >= @_since )
+        AND ( @_to IS NULL OR ts <= @_to )
+        AND ( @_nickname IS NULL OR sender_nickname = @_nickname )
+        AND ( @_afterTs IS NULL OR ts > @_afterTs OR ( ts = @_afterTs AND stable_id > COALESCE(@_afterId, '') ) )
+    ORDER BY ts ASC, stable_id ASC;
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_MAM_GetMessagesBefore')
+	DROP PROCEDURE Tig_MUC_MAM_GetMessagesBefore
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_MAM_GetMessagesBefore
+    @_roomJid [nvarchar](2049),
+    @_since [datetime],
+    @_to [datetime],
+    @_nickname [nvarchar](1024),
+    @_beforeTs [datetime],
+    @_beforeId [nvarchar](64),
+    @_limit [int]
+AS
+BEGIN
+    ;WITH results_cte AS (
+        SELECT TOP (@_limit) sender_nickname, ts, sender_jid, body, msg, stable_id
+        FROM dbo.tig_muc_room_history
+        WHERE room_jid_sha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) )
+            AND ( @_since IS NULL OR ts >= @_since )
+            AND ( @_to IS NULL OR ts <= @_to )
+            AND ( @_nickname IS NULL OR sender_nickname = @_nickname )
+            AND ( @_beforeTs IS NULL OR ts < @_beforeTs OR ( ts = @_beforeTs AND stable_id < COALESCE(@_beforeId, '') ) )
+        ORDER BY ts DESC, stable_id DESC
+    )
+    SELECT sender_nickname, ts, sender_jid, body, msg, stable_id
+    FROM results_cte
+    ORDER BY ts ASC, stable_id ASC;
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_DeleteMessagesBefore')
+	DROP PROCEDURE Tig_MUC_DeleteMessagesBefore
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_DeleteMessagesBefore
+    @_roomJid [nvarchar](2049),
+    @_before [datetime],
+    @_limit [int]
+AS
+BEGIN
+    SET NOCOUNT ON;
+    ;WITH batch_cte AS (
+        SELECT TOP (@_limit) ts
+        FROM dbo.tig_muc_room_history
+        WHERE room_jid_sha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) )
+            AND ( @_before IS NULL OR ts < @_before )
+        ORDER BY ts ASC
+    )
+    DELETE FROM batch_cte;
+    SELECT @@ROWCOUNT AS deleted;
+    SET NOCOUNT OFF;
+END
+-- QUERY END:
+GO
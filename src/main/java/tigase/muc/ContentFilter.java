@@ -0,0 +1,170 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.xml.Element;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Filter of child elements of groupchat messages and presences broadcasted to occupants, used when message or
+ * presence filtering is enabled.
+ * <br>
+ * Allowed elements are configured as a list of patterns in Clark notation: <code>{xmlns}name</code> allows element
+ * with given name and namespace, <code>name</code> allows element with given name in any namespace and
+ * <code>{xmlns}*</code> allows any element in given namespace. Patterns are compiled to hash based lookups, so cost of
+ * matching a child does not depend on the number of allowed elements.
+ */
+@Bean(name = "contentFilter", parent = MUCComponent.class, active = true)
+public class ContentFilter {
+
+	private static final Logger log = Logger.getLogger(ContentFilter.class.getName());
+
+	@ConfigField(desc = "Elements passed in groupchat messages when message filter is enabled", alias = "message-allowed-elements")
+	private String[] messageAllowedElements = new String[]{"{jabber:x:oob}oob",
+														   "{eu.siacs.conversations.axolotl}encrypted"};
+	@ConfigField(desc = "Elements passed in presences when presence filter is enabled", alias = "presence-allowed-elements")
+	private String[] presenceAllowedElements = new String[]{"show", "status", "priority",
+															"{http://jabber.org/protocol/caps}*"};
+	private volatile Matcher messageMatcher;
+	private volatile Matcher presenceMatcher;
+
+	public String[] getMessageAllowedElements() {
+		return messageAllowedElements;
+	}
+
+	public void setMessageAllowedElements(String[] messageAllowedElements) {
+		this.messageAllowedElements = messageAllowedElements == null ? new String[0] : messageAllowedElements;
+	}
+
+	public String[] getPresenceAllowedElements() {
+		return presenceAllowedElements;
+	}
+
+	public void setPresenceAllowedElements(String[] presenceAllowedElements) {
+		this.presenceAllowedElements = presenceAllowedElements == null ? new String[0] : presenceAllowedElements;
+	}
+
+	public boolean isAllowedInMessage(Element child) {
+		final String[] patterns = this.messageAllowedElements;
+		Matcher matcher = this.messageMatcher;
+		if (matcher == null || matcher.source != patterns) {
+			matcher = Matcher.compile(patterns);
+			this.messageMatcher = matcher;
+		}
+		return matcher.match(child);
+	}
+
+	/**
+	 * @return <code>true</code> if all elements from the namespace are allowed in messages by <code>{xmlns}*</code>
+	 * pattern
+	 */
+	public boolean isNamespaceAllowedInMessage(String xmlns) {
+		final String[] patterns = this.messageAllowedElements;
+		Matcher matcher = this.messageMatcher;
+		if (matcher == null || matcher.source != patterns) {
+			matcher = Matcher.compile(patterns);
+			this.messageMatcher = matcher;
+		}
+		return matcher.matchNamespace(xmlns);
+	}
+
+	public boolean isAllowedInPresence(Element child) {
+		final String[] patterns = this.presenceAllowedElements;
+		Matcher matcher = this.presenceMatcher;
+		if (matcher == null || matcher.source != patterns) {
+			matcher = Matcher.compile(patterns);
+			this.presenceMatcher = matcher;
+		}
+		return matcher.match(child);
+	}
+
+	/**
+	 * Compiled list of allowed elements.
+	 */
+	public static class Matcher {
+
+		private static final Set<String> ANY = Collections.emptySet();
+
+		private final Map<String, Set<String>> names = new HashMap<>();
+		private final Set<String> namespaces = new HashSet<>();
+		private final String[] source;
+
+		public static Matcher compile(String... patterns) {
+			final Matcher matcher = new Matcher(patterns);
+			if (patterns == null) {
+				return matcher;
+			}
+			for (String pattern : patterns) {
+				if (pattern == null || pattern.trim().isEmpty()) {
+					continue;
+				}
+				pattern = pattern.trim();
+				String xmlns = null;
+				String name = pattern;
+				if (pattern.charAt(0) == '{') {
+					final int idx = pattern.indexOf('}');
+					if (idx < 0) {
+						log.log(Level.WARNING, "Invalid allowed element pattern: " + pattern);
+						continue;
+					}
+					xmlns = pattern.substring(1, idx);
+					name = pattern.substring(idx + 1);
+				}
+				if (xmlns == null) {
+					matcher.names.put(name, ANY);
+				} else if ("*".equals(name) || name.isEmpty()) {
+					matcher.namespaces.add(xmlns);
+				} else {
+					final Set<String> allowed = matcher.names.get(name);
+					if (allowed != ANY) {
+						matcher.names.computeIfAbsent(name, k -> new HashSet<>()).add(xmlns);
+					}
+				}
+			}
+			return matcher;
+		}
+
+		private Matcher(String[] source) {
+			this.source = source;
+		}
+
+		public boolean match(Element element) {
+			return match(element.getName(), element.getXMLNS());
+		}
+
+		public boolean matchNamespace(String xmlns) {
+			return namespaces.contains(xmlns);
+		}
+
+		public boolean match(String name, String xmlns) {
+			if (xmlns != null && namespaces.contains(xmlns)) {
+				return true;
+			}
+			final Set<String> allowed = names.get(name);
+			if (allowed == null) {
+				return false;
+			}
+			return allowed == ANY || (xmlns != null && allowed.contains(xmlns));
+		}
+	}
+}
@@ -34,13 +34,21 @@ import tigase.muc.modules.selfping.SelfPingModule;
 import tigase.muc.modules.selfping.SelfPingerMonitor;
 import tigase.muc.repository.IMucRepository;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.MAMItemHandler;
 import tigase.xmpp.mam.MAMQueryParser;
 import tigase.xmpp.mam.modules.GetFormModule;
 
 import javax.script.Bindings;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 
 @Bean(name = "muc", parent = Kernel.class, active = true)
@@ -55,6 +63,16 @@ public class MUCComponent
 	private HashMap<String, String> defaultRoomConfig = new HashMap<>();
 	@Inject
 	private Ghostbuster2 ghostbuster;
+	@ConfigField(desc = "Rooms which traffic should be spread over many processing queues", alias = "hot-rooms")
+	private String[] hotRooms = new String[0];
+	private volatile Set<BareJID> hotRoomsJids = Collections.emptySet();
+	@ConfigField(desc = "Number of processing queues used by single hot room", alias = "hot-room-spread")
+	private int hotRoomSpread = 4;
+	@ConfigField(desc = "Selects processing queue by sender or by room JID", alias = "packet-scheduling")
+	private PacketScheduling packetScheduling = PacketScheduling.sender;
+	private volatile AtomicLongArray queuesDepth;
+	@Inject(nullAllowed = true)
+	private List<MUCStatisticsProvider> statisticsProviders;
 
 	protected static void addIfExists(Bindings binds, String name, Object value) {
 		if (value != null) {
@@ -86,18 +104,66 @@ public class MUCComponent
 		return "Multi User Chat";
 	}
 
+	public String[] getHotRooms() {
+		return hotRooms;
+	}
+
+	public void setHotRooms(String[] hotRooms) {
+		this.hotRooms = hotRooms == null ? new String[0] : hotRooms;
+		Set<BareJID> jids = new HashSet<>();
+		for (String room : this.hotRooms) {
+			jids.add(BareJID.bareJIDInstanceNS(room.trim()));
+		}
+		this.hotRoomsJids = Collections.unmodifiableSet(jids);
+	}
+
 	@Override
-	public int hashCodeForPacket(Packet packet) {
-		if ((packet.getStanzaFrom() != null) && (packet.getPacketFrom() != null) &&
-				!getComponentId().equals(packet.getPacketFrom())) {
-			return packet.getStanzaFrom().hashCode();
+	public boolean addPacket(Packet packet) {
+		final int queue = packetEnqueued(packet);
+		boolean result = super.addPacket(packet);
+		if (!result) {
+			packetDequeued(queue);
 		}
+		return result;
+	}
 
-		if (packet.getStanzaTo() != null) {
-			return packet.getStanzaTo().hashCode();
+	@Override
+	public boolean addPacketNB(Packet packet) {
+		final int queue = packetEnqueued(packet);
+		boolean result = super.addPacketNB(packet);
+		if (!result) {
+			packetDequeued(queue);
 		}
+		return result;
+	}
 
-		return 1;
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		if (statisticsProviders != null) {
+			for (MUCStatisticsProvider provider : statisticsProviders) {
+				provider.getStatistics(getName(), list);
+			}
+		}
+		final AtomicLongArray depths = this.queuesDepth;
+		if (depths == null) {
+			return;
+		}
+		long max = 0;
+		long total = 0;
+		for (int i = 0; i < depths.length(); i++) {
+			long depth = depths.get(i);
+			max = Math.max(max, depth);
+			total += depth;
+			list.add(getName(), "Processing queue " + i + " depth", depth, Level.FINEST);
+		}
+		list.add(getName(), "Processing queues max depth", max, Level.FINE);
+		list.add(getName(), "Processing queues avg depth", total / depths.length(), Level.FINE);
+	}
+
+	@Override
+	public int hashCodeForPacket(Packet packet) {
+		return computeHashCodeForPacket(packet);
 	}
 
 	@Override
@@ -119,6 +185,7 @@ public class MUCComponent
 				log.log(Level.WARNING, "There is no Dana, there is only Zuul", e);
 			}
 		}
+		packetDequeued(queueForPacket(packet));
 		super.processPacket(packet);
 	}
 
@@ -171,6 +238,74 @@ public class MUCComponent
 		kernel.registerBean(Ghostbuster2.class).exec();
 	}
 
+	private int hashCodeForRoom(BareJID roomJid, JID senderJid) {
+		int hash = roomJid.hashCode();
+		if (hotRoomSpread > 1 && hotRoomsJids.contains(roomJid)) {
+			// packets from the same sender still land in the same queue, so their order is preserved
+			hash += Math.abs(senderJid.hashCode() % hotRoomSpread);
+		}
+		return hash;
+	}
+
+	private int computeHashCodeForPacket(Packet packet) {
+		final JID from = packet.getStanzaFrom();
+		final JID to = packet.getStanzaTo();
+		final boolean external = from != null && packet.getPacketFrom() != null &&
+				!getComponentId().equals(packet.getPacketFrom());
+		// packets addressed to the service itself (disco, etc.) are spread by sender in both modes
+		if (packetScheduling == PacketScheduling.room && to != null && to.getLocalpart() != null) {
+			return hashCodeForRoom(to.getBareJID(), external ? from : to);
+		}
+		if (external) {
+			return from.hashCode();
+		}
+		if (to != null) {
+			return to.hashCode();
+		}
+		return 1;
+	}
+
+	private AtomicLongArray getQueuesDepth() {
+		AtomicLongArray depths = this.queuesDepth;
+		if (depths == null) {
+			synchronized (this) {
+				if (this.queuesDepth == null) {
+					this.queuesDepth = new AtomicLongArray(processingInThreads());
+				}
+				depths = this.queuesDepth;
+			}
+		}
+		return depths;
+	}
+
+	/**
+	 * Returns index of the processing queue selected for the packet, computed the same way as it is done when the
+	 * packet is added to processing queues.
+	 */
+	private int queueForPacket(Packet packet) {
+		return Math.abs(computeHashCodeForPacket(packet) % getQueuesDepth().length());
+	}
+
+	/**
+	 * Increments depth of the queue selected for the packet. It is done before the packet is added to the queue, so
+	 * the depth is never decremented by processing thread before it is incremented.
+	 *
+	 * @return index of the queue
+	 */
+	private int packetEnqueued(Packet packet) {
+		final int queue = queueForPacket(packet);
+		getQueuesDepth().incrementAndGet(queue);
+		return queue;
+	}
+
+	/**
+	 * Decrements depth of the queue. Depth never drops below zero, as queue index computed for processed packet may
+	 * differ from the one computed when it was enqueued if scheduling settings were changed in the meantime.
+	 */
+	private void packetDequeued(int queue) {
+		getQueuesDepth().getAndUpdate(queue, depth -> depth > 0 ? depth - 1 : 0);
+	}
+
 	private void updateDefaultRoomConfig() throws RepositoryException {
 		final IMucRepository mucRepository = kernel.getInstance(IMucRepository.class);
 
@@ -202,4 +337,17 @@ public class MUCComponent
 
 	}
 
+	public enum PacketScheduling {
+		/**
+		 * Packets are assigned to processing queues by sender JID.
+		 */
+		sender,
+		/**
+		 * Packets are assigned to processing queues by room JID, so all packets sent to a single room are processed by
+		 * the same queue. Packets sent to rooms listed in <code>hot-rooms</code> are spread by sender JID over
+		 * <code>hot-room-spread</code> queues. Packets addressed to the service itself are assigned by sender JID.
+		 */
+		room
+	}
+
 }
@@ -66,6 +66,12 @@ public class MUCConfig {
 	private boolean legacyDelayedDeliveryEnabled = false;
 	@ConfigField(desc = "Automatically persist occupant on join", alias = "persist-occupant-on-join")
 	private boolean automaticallyPersistOccupantOnJoin = false;
+	@ConfigField(desc = "Time window (in milliseconds) in which presence changes of occupant are coalesced", alias = "presence-debounce-window")
+	private long presenceDebounceWindow = 0;
+	@ConfigField(desc = "Drop presences identical to the last presence of occupant", alias = "presence-duplicates-suppression")
+	private boolean presenceDuplicatesSuppression = false;
+	@ConfigField(desc = "Share message payload between all recipients of groupchat message", alias = "message-shared-payload")
+	private boolean messageSharedPayload = false;
 
 	public String getChatLoggingDirectory() {
 		return chatLoggingDirectory;
@@ -95,6 +101,10 @@ public class MUCConfig {
 		return messageFilterEnabled;
 	}
 
+	public boolean isMessageSharedPayload() {
+		return messageSharedPayload;
+	}
+
 	public boolean isMultiItemMode() {
 		return multiItemMode;
 	}
@@ -111,6 +121,14 @@ public class MUCConfig {
 		return presenceFilterEnabled;
 	}
 
+	public long getPresenceDebounceWindow() {
+		return presenceDebounceWindow;
+	}
+
+	public boolean isPresenceDuplicatesSuppression() {
+		return presenceDuplicatesSuppression;
+	}
+
 	public boolean isWelcomeMessagesEnabled() {
 		return welcomeMessagesEnabled;
 	}
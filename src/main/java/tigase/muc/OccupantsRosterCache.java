@@ -0,0 +1,90 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of occupants roster prepared for sending to new occupants of the room. Items are opaque for the room and are
+ * prepared by presence module. Room invalidates items of an occupant whenever presence, role, nickname or affiliation
+ * of the occupant changes, and whole cache when room configuration changes.
+ */
+public class OccupantsRosterCache {
+
+	private final Map<BareJID, Map<String, Object>> items = new ConcurrentHashMap<>();
+	private final AtomicLong version = new AtomicLong();
+	private volatile Roster roster;
+
+	/**
+	 * Returns version of cached data. Version should be retrieved before building an item or a roster and passed
+	 * when storing it in the cache, so data built concurrently with modification of room state will not be cached.
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T getItem(BareJID occupantJid, String nickname) {
+		Map<String, Object> nicknames = items.get(occupantJid);
+		return nicknames == null ? null : (T) nicknames.get(nickname);
+	}
+
+	public synchronized void putItem(BareJID occupantJid, String nickname, Object item, long version) {
+		if (this.version.get() == version) {
+			items.computeIfAbsent(occupantJid, jid -> new ConcurrentHashMap<>()).put(nickname, item);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T getRoster() {
+		Roster roster = this.roster;
+		return (roster != null && roster.version == version.get()) ? (T) roster.value : null;
+	}
+
+	public void setRoster(Object value, long version) {
+		if (this.version.get() == version) {
+			this.roster = new Roster(version, value);
+		}
+	}
+
+	public synchronized void invalidate(BareJID occupantJid) {
+		version.incrementAndGet();
+		items.remove(occupantJid);
+	}
+
+	public synchronized void invalidateAll() {
+		version.incrementAndGet();
+		items.clear();
+		roster = null;
+	}
+
+	private static final class Roster {
+
+		private final Object value;
+		private final long version;
+
+		private Roster(long version, Object value) {
+			this.version = version;
+			this.value = value;
+		}
+	}
+}
@@ -24,50 +24,49 @@ import tigase.xmpp.jid.JID;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Keeps track of occupants which presences should be delivered in the room with presence filtering enabled. Sets of
+ * their JIDs and nicknames are updated by room listener callbacks, so retrieving them does not require scanning room
+ * occupants.
+ *
  * @author Wojciech Kapcia
  */
 public class PresenceFiltered
 		implements Room.RoomOccupantListener, Room.RoomListener {
 
 	protected static final Logger log = Logger.getLogger(PresenceFiltered.class.getName());
-	private final Collection<BareJID> occupantsPresenceFiltered = new ConcurrentSkipListSet<>();
+	private final Set<JID> occupantsJIDs = ConcurrentHashMap.newKeySet();
+	private final Map<String, Integer> occupantsNicknames = new ConcurrentHashMap<>();
+	private final Map<BareJID, Map<JID, String>> occupantsPresenceFiltered = new ConcurrentHashMap<>();
 	private final Room room;
+	private final Collection<BareJID> occupantsPresenceFilteredView = Collections.unmodifiableSet(
+			occupantsPresenceFiltered.keySet());
+	private final Collection<JID> occupantsJIDsView = Collections.unmodifiableSet(occupantsJIDs);
+	private final Collection<String> occupantsNicknamesView = Collections.unmodifiableSet(
+			occupantsNicknames.keySet());
 
 	public PresenceFiltered(Room room) {
 		this.room = room;
 	}
 
 	public Collection<BareJID> getOccupantsPresenceFiltered() {
-		return occupantsPresenceFiltered;
+		return occupantsPresenceFilteredView;
 	}
 
 	public Collection<JID> getOccupantsPresenceFilteredJIDs() {
-
-		Collection<JID> occupantsJIDs = new ConcurrentSkipListSet<JID>();
-		for (BareJID jid : occupantsPresenceFiltered) {
-			for (String occupantsNickname : room.getOccupantsNicknames(jid)) {
-				for (JID occuJID : room.getOccupantsJidsByNickname(occupantsNickname)) {
-					occupantsJIDs.add(occuJID);
-				}
-			}
-		}
-		return occupantsJIDs;
+		return occupantsJIDsView;
 	}
 
 	public Collection<String> getOccupantsPresenceFilteredNicknames() {
-		Collection<String> occupantsNicknames = new ConcurrentSkipListSet<String>();
-		for (BareJID jid : occupantsPresenceFiltered) {
-			for (String occupantsNickname : room.getOccupantsNicknames(jid)) {
-				occupantsNicknames.add(occupantsNickname);
-			}
-		}
-		return occupantsNicknames;
+		return occupantsNicknamesView;
 	}
 
 	@Override
@@ -84,7 +83,32 @@ public class PresenceFiltered
 			log.log(Level.FINEST, "Adding: " + occupantJid + " to occupantsPresenceFiltered: " +
 					Arrays.asList(occupantsPresenceFiltered));
 		}
-		occupantsPresenceFiltered.add(occupantJid.getBareJID());
+		final String nickname = room.getOccupantsNickname(occupantJid);
+		occupantsPresenceFiltered.compute(occupantJid.getBareJID(), (jid, jids) -> {
+			if (jids == null) {
+				jids = new ConcurrentHashMap<>();
+			}
+			if (nickname != null) {
+				addJid(jids, occupantJid, nickname);
+			}
+			return jids;
+		});
+	}
+
+	@Override
+	public void onOccupantChangedNickname(Room room, BareJID occupantJid, String oldNickname, String newNickname) {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Changing nickname of: " + occupantJid + " from " + oldNickname + " to " +
+					newNickname + " on occupantsPresenceFiltered: " + Arrays.asList(occupantsPresenceFiltered));
+		}
+		occupantsPresenceFiltered.computeIfPresent(occupantJid, (jid, jids) -> {
+			for (Map.Entry<JID, String> entry : jids.entrySet()) {
+				if (oldNickname.equals(entry.getValue())) {
+					addJid(jids, entry.getKey(), newNickname);
+				}
+			}
+			return jids;
+		});
 	}
 
 	@Override
@@ -99,7 +123,10 @@ public class PresenceFiltered
 			log.log(Level.FINEST, "Removing: " + occupantJid + " to occupantsPresenceFiltered: " +
 					Arrays.asList(occupantsPresenceFiltered));
 		}
-		occupantsPresenceFiltered.remove(occupantJid.getBareJID());
+		occupantsPresenceFiltered.computeIfPresent(occupantJid.getBareJID(), (jid, jids) -> {
+			removeJid(jids, occupantJid);
+			return jids.isEmpty() ? null : jids;
+		});
 	}
 
 	@Override
@@ -111,10 +138,44 @@ public class PresenceFiltered
 		}
 		Collection<Affiliation> presenceFilterFrom = room.getConfig().getPresenceFilteredAffiliations();
 		if (presenceFilterFrom.contains(room.getAffiliation(jid).getAffiliation())) {
-			occupantsPresenceFiltered.add(jid);
-
+			occupantsPresenceFiltered.compute(jid, (k, jids) -> {
+				if (jids == null) {
+					jids = new ConcurrentHashMap<>();
+				}
+				for (String nickname : room.getOccupantsNicknames(jid)) {
+					for (JID occupantJid : room.getOccupantsJidsByNickname(nickname)) {
+						addJid(jids, occupantJid, nickname);
+					}
+				}
+				return jids;
+			});
 		} else {
-			occupantsPresenceFiltered.remove(jid);
+			occupantsPresenceFiltered.computeIfPresent(jid, (k, jids) -> {
+				for (JID occupantJid : jids.keySet()) {
+					removeJid(jids, occupantJid);
+				}
+				return null;
+			});
+		}
+	}
+
+	private void addJid(Map<JID, String> jids, JID occupantJid, String nickname) {
+		final String oldNickname = jids.put(occupantJid, nickname);
+		if (nickname.equals(oldNickname)) {
+			return;
+		}
+		if (oldNickname != null) {
+			occupantsNicknames.computeIfPresent(oldNickname, (k, count) -> count > 1 ? count - 1 : null);
+		}
+		occupantsJIDs.add(occupantJid);
+		occupantsNicknames.merge(nickname, 1, Integer::sum);
+	}
+
+	private void removeJid(Map<JID, String> jids, JID occupantJid) {
+		final String nickname = jids.remove(occupantJid);
+		if (nickname != null) {
+			occupantsJIDs.remove(occupantJid);
+			occupantsNicknames.computeIfPresent(nickname, (k, count) -> count > 1 ? count - 1 : null);
 		}
 	}
 }
@@ -23,9 +23,13 @@ import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,10 +55,39 @@ public class PresenceStore {
 		PREFERE_PRIORITY;
 	}
 
-	private final Map<BareJID, Presence> bestPresence = new ConcurrentHashMap<>();
 	private final Map<JID, Presence> presenceByJid = new ConcurrentHashMap<>();
-	private PresenceDeliveryLogic presenceOrdering;
-	private Map<BareJID, Map<String, Presence>> presencesMapByBareJid = new ConcurrentHashMap<>();
+	private final Map<BareJID, UserPresences> presencesMapByBareJid = new ConcurrentHashMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile PresenceDeliveryLogic presenceOrdering;
+
+	static int parsePriority(String value) {
+		if (value == null) {
+			return 0;
+		}
+		final int len = value.length();
+		int i = 0;
+		boolean negative = false;
+		if (len > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+			negative = value.charAt(0) == '-';
+			i++;
+		}
+		if (i == len) {
+			return 0;
+		}
+		long result = 0;
+		for (; i < len; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return 0;
+			}
+			result = result * 10 + (c - '0');
+			if (result > Integer.MAX_VALUE + 1L) {
+				return 0;
+			}
+		}
+		result = negative ? -result : result;
+		return (result > Integer.MAX_VALUE) ? 0 : (int) result;
+	}
 
 	public PresenceStore() {
 		presenceOrdering = PresenceDeliveryLogic.PREFERE_PRIORITY;
@@ -66,60 +99,12 @@ public class PresenceStore {
 
 	public void clear() {
 		presenceByJid.clear();
-		bestPresence.clear();
 		presencesMapByBareJid.clear();
 	}
 
 	// ~--- methods
 	// --------------------------------------------------------------
 
-	private Presence findHighPriorityPresence(final BareJID jid) {
-		return findPresence(jid, (result, x) -> {
-			if ((result == null) || ((x.type == null) && (x.priority > result.priority ||
-					(x.priority == result.priority && x.lastUpdated.after(result.lastUpdated))))) {
-				return 1;
-			} else {
-				return -1;
-			}
-
-		});
-	}
-
-	private Presence findLastPresence(final BareJID jid) {
-		return findPresence(jid, (result, x) -> {
-			Date l = x.lastUpdated;
-			if ((result == null) || ((l.after(result.lastUpdated)) && (x.type == null))) {
-				return 1;
-			} else {
-				return -1;
-			}
-		});
-	}
-
-	private Presence findPresence(final BareJID jid, final Comparator<Presence> c) {
-		Map<String, Presence> resourcesPresence = this.presencesMapByBareJid.get(jid);
-		Presence result = null;
-
-		if (log.isLoggable(Level.FINEST)) {
-			log.log(Level.FINEST, "User resources presences: " + resourcesPresence);
-		}
-
-		if (resourcesPresence != null) {
-			Iterator<Presence> it = resourcesPresence.values().iterator();
-
-			while (it.hasNext()) {
-				Presence x = it.next();
-				int r = c.compare(result, x);
-
-				if (r > 0) {
-					result = x;
-				}
-
-			}
-		}
-		return result;
-	}
-
 	public Collection<JID> getAllKnownJIDs() {
 		ArrayList<JID> result = new ArrayList<>();
 
@@ -133,18 +118,20 @@ public class PresenceStore {
 	}
 
 	public Element getBestPresence(final BareJID jid) {
-		Presence p = getBestPresenceInt(jid);
+		UserPresences presences = presencesMapByBareJid.get(jid);
+		if (presences == null) {
+			return null;
+		}
+		Presence p = presences.best;
 		if (p == null) {
-			Map<String, Presence> set = presencesMapByBareJid.get(jid);
-			if (set != null && !set.isEmpty()) {
-				return set.values().iterator().next().element;
-			}
+			p = presences.any();
 		}
 		return (p == null) ? null : p.element;
 	}
 
 	public Presence getBestPresenceInt(final BareJID jid) {
-		return this.bestPresence.get(jid);
+		UserPresences presences = presencesMapByBareJid.get(jid);
+		return (presences == null) ? null : presences.best;
 	}
 
 	public Element getPresence(final JID jid) {
@@ -154,47 +141,36 @@ public class PresenceStore {
 	}
 
 	public boolean isAvailable(BareJID jid) {
-		Map<String, Presence> resourcesPresence = this.presencesMapByBareJid.get(jid);
+		UserPresences presences = presencesMapByBareJid.get(jid);
 		if (log.isLoggable(Level.FINEST)) {
-			log.log(Level.FINEST, "resourcesPresence: " + resourcesPresence);
-		}
-
-		boolean result = false;
-
-		if (resourcesPresence != null) {
-			Iterator<Presence> it = resourcesPresence.values().iterator();
-
-			while (it.hasNext() && !result) {
-				Presence x = it.next();
-
-				result = result | x.type == null;
-			}
+			log.log(Level.FINEST, "resourcesPresence: " + presences);
 		}
 
-		return result;
+		// best presence is always an available one
+		return presences != null && presences.best != null;
 	}
 
 	public void remove(final JID from) throws TigaseStringprepException {
 		final String resource = (from.getResource() == null) ? "" : from.getResource();
 
 		this.presenceByJid.remove(from);
-
-		Map<String, Presence> m = this.presencesMapByBareJid.get(from.getBareJID());
-
-		if (m != null) {
-			m.remove(resource);
-			if (m.isEmpty()) {
-				this.presencesMapByBareJid.remove(from.getBareJID());
-			}
-		}
-		updateBestPresence(from.getBareJID(), null);
+		removeResource(from.getBareJID(), resource);
 	}
 
 	public void setOrdening(PresenceDeliveryLogic pdl) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Setting presence delivery logic to: " + pdl);
 		}
+		if (presenceOrdering == pdl) {
+			return;
+		}
 		presenceOrdering = pdl;
+		for (BareJID jid : presencesMapByBareJid.keySet()) {
+			presencesMapByBareJid.computeIfPresent(jid, (k, presences) -> {
+				presences.best = presences.findBest();
+				return presences;
+			});
+		}
 	}
 
 	public void update(final Element presence) throws TigaseStringprepException {
@@ -207,62 +183,45 @@ public class PresenceStore {
 		final JID from = JID.jidInstance(f);
 		final BareJID bareFrom = from.getBareJID();
 		final String resource = (from.getResource() == null) ? "" : from.getResource();
-		final Presence p = new Presence(presence);
+		final Presence p = new Presence(presence, from);
 
 		if ((p.type != null) && p.type.equals("unavailable")) {
 			this.presenceByJid.remove(from);
-
-			Map<String, Presence> m = this.presencesMapByBareJid.get(bareFrom);
-
-			if (m != null) {
-				m.remove(resource);
-				if (m.isEmpty()) {
-					this.presencesMapByBareJid.remove(bareFrom);
-				}
-			}
+			removeResource(bareFrom, resource);
 		} else {
 			this.presenceByJid.put(from, p);
+			this.presencesMapByBareJid.compute(bareFrom, (k, presences) -> {
+				if (presences == null) {
+					presences = new UserPresences();
+				}
+				presences.put(resource, p);
+				return presences;
+			});
+		}
 
-			Map<String, Presence> m = this.presencesMapByBareJid.get(bareFrom);
-
-			if (m == null) {
-				m = new ConcurrentHashMap<String, Presence>();
-				this.presencesMapByBareJid.put(bareFrom, m);
-			}
-			m.put(resource, p);
-
+		if (log.isLoggable(Level.FINEST)) {
+			Presence x = getBestPresenceInt(bareFrom);
+			log.finest("Selected BestPresence: " + (x != null ? x.element.toString() : "n/a"));
 		}
-		updateBestPresence(bareFrom, p);
 	}
 
-	private void updateBestPresence(final BareJID bareFrom, final Presence currentPresence)
-			throws TigaseStringprepException {
-		Presence x;
-
+	private boolean isBetter(Presence candidate, Presence current) {
 		switch (presenceOrdering) {
 			case PREFERE_PRIORITY:
-				x = findHighPriorityPresence(bareFrom);
-				break;
+				return candidate.priority > current.priority ||
+						(candidate.priority == current.priority && candidate.sequence > current.sequence);
 			case PREFERE_LAST:
-				if (currentPresence == null) {
-					x = findLastPresence(bareFrom);
-				} else {
-					x = currentPresence;
-				}
-				break;
+				return candidate.sequence > current.sequence;
 			default:
 				throw new RuntimeException("Unknown presenceOrdering");
 		}
+	}
 
-		if (log.isLoggable(Level.FINEST)) {
-			log.finest("Selected BestPresence: " + (x != null ? x.element.toString() : "n/a"));
-		}
-
-		if (x == null) {
-			this.bestPresence.remove(bareFrom);
-		} else {
-			this.bestPresence.put(bareFrom, x);
-		}
+	private void removeResource(BareJID bareFrom, String resource) {
+		this.presencesMapByBareJid.computeIfPresent(bareFrom, (k, presences) -> {
+			presences.remove(resource);
+			return presences.resources.isEmpty() ? null : presences;
+		});
 	}
 
 	// ~--- inner classes
@@ -272,27 +231,26 @@ public class PresenceStore {
 
 		final Element element;
 		final JID from;
-		final Date lastUpdated;
+		final long lastUpdated;
 		final int priority;
+		final long sequence;
 		final String show;
 		final String type;
 
 		public Presence(Element presence) {
-			this.lastUpdated = new Date();
+			this(presence, JID.jidInstanceNS(presence.getAttributeStaticStr(Packet.FROM_ATT)));
+		}
+
+		Presence(Element presence, JID from) {
+			this.lastUpdated = System.currentTimeMillis();
+			this.sequence = PresenceStore.this.sequence.incrementAndGet();
 			this.element = presence;
 			this.type = presence.getAttributeStaticStr(Packet.TYPE_ATT);
-			this.from = JID.jidInstanceNS(presence.getAttributeStaticStr(Packet.FROM_ATT));
+			this.from = from;
 
 			this.show = presence.getChildCDataStaticStr(tigase.server.Presence.PRESENCE_SHOW_PATH);
-
-			String p = presence.getChildCDataStaticStr(tigase.server.Presence.PRESENCE_PRIORITY_PATH);
-			int x = 0;
-
-			try {
-				x = Integer.parseInt(p);
-			} catch (Exception e) {
-			}
-			this.priority = x;
+			this.priority = parsePriority(
+					presence.getChildCDataStaticStr(tigase.server.Presence.PRESENCE_PRIORITY_PATH));
 		}
 
 		public JID getFrom() {
@@ -303,7 +261,15 @@ public class PresenceStore {
 			return element;
 		}
 
+		/**
+		 * @deprecated use {@link #getLastUpdatedMillis()} which does not allocate new object
+		 */
+		@Deprecated
 		public Date getLastUpdated() {
+			return new Date(lastUpdated);
+		}
+
+		public long getLastUpdatedMillis() {
 			return lastUpdated;
 		}
 
@@ -315,10 +281,65 @@ public class PresenceStore {
 			return show;
 		}
 
+		public boolean isAvailable() {
+			return type == null;
+		}
+
 		@Override
 		public String toString() {
 			return "Presence[" + "priority=" + priority + ", type=" + type + ", show=" + show + ", from=" + from +
-					", lastUpdated=" + lastUpdated + "]";
+					", lastUpdated=" + new Date(lastUpdated) + "]";
+		}
+	}
+
+	/**
+	 * Presences of all resources of a single user with the best available presence kept up to date. Modified only
+	 * from within <code>compute</code> calls of <code>presencesMapByBareJid</code>, so modifications for single user are
+	 * serialized, while reads are lock-free.
+	 */
+	private class UserPresences {
+
+		private final Map<String, Presence> resources = new ConcurrentHashMap<>(4);
+		private volatile Presence best;
+
+		Presence any() {
+			for (Presence p : resources.values()) {
+				return p;
+			}
+			return null;
+		}
+
+		Presence findBest() {
+			Presence result = null;
+			for (Presence p : resources.values()) {
+				if (p.isAvailable() && (result == null || isBetter(p, result))) {
+					result = p;
+				}
+			}
+			return result;
+		}
+
+		void put(String resource, Presence presence) {
+			Presence old = resources.put(resource, presence);
+			Presence current = best;
+			if (presence.isAvailable() && (current == null || isBetter(presence, current))) {
+				best = presence;
+			} else if (old != null && old == current) {
+				// current best presence was replaced by a worse one
+				best = findBest();
+			}
+		}
+
+		void remove(String resource) {
+			Presence old = resources.remove(resource);
+			if (old != null && old == best) {
+				best = findBest();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "UserPresences[resources=" + resources + ", best=" + best + "]";
 		}
 	}
 }
@@ -0,0 +1,339 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.component.ScheduledTask;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Token bucket based limiter of stanzas sent by occupants. Limits may be set separately for each occupant of the room,
+ * for each room and for the whole service, and for each kind of stanza.
+ * <br>
+ * Each bucket is kept as a single <code>long</code> value holding the time at which bucket will be full again
+ * (generic cell rate algorithm), updated with CAS operations. Buckets which are full are the same as missing ones, so
+ * they are periodically removed and memory usage does not grow with number of idle users. Bucket is marked as removed
+ * before it is removed from the map, so tokens are never taken from a bucket which is no longer used.
+ */
+@Bean(name = "rateLimiter", parent = MUCComponent.class, active = true)
+public class RateLimiter
+		extends ScheduledTask
+		implements MUCStatisticsProvider {
+
+	private static final Logger log = Logger.getLogger(RateLimiter.class.getName());
+	/**
+	 * Value of a bucket removed as idle.
+	 */
+	private static final long REMOVED = Long.MIN_VALUE;
+
+	public enum Kind {
+		message,
+		presence,
+		privateMessage
+	}
+
+	public enum Scope {
+		occupant,
+		room,
+		service
+	}
+
+	private final Map<OccupantKey, AtomicLong> occupantBuckets = new ConcurrentHashMap<>();
+	private final AtomicLongArray rejected = new AtomicLongArray(Kind.values().length);
+	private final Map<RoomKey, AtomicLong> roomBuckets = new ConcurrentHashMap<>();
+	private final AtomicLong[] serviceBuckets = new AtomicLong[Kind.values().length];
+	@ConfigField(desc = "Rate limits as '<rate per second>/<burst>' for '<scope>-<kind>' keys", alias = "limits")
+	private HashMap<String, String> limits = new HashMap<>();
+	private volatile ParsedLimits parsedLimits;
+
+	static Limit parseLimit(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		final String[] parts = value.trim().split("/");
+		final double rate = Double.parseDouble(parts[0].trim());
+		final int burst = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+		if (rate <= 0) {
+			return null;
+		}
+		return new Limit(rate, Math.max(1, burst));
+	}
+
+	/**
+	 * Takes token from the bucket. Times are compared by their difference, as values of {@link System#nanoTime()} may
+	 * overflow.
+	 *
+	 * @return <code>false</code> if the bucket is empty or was removed
+	 */
+	static boolean tryAcquire(AtomicLong bucket, Limit limit, long now) {
+		while (true) {
+			final long current = bucket.get();
+			if (current == REMOVED) {
+				return false;
+			}
+			final long base = current - now > 0 ? current : now;
+			if (base - now > limit.tolerance) {
+				return false;
+			}
+			if (bucket.compareAndSet(current, base + limit.interval)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns token taken by {@link #tryAcquire(AtomicLong, Limit, long)} to the bucket.
+	 */
+	static void release(AtomicLong bucket, Limit limit) {
+		bucket.updateAndGet(current -> current == REMOVED ? REMOVED : current - limit.interval);
+	}
+
+	/**
+	 * Takes token from the bucket stored in the map under the key, creating the bucket if needed.
+	 *
+	 * @return bucket from which token was taken or <code>null</code> if the bucket is empty
+	 */
+	private static <K> AtomicLong tryAcquire(Map<K, AtomicLong> buckets, K key, Limit limit, long now) {
+		while (true) {
+			final AtomicLong bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+			if (tryAcquire(bucket, limit, now)) {
+				return bucket;
+			}
+			if (bucket.get() != REMOVED) {
+				return null;
+			}
+			// bucket was removed as idle after it was retrieved, so new one is created
+		}
+	}
+
+	/**
+	 * Removes buckets which are full. Bucket is removed only if it was not modified after it was checked.
+	 */
+	private static <K> void removeIdle(Map<K, AtomicLong> buckets, long now) {
+		for (Map.Entry<K, AtomicLong> e : buckets.entrySet()) {
+			final AtomicLong bucket = e.getValue();
+			final long current = bucket.get();
+			if (current != REMOVED && current - now < 0 && bucket.compareAndSet(current, REMOVED)) {
+				buckets.remove(e.getKey(), bucket);
+			}
+		}
+	}
+
+	public RateLimiter() {
+		super(Duration.ofMinutes(1), Duration.ofMinutes(1));
+		for (int i = 0; i < serviceBuckets.length; i++) {
+			serviceBuckets[i] = new AtomicLong(System.nanoTime());
+		}
+	}
+
+	public HashMap<String, String> getLimits() {
+		return limits;
+	}
+
+	public void setLimits(HashMap<String, String> limits) {
+		this.limits = limits == null ? new HashMap<>() : limits;
+	}
+
+	private Limit[][] getParsedLimits() {
+		final Map<String, String> limits = this.limits;
+		ParsedLimits parsedLimits = this.parsedLimits;
+		if (parsedLimits != null && parsedLimits.source == limits) {
+			return parsedLimits.limits;
+		}
+		final Limit[][] parsed = new Limit[Scope.values().length][Kind.values().length];
+		for (Map.Entry<String, String> e : limits.entrySet()) {
+			final int idx = e.getKey().indexOf('-');
+			if (idx < 0) {
+				log.log(Level.WARNING, "Invalid rate limit key: " + e.getKey());
+				continue;
+			}
+			try {
+				final Scope scope = Scope.valueOf(e.getKey().substring(0, idx));
+				final Kind kind = Kind.valueOf(e.getKey().substring(idx + 1));
+				parsed[scope.ordinal()][kind.ordinal()] = parseLimit(e.getValue());
+			} catch (IllegalArgumentException ex) {
+				log.log(Level.WARNING, "Invalid rate limit " + e.getKey() + " = " + e.getValue(), ex);
+			}
+		}
+		this.parsedLimits = new ParsedLimits(limits, parsed);
+		return parsed;
+	}
+
+	public long getRejectedCounter(Kind kind) {
+		return rejected.get(kind.ordinal());
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		for (Kind kind : Kind.values()) {
+			list.add(compName, "Rate limited " + kind + " stanzas", rejected.get(kind.ordinal()), Level.FINE);
+		}
+		list.add(compName, "Rate limiter buckets", occupantBuckets.size() + roomBuckets.size(), Level.FINEST);
+	}
+
+	/**
+	 * Checks if stanza sent by occupant to the room is within configured limits.
+	 *
+	 * @return <code>false</code> if stanza should be rejected
+	 */
+	public boolean tryAcquire(Kind kind, BareJID roomJID, JID senderJID) {
+		final Limit[][] limits = getParsedLimits();
+		final Limit occupantLimit = limits[Scope.occupant.ordinal()][kind.ordinal()];
+		final Limit roomLimit = limits[Scope.room.ordinal()][kind.ordinal()];
+		final Limit serviceLimit = limits[Scope.service.ordinal()][kind.ordinal()];
+		if (occupantLimit == null && roomLimit == null && serviceLimit == null) {
+			return true;
+		}
+
+		final long now = System.nanoTime();
+		// token is taken from the bucket of each scope only if all of them allow the stanza
+		final AtomicLong occupantBucket = occupantLimit == null
+										  ? null
+										  : tryAcquire(occupantBuckets, new OccupantKey(kind, roomJID, senderJID),
+													   occupantLimit, now);
+		boolean result = occupantLimit == null || occupantBucket != null;
+		AtomicLong roomBucket = null;
+		if (result && roomLimit != null) {
+			roomBucket = tryAcquire(roomBuckets, new RoomKey(kind, roomJID), roomLimit, now);
+			result = roomBucket != null;
+			if (!result && occupantBucket != null) {
+				release(occupantBucket, occupantLimit);
+			}
+		}
+		final AtomicLong serviceBucket = serviceBuckets[kind.ordinal()];
+		if (result && serviceLimit != null) {
+			result = tryAcquire(serviceBucket, serviceLimit, now);
+			if (!result) {
+				if (roomBucket != null) {
+					release(roomBucket, roomLimit);
+				}
+				if (occupantBucket != null) {
+					release(occupantBucket, occupantLimit);
+				}
+			}
+		}
+		if (!result) {
+			rejected.incrementAndGet(kind.ordinal());
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Rate limit exceeded for " + kind + " from " + senderJID + " to " + roomJID);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void run() {
+		final long now = System.nanoTime();
+		removeIdle(occupantBuckets, now);
+		removeIdle(roomBuckets, now);
+	}
+
+	static final class Limit {
+
+		private final long interval;
+		private final long tolerance;
+
+		Limit(double rate, int burst) {
+			this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+			this.tolerance = interval * (burst - 1);
+		}
+	}
+
+	private static final class ParsedLimits {
+
+		private final Limit[][] limits;
+		private final Map<String, String> source;
+
+		ParsedLimits(Map<String, String> source, Limit[][] limits) {
+			this.source = source;
+			this.limits = limits;
+		}
+	}
+
+	private static final class OccupantKey {
+
+		private final Kind kind;
+		private final BareJID roomJID;
+		private final JID senderJID;
+
+		OccupantKey(Kind kind, BareJID roomJID, JID senderJID) {
+			this.kind = kind;
+			this.roomJID = roomJID;
+			this.senderJID = senderJID;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof OccupantKey)) {
+				return false;
+			}
+			OccupantKey that = (OccupantKey) o;
+			return kind == that.kind && roomJID.equals(that.roomJID) && senderJID.equals(that.senderJID);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(kind, roomJID, senderJID);
+		}
+	}
+
+	private static final class RoomKey {
+
+		private final Kind kind;
+		private final BareJID roomJID;
+
+		RoomKey(Kind kind, BareJID roomJID) {
+			this.kind = kind;
+			this.roomJID = roomJID;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof RoomKey)) {
+				return false;
+			}
+			RoomKey that = (RoomKey) o;
+			return kind == that.kind && roomJID.equals(that.roomJID);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(kind, roomJID);
+		}
+	}
+}
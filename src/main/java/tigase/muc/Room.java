@@ -27,18 +27,20 @@ import tigase.xmpp.jid.JID;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Room
 		implements RoomConfig.RoomConfigListener {
 
 	public static final String FILTERED_OCCUPANTS_COLLECTION = "filtered_occupants_collection";
+	private static final int OCCUPANT_ONLINE = 1;
+	private static final int OCCUPANT_PERSISTENT = 2;
 	protected static final Logger log = Logger.getLogger(Room.class.getName());
 	protected final PresenceFiltered presenceFiltered;
 	protected final PresenceStore presences = new PresenceStore();
@@ -48,8 +50,17 @@ public class Room
 	private final Date creationDate;
 	private final BareJID creatorJid;
 	private final List<RoomListener> listeners = new CopyOnWriteArrayList<RoomListener>();
+	private final OccupantsRosterCache occupantsRosterCache = new OccupantsRosterCache();
 	private final List<Room.RoomOccupantListener> occupantListeners = new CopyOnWriteArrayList<Room.RoomOccupantListener>();
 	private final Map<String, OccupantEntry> occupants = new ConcurrentHashMap<String, OccupantEntry>();
+	private final Map<JID, OccupantEntry> occupantsByJid = new ConcurrentHashMap<JID, OccupantEntry>();
+	private final Map<BareJID, Set<String>> occupantsNicknamesByBareJid = new ConcurrentHashMap<BareJID, Set<String>>();
+	private final Map<String, BareJID> persistentOccupantsByNickname = new ConcurrentHashMap<String, BareJID>();
+	private final Map<BareJID, Integer> distinctOccupants = new ConcurrentHashMap<BareJID, Integer>();
+	private final AtomicInteger onlineOccupantsCount = new AtomicInteger();
+	private final AtomicInteger persistentOccupantsCount = new AtomicInteger();
+	private final AtomicReference<MessageDeliverySnapshot> messageDeliverySnapshot = new AtomicReference<>(
+			new MessageDeliverySnapshot(0, null));
 	private final Map<String, Object> roomCustomData = new ConcurrentHashMap<String, Object>();
 	private String avatarHash;
 	private boolean roomLocked;
@@ -111,6 +122,7 @@ public class Room
 		} else {
 			this.affiliations.put(jid, affiliation);
 		}
+		updatePersistentOccupantsIndex(jid, oldAffiliation, affiliation);
 		fireOnSetAffiliation(jid, oldAffiliation, affiliation);
 	}
 
@@ -125,6 +137,7 @@ public class Room
 		if (entry == null) {
 			entry = new OccupantEntry(nickName, senderJid.getBareJID());
 			this.occupants.put(nickName, entry);
+			addNicknameToIndex(entry.jid, nickName);
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Room {0}. Created OccupantEntry for {1}, nickname={2}",
@@ -134,9 +147,12 @@ public class Room
 
 		entry.role = role;
 		boolean added = false;
-		synchronized (entry.jids) {
-			added = entry.jids.add(senderJid);
+		synchronized (entry) {
+			added = entry.addJid(senderJid);
+			this.occupantsByJid.put(senderJid, entry);
 		}
+		invalidateMessageDeliverySnapshot();
+		occupantsRosterCache.invalidate(entry.jid);
 
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Room {0}. {1} occupant {2} ({3}) to room with role={4}; filtering enabled: {5}",
@@ -165,11 +181,15 @@ public class Room
 		this.occupants.remove(oldNickname);
 		occ.nickname = nickName;
 		this.occupants.put(nickName, occ);
+		removeNicknameFromIndex(occ.jid, oldNickname);
+		addNicknameToIndex(occ.jid, nickName);
+		occupantsRosterCache.invalidate(occ.jid);
 
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest("Room " + config.getRoomJID() + ". Occupant " + senderJid + " changed nickname from " +
 							   oldNickname + " to " + nickName);
 		}
+		fireOnOccupantChangedNickname(occ.jid, oldNickname, nickName);
 	}
 
 	public void fireOnMessageToOccupants(JID fromJID, Packet msg) {
@@ -205,8 +225,13 @@ public class Room
 	}
 
 	public void setAffiliations(Map<BareJID, RoomAffiliation> affiliations) {
+		this.affiliations.keySet().forEach(jid -> updateOccupantFlag(jid, OCCUPANT_PERSISTENT, false));
 		this.affiliations.clear();
+		this.persistentOccupantsByNickname.clear();
 		this.affiliations.putAll(affiliations);
+		affiliations.forEach((jid, affiliation) -> updatePersistentOccupantsIndex(jid, null, affiliation));
+		invalidateMessageDeliverySnapshot();
+		occupantsRosterCache.invalidateAll();
 	}
 
 	public Stream<BareJID> getAffiliationsMatching(Predicate<RoomAffiliation> predicate) {
@@ -225,17 +250,38 @@ public class Room
 		return this.occupants.entrySet()
 				.stream()
 				.filter(entry -> entry.getValue().role.isReceiveMessages())
-				.flatMap(entry -> {
-					synchronized (entry.getValue().jids) {
-						return new HashSet(entry.getValue().jids).stream();
-					}
-				});
+				.flatMap(entry -> entry.getValue().jids.stream());
 	}
 
 	public Stream<JID> getAllJidsForMessageDelivery() {
-		return Stream.concat(getAllOccupantsJidsForMessageDelivery(),
-							 getAffiliationsMatching(RoomAffiliation::isPersistentOccupant).filter(
-									 createAvailableFilter()).map(JID::jidInstanceNS));
+		return Arrays.stream(getJidsForMessageDelivery());
+	}
+
+	/**
+	 * Returns JIDs of all occupants which should receive messages sent to the room, including persistent occupants
+	 * which are not online. Returned array is shared between callers and reused until occupants, roles or
+	 * affiliations of the room change, so it must not be modified.
+	 *
+	 * @return array of recipients JIDs
+	 */
+	public JID[] getJidsForMessageDelivery() {
+		final MessageDeliverySnapshot snapshot = this.messageDeliverySnapshot.get();
+		if (snapshot.jids != null) {
+			return snapshot.jids;
+		}
+
+		final ArrayList<JID> result = new ArrayList<>(this.occupantsByJid.size());
+		getAllOccupantsJidsForMessageDelivery().forEach(result::add);
+		this.affiliations.forEach((jid, affiliation) -> {
+			if (affiliation.isPersistentOccupant() && !isOccupantOnline(jid)) {
+				result.add(JID.jidInstanceNS(jid));
+			}
+		});
+		final JID[] jids = result.toArray(new JID[result.size()]);
+
+		// if room was modified while we were building snapshot, then we will not cache it
+		this.messageDeliverySnapshot.compareAndSet(snapshot, new MessageDeliverySnapshot(snapshot.version, jids));
+		return jids;
 	}
 
 	public RoomConfig getConfig() {
@@ -259,6 +305,13 @@ public class Room
 		return sb.toString();
 	}
 
+	/**
+	 * Returns last presence received from occupant's resource. Returned element must not be modified.
+	 */
+	public Element getPresenceByJid(JID jid) {
+		return this.presences.getPresence(jid);
+	}
+
 	public Element getLastPresenceCopy(BareJID occupantJid, String nickname) {
 		return getLastPresenceCopyByJid(occupantJid);
 	}
@@ -284,17 +337,19 @@ public class Room
 		return result;
 	}
 
+	/**
+	 * @return number of distinct bare JIDs which are online in the room or are persistent occupants
+	 */
 	public int getOccupantsCount() {
-		final HashSet<BareJID> tmp = new HashSet<>();
+		return this.distinctOccupants.size();
+	}
 
-		this.occupants.values().forEach(occupantEntry -> tmp.add(occupantEntry.jid));
-		this.affiliations.forEach((key, value) -> {
-			if (value.isPersistentOccupant()) {
-				tmp.add(key);
-			}
-		});
+	public int getOnlineOccupantsCount() {
+		return this.onlineOccupantsCount.get();
+	}
 
-		return tmp.size();
+	public int getPersistentOccupantsCount() {
+		return this.persistentOccupantsCount.get();
 	}
 
 	public Stream<BareJID> getOccupantsBareJids() {
@@ -357,23 +412,14 @@ public class Room
 	}
 
 	public boolean isOccupantOnline(final BareJID jid) {
-		for (Map.Entry<String, OccupantEntry> e : this.occupants.entrySet()) {
-			if (e.getValue().jid.equals(jid)) {
-				return true;
-			}
-		}
-		return false;
+		return jid != null && this.occupantsNicknamesByBareJid.containsKey(jid);
 	}
 
 	public Collection<String> getOccupantsNicknames(BareJID bareJid) {
-		Set<String> result = new HashSet<>();
-
-		for (Map.Entry<String, OccupantEntry> e : this.occupants.entrySet()) {
-			if (e.getValue().jid.equals(bareJid)) {
-				result.add(e.getKey());
-			}
+		Set<String> result = bareJid == null ? null : this.occupantsNicknamesByBareJid.get(bareJid);
+		if (result == null) {
+			return Collections.emptySet();
 		}
-
 		return Collections.unmodifiableCollection(result);
 	}
 
@@ -455,9 +501,17 @@ public class Room
 		this.roomLocked = roomLocked;
 	}
 
+	/**
+	 * @return cache of occupants roster sent to new occupants
+	 */
+	public OccupantsRosterCache getOccupantsRosterCache() {
+		return occupantsRosterCache;
+	}
+
 	@Override
 	public void onConfigChanged(RoomConfig roomConfig, Set<String> modifiedVars) {
 		presences.setOrdening(roomConfig.getPresenceDeliveryLogic());
+		occupantsRosterCache.invalidateAll();
 	}
 
 	@Override
@@ -475,18 +529,22 @@ public class Room
 		OccupantEntry e = getBySenderJid(jid);
 		if (e != null) {
 			try {
-				synchronized (e.jids) {
-					e.jids.remove(jid);
+				synchronized (e) {
+					e.removeJid(jid);
+					this.occupantsByJid.remove(jid, e);
 					if (log.isLoggable(Level.FINEST)) {
 						log.finest("Room " + config.getRoomJID() + ". Removed JID " + jid + " of occupant");
 					}
 					if (e.jids.isEmpty()) {
 						this.occupants.remove(e.nickname);
+						removeNicknameFromIndex(e.jid, e.nickname);
 						if (log.isLoggable(Level.FINEST)) {
 							log.finest("Room " + config.getRoomJID() + ". Removed occupant " + jid);
 						}
-						return true;
 					}
+					invalidateMessageDeliverySnapshot();
+					occupantsRosterCache.invalidate(e.jid);
+					return e.jids.isEmpty();
 				}
 			} finally {
 				fireOnOccupantRemoved(jid);
@@ -498,24 +556,37 @@ public class Room
 	public void removeOccupant(String occupantNick) {
 		OccupantEntry e = this.occupants.remove(occupantNick);
 		if (e != null) {
+			removeNicknameFromIndex(e.jid, occupantNick);
+			final List<JID> removedJids;
+			synchronized (e) {
+				removedJids = e.jids;
+				for (JID jid : removedJids) {
+					this.occupantsByJid.remove(jid, e);
+				}
+			}
+			invalidateMessageDeliverySnapshot();
+			occupantsRosterCache.invalidate(e.jid);
 			if (log.isLoggable(Level.FINEST)) {
 				log.finest("Room " + config.getRoomJID() + ". Removed occupant " + occupantNick);
 			}
 
-			for (JID jid : e.jids) {
+			for (JID jid : removedJids) {
 				fireOnOccupantRemoved(jid);
 			}
 		}
 	}
 
 	public void setNewAffiliation(BareJID user, RoomAffiliation affiliation) {
-		this.affiliations.put(user, affiliation);
+		final RoomAffiliation oldAffiliation = this.affiliations.put(user, affiliation);
+		updatePersistentOccupantsIndex(user, oldAffiliation, affiliation);
 	}
 
 	public void setNewRole(String nickname, Role newRole) {
 		OccupantEntry entry = this.occupants.get(nickname);
 		if (entry != null) {
 			entry.role = newRole;
+			invalidateMessageDeliverySnapshot();
+			occupantsRosterCache.invalidate(entry.jid);
 			if (log.isLoggable(Level.FINEST)) {
 				log.finest("Room " + config.getRoomJID() + ". Changed role of occupant " + nickname + " to " + newRole);
 			}
@@ -547,6 +618,16 @@ public class Room
 			}
 			this.presences.update(cp);
 		}
+		if (jid != null) {
+			occupantsRosterCache.invalidate(jid.getBareJID());
+		} else {
+			BareJID occupantJid = getOccupantsJidByNickname(nickname);
+			if (occupantJid != null) {
+				occupantsRosterCache.invalidate(occupantJid);
+			} else {
+				occupantsRosterCache.invalidateAll();
+			}
+		}
 
 		fireOnOccupantChangedPresence(jid, nickname, cp, false);
 	}
@@ -554,7 +635,7 @@ public class Room
 	protected Collection<JID> getLocalOccupantsJidsByNickname(final String nickname) {
 		OccupantEntry entry = this.occupants.get(nickname);
 		if (entry != null) {
-			return Collections.unmodifiableCollection(new ConcurrentSkipListSet(entry.jids));
+			return entry.jids;
 		}
 		return Collections.emptyList();
 	}
@@ -570,14 +651,9 @@ public class Room
 	}
 
 	protected BareJID getPersistentOccupantJidByNickname(final String nickname) {
-		Optional<BareJID> optionalJid = this.affiliations.entrySet()
-				.stream()
-				.filter(e -> e.getValue().isPersistentOccupant())
-				.filter(e -> nickname.equals(e.getValue().getRegisteredNickname()))
-				.map(Map.Entry::getKey)
-				.findAny();
-		if (optionalJid.isPresent()) {
-			return optionalJid.get();
+		BareJID registered = this.persistentOccupantsByNickname.get(nickname);
+		if (registered != null) {
+			return registered;
 		}
 
 		BareJID candidate = nicknameToJid(nickname);
@@ -594,8 +670,7 @@ public class Room
 	}
 
 	protected Predicate<BareJID> createAvailableFilter() {
-		Set<BareJID> occupants = getOccupantsBareJids().collect(Collectors.toSet());
-		return (jid) -> !occupants.contains(jid);
+		return (jid) -> !isOccupantOnline(jid);
 	}
 
 	private void fireOnOccupantAdded(JID occupantJid) {
@@ -604,6 +679,12 @@ public class Room
 		}
 	}
 
+	private void fireOnOccupantChangedNickname(BareJID occupantJid, String oldNickname, String newNickname) {
+		for (Room.RoomOccupantListener listener : this.occupantListeners) {
+			listener.onOccupantChangedNickname(this, occupantJid, oldNickname, newNickname);
+		}
+	}
+
 	private void fireOnOccupantChangedPresence(JID occupantJid, String nickname, Element cp, boolean newOccupant) {
 		for (Room.RoomOccupantListener listener : this.occupantListeners) {
 			listener.onOccupantChangedPresence(this, occupantJid, nickname, cp, newOccupant);
@@ -629,14 +710,97 @@ public class Room
 	}
 
 	private OccupantEntry getBySenderJid(JID sender) {
-		for (Map.Entry<String, OccupantEntry> e : occupants.entrySet()) {
-			synchronized (e.getValue().jids) {
-				if (e.getValue().jids.contains(sender)) {
-					return e.getValue();
+		if (sender == null) {
+			return null;
+		}
+		return this.occupantsByJid.get(sender);
+	}
+
+	private void updatePersistentOccupantsIndex(BareJID jid, RoomAffiliation oldAffiliation,
+												RoomAffiliation newAffiliation) {
+		final String oldNickname = getRegisteredNickname(oldAffiliation);
+		final String newNickname = getRegisteredNickname(newAffiliation);
+		if (oldNickname != null && !oldNickname.equals(newNickname)) {
+			// nickname may be still registered by other persistent occupant
+			if (this.persistentOccupantsByNickname.remove(oldNickname, jid)) {
+				rebuildPersistentOccupantsIndex(oldNickname, null);
+			}
+		}
+		if (newNickname != null) {
+			final BareJID current = this.persistentOccupantsByNickname.putIfAbsent(newNickname, jid);
+			if (current != null && !current.equals(jid)) {
+				rebuildPersistentOccupantsIndex(newNickname, jid);
+			}
+		}
+		updateOccupantFlag(jid, OCCUPANT_PERSISTENT, newAffiliation != null && newAffiliation.isPersistentOccupant());
+		invalidateMessageDeliverySnapshot();
+		occupantsRosterCache.invalidate(jid);
+	}
+
+	/**
+	 * Sets entry of the index for nickname registered by more than one persistent occupant (or by none). Current
+	 * entry is kept as long as it is valid, so nickname is not moved between occupants on each change.
+	 */
+	private void rebuildPersistentOccupantsIndex(String nickname, BareJID preferred) {
+		this.persistentOccupantsByNickname.compute(nickname, (nick, current) -> {
+			if (current != null && nick.equals(getRegisteredNickname(this.affiliations.get(current)))) {
+				return current;
+			}
+			if (preferred != null && nick.equals(getRegisteredNickname(this.affiliations.get(preferred)))) {
+				return preferred;
+			}
+			for (Map.Entry<BareJID, RoomAffiliation> e : this.affiliations.entrySet()) {
+				if (nick.equals(getRegisteredNickname(e.getValue()))) {
+					return e.getKey();
 				}
 			}
+			return null;
+		});
+	}
+
+	private static String getRegisteredNickname(RoomAffiliation affiliation) {
+		if (affiliation == null || !affiliation.isPersistentOccupant()) {
+			return null;
 		}
-		return null;
+		return affiliation.getRegisteredNickname();
+	}
+
+	private void invalidateMessageDeliverySnapshot() {
+		this.messageDeliverySnapshot.updateAndGet(current -> new MessageDeliverySnapshot(current.version + 1, null));
+	}
+
+	private void updateOccupantFlag(BareJID jid, int flag, boolean set) {
+		this.distinctOccupants.compute(jid, (k, flags) -> {
+			final int current = flags == null ? 0 : flags;
+			final int updated = set ? (current | flag) : (current & ~flag);
+			if (current != updated) {
+				AtomicInteger counter = flag == OCCUPANT_ONLINE ? onlineOccupantsCount : persistentOccupantsCount;
+				counter.addAndGet(set ? 1 : -1);
+			}
+			return updated == 0 ? null : updated;
+		});
+	}
+
+	private void addNicknameToIndex(BareJID jid, String nickname) {
+		this.occupantsNicknamesByBareJid.compute(jid, (k, nicknames) -> {
+			if (nicknames == null) {
+				nicknames = ConcurrentHashMap.newKeySet();
+				updateOccupantFlag(jid, OCCUPANT_ONLINE, true);
+			}
+			nicknames.add(nickname);
+			return nicknames;
+		});
+	}
+
+	private void removeNicknameFromIndex(BareJID jid, String nickname) {
+		this.occupantsNicknamesByBareJid.computeIfPresent(jid, (k, nicknames) -> {
+			nicknames.remove(nickname);
+			if (nicknames.isEmpty()) {
+				updateOccupantFlag(jid, OCCUPANT_ONLINE, false);
+				return null;
+			}
+			return nicknames;
+		});
 	}
 
 	public interface RoomFactory {
@@ -658,16 +822,38 @@ public class Room
 
 		void onOccupantAdded(Room room, JID occupantJid);
 
+		/**
+		 * Called after occupant changed nickname. All JIDs of the occupant are known under the new nickname.
+		 */
+		default void onOccupantChangedNickname(Room room, BareJID occupantJid, String oldNickname,
+											   String newNickname) {
+		}
+
 		void onOccupantChangedPresence(Room room, JID occupantJid, String nickname, Element presence,
 									   boolean newOccupant);
 
 		void onOccupantRemoved(Room room, JID occupantJid);
 	}
 
+	private static final class MessageDeliverySnapshot {
+
+		private final JID[] jids;
+		private final long version;
+
+		private MessageDeliverySnapshot(long version, JID[] jids) {
+			this.version = version;
+			this.jids = jids;
+		}
+	}
+
 	private static class OccupantEntry {
 
 		private final BareJID jid;
-		private final Set<JID> jids = new HashSet<JID>();
+		/**
+		 * Immutable and sorted list of occupant JIDs. It is replaced on every change, so it may be safely returned to
+		 * callers without copying.
+		 */
+		private volatile List<JID> jids = Collections.emptyList();
 		private String nickname;
 
 		private Role role = Role.none;
@@ -685,6 +871,45 @@ public class Room
 		private BareJID getBareJID() {
 			return jid;
 		}
+
+		private synchronized boolean addJid(JID occupantJid) {
+			final List<JID> current = this.jids;
+			int idx = Collections.binarySearch(current, occupantJid);
+			if (idx >= 0) {
+				return false;
+			}
+			idx = -(idx + 1);
+			final JID[] updated = new JID[current.size() + 1];
+			for (int i = 0; i < idx; i++) {
+				updated[i] = current.get(i);
+			}
+			updated[idx] = occupantJid;
+			for (int i = idx; i < current.size(); i++) {
+				updated[i + 1] = current.get(i);
+			}
+			this.jids = Collections.unmodifiableList(Arrays.asList(updated));
+			return true;
+		}
+
+		private synchronized boolean removeJid(JID occupantJid) {
+			final List<JID> current = this.jids;
+			final int idx = Collections.binarySearch(current, occupantJid);
+			if (idx < 0) {
+				return false;
+			}
+			if (current.size() == 1) {
+				this.jids = Collections.emptyList();
+				return true;
+			}
+			final JID[] updated = new JID[current.size() - 1];
+			for (int i = 0, j = 0; i < current.size(); i++) {
+				if (i != idx) {
+					updated[j++] = current.get(i);
+				}
+			}
+			this.jids = Collections.unmodifiableList(Arrays.asList(updated));
+			return true;
+		}
 	}
 
 	@Bean(name = "roomFactory", parent = MUCComponent.class, active = true, exportable = true)
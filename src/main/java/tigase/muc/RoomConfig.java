@@ -48,6 +48,7 @@ public class RoomConfig {
 	public static final String MUC_ROOMCONFIG_ROOMDESC_KEY = "muc#roomconfig_roomdesc";
 	public static final String MUC_ROOMCONFIG_ROOMNAME_KEY = "muc#roomconfig_roomname";
 	public static final String MUC_ROOMCONFIG_ROOMSECRET_KEY = "muc#roomconfig_roomsecret";
+	public static final String TIGASE_ROOMCONFIG_HISTORY_RETENTION = "tigase#history_retention";
 	public static final String TIGASE_ROOMCONFIG_PRESENCE_DELIVERY_LOGIC = "tigase#presence_delivery_logic";
 	public static final String TIGASE_ROOMCONFIG_PRESENCE_FILTERED_AFFILIATIONS = "tigase#presence_filtered_affiliations";
 	public static final String TIGASE_ROOMCONFIG_PRESENCE_FILTERING = "tigase#presence_filtering";
@@ -240,6 +241,23 @@ public class RoomConfig {
 		}
 	}
 
+	/**
+	 * Number of days for which messages are kept in history of the room.
+	 *
+	 * @return <code>null</code> if default retention of the service should be used
+	 */
+	public Integer getHistoryRetention() {
+		try {
+			String v = form.getAsString(TIGASE_ROOMCONFIG_HISTORY_RETENTION);
+			if (v == null || v.trim().isEmpty()) {
+				return null;
+			}
+			return Integer.valueOf(v.trim());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
 	public Integer getMaxHistory() {
 		try {
 			return form.getAsInteger(MUC_ROOMCONFIG_MAXHISTORY_KEY);
@@ -342,6 +360,8 @@ public class RoomConfig {
 
 		form.addField(Field.fieldTextSingle(MUC_ROOMCONFIG_MAXHISTORY_KEY, "50",
 											"Maximum Number of History Messages Returned by Room"));
+		form.addField(Field.fieldTextSingle(TIGASE_ROOMCONFIG_HISTORY_RETENTION, "",
+											"Number of Days for Which Messages Are Kept in History"));
 
 		form.addField(Field.fieldListSingle(MUC_ROOMCONFIG_MAXUSERS_KEY, "", "Maximum Number of Occupants",
 											new String[]{"10", "20", "30", "50", "100", "None"},
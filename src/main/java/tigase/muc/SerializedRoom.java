@@ -0,0 +1,435 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.component.exceptions.RepositoryException;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Room implementation in which all modifications of room state (occupants, roles, affiliations and presences) are
+ * serialized by a per room lock. Thanks to that, readers may retrieve {@link Snapshot} which is an immutable and
+ * consistent view of room occupants, their presences and affiliations.
+ * <br>
+ * Lookups of occupants, roles, affiliations and presences are served from the snapshot without taking the lock, so
+ * they never observe room in the middle of modification. Each modification replaces the snapshot before releasing the
+ * lock, copying only maps which were changed and updating only entries of modified occupant or affiliation, so
+ * lookups never rebuild the whole state. Code running while the room is being modified (ie. room listeners) reads
+ * current state of the room.
+ * <br>
+ * To enable it, set class of <code>roomFactory</code> bean to {@link SerializedRoomFactory}.
+ */
+public class SerializedRoom<ID>
+		extends RoomWithId<ID> {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyMap(), Collections.emptyMap(),
+													 Collections.emptyMap(), Collections.emptyMap());
+	private long version = 0;
+
+	private static boolean isSameOccupant(Occupant o1, Occupant o2) {
+		if (o1 == null || o2 == null) {
+			return o1 == o2;
+		}
+		return o1.role == o2.role && o1.jid.equals(o2.jid) && o1.jids.equals(o2.jids);
+	}
+
+	protected SerializedRoom(ID id, RoomConfig rc, Date creationDate, BareJID creatorJid) {
+		super(id, rc, creationDate, creatorJid);
+	}
+
+	@Override
+	public void addAffiliationByJid(BareJID jid, RoomAffiliation affiliation) throws RepositoryException {
+		lock.lock();
+		try {
+			super.addAffiliationByJid(jid, affiliation);
+		} finally {
+			modified(() -> updateAffiliation(jid));
+		}
+	}
+
+	@Override
+	public void addOccupantByJid(JID senderJid, String nickName, Role role, Element pe)
+			throws TigaseStringprepException {
+		lock.lock();
+		try {
+			super.addOccupantByJid(senderJid, nickName, role, pe);
+		} finally {
+			modified(() -> updateOccupant(nickName));
+		}
+	}
+
+	@Override
+	public void changeNickName(JID senderJid, String nickName) {
+		lock.lock();
+		final String oldNickname = snapshot.nicknames.get(senderJid);
+		try {
+			super.changeNickName(senderJid, nickName);
+		} finally {
+			modified(() -> {
+				updateOccupant(oldNickname);
+				updateOccupant(nickName);
+			});
+		}
+	}
+
+	@Override
+	public RoomAffiliation getAffiliation(BareJID jid) {
+		final Snapshot snapshot = getReadSnapshot();
+		if (snapshot == null) {
+			return super.getAffiliation(jid);
+		}
+		final RoomAffiliation result = jid == null ? null : snapshot.affiliations.get(jid);
+		return result == null ? RoomAffiliation.none : result;
+	}
+
+	@Override
+	public BareJID getOccupantsJidByNickname(String nickname) {
+		final Snapshot snapshot = getReadSnapshot();
+		final Occupant occupant = snapshot == null || nickname == null ? null : snapshot.getOccupant(nickname);
+		return occupant != null ? occupant.getBareJID() : super.getOccupantsJidByNickname(nickname);
+	}
+
+	@Override
+	public String getOccupantsNickname(JID jid) {
+		final Snapshot snapshot = getReadSnapshot();
+		final String nickname = snapshot == null ? null : snapshot.nicknames.get(jid);
+		return nickname != null ? nickname : super.getOccupantsNickname(jid);
+	}
+
+	@Override
+	public Collection<String> getOccupantsNicknames(boolean includePersistent) {
+		final Snapshot snapshot = getReadSnapshot();
+		if (snapshot == null || includePersistent) {
+			return super.getOccupantsNicknames(includePersistent);
+		}
+		return Collections.unmodifiableSet(snapshot.occupants.keySet());
+	}
+
+	@Override
+	public Element getPresenceByJid(JID jid) {
+		final Snapshot snapshot = getReadSnapshot();
+		return snapshot == null ? super.getPresenceByJid(jid) : snapshot.presences.get(jid);
+	}
+
+	@Override
+	public Role getRole(String nickname) {
+		final Snapshot snapshot = getReadSnapshot();
+		final Occupant occupant = snapshot == null || nickname == null ? null : snapshot.getOccupant(nickname);
+		return occupant != null ? occupant.getRole() : super.getRole(nickname);
+	}
+
+	@Override
+	public boolean isOccupantInRoom(JID jid) {
+		final Snapshot snapshot = getReadSnapshot();
+		if (snapshot == null) {
+			return super.isOccupantInRoom(jid);
+		}
+		return snapshot.nicknames.containsKey(jid) || getAffiliation(jid.getBareJID()).isPersistentOccupant();
+	}
+
+	/**
+	 * Returns immutable view of the room state. Returned instance is replaced on each modification of the room.
+	 *
+	 * @return snapshot of room state
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	@Override
+	public boolean removeOccupant(JID jid) {
+		lock.lock();
+		final String nickname = snapshot.nicknames.get(jid);
+		try {
+			return super.removeOccupant(jid);
+		} finally {
+			modified(() -> updateOccupant(nickname));
+		}
+	}
+
+	@Override
+	public void removeOccupant(String occupantNick) {
+		lock.lock();
+		try {
+			super.removeOccupant(occupantNick);
+		} finally {
+			modified(() -> updateOccupant(occupantNick));
+		}
+	}
+
+	@Override
+	public void setAffiliations(Map<BareJID, RoomAffiliation> affiliations) {
+		lock.lock();
+		try {
+			super.setAffiliations(affiliations);
+		} finally {
+			modified(this::updateAffiliations);
+		}
+	}
+
+	@Override
+	public void setNewAffiliation(BareJID user, RoomAffiliation affiliation) {
+		lock.lock();
+		try {
+			super.setNewAffiliation(user, affiliation);
+		} finally {
+			modified(() -> updateAffiliation(user));
+		}
+	}
+
+	@Override
+	public void setNewRole(String nickname, Role newRole) {
+		lock.lock();
+		try {
+			super.setNewRole(nickname, newRole);
+		} finally {
+			modified(() -> updateOccupant(nickname));
+		}
+	}
+
+	@Override
+	public void updatePresenceByJid(JID jid, String nickname, Element cp) throws TigaseStringprepException {
+		lock.lock();
+		final String occupantNickname = jid == null ? null : snapshot.nicknames.get(jid);
+		try {
+			super.updatePresenceByJid(jid, nickname, cp);
+		} finally {
+			modified(() -> {
+				updateOccupant(nickname);
+				if (occupantNickname != null && !occupantNickname.equals(nickname)) {
+					updateOccupant(occupantNickname);
+				}
+			});
+		}
+	}
+
+	@Override
+	protected Collection<JID> getLocalOccupantsJidsByNickname(String nickname) {
+		final Snapshot snapshot = getReadSnapshot();
+		if (snapshot == null) {
+			return super.getLocalOccupantsJidsByNickname(nickname);
+		}
+		final Occupant occupant = snapshot.getOccupant(nickname);
+		return occupant == null ? Collections.emptyList() : occupant.getJids();
+	}
+
+	/**
+	 * Replaces snapshot with one containing current state of occupant using passed nickname. Only maps containing
+	 * changed entries are copied. Called while holding the lock, so methods of the room return its current state.
+	 */
+	private void updateOccupant(String nickname) {
+		if (nickname == null) {
+			return;
+		}
+		final Snapshot current = this.snapshot;
+		final Occupant oldOccupant = current.occupants.get(nickname);
+		final BareJID jid = super.getOccupantsNicknames(false).contains(nickname)
+							? super.getOccupantsJidByNickname(nickname)
+							: null;
+		final Occupant newOccupant = jid == null
+									 ? null
+									 : new Occupant(nickname, jid, super.getRole(nickname),
+													super.getLocalOccupantsJidsByNickname(nickname));
+
+		Map<String, Occupant> occupants = current.occupants;
+		Map<JID, String> nicknames = current.nicknames;
+		if (!isSameOccupant(oldOccupant, newOccupant)) {
+			occupants = new HashMap<>(occupants);
+			nicknames = new HashMap<>(nicknames);
+			if (oldOccupant != null) {
+				occupants.remove(nickname);
+				for (JID occupantJid : oldOccupant.jids) {
+					nicknames.remove(occupantJid, nickname);
+				}
+			}
+			if (newOccupant != null) {
+				occupants.put(nickname, newOccupant);
+				for (JID occupantJid : newOccupant.jids) {
+					nicknames.put(occupantJid, nickname);
+				}
+			}
+		}
+
+		Map<JID, Element> presences = current.presences;
+		final Set<JID> jids = new HashSet<>();
+		if (oldOccupant != null) {
+			jids.addAll(oldOccupant.jids);
+		}
+		if (newOccupant != null) {
+			jids.addAll(newOccupant.jids);
+		}
+		for (JID occupantJid : jids) {
+			final Element presence = newOccupant != null && newOccupant.jids.contains(occupantJid)
+									 ? super.getPresenceByJid(occupantJid)
+									 : null;
+			if (presences.get(occupantJid) != presence) {
+				if (presences == current.presences) {
+					presences = new HashMap<>(presences);
+				}
+				if (presence == null) {
+					presences.remove(occupantJid);
+				} else {
+					presences.put(occupantJid, presence);
+				}
+			}
+		}
+
+		this.snapshot = new Snapshot(version, occupants, nicknames, presences, current.affiliations);
+	}
+
+	/**
+	 * Replaces snapshot with one containing current affiliation of passed JID. Called while holding the lock.
+	 */
+	private void updateAffiliation(BareJID jid) {
+		final Snapshot current = this.snapshot;
+		final Map<BareJID, RoomAffiliation> affiliations = new HashMap<>(current.affiliations);
+		if (jid != null && super.getAffiliations().contains(jid)) {
+			affiliations.put(jid, super.getAffiliation(jid));
+		} else {
+			affiliations.remove(jid);
+		}
+		this.snapshot = new Snapshot(version, current.occupants, current.nicknames, current.presences, affiliations);
+	}
+
+	/**
+	 * Replaces snapshot with one containing all current affiliations. Called while holding the lock.
+	 */
+	private void updateAffiliations() {
+		final Snapshot current = this.snapshot;
+		final Map<BareJID, RoomAffiliation> affiliations = new HashMap<>();
+		for (BareJID jid : super.getAffiliations()) {
+			affiliations.put(jid, super.getAffiliation(jid));
+		}
+		this.snapshot = new Snapshot(version, current.occupants, current.nicknames, current.presences, affiliations);
+	}
+
+	/**
+	 * Returns snapshot used to serve lookups or <code>null</code> if room is being modified by current thread and
+	 * lookups have to see its current state.
+	 */
+	private Snapshot getReadSnapshot() {
+		if (lock.isHeldByCurrentThread()) {
+			return null;
+		}
+		return getSnapshot();
+	}
+
+	private void modified(Runnable updateSnapshot) {
+		try {
+			version++;
+			updateSnapshot.run();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Immutable occupant entry of {@link Snapshot}.
+	 */
+	public static final class Occupant {
+
+		private final BareJID jid;
+		private final List<JID> jids;
+		private final String nickname;
+		private final Role role;
+
+		private Occupant(String nickname, BareJID jid, Role role, Collection<JID> jids) {
+			this.nickname = nickname;
+			this.jid = jid;
+			this.role = role;
+			this.jids = Collections.unmodifiableList(new ArrayList<>(jids));
+		}
+
+		public BareJID getBareJID() {
+			return jid;
+		}
+
+		public List<JID> getJids() {
+			return jids;
+		}
+
+		public String getNickname() {
+			return nickname;
+		}
+
+		public Role getRole() {
+			return role;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + nickname + "; " + role + "; " + jid + "; " + jids + "]";
+		}
+	}
+
+	/**
+	 * Immutable and consistent view of room occupants and affiliations.
+	 */
+	public static final class Snapshot {
+
+		private final Map<BareJID, RoomAffiliation> affiliations;
+		private final Map<JID, String> nicknames;
+		private final Map<String, Occupant> occupants;
+		private final Map<JID, Element> presences;
+		private final long version;
+
+		/**
+		 * Passed maps are not copied and must not be modified after snapshot is created.
+		 */
+		private Snapshot(long version, Map<String, Occupant> occupants, Map<JID, String> nicknames,
+						 Map<JID, Element> presences, Map<BareJID, RoomAffiliation> affiliations) {
+			this.version = version;
+			this.occupants = occupants;
+			this.nicknames = nicknames;
+			this.presences = presences;
+			this.affiliations = affiliations;
+		}
+
+		public Map<BareJID, RoomAffiliation> getAffiliations() {
+			return Collections.unmodifiableMap(affiliations);
+		}
+
+		public Occupant getOccupant(String nickname) {
+			return occupants.get(nickname);
+		}
+
+		public Collection<Occupant> getOccupants() {
+			return Collections.unmodifiableCollection(occupants.values());
+		}
+
+		/**
+		 * Returns last presence received from occupant's resource. Returned element must not be modified.
+		 */
+		public Element getPresence(JID jid) {
+			return presences.get(jid);
+		}
+
+		/**
+		 * @return number of modifications of the room at the time snapshot was created
+		 */
+		public long getVersion() {
+			return version;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generator of unique and stable stanza identifiers (XEP-0359: Unique and Stable Stanza IDs).
+ * <br>
+ * Identifiers are ULID-like: 48 bits of time in milliseconds followed by 80 bits of random data, encoded as 26
+ * characters using Crockford's Base32, so they are sortable by time of creation. Generation is cheap as it requires
+ * neither locking nor hashing - each thread keeps its own state and if more than one identifier is requested by a
+ * thread within the same millisecond, the random part of the previous identifier is incremented. Thanks to that
+ * identifiers generated by a single thread are strictly monotonic.
+ */
+public class StanzaId {
+
+	public static final String ELEM_NAME = "stanza-id";
+	public static final String XMLNS = "urn:xmpp:sid:0";
+
+	private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+	private static final int LENGTH = 26;
+	private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+	public static String next() {
+		return next(System.currentTimeMillis());
+	}
+
+	public static String next(long now) {
+		final State state = STATE.get();
+		if (now > state.time) {
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+			state.time = now;
+			state.hi = random.nextInt() & 0xFFFF;
+			state.lo = random.nextLong();
+		} else if (++state.lo == 0) {
+			// carry to higher bits of random part, and to time if whole random part overflowed
+			state.hi = (state.hi + 1) & 0xFFFF;
+			if (state.hi == 0) {
+				state.time++;
+			}
+		}
+		return encode(state.time, state.hi, state.lo);
+	}
+
+	/**
+	 * Generates identifier for room subject which is the same every time it is generated for the same subject and
+	 * time of subject change.
+	 */
+	public static String forSubject(Date ts, String subject) {
+		long hash = 0xcbf29ce484222325L;
+		if (subject != null) {
+			for (int i = 0; i < subject.length(); i++) {
+				hash ^= subject.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+		}
+		// precision of subject change time is limited as it may be stored in the database
+		return encode((ts.getTime() / 100) * 100, (hash >>> 48) ^ (hash & 0xFFFF), hash);
+	}
+
+	/**
+	 * Returns time of generation of identifier or <code>-1</code> if passed string is not a valid identifier.
+	 */
+	public static long getTimestamp(String id) {
+		if (id == null || id.length() != LENGTH) {
+			return -1;
+		}
+		long time = 0;
+		for (int i = 0; i < 10; i++) {
+			int v = decode(id.charAt(i));
+			if (v < 0) {
+				return -1;
+			}
+			time = (time << 5) | v;
+		}
+		return time;
+	}
+
+	public static Element create(String id, BareJID by) {
+		return new Element(ELEM_NAME, new String[]{"xmlns", "id", "by"}, new String[]{XMLNS, id, by.toString()});
+	}
+
+	public static boolean isStanzaId(Element child, BareJID by) {
+		return ELEM_NAME.equals(child.getName()) && XMLNS.equals(child.getXMLNS()) &&
+				by.toString().equals(child.getAttributeStaticStr("by"));
+	}
+
+	/**
+	 * Returns stanza identifier assigned to the message by the entity <code>by</code> or <code>null</code>.
+	 */
+	public static String get(Element message, BareJID by) {
+		if (message == null) {
+			return null;
+		}
+		List<Element> children = message.getChildren();
+		if (children != null) {
+			for (Element child : children) {
+				if (isStanzaId(child, by)) {
+					return child.getAttributeStaticStr("id");
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String encode(long time, long hi, long lo) {
+		final char[] result = new char[LENGTH];
+		for (int i = 25; i >= 10; i--) {
+			result[i] = ALPHABET[(int) (lo & 31)];
+			lo = (lo >>> 5) | ((hi & 31) << 59);
+			hi >>>= 5;
+		}
+		for (int i = 9; i >= 0; i--) {
+			result[i] = ALPHABET[(int) (time & 31)];
+			time >>>= 5;
+		}
+		return new String(result);
+	}
+
+	private static int decode(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		for (int i = 10; i < ALPHABET.length; i++) {
+			if (ALPHABET[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static class State {
+
+		private long hi;
+		private long lo;
+		private long time = -1;
+
+	}
+}
@@ -17,21 +17,28 @@
  */
 package tigase.muc.history;
 
+import tigase.component.PacketWriter;
 import tigase.db.DataSource;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.muc.Affiliation;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig.Anonymity;
 import tigase.server.Packet;
 import tigase.util.datetime.TimestampHelper;
 import tigase.util.stringprep.TigaseStringprepException;
-import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
 import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
+import tigase.xmpp.mam.MAMRepository;
 import tigase.xmpp.mam.Query;
 import tigase.xmpp.rsm.RSM;
 
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Date;
-import java.util.Queue;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -40,10 +47,19 @@ import java.util.logging.Logger;
 public abstract class AbstractHistoryProvider<DS extends DataSource>
 		implements HistoryProvider<DS> {
 
+	/**
+	 * Maximal number of rows fetched from database at once while reading history.
+	 */
+	protected static final int MAX_FETCH_SIZE = 100;
+
 	protected static final SimpleParser parser = SingletonFactory.getParserInstance();
 
 	protected final Logger log = Logger.getLogger(this.getClass().getName());
 
+	@ConfigField(desc = "Number of parsed history messages kept for rendering", alias = "message-template-cache-size")
+	private int messageTemplateCacheSize = 1000;
+	private final MessageTemplateCache templateCache = new MessageTemplateCache(messageTemplateCacheSize);
+
 	private final TimestampHelper timestampHelper = new TimestampHelper();
 
 	protected static <Q extends Query> void calculateOffsetAndPosition(Q query, int count, Integer before,
@@ -74,12 +90,41 @@ public abstract class AbstractHistoryProvider<DS extends DataSource>
 		rsm.setCount(count);
 	}
 
+	/**
+	 * Sets number of rows fetched at once to number of expected rows, but not more than {@link #MAX_FETCH_SIZE}.
+	 */
+	protected static void setFetchSize(Statement st, int expectedRows) throws SQLException {
+		st.setFetchSize(Math.max(1, Math.min(expectedRows, MAX_FETCH_SIZE)));
+	}
+
+	public int getMessageTemplateCacheSize() {
+		return messageTemplateCacheSize;
+	}
+
+	public void setMessageTemplateCacheSize(int messageTemplateCacheSize) {
+		this.messageTemplateCacheSize = messageTemplateCacheSize;
+		templateCache.setMaxSize(messageTemplateCacheSize);
+	}
+
+	protected MessageTemplateCache getTemplateCache() {
+		return templateCache;
+	}
+
 	public Packet createMessage(BareJID roomJID, JID senderJID, String msgSenderNickname, String originalMessage,
 									   String body, String msgSenderJid, boolean addRealJids, Date msgTimestamp)
 			throws TigaseStringprepException {
+		return createMessage(roomJID, senderJID, msgSenderNickname, null, originalMessage, body, msgSenderJid,
+							 addRealJids, msgTimestamp);
+	}
+
+	public Packet createMessage(BareJID roomJID, JID senderJID, String msgSenderNickname, String msgId,
+								String originalMessage, String body, String msgSenderJid, boolean addRealJids,
+								Date msgTimestamp) throws TigaseStringprepException {
 
 		Packet message = Packet.packetInstance(
-				createMessageElement(roomJID, senderJID, msgSenderNickname, originalMessage, body));
+				createMessageElement(roomJID, senderJID, msgSenderNickname,
+									 msgId != null ? msgId : String.valueOf(msgTimestamp.getTime()),
+									 originalMessage, body));
 
 		// The 'from' attribute MUST be set to the JID of the room itself.
 		Element delay = new Element("delay", new String[]{"xmlns", "from", "stamp"},
@@ -92,13 +137,20 @@ public abstract class AbstractHistoryProvider<DS extends DataSource>
 
 	public Element createMessageElement(BareJID roomJID, JID senderJID, String msgSenderNickname,
 											   String originalMessage, String body) throws TigaseStringprepException {
+		return createMessageElement(roomJID, senderJID, msgSenderNickname, null, originalMessage, body);
+	}
+
+	/**
+	 * Creates message for the recipient from the stored message.
+	 *
+	 * @param msgId stable id or timestamp of stored message used to find already parsed message in the room, may be
+	 * <code>null</code>
+	 */
+	public Element createMessageElement(BareJID roomJID, JID senderJID, String msgSenderNickname, String msgId,
+										String originalMessage, String body) throws TigaseStringprepException {
 		Element message = null;
 		if (originalMessage != null) {
-			DomBuilderHandler domHandler = new DomBuilderHandler();
-			parser.parse(domHandler, originalMessage.toCharArray(), 0, originalMessage.length());
-			Queue<Element> queue = domHandler.getParsedElements();
-
-			message = queue.poll();
+			message = templateCache.get(roomJID, msgId, originalMessage);
 			if (message != null) {
 				message.setAttribute("type", "groupchat");
 				message.setAttribute("from", JID.jidInstance(roomJID, msgSenderNickname).toString());
@@ -118,4 +170,77 @@ public abstract class AbstractHistoryProvider<DS extends DataSource>
 		return message;
 	}
 
+	/**
+	 * Creates MAM result item from message read from the repository.
+	 */
+	protected MAMRepository.Item createItem(Query query, HistoryRow row) throws TigaseStringprepException {
+		final Date msgTimestamp = row.timestamp;
+		final String msgId = row.stableId != null ? row.stableId : String.valueOf(msgTimestamp.getTime());
+
+		final Element msgEl = createMessageElement(query.getComponentJID().getBareJID(), query.getQuestionerJID(),
+												   row.senderNickname, msgId, row.msg, row.body);
+
+		return new MAMRepository.Item() {
+			@Override
+			public String getId() {
+				return msgId;
+			}
+
+			@Override
+			public Element getMessage() {
+				return msgEl;
+			}
+
+			@Override
+			public Date getTimestamp() {
+				return msgTimestamp;
+			}
+		};
+	}
+
+	/**
+	 * Sends messages read from database to the recipient. Should be called after statement used to read them was
+	 * released, so other queries are not blocked while messages are rendered and sent.
+	 */
+	protected void writeRows(Room room, JID senderJID, List<HistoryRow> rows, PacketWriter writer)
+			throws TigaseStringprepException {
+		if (rows.isEmpty()) {
+			return;
+		}
+
+		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID()).getAffiliation();
+		boolean addRealJids = room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous ||
+				room.getConfig().getRoomAnonymity() == Anonymity.semianonymous &&
+						(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+
+		for (HistoryRow row : rows) {
+			Packet m = createMessage(room.getRoomJID(), senderJID, row.senderNickname, row.stableId, row.msg,
+									 row.body, row.senderJid, addRealJids, row.timestamp);
+			writer.write(m);
+		}
+	}
+
+	/**
+	 * Message read from database.
+	 */
+	protected static class HistoryRow {
+
+		final String body;
+		final String msg;
+		final String senderJid;
+		final String senderNickname;
+		final String stableId;
+		final Date timestamp;
+
+		protected HistoryRow(String senderNickname, Date timestamp, String senderJid, String body, String msg,
+							 String stableId) {
+			this.senderNickname = senderNickname;
+			this.timestamp = timestamp;
+			this.senderJid = senderJid;
+			this.body = body;
+			this.msg = msg;
+			this.stableId = stableId;
+		}
+	}
+
 }
@@ -19,10 +19,7 @@ package tigase.muc.history;
 
 import tigase.component.PacketWriter;
 import tigase.db.DataRepository;
-import tigase.muc.Affiliation;
 import tigase.muc.Room;
-import tigase.muc.RoomConfig.Anonymity;
-import tigase.server.Packet;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.jid.JID;
@@ -30,7 +27,9 @@ import tigase.xmpp.jid.JID;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Level;
 
 /**
@@ -99,6 +98,7 @@ public abstract class AbstractJDBCHistoryProvider
 		int maxMessages = room.getConfig().getMaxHistory();
 		try {
 			ResultSet rs = null;
+			final List<HistoryRow> rows;
 			if (since != null) {
 				if (log.isLoggable(Level.FINEST)) {
 					log.finest(
@@ -112,8 +112,9 @@ public abstract class AbstractJDBCHistoryProvider
 						st.setString(1, roomJID);
 						st.setLong(2, since.getTime());
 						st.setInt(3, maxMessages);
+						setFetchSize(st, maxMessages);
 						rs = st.executeQuery();
-						processResultSet(room, senderJID, writer, rs);
+						rows = readRows(rs);
 					} finally {
 						dataRepository.release(null, rs);
 					}
@@ -128,8 +129,9 @@ public abstract class AbstractJDBCHistoryProvider
 					try {
 						st.setString(1, roomJID);
 						st.setInt(2, Math.min(maxstanzas, maxMessages));
+						setFetchSize(st, Math.min(maxstanzas, maxMessages));
 						rs = st.executeQuery();
-						processResultSet(room, senderJID, writer, rs);
+						rows = readRows(rs);
 					} finally {
 						dataRepository.release(null, rs);
 					}
@@ -145,8 +147,9 @@ public abstract class AbstractJDBCHistoryProvider
 						st.setString(1, roomJID);
 						st.setLong(2, new Date().getTime() - seconds * 1000);
 						st.setInt(3, maxMessages);
+						setFetchSize(st, maxMessages);
 						rs = st.executeQuery();
-						processResultSet(room, senderJID, writer, rs);
+						rows = readRows(rs);
 					} finally {
 						dataRepository.release(null, rs);
 					}
@@ -161,14 +164,19 @@ public abstract class AbstractJDBCHistoryProvider
 					try {
 						st.setString(1, roomJID);
 						st.setInt(2, maxMessages);
+						setFetchSize(st, maxMessages);
 						rs = st.executeQuery();
-						processResultSet(room, senderJID, writer, rs);
+						rows = readRows(rs);
 					} finally {
 						dataRepository.release(null, rs);
 					}
 				}
 			}
 
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Select messages for " + senderJID + " from room " + room.getRoomJID());
+			}
+			writeRows(room, senderJID, rows, writer);
 		} catch (Exception e) {
 			if (log.isLoggable(Level.SEVERE)) {
 				log.log(Level.SEVERE, "Can't get history", e);
@@ -210,28 +218,25 @@ public abstract class AbstractJDBCHistoryProvider
 		}
 	}
 
+	/**
+	 * Sends messages from result set to the recipient.
+	 *
+	 * @deprecated messages should be read with {@link #readRows(ResultSet)} while statement is locked and sent with
+	 * {@link #writeRows(Room, JID, List, PacketWriter)} after it is released.
+	 */
+	@Deprecated
 	protected void processResultSet(Room room, JID senderJID, PacketWriter writer, ResultSet rs)
 			throws SQLException, TigaseStringprepException {
-		if (log.isLoggable(Level.FINEST)) {
-			log.finest("Select messages for " + senderJID + " from room " + room.getRoomJID());
-		}
-
-		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID()).getAffiliation();
-		boolean addRealJids = room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous ||
-				room.getConfig().getRoomAnonymity() == Anonymity.semianonymous &&
-						(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+		writeRows(room, senderJID, readRows(rs), writer);
+	}
 
+	protected List<HistoryRow> readRows(ResultSet rs) throws SQLException {
+		List<HistoryRow> rows = new ArrayList<>();
 		while (rs.next()) {
-			String msgSenderNickname = rs.getString("sender_nickname");
-			Date msgTimestamp = new Date(rs.getLong("timestamp"));
-			String msgSenderJid = rs.getString("sender_jid");
-			String body = rs.getString("body");
-			String msg = rs.getString("msg");
-
-			Packet m = createMessage(room.getRoomJID(), senderJID, msgSenderNickname, msg, body, msgSenderJid,
-									 addRealJids, msgTimestamp);
-			writer.write(m);
+			rows.add(new HistoryRow(rs.getString("sender_nickname"), new Date(rs.getLong("timestamp")),
+									rs.getString("sender_jid"), rs.getString("body"), rs.getString("msg"), null));
 		}
+		return rows;
 	}
 
 }
@@ -19,10 +19,7 @@ package tigase.muc.history;
 
 import tigase.component.PacketWriter;
 import tigase.db.DataRepository;
-import tigase.muc.Affiliation;
 import tigase.muc.Room;
-import tigase.muc.RoomConfig.Anonymity;
-import tigase.server.Packet;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.jid.JID;
@@ -33,6 +30,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Level;
 
 /**
@@ -79,55 +77,75 @@ public class DerbySqlHistoryProvider
 	@Override
 	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds,
 								   Date since, PacketWriter writer) {
-		ResultSet rs = null;
 		final String roomJID = room.getRoomJID().toString();
 		try {
-			Integer maxStanzas = null;
+			final List<HistoryRow> rows;
 			if (since != null) {
 				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
 																		   GET_MESSAGES_SINCE_QUERY_KEY);
 				synchronized (st) {
-					st.setString(1, roomJID);
-					st.setLong(2, since.getTime());
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, maxStanzas, rs);
+					ResultSet rs = null;
+					try {
+						st.setString(1, roomJID);
+						st.setLong(2, since.getTime());
+						setFetchSize(st, MAX_FETCH_SIZE);
+						rs = st.executeQuery();
+						rows = readRows(rs, null);
+					} finally {
+						dataRepository.release(null, rs);
+					}
 				}
 			} else if (maxstanzas != null) {
 				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
 																		   GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
 				synchronized (st) {
-					st.setString(1, roomJID);
-					maxStanzas = maxstanzas;
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, maxStanzas, rs);
+					ResultSet rs = null;
+					try {
+						st.setString(1, roomJID);
+						setFetchSize(st, maxstanzas);
+						rs = st.executeQuery();
+						rows = readRows(rs, maxstanzas);
+					} finally {
+						dataRepository.release(null, rs);
+					}
 				}
 			} else if (seconds != null) {
 				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
 																		   GET_MESSAGES_SINCE_QUERY_KEY);
 				synchronized (st) {
-					st.setString(1, roomJID);
-					st.setLong(2, new Date().getTime() - seconds * 1000);
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, maxStanzas, rs);
+					ResultSet rs = null;
+					try {
+						st.setString(1, roomJID);
+						st.setLong(2, new Date().getTime() - seconds * 1000);
+						setFetchSize(st, MAX_FETCH_SIZE);
+						rs = st.executeQuery();
+						rows = readRows(rs, null);
+					} finally {
+						dataRepository.release(null, rs);
+					}
 				}
 			} else {
 				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
 																		   GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
 				synchronized (st) {
-					st.setString(1, roomJID);
-					maxStanzas = 20;
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, maxStanzas, rs);
+					ResultSet rs = null;
+					try {
+						st.setString(1, roomJID);
+						setFetchSize(st, 20);
+						rs = st.executeQuery();
+						rows = readRows(rs, 20);
+					} finally {
+						dataRepository.release(null, rs);
+					}
 				}
 			}
 
+			writeRows(room, senderJID, rows, writer);
 		} catch (Exception e) {
 			if (log.isLoggable(Level.SEVERE)) {
 				log.log(Level.SEVERE, "Can't get history", e);
 			}
 			throw new RuntimeException(e);
-		} finally {
-			dataRepository.release(null, rs);
 		}
 	}
 
@@ -162,32 +180,25 @@ public class DerbySqlHistoryProvider
 		super.setDataSource(dataRepository);
 	}
 
+	/**
+	 * Sends messages from result set to the recipient.
+	 *
+	 * @deprecated messages should be read with {@link #readRows(ResultSet, Integer)} while statement is locked and sent with
+	 * {@link #writeRows(Room, JID, List, PacketWriter)} after it is released.
+	 */
+	@Deprecated
 	protected void processResultSet(Room room, JID senderJID, PacketWriter writer, Integer maxStanzas, ResultSet rs)
 			throws SQLException, TigaseStringprepException {
-		int i = 0;
-
-		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID()).getAffiliation();
-		boolean addRealJids = room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous ||
-				room.getConfig().getRoomAnonymity() == Anonymity.semianonymous &&
-						(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
-
-		ArrayList<Packet> result = new ArrayList<Packet>();
-		for (; rs.next() && (maxStanzas == null || maxStanzas > i); i++) {
-			String msgSenderNickname = rs.getString("sender_nickname");
-			Date msgTimestamp = new Date(rs.getLong("timestamp"));
-			String msgSenderJid = rs.getString("sender_jid");
-			String body = rs.getString("body");
-			String msg = rs.getString("msg");
-
-			Packet m = createMessage(room.getRoomJID(), senderJID, msgSenderNickname, msg, body, msgSenderJid,
-									 addRealJids, msgTimestamp);
-			result.add(0, m);
-		}
+		writeRows(room, senderJID, readRows(rs, maxStanzas), writer);
+	}
 
-		for (Packet element : result) {
-			writer.write(element);
+	protected List<HistoryRow> readRows(ResultSet rs, Integer maxStanzas) throws SQLException {
+		ArrayList<HistoryRow> rows = new ArrayList<HistoryRow>();
+		for (int i = 0; rs.next() && (maxStanzas == null || maxStanzas > i); i++) {
+			rows.add(0, new HistoryRow(rs.getString("sender_nickname"), new Date(rs.getLong("timestamp")),
+									   rs.getString("sender_jid"), rs.getString("body"), rs.getString("msg"), null));
 		}
-
+		return rows;
 	}
 
 	private void internalInit(DataRepository dataRepository) throws SQLException {
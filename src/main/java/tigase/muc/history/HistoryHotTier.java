@@ -0,0 +1,329 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.muc.MUCComponent;
+import tigase.muc.MUCStatisticsProvider;
+import tigase.muc.Room;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.datetime.TimestampHelper;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory tier of room history placed in front of history provider.
+ * <br>
+ * Most recent messages (up to <code>maxHistory</code> of the room) of rooms which history was requested are kept in
+ * memory and updated when new messages are added, so requests for history sent when occupants join the room are
+ * served from memory. History is loaded from the history provider on the first request, and requests which need
+ * older messages than kept in memory are passed to the history provider.
+ * <br>
+ * Rooms share locks, so messages are stored and history is loaded from the history provider without holding the lock.
+ * History loaded while the room was modified (message added or history removed) is not kept in memory, as it may or
+ * may not contain the modification.
+ */
+@Bean(name = "historyHotTier", parent = MUCComponent.class, active = true)
+public class HistoryHotTier
+		implements MUCStatisticsProvider {
+
+	private static final Logger log = Logger.getLogger(HistoryHotTier.class.getName());
+
+	@ConfigField(desc = "Keep recent history of rooms in memory", alias = "enabled")
+	private boolean enabled = false;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final Object[] locks = new Object[256];
+	private final MemoryHistoryProvider memory = new MemoryHistoryProvider();
+	private final Map<BareJID, PendingLoad> pendingLoads = new ConcurrentHashMap<>();
+	@ConfigField(desc = "Maximal size (in bytes) of history kept in memory", alias = "memory-budget")
+	private long memoryBudget = 32 * 1024 * 1024;
+	private final AtomicLong misses = new AtomicLong();
+	private final TimestampHelper timestampHelper = new TimestampHelper();
+
+	public HistoryHotTier() {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getLoads() {
+		return loads.get();
+	}
+
+	public boolean isSupported(HistoryProvider provider) {
+		return enabled && provider.isCacheable();
+	}
+
+	public void addMessage(HistoryProvider provider, Room room, Element message, String body, JID senderJid,
+						   String senderNickname, Date time) {
+		final MemoryHistoryProvider.RoomHistory before = memory.getRoomHistory(room.getRoomJID());
+		// message is stored outside of the lock, so other rooms sharing the lock are not blocked by the database
+		provider.addMessage(room, message, body, senderJid, senderNickname, time);
+		synchronized (lockFor(room)) {
+			modified(room.getRoomJID());
+			final MemoryHistoryProvider.RoomHistory roomHistory = memory.getRoomHistory(room.getRoomJID());
+			if (roomHistory == null) {
+				return;
+			}
+			if (roomHistory != before) {
+				// history was loaded or removed while message was stored, it may or may not contain this message
+				memory.removeHistory(room.getRoomJID());
+				return;
+			}
+			memory.setMemoryBudget(memoryBudget);
+			memory.append(roomHistory,
+						  new MemoryHistoryProvider.HItem(message == null ? null : message.toString(), body,
+														  senderJid.toString(), senderNickname, time.getTime()));
+		}
+	}
+
+	public void getHistoryMessages(HistoryProvider provider, Room room, JID senderJID, Integer maxchars,
+								   Integer maxstanzas, Integer seconds, Date since, PacketWriter writer) {
+		if (maxchars != null && maxchars == 0) {
+			return;
+		}
+		final MemoryHistoryProvider.Selection selection = MemoryHistoryProvider.Selection.of(room,
+																							  memory.getMaxSize(),
+																							  maxstanzas, seconds,
+																							  since);
+		if (selection.limit <= 0) {
+			return;
+		}
+
+		MemoryHistoryProvider.RoomHistory roomHistory = memory.getRoomHistory(room.getRoomJID());
+		if (roomHistory == null) {
+			roomHistory = load(provider, room, senderJID, selection.limit);
+		}
+
+		if (roomHistory != null && roomHistory.covers(selection)) {
+			hits.incrementAndGet();
+			memory.writeItems(room, senderJID, roomHistory.getLast(selection.limit, selection.from), writer);
+		} else {
+			misses.incrementAndGet();
+			provider.getHistoryMessages(room, senderJID, maxchars, maxstanzas, seconds, since, writer);
+		}
+	}
+
+	public void removeHistory(HistoryProvider provider, Room room) {
+		removeHistory(room, () -> provider.removeHistory(room));
+	}
+
+	/**
+	 * Removes history of the room kept in memory, while <code>remover</code> removes it from the history provider.
+	 */
+	public void removeHistory(Room room, Runnable remover) {
+		synchronized (lockFor(room.getRoomJID())) {
+			remover.run();
+			modified(room.getRoomJID());
+			memory.removeHistory(room);
+		}
+	}
+
+	/**
+	 * Drops history of the room kept in memory, ie. after some messages were removed from the history provider, so it
+	 * will be loaded again on the next request.
+	 */
+	public void invalidate(BareJID roomJID) {
+		synchronized (lockFor(roomJID)) {
+			modified(roomJID);
+			memory.removeHistory(roomJID);
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		if (!enabled) {
+			return;
+		}
+		list.add(compName, "History hot tier hits", hits.get(), Level.FINE);
+		list.add(compName, "History hot tier misses", misses.get(), Level.FINE);
+		list.add(compName, "History hot tier loads", loads.get(), Level.FINE);
+		list.add(compName, "History hot tier rooms", memory.getRoomsCount(), Level.FINE);
+		list.add(compName, "History hot tier memory [B]", memory.getUsedMemory(), Level.FINE);
+	}
+
+	/**
+	 * Loads history of the room from the history provider without holding the lock, so rooms sharing the lock are not
+	 * blocked by the database.
+	 *
+	 * @return loaded history or <code>null</code> if it could not be loaded or room was modified while it was loaded
+	 */
+	private MemoryHistoryProvider.RoomHistory load(HistoryProvider provider, Room room, JID senderJID, int limit) {
+		final BareJID roomJID = room.getRoomJID();
+		final PendingLoad pending;
+		final long modifications;
+		synchronized (lockFor(roomJID)) {
+			MemoryHistoryProvider.RoomHistory roomHistory = memory.getRoomHistory(roomJID);
+			if (roomHistory != null) {
+				return roomHistory;
+			}
+			pending = pendingLoads.computeIfAbsent(roomJID, k -> new PendingLoad());
+			pending.loaders++;
+			modifications = pending.modifications;
+		}
+
+		final Integer maxHistory = room.getConfig().getMaxHistory();
+		final int capacity = Math.max(1, Math.max(limit, maxHistory == null ? 0 : maxHistory));
+		List<MemoryHistoryProvider.HItem> items = null;
+		try {
+			items = readItems(provider, room, senderJID, capacity);
+		} finally {
+			synchronized (lockFor(roomJID)) {
+				if (--pending.loaders == 0) {
+					pendingLoads.remove(roomJID, pending);
+				}
+				if (items != null && pending.modifications == modifications &&
+						memory.getRoomHistory(roomJID) == null) {
+					memory.setMemoryBudget(memoryBudget);
+					final MemoryHistoryProvider.RoomHistory roomHistory = memory.createRoomHistory(roomJID, capacity);
+					for (MemoryHistoryProvider.HItem item : items) {
+						memory.append(roomHistory, item);
+					}
+					roomHistory.complete = items.size() < capacity;
+					loads.incrementAndGet();
+				}
+			}
+		}
+		return memory.getRoomHistory(roomJID);
+	}
+
+	/**
+	 * Reads up to <code>capacity</code> most recent messages of the room from the history provider.
+	 *
+	 * @return read messages or <code>null</code> if any of them could not be converted
+	 */
+	private List<MemoryHistoryProvider.HItem> readItems(HistoryProvider provider, Room room, JID senderJID,
+														int capacity) {
+		// messages waiting to be stored would be missing in loaded history
+		provider.flush();
+
+		final List<Packet> packets = new ArrayList<>();
+		provider.getHistoryMessages(room, senderJID, null, capacity, null, null, new PacketWriter() {
+			@Override
+			public void write(Collection<Packet> collection) {
+				packets.addAll(collection);
+			}
+
+			@Override
+			public void write(Packet packet) {
+				packets.add(packet);
+			}
+
+			@Override
+			public void write(Packet packet, AsyncCallback callback) {
+				packets.add(packet);
+			}
+		});
+
+		final List<MemoryHistoryProvider.HItem> items = new ArrayList<>(packets.size());
+		for (Packet packet : packets) {
+			MemoryHistoryProvider.HItem item = toItem(packet.getElement());
+			if (item == null) {
+				return null;
+			}
+			items.add(item);
+		}
+		return items;
+	}
+
+	/**
+	 * Notifies loads of room history in progress that the room was modified. Called while holding the lock.
+	 */
+	private void modified(BareJID roomJID) {
+		final PendingLoad pending = pendingLoads.get(roomJID);
+		if (pending != null) {
+			pending.modifications++;
+		}
+	}
+
+	private Object lockFor(Room room) {
+		return lockFor(room.getRoomJID());
+	}
+
+	private Object lockFor(BareJID roomJID) {
+		return locks[(roomJID.hashCode() & 0x7fffffff) % locks.length];
+	}
+
+	private MemoryHistoryProvider.HItem toItem(Element message) {
+		final Element msg = message.clone();
+		final Element delay = msg.getChild("delay", "urn:xmpp:delay");
+		if (delay == null) {
+			return null;
+		}
+		msg.removeChild(delay);
+		try {
+			final Date ts = timestampHelper.parseTimestamp(delay.getAttributeStaticStr("stamp"));
+			final JID from = JID.jidInstance(msg.getAttributeStaticStr("from"));
+			final String body = msg.getChildCDataStaticStr(new String[]{"message", "body"});
+			// messages returned by history provider do not contain real JID of the sender
+			return new MemoryHistoryProvider.HItem(msg.toString(), body, null, from.getResource(), ts.getTime());
+		} catch (Exception ex) {
+			log.log(Level.FINE, "Could not load message to history hot tier: " + message, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Loads of room history in progress. Modified only while holding the lock of the room.
+	 */
+	private static final class PendingLoad {
+
+		private int loaders;
+		private long modifications;
+	}
+}
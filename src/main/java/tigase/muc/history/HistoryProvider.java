@@ -23,6 +23,7 @@ import tigase.db.DataSourceAware;
 import tigase.kernel.beans.Bean;
 import tigase.muc.Room;
 import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.Date;
@@ -54,11 +55,41 @@ public interface HistoryProvider<DS extends DataSource>
 	 */
 	void destroy();
 
+	/**
+	 * Waits until all messages passed to <code>addMessage()</code> are stored, so they will be returned by
+	 * <code>getHistoryMessages()</code>.
+	 */
+	default void flush() {
+	}
+
 	void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds, Date since,
 							PacketWriter writer);
 
+	/**
+	 * Checks if recent messages returned by this provider may be kept in memory by
+	 * {@link HistoryHotTier}, ie. history is changed only by methods of this provider.
+	 */
+	default boolean isCacheable() {
+		return false;
+	}
+
 	boolean isPersistent(Room room);
 
 	void removeHistory(Room room);
 
+	/**
+	 * Removes oldest messages from history of the room, but not more than <code>limit</code> messages at once, so
+	 * large histories may be removed in a series of short transactions.
+	 * <br>
+	 * Messages waiting to be stored are not removed, so caller should call {@link #flush()} once before removing
+	 * messages of one or more rooms.
+	 *
+	 * @param before only messages older than this date are removed, if <code>null</code> all messages may be removed
+	 *
+	 * @return number of removed messages or <code>-1</code> if provider is not able to remove messages in batches
+	 */
+	default int removeHistory(BareJID roomJID, Date before, int limit) {
+		return -1;
+	}
+
 }
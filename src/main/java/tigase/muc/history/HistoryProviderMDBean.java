@@ -26,6 +26,7 @@ import tigase.db.DataSourceHelper;
 import tigase.db.beans.MDRepositoryBean;
 import tigase.db.beans.MDRepositoryBeanWithStatistics;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.muc.MUCComponent;
 import tigase.muc.Room;
@@ -33,6 +34,7 @@ import tigase.osgi.ModulesManagerImpl;
 import tigase.server.BasicComponent;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
+import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.MAMRepository;
 import tigase.xmpp.mam.Query;
@@ -48,8 +50,12 @@ public class HistoryProviderMDBean
 		extends MDRepositoryBeanWithStatistics<HistoryProvider>
 		implements HistoryProvider, MAMRepository {
 
+	@Inject(nullAllowed = true)
+	private HistoryHotTier hotTier;
 	@ConfigField(desc = "Use domain without component name to lookup for repository", alias = "map-component-to-bare-domain")
 	private boolean mapComponentToBareDomain = false;
+	@Inject(nullAllowed = true)
+	private HistoryRetention retention;
 
 	public HistoryProviderMDBean() {
 		super(HistoryProvider.class, MAMRepository.class);
@@ -82,7 +88,12 @@ public class HistoryProviderMDBean
 
 	@Override
 	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
-		getRepository(room).addMessage(room, message, body, senderJid, senderNickname, time);
+		final HistoryProvider repository = getRepository(room);
+		if (hotTier != null && hotTier.isSupported(repository)) {
+			hotTier.addMessage(repository, room, message, body, senderJid, senderNickname, time);
+		} else {
+			repository.addMessage(room, message, body, senderJid, senderNickname, time);
+		}
 	}
 
 	@Override
@@ -96,10 +107,20 @@ public class HistoryProviderMDBean
 		// nothing to do
 	}
 
+	@Override
+	public void flush() {
+		repositoriesStream().forEach(HistoryProvider::flush);
+	}
+
 	@Override
 	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds,
 								   Date since, PacketWriter writer) {
-		getRepository(room).getHistoryMessages(room, senderJID, maxchars, maxstanzas, seconds, since, writer);
+		final HistoryProvider repository = getRepository(room);
+		if (hotTier != null && hotTier.isSupported(repository)) {
+			hotTier.getHistoryMessages(repository, room, senderJID, maxchars, maxstanzas, seconds, since, writer);
+		} else {
+			repository.getHistoryMessages(room, senderJID, maxchars, maxstanzas, seconds, since, writer);
+		}
 	}
 
 	@Override
@@ -115,7 +136,25 @@ public class HistoryProviderMDBean
 
 	@Override
 	public void removeHistory(Room room) {
-		getRepository(room).removeHistory(room);
+		final HistoryProvider repository = getRepository(room);
+		final Runnable remover = retention == null
+								 ? () -> repository.removeHistory(room)
+								 : () -> retention.removeHistory(repository, room);
+		if (hotTier != null && hotTier.isSupported(repository)) {
+			hotTier.removeHistory(room, remover);
+		} else {
+			remover.run();
+		}
+	}
+
+	@Override
+	public int removeHistory(BareJID roomJID, Date before, int limit) {
+		final HistoryProvider repository = getRepository(roomJID.getDomain());
+		final int removed = repository.removeHistory(roomJID, before, limit);
+		if (removed > 0 && hotTier != null && hotTier.isSupported(repository)) {
+			hotTier.invalidate(roomJID);
+		}
+		return removed;
 	}
 
 	@Override
@@ -174,6 +213,8 @@ public class HistoryProviderMDBean
 					return MemoryHistoryProvider.class;
 				case "none":
 					return NoneHistoryProvider.class;
+				case "segment-log":
+					return SegmentLogHistoryProvider.class;
 				case "default":
 					return super.getRepositoryClassName();
 				default:
@@ -0,0 +1,383 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import tigase.component.ScheduledTask;
+import tigase.component.exceptions.RepositoryException;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.muc.MUCComponent;
+import tigase.muc.MUCStatisticsProvider;
+import tigase.muc.Room;
+import tigase.muc.repository.IMucDAO;
+import tigase.muc.repository.IMucRepository;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes old messages from history of rooms.
+ * <br>
+ * When enabled, messages older than <code>retention-days</code> (or than number of days set in configuration of the
+ * room) are periodically removed. Messages are removed in batches of <code>batch-size</code> messages, each in a
+ * separate transaction, with <code>batch-delay</code> pause after each batch, so removal never locks history table for
+ * a long time. History of destroyed rooms is removed in the same way - first batch is removed immediately and the rest
+ * in the background.
+ * <br>
+ * Number of days set in configuration of the room is read from the repository once per
+ * <code>room-retention-cache-time</code> for rooms which are not active.
+ */
+@Bean(name = "historyRetention", parent = MUCComponent.class, active = true)
+public class HistoryRetention
+		extends ScheduledTask
+		implements MUCStatisticsProvider, UnregisterAware {
+
+	private static final Logger log = Logger.getLogger(HistoryRetention.class.getName());
+
+	private final AtomicLong batches = new AtomicLong();
+	@ConfigField(desc = "Pause (in milliseconds) after removal of each batch of messages", alias = "batch-delay")
+	private long batchDelay = 100;
+	@ConfigField(desc = "Maximal number of messages removed in a single batch (0 - no limit)", alias = "batch-size")
+	private int batchSize = 1000;
+	@Inject(nullAllowed = true)
+	private IMucDAO dao;
+	@ConfigField(desc = "Periodically remove old messages from history", alias = "enabled")
+	private boolean enabled = false;
+	private final ThreadPoolExecutor executor;
+	@Inject
+	private HistoryProvider historyProvider;
+	private volatile long lastRunRooms;
+	private volatile long lastRunTime;
+	private final AtomicInteger pendingRemovals = new AtomicInteger();
+	private final AtomicLong removed = new AtomicLong();
+	@ConfigField(desc = "Time (in minutes) for which retention set in configuration of inactive room is cached", alias = "room-retention-cache-time")
+	private long roomRetentionCacheTime = 24 * 60;
+	private final Map<BareJID, CachedRetention> roomRetentions = new ConcurrentHashMap<>();
+	@Inject(nullAllowed = true)
+	private IMucRepository repository;
+	@ConfigField(desc = "Number of days for which messages are kept in history (0 - forever)", alias = "retention-days")
+	private int retentionDays = 0;
+	private final AtomicBoolean running = new AtomicBoolean();
+	private final AtomicLong runs = new AtomicLong();
+
+	public HistoryRetention() {
+		super(Duration.ofMinutes(10), Duration.ofHours(1));
+		executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread thread = new Thread(r, "muc-history-retention");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public long getBatchDelay() {
+		return batchDelay;
+	}
+
+	public void setBatchDelay(long batchDelay) {
+		this.batchDelay = batchDelay;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public void setHistoryProvider(HistoryProvider historyProvider) {
+		this.historyProvider = historyProvider;
+	}
+
+	public int getRetentionDays() {
+		return retentionDays;
+	}
+
+	public void setRetentionDays(int retentionDays) {
+		this.retentionDays = retentionDays;
+	}
+
+	public long getRoomRetentionCacheTime() {
+		return roomRetentionCacheTime;
+	}
+
+	public void setRoomRetentionCacheTime(long roomRetentionCacheTime) {
+		this.roomRetentionCacheTime = roomRetentionCacheTime;
+		roomRetentions.clear();
+	}
+
+	public long getBatchesCounter() {
+		return batches.get();
+	}
+
+	public int getPendingRemovals() {
+		return pendingRemovals.get();
+	}
+
+	public long getRemovedCounter() {
+		return removed.get();
+	}
+
+	public long getRunsCounter() {
+		return runs.get();
+	}
+
+	@Override
+	public void beforeUnregister() {
+		super.beforeUnregister();
+		executor.shutdownNow();
+		try {
+			if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+				log.log(Level.WARNING, "Removal of messages from history was not stopped in 30 seconds");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "History retention removed messages", removed.get(), Level.FINE);
+		list.add(compName, "History retention batches", batches.get(), Level.FINE);
+		list.add(compName, "History retention pending room removals", pendingRemovals.get(), Level.FINE);
+		list.add(compName, "History retention runs", runs.get(), Level.FINE);
+		list.add(compName, "History retention last run rooms", lastRunRooms, Level.FINE);
+		list.add(compName, "History retention last run time [ms]", lastRunTime, Level.FINE);
+	}
+
+	/**
+	 * Removes history of the destroyed room. First batch of messages is removed immediately, remaining messages are
+	 * removed in the background.
+	 */
+	public void removeHistory(HistoryProvider provider, Room room) {
+		final BareJID roomJID = room.getRoomJID();
+		final Date before = new Date();
+		if (batchSize > 0) {
+			provider.flush();
+		}
+		final int count = batchSize > 0 ? provider.removeHistory(roomJID, before, batchSize) : -1;
+		if (count < 0) {
+			provider.removeHistory(room);
+			return;
+		}
+		batches.incrementAndGet();
+		removed.addAndGet(count);
+		if (count < batchSize) {
+			return;
+		}
+
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Removing remaining history of room " + roomJID + " in the background");
+		}
+		pendingRemovals.incrementAndGet();
+		executor.execute(() -> {
+			try {
+				pause();
+				removeInBatches(provider, roomJID, before);
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "Can't remove history of room " + roomJID, ex);
+			} finally {
+				pendingRemovals.decrementAndGet();
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		if (!enabled || !running.compareAndSet(false, true)) {
+			return;
+		}
+		executor.execute(() -> {
+			try {
+				removeExpiredMessages();
+			} finally {
+				running.set(false);
+			}
+		});
+	}
+
+	protected void removeExpiredMessages() {
+		final long start = System.currentTimeMillis();
+		long rooms = 0;
+		final Collection<BareJID> roomJIDs = getRoomJIDs();
+		// configuration of destroyed rooms is not needed anymore
+		roomRetentions.keySet().retainAll(roomJIDs);
+		boolean flushed = false;
+		for (BareJID roomJID : roomJIDs) {
+			final int days = getRetentionDays(roomJID);
+			if (days <= 0) {
+				continue;
+			}
+			if (!flushed) {
+				// messages waiting to be stored are written once per run instead of once per room or batch
+				historyProvider.flush();
+				flushed = true;
+			}
+			try {
+				if (removeInBatches(historyProvider, roomJID, new Date(start - TimeUnit.DAYS.toMillis(days))) >= 0) {
+					rooms++;
+				}
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "Can't remove old messages from history of room " + roomJID, ex);
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				break;
+			}
+		}
+		lastRunRooms = rooms;
+		lastRunTime = System.currentTimeMillis() - start;
+		runs.incrementAndGet();
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Removed old messages from history of " + rooms + " rooms in " + lastRunTime + "ms");
+		}
+	}
+
+	/**
+	 * Removes messages of the room older than <code>before</code> in batches.
+	 *
+	 * @return number of removed messages or <code>-1</code> if provider is not able to remove messages in batches
+	 */
+	protected long removeInBatches(HistoryProvider provider, BareJID roomJID, Date before) {
+		final int limit = batchSize > 0 ? batchSize : Integer.MAX_VALUE;
+		long total = 0;
+		while (true) {
+			final int count = provider.removeHistory(roomJID, before, limit);
+			if (count < 0) {
+				return total == 0 ? -1 : total;
+			}
+			if (count > 0) {
+				batches.incrementAndGet();
+				removed.addAndGet(count);
+				total += count;
+			}
+			if (count < limit || !pause()) {
+				return total;
+			}
+		}
+	}
+
+	protected Collection<BareJID> getRoomJIDs() {
+		final Set<BareJID> result = new LinkedHashSet<>();
+		if (dao != null) {
+			try {
+				final List<BareJID> roomJIDs = dao.getRoomsJIDList();
+				if (roomJIDs != null) {
+					result.addAll(roomJIDs);
+				}
+			} catch (RepositoryException ex) {
+				log.log(Level.WARNING, "Can't get list of rooms", ex);
+			}
+		}
+		if (repository != null) {
+			result.addAll(repository.getActiveRooms().keySet());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns number of days for which messages are kept in history of the room, set in configuration of the room or
+	 * default for the service.
+	 */
+	protected int getRetentionDays(BareJID roomJID) {
+		final Integer days = getRoomRetentionDays(roomJID);
+		return days == null ? retentionDays : days;
+	}
+
+	/**
+	 * Returns number of days set in configuration of the room. Configuration of room which is not active is loaded
+	 * from the repository only if it was not loaded within <code>room-retention-cache-time</code>.
+	 */
+	protected Integer getRoomRetentionDays(BareJID roomJID) {
+		final long now = System.currentTimeMillis();
+		final Room active = repository == null ? null : repository.getActiveRooms().get(roomJID);
+		if (active != null) {
+			final Integer days = active.getConfig().getHistoryRetention();
+			roomRetentions.put(roomJID, new CachedRetention(days, now));
+			return days;
+		}
+
+		final CachedRetention cached = roomRetentions.get(roomJID);
+		if (cached != null && now - cached.loadedAt < TimeUnit.MINUTES.toMillis(roomRetentionCacheTime)) {
+			return cached.days;
+		}
+		if (dao == null) {
+			return null;
+		}
+		try {
+			final Room room = dao.getRoom(roomJID);
+			final Integer days = room == null ? null : room.getConfig().getHistoryRetention();
+			roomRetentions.put(roomJID, new CachedRetention(days, now));
+			return days;
+		} catch (RepositoryException ex) {
+			log.log(Level.WARNING, "Can't load configuration of room " + roomJID, ex);
+			return null;
+		}
+	}
+
+	private boolean pause() {
+		if (batchDelay <= 0) {
+			return true;
+		}
+		try {
+			Thread.sleep(batchDelay);
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static class CachedRetention {
+
+		private final Integer days;
+		private final long loadedAt;
+
+		private CachedRetention(Integer days, long loadedAt) {
+			this.days = days;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+}
@@ -23,25 +23,33 @@ import tigase.db.DataRepository;
 import tigase.db.Repository;
 import tigase.db.TigaseDBException;
 import tigase.db.util.RepositoryVersionAware;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
-import tigase.muc.Affiliation;
 import tigase.muc.Room;
-import tigase.muc.RoomConfig;
+import tigase.muc.StanzaId;
 import tigase.muc.repository.Schema;
-import tigase.server.Packet;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
+import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.MAMRepository;
 import tigase.xmpp.mam.Query;
 import tigase.xmpp.mam.QueryImpl;
+import tigase.xmpp.rsm.RSM;
 
+import java.sql.BatchUpdateException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,22 +59,51 @@ import java.util.logging.Logger;
 @Repository.Meta(supportedUris = {"jdbc:.*"})
 @Repository.SchemaId(id = Schema.MUC_SCHEMA_ID, name = Schema.MUC_SCHEMA_NAME)
 public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
-		implements HistoryProvider<DataRepository>, MAMRepository, RepositoryVersionAware {
+		implements HistoryProvider<DataRepository>, MAMRepository, RepositoryVersionAware, Initializable,
+				   UnregisterAware {
 
 	private static final Logger log = Logger.getLogger(JDBCHistoryProvider.class.getCanonicalName());
 	protected DataRepository data_repo;
 	@ConfigField(desc = "Query to append message to history", alias = "add-message-query")
-	private String addMessageQuery = "{ call Tig_MUC_AddMessage(?,?,?,?,?,?,?) }";
+	private String addMessageQuery = "{ call Tig_MUC_AddMessage(?,?,?,?,?,?,?,?) }";
 	@ConfigField(desc = "Delete messages from history", alias = "delete-messages-query")
 	private String deleteMessagesQuery = "{ call Tig_MUC_DeleteMessages(?) }";
+	@ConfigField(desc = "Delete batch of oldest messages from history", alias = "delete-messages-before-query")
+	private String deleteMessagesBeforeQuery = "{ call Tig_MUC_DeleteMessagesBefore(?,?,?) }";
 	@ConfigField(desc = "Retrieve messages from history", alias = "get-messages-query")
 	private String getMessagesQuery = "{ call Tig_MUC_GetMessages(?,?,?) }";
+	@ConfigField(desc = "Number of messages matching MAM query returned with results (exact, cached, none)", alias = "mam-count")
+	private MAMCountMode mamCountMode = MAMCountMode.exact;
+	@ConfigField(desc = "Time (in milliseconds) for which cached number of messages matching MAM query is used", alias = "mam-count-cache-time")
+	private long mamCountCacheTime = 60 * 1000;
+	private final Map<String, CachedCount> mamCountCache = new ConcurrentHashMap<>();
 	@ConfigField(desc = "Retrieve position of message in archive", alias = "mam-get-message-position-query")
 	private String mamGetMessagePositionQuery = "{ call Tig_MUC_MAM_GetMessagePosition(?,?,?,?,?) }";
+	@ConfigField(desc = "Retrieve timestamp of message with stable id", alias = "mam-get-message-timestamp-query")
+	private String mamGetMessageTimestampQuery = "{ call Tig_MUC_MAM_GetMessageTimestamp(?,?) }";
 	@ConfigField(desc = "Retrieve messages from archive", alias = "mam-get-messages-count-query")
 	private String mamGetMessagesCountQuery = "{ call Tig_MUC_MAM_GetMessagesCount(?,?,?,?) }";
 	@ConfigField(desc = "Retrieve messages from archive", alias = "mam-get-messages-query")
 	private String mamGetMessagesQuery = "{ call Tig_MUC_MAM_GetMessages(?,?,?,?,?,?) }";
+	@ConfigField(desc = "Retrieve messages from archive following message", alias = "mam-get-messages-after-query")
+	private String mamGetMessagesAfterQuery = "{ call Tig_MUC_MAM_GetMessagesAfter(?,?,?,?,?,?,?) }";
+	@ConfigField(desc = "Retrieve messages from archive preceding message", alias = "mam-get-messages-before-query")
+	private String mamGetMessagesBeforeQuery = "{ call Tig_MUC_MAM_GetMessagesBefore(?,?,?,?,?,?,?) }";
+	@ConfigField(desc = "Page MAM results using message ids instead of offsets", alias = "mam-keyset-pagination")
+	private boolean mamKeysetPagination = false;
+	@ConfigField(desc = "Store messages asynchronously in batches", alias = "write-behind")
+	private boolean writeBehind = false;
+	@ConfigField(desc = "Maximal number of messages in a single batch", alias = "write-behind-batch-size")
+	private int writeBehindBatchSize = 100;
+	@ConfigField(desc = "Maximal time (in milliseconds) for which message waits for other messages of a batch", alias = "write-behind-flush-interval")
+	private long writeBehindFlushInterval = 50;
+	@ConfigField(desc = "Action taken when queue of messages is full (block, sync, drop)", alias = "write-behind-overflow-policy")
+	private WriteBehindQueue.OverflowPolicy writeBehindOverflowPolicy = WriteBehindQueue.OverflowPolicy.block;
+	@ConfigField(desc = "Maximal number of messages waiting to be stored", alias = "write-behind-queue-size")
+	private int writeBehindQueueSize = 10000;
+	private volatile WriteBehindQueue<PendingMessage> writeBehindQueue;
+	private boolean writeBehindStopped = false;
+	private boolean initialized = false;
 
 	@Override
 	public void addJoinEvent(Room room, Date date, JID senderJID, String nickName) {
@@ -80,27 +117,28 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 
 	@Override
 	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
+		final PendingMessage msg = new PendingMessage(room.getRoomJID().toString(), new Timestamp(time.getTime()),
+													  senderJid.toString(), senderNickname, body,
+													  room.getConfig().isLoggingEnabled(),
+													  message == null ? null : message.toString(),
+													  StanzaId.get(message, room.getRoomJID()));
+		final WriteBehindQueue<PendingMessage> queue = writeBehindQueue;
+		if (queue != null) {
+			queue.add(msg);
+			return;
+		}
+
 		PreparedStatement st = null;
 		try {
 			st = this.data_repo.getPreparedStatement(senderJid.getBareJID(), addMessageQuery);
 
 			synchronized (st) {
-				st.setString(1, room.getRoomJID().toString());
-				data_repo.setTimestamp(st, 2, new Timestamp(time.getTime()));
-				st.setString(3, senderJid.toString());
-				st.setString(4, senderNickname);
-				st.setString(5, body);
-				st.setBoolean(6, room.getConfig().isLoggingEnabled());
-				st.setString(7, message == null ? null : message.toString());
+				setAddMessageParams(st, msg);
 
 				st.executeUpdate();
 			}
 		} catch (SQLException e) {
-			if (e.getErrorCode() == 1366 || e.getMessage() != null && e.getMessage().startsWith("Incorrect string value")) {
-				log.log(Level.WARNING, "Your MySQL configuration can't handle extended Unicode (for example emoji) correctly. Please refer to <Support for emoji and other icons> section of the server documentation");
-			} else {
-				log.log(Level.WARNING, "Can't add MUC message to database", e);
-			}
+			logAddMessageFailure(e);
 			throw new RuntimeException(e);
 		} finally {
 			data_repo.release(null, null);
@@ -114,9 +152,42 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		// TODO Auto-generated method stub
 	}
 
+	@Override
+	public void beforeUnregister() {
+		stopWriteBehind(true);
+	}
+
 	@Override
 	public void destroy() {
+		stopWriteBehind(true);
+	}
 
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+		if (!initialized) {
+			return;
+		}
+		if (writeBehind) {
+			startWriteBehind();
+		} else {
+			stopWriteBehind();
+		}
+	}
+
+	public WriteBehindQueue<PendingMessage> getWriteBehindQueue() {
+		return writeBehindQueue;
+	}
+
+	@Override
+	public void initialize() {
+		initialized = true;
+		if (writeBehind) {
+			startWriteBehind();
+		}
 	}
 
 	@Override
@@ -161,13 +232,55 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		}
 	}
 
+	@Override
+	public void flush() {
+		flushWriteBehind();
+	}
+
+	@Override
+	public boolean isCacheable() {
+		return true;
+	}
+
 	@Override
 	public boolean isPersistent(Room room) {
 		return false;
 	}
 
+	@Override
+	public int removeHistory(BareJID roomJID, Date before, int limit) {
+		PreparedStatement st = null;
+		try {
+			st = this.data_repo.getPreparedStatement(null, deleteMessagesBeforeQuery);
+
+			synchronized (st) {
+				ResultSet rs = null;
+				try {
+					st.setString(1, roomJID.toString());
+					data_repo.setTimestamp(st, 2, before == null ? null : new Timestamp(before.getTime()));
+					st.setInt(3, limit);
+
+					if (log.isLoggable(Level.FINEST)) {
+						log.finest("Executing " + st.toString());
+					}
+
+					rs = st.executeQuery();
+					return rs.next() ? rs.getInt(1) : 0;
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException e) {
+			if (log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, "Can't delete MUC messages from database", e);
+			}
+			throw new RuntimeException(e);
+		}
+	}
+
 	@Override
 	public void removeHistory(Room room) {
+		flushWriteBehind();
 		PreparedStatement st = null;
 		try {
 			st = this.data_repo.getPreparedStatement(null, deleteMessagesQuery);
@@ -196,6 +309,10 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 
 	@Override
 	public void queryItems(Query query, ItemHandler itemHandler) throws TigaseDBException, ComponentException {
+		if (mamKeysetPagination && query.getRsm().getIndex() == null) {
+			queryItemsByKey(query, itemHandler);
+			return;
+		}
 		try {
 			Integer count = countItems(query);
 			if (count == null) {
@@ -210,54 +327,48 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 			PreparedStatement st = data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
 																  mamGetMessagesQuery);
 
+			final List<HistoryRow> rows;
 			synchronized (st) {
 				ResultSet rs = null;
 				try {
 					int i = setStatementParamsForMAM(st, query);
 					st.setInt(i++, query.getRsm().getMax());
 					st.setInt(i++, query.getRsm().getIndex());
+					setFetchSize(st, query.getRsm().getMax());
 
 					rs = st.executeQuery();
-
-					while (rs.next()) {
-						String msgSenderNickname = rs.getString("sender_nickname");
-						Date msgTimestamp = data_repo.getTimestamp(rs, "ts");
-						String msgSenderJid = rs.getString("sender_jid");
-						String body = rs.getString("body");
-						String msg = rs.getString("msg");
-
-						Element msgEl = createMessageElement(
-								query.getComponentJID().getBareJID(), query.getQuestionerJID(), msgSenderNickname, msg,
-								body);
-
-						Item item = new Item() {
-							@Override
-							public String getId() {
-								return String.valueOf(msgTimestamp.getTime());
-							}
-
-							@Override
-							public Element getMessage() {
-								return msgEl;
-							}
-
-							@Override
-							public Date getTimestamp() {
-								return msgTimestamp;
-							}
-						};
-						itemHandler.itemFound(query, item);
-					}
+					rows = readRows(rs);
 				} finally {
 					data_repo.release(null, rs);
 				}
 			}
+
+			for (HistoryRow row : rows) {
+				itemHandler.itemFound(query, createItem(query, row));
+			}
 		} catch (SQLException | TigaseStringprepException ex) {
 			throw new TigaseDBException("Cound not retrieve items", ex);
 		}
 
 	}
 
+	public MAMCountMode getMamCountMode() {
+		return mamCountMode;
+	}
+
+	public void setMamCountMode(MAMCountMode mamCountMode) {
+		this.mamCountMode = mamCountMode;
+		mamCountCache.clear();
+	}
+
+	public boolean isMamKeysetPagination() {
+		return mamKeysetPagination;
+	}
+
+	public void setMamKeysetPagination(boolean mamKeysetPagination) {
+		this.mamKeysetPagination = mamKeysetPagination;
+	}
+
 	@Override
 	public Query newQuery() {
 		return new QueryImpl();
@@ -274,6 +385,7 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 
 	protected void getMessagesSince(Room room, JID senderJID, int maxMessages, Timestamp since, PacketWriter writer)
 			throws SQLException, TigaseStringprepException {
+		final List<HistoryRow> rows;
 		PreparedStatement st = data_repo.getPreparedStatement(senderJID.getBareJID(), getMessagesQuery);
 		synchronized (st) {
 			ResultSet rs = null;
@@ -281,45 +393,163 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 				st.setString(1, room.getRoomJID().toString());
 				st.setInt(2, maxMessages);
 				data_repo.setTimestamp(st, 3, since);
+				setFetchSize(st, maxMessages);
 				rs = st.executeQuery();
-				processResultSet(room, senderJID, writer, rs);
+				rows = readRows(rs);
 			} finally {
 				data_repo.release(null, rs);
 			}
 		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Select messages for " + senderJID + " from room " + room.getRoomJID());
+		}
+		writeRows(room, senderJID, rows, writer);
 	}
 
+	/**
+	 * Sends messages from result set to the recipient.
+	 *
+	 * @deprecated messages should be read with {@link #readRows(ResultSet)} while statement is locked and sent with
+	 * {@link #writeRows(Room, JID, List, PacketWriter)} after it is released.
+	 */
+	@Deprecated
 	protected void processResultSet(Room room, JID senderJID, PacketWriter writer, ResultSet rs)
 			throws SQLException, TigaseStringprepException {
-		if (log.isLoggable(Level.FINEST)) {
-			log.finest("Select messages for " + senderJID + " from room " + room.getRoomJID());
+		writeRows(room, senderJID, readRows(rs), writer);
+	}
+
+	protected List<HistoryRow> readRows(ResultSet rs) throws SQLException {
+		List<HistoryRow> rows = new ArrayList<>();
+		while (rs.next()) {
+			rows.add(new HistoryRow(rs.getString("sender_nickname"), data_repo.getTimestamp(rs, "ts"),
+									rs.getString("sender_jid"), rs.getString("body"), rs.getString("msg"),
+									rs.getString("stable_id")));
 		}
+		return rows;
+	}
 
-		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID()).getAffiliation();
-		boolean addRealJids = room.getConfig().getRoomAnonymity() == RoomConfig.Anonymity.nonanonymous ||
-				room.getConfig().getRoomAnonymity() == RoomConfig.Anonymity.semianonymous &&
-						(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+	protected static <T> List<T> getNotApplied(List<T> batch, int[] updateCounts) {
+		if (updateCounts == null) {
+			return batch;
+		}
+		List<T> remaining = new ArrayList<>();
+		for (int i = 0; i < batch.size(); i++) {
+			// driver may stop processing of a batch on first failure, then following statements were not executed
+			if (i >= updateCounts.length || updateCounts[i] == Statement.EXECUTE_FAILED) {
+				remaining.add(batch.get(i));
+			}
+		}
+		return remaining;
+	}
 
-		while (rs.next()) {
-			String msgSenderNickname = rs.getString("sender_nickname");
-			Date msgTimestamp = data_repo.getTimestamp(rs, "ts");
-			String msgSenderJid = rs.getString("sender_jid");
-			String body = rs.getString("body");
-			String msg = rs.getString("msg");
+	protected void addMessages(List<PendingMessage> messages)
+			throws SQLException, WriteBehindQueue.PartialWriteException {
+		if (messages.size() == 1) {
+			PreparedStatement st = this.data_repo.getPreparedStatement(null, addMessageQuery);
+			synchronized (st) {
+				setAddMessageParams(st, messages.get(0));
+				st.executeUpdate();
+			}
+			return;
+		}
+		PreparedStatement st = this.data_repo.getPreparedStatement(null, addMessageQuery);
+		synchronized (st) {
+			try {
+				for (PendingMessage msg : messages) {
+					setAddMessageParams(st, msg);
+					st.addBatch();
+				}
+				st.executeBatch();
+			} catch (BatchUpdateException e) {
+				st.clearBatch();
+				logAddMessageFailure(e);
+				List<PendingMessage> remaining = getNotApplied(messages, e.getUpdateCounts());
+				if (remaining.size() == messages.size()) {
+					throw e;
+				}
+				// statements are executed in autocommit mode, rows which were applied cannot be written again
+				throw new WriteBehindQueue.PartialWriteException(remaining, e);
+			} catch (SQLException e) {
+				st.clearBatch();
+				logAddMessageFailure(e);
+				throw e;
+			}
+		}
+	}
 
-			Packet m = createMessage(room.getRoomJID(), senderJID, msgSenderNickname, msg, body,
-															 msgSenderJid, addRealJids, msgTimestamp);
-			writer.write(m);
+	private void setAddMessageParams(PreparedStatement st, PendingMessage msg) throws SQLException {
+		st.setString(1, msg.roomJid);
+		data_repo.setTimestamp(st, 2, msg.ts);
+		st.setString(3, msg.senderJid);
+		st.setString(4, msg.senderNickname);
+		st.setString(5, msg.body);
+		st.setBoolean(6, msg.publicEvent);
+		st.setString(7, msg.msg);
+		st.setString(8, msg.stableId);
+	}
+
+	private void logAddMessageFailure(SQLException e) {
+		if (e.getErrorCode() == 1366 || e.getMessage() != null && e.getMessage().startsWith("Incorrect string value")) {
+			log.log(Level.WARNING, "Your MySQL configuration can't handle extended Unicode (for example emoji) correctly. Please refer to <Support for emoji and other icons> section of the server documentation");
+		} else {
+			log.log(Level.WARNING, "Can't add MUC message to database", e);
+		}
+	}
+
+	private void flushWriteBehind() {
+		final WriteBehindQueue<PendingMessage> queue = writeBehindQueue;
+		if (queue != null) {
+			try {
+				queue.flush(60 * 1000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private synchronized void startWriteBehind() {
+		if (writeBehindQueue == null && !writeBehindStopped) {
+			writeBehindQueue = new WriteBehindQueue<>("muc-history-writer", writeBehindQueueSize,
+													  writeBehindBatchSize, writeBehindFlushInterval,
+													  writeBehindOverflowPolicy, this::addMessages);
+		}
+	}
+
+	private void stopWriteBehind() {
+		stopWriteBehind(false);
+	}
+
+	/**
+	 * Stops queue of messages. Messages added later are stored directly. Once provider is stopped, queue is not
+	 * created again.
+	 */
+	private void stopWriteBehind(boolean stopped) {
+		final WriteBehindQueue<PendingMessage> queue;
+		synchronized (this) {
+			queue = writeBehindQueue;
+			writeBehindQueue = null;
+			writeBehindStopped |= stopped;
+		}
+		if (queue != null) {
+			try {
+				queue.stop(60 * 1000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 
 	protected void initPreparedStatements(DataRepository repo) throws SQLException {
 		repo.initPreparedStatement(addMessageQuery, addMessageQuery);
 		repo.initPreparedStatement(deleteMessagesQuery, deleteMessagesQuery);
+		repo.initPreparedStatement(deleteMessagesBeforeQuery, deleteMessagesBeforeQuery);
 		repo.initPreparedStatement(getMessagesQuery, getMessagesQuery);
 		repo.initPreparedStatement(mamGetMessagesQuery, mamGetMessagesQuery);
 		repo.initPreparedStatement(mamGetMessagesCountQuery, mamGetMessagesCountQuery);
 		repo.initPreparedStatement(mamGetMessagePositionQuery, mamGetMessagePositionQuery);
+		repo.initPreparedStatement(mamGetMessageTimestampQuery, mamGetMessageTimestampQuery);
+		repo.initPreparedStatement(mamGetMessagesAfterQuery, mamGetMessagesAfterQuery);
+		repo.initPreparedStatement(mamGetMessagesBeforeQuery, mamGetMessagesBeforeQuery);
 	}
 
 	private int setStatementParamsForMAM(PreparedStatement st, Query query) throws SQLException {
@@ -368,13 +598,106 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		}
 	}
 
+	private Integer countItemsForPage(Query query) throws TigaseDBException {
+		switch (mamCountMode) {
+			case none:
+				return null;
+			case cached:
+				final String key = query.getComponentJID().getBareJID() + "|" +
+						(query.getStart() == null ? "" : query.getStart().getTime()) + "|" +
+						(query.getEnd() == null ? "" : query.getEnd().getTime()) + "|" +
+						(query.getWith() == null ? "" : query.getWith());
+				final long now = System.currentTimeMillis();
+				CachedCount cached = mamCountCache.get(key);
+				if (cached != null && cached.expiresAt > now) {
+					return cached.count;
+				}
+				Integer count = countItems(query);
+				if (mamCountCache.size() > 10000) {
+					mamCountCache.clear();
+				}
+				mamCountCache.put(key, new CachedCount(count, now + mamCountCacheTime));
+				return count;
+			default:
+				return countItems(query);
+		}
+	}
+
+	/**
+	 * Retrieves page of MAM results by seeking to the message which id was passed in <code>after</code> or
+	 * <code>before</code> instead of counting its position and skipping preceding messages.
+	 */
+	private void queryItemsByKey(Query query, ItemHandler itemHandler) throws TigaseDBException, ComponentException {
+		final RSM rsm = query.getRsm();
+		final boolean backward = rsm.getAfter() == null && (rsm.getBefore() != null || rsm.hasBefore());
+		final String msgId = backward ? rsm.getBefore() : rsm.getAfter();
+
+		try {
+			Timestamp keyTs = null;
+			String keyId = null;
+			if (msgId != null) {
+				keyTs = getItemTimestamp(msgId, query);
+				if (keyTs != null) {
+					keyId = msgId;
+				} else {
+					// ids returned before stable ids were assigned to all messages were timestamps
+					keyTs = new Timestamp(Long.parseLong(msgId));
+				}
+			}
+
+			final List<HistoryRow> rows;
+			final String sql = backward ? mamGetMessagesBeforeQuery : mamGetMessagesAfterQuery;
+			PreparedStatement st = data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(), sql);
+			synchronized (st) {
+				ResultSet rs = null;
+				try {
+					int i = setStatementParamsForMAM(st, query);
+					if (keyTs != null) {
+						data_repo.setTimestamp(st, i++, keyTs);
+					} else {
+						st.setObject(i++, null);
+					}
+					// timestamp passed as id is placed before all messages with the same timestamp
+					st.setString(i++, keyId != null ? keyId : "");
+					st.setInt(i++, rsm.getMax());
+					setFetchSize(st, rsm.getMax());
+
+					rs = st.executeQuery();
+					rows = readRows(rs);
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+
+			final Integer count = countItemsForPage(query);
+			Integer index = null;
+			if (count != null && msgId == null) {
+				index = backward ? Math.max(0, count - rows.size()) : 0;
+			}
+			rsm.setCount(count);
+			rsm.setIndex(index);
+
+			for (HistoryRow row : rows) {
+				itemHandler.itemFound(query, createItem(query, row));
+			}
+		} catch (NumberFormatException ex) {
+			throw new ComponentException(Authorization.ITEM_NOT_FOUND, "Not found message with id = " + msgId);
+		} catch (SQLException | TigaseStringprepException ex) {
+			throw new TigaseDBException("Cound not retrieve items", ex);
+		}
+	}
+
 	private Integer getItemPosition(String msgId, Query query) throws TigaseDBException, ComponentException {
 		if (msgId == null) {
 			return null;
 		}
 
 		try {
-			java.sql.Timestamp ts = new Timestamp(Long.parseLong(msgId));
+			Timestamp ts = getItemTimestamp(msgId, query);
+			if (ts == null) {
+				// messages stored without stable id are identified by timestamp
+				ts = new Timestamp(Long.parseLong(msgId));
+			}
 
 			PreparedStatement st = this.data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
 																	   mamGetMessagePositionQuery);
@@ -402,4 +725,79 @@ public class JDBCHistoryProvider extends AbstractHistoryProvider<DataRepository>
 		}
 	}
 
+	private Timestamp getItemTimestamp(String msgId, Query query) throws SQLException {
+		PreparedStatement st = this.data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
+																   mamGetMessageTimestampQuery);
+		synchronized (st) {
+			ResultSet rs = null;
+			try {
+				st.setString(1, query.getComponentJID().getBareJID().toString());
+				st.setString(2, msgId);
+
+				rs = st.executeQuery();
+				if (rs.next()) {
+					Date ts = data_repo.getTimestamp(rs, "ts");
+					return ts == null ? null : new Timestamp(ts.getTime());
+				} else {
+					return null;
+				}
+			} finally {
+				data_repo.release(null, rs);
+			}
+		}
+	}
+
+	/**
+	 * Number of messages matching MAM query returned in RSM <code>count</code> element.
+	 */
+	public enum MAMCountMode {
+		/**
+		 * Counted for each page of results
+		 */
+		exact,
+		/**
+		 * Counted once and reused for following pages for <code>mam-count-cache-time</code>
+		 */
+		cached,
+		/**
+		 * Not returned
+		 */
+		none
+	}
+
+	private static class CachedCount {
+
+		private final Integer count;
+		private final long expiresAt;
+
+		private CachedCount(Integer count, long expiresAt) {
+			this.count = count;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public static class PendingMessage {
+
+		private final String body;
+		private final String msg;
+		private final boolean publicEvent;
+		private final String roomJid;
+		private final String senderJid;
+		private final String senderNickname;
+		private final String stableId;
+		private final Timestamp ts;
+
+		PendingMessage(String roomJid, Timestamp ts, String senderJid, String senderNickname, String body,
+					   boolean publicEvent, String msg, String stableId) {
+			this.roomJid = roomJid;
+			this.ts = ts;
+			this.senderJid = senderJid;
+			this.senderNickname = senderNickname;
+			this.body = body;
+			this.publicEvent = publicEvent;
+			this.msg = msg;
+			this.stableId = stableId;
+		}
+	}
+
 }
@@ -0,0 +1,602 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Single segment file of {@link SegmentLog}.
+ * <br>
+ * Segment file is a sequence of records, each prefixed with length and CRC32 checksum of its content. Only the last
+ * segment of the log is appended to. When it is full, it is sealed - sparse index of record timestamps and filter of
+ * record ids are written to index file next to it, so they do not have to be rebuilt by scanning the segment when the
+ * log is opened again, and sealed segment is read using memory mapping.
+ */
+final class LogSegment {
+
+	static final String INDEX_SUFFIX = ".idx";
+	static final String LOG_SUFFIX = ".log";
+	static final String TMP_SUFFIX = ".tmp";
+	private static final int HEADER_SIZE = 8;
+	private static final int INDEX_MAGIC = 0x4d4c4958;
+	private static final int INDEX_VERSION = 1;
+	private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+	final long baseSeq;
+	private FileChannel channel;
+	private int count;
+	private final Path file;
+	private long firstTs = Long.MIN_VALUE;
+	private final IdFilter ids;
+	private final int indexInterval;
+	private int[] indexOrdinal = new int[16];
+	private int[] indexPos = new int[16];
+	private int indexSize;
+	private long[] indexTs = new long[16];
+	private long lastTs = Long.MIN_VALUE;
+	private MappedByteBuffer mapped;
+	private long size;
+
+	static Path logFile(Path dir, long baseSeq) {
+		return dir.resolve(String.format("%020d", baseSeq) + LOG_SUFFIX);
+	}
+
+	static long baseSeqOf(Path file) {
+		final String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+	}
+
+	/**
+	 * Creates new empty segment open for appending.
+	 */
+	static LogSegment create(Path dir, long baseSeq, int indexInterval, int filterBits) throws IOException {
+		final LogSegment segment = new LogSegment(logFile(dir, baseSeq), baseSeq, indexInterval, filterBits);
+		segment.channel = FileChannel.open(segment.file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+										   StandardOpenOption.WRITE);
+		return segment;
+	}
+
+	/**
+	 * Opens existing segment. Sealed segment is opened using its index file if it is valid, segment open for
+	 * appending is scanned and truncated after the last complete record.
+	 */
+	static LogSegment open(Path file, boolean sealed, int indexInterval, int filterBits) throws IOException {
+		final LogSegment segment = new LogSegment(file, baseSeqOf(file), indexInterval, filterBits);
+		final Path indexFile = segment.indexFile();
+		if (sealed && segment.readIndex(indexFile)) {
+			return segment;
+		}
+		Files.deleteIfExists(indexFile);
+		segment.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment.recover();
+		if (sealed) {
+			segment.seal();
+		}
+		return segment;
+	}
+
+	static ByteBuffer encode(SegmentLog.Record record) {
+		final byte[][] strings = new byte[][]{bytes(record.stableId), bytes(record.senderNickname),
+											  bytes(record.senderJid), bytes(record.body), bytes(record.msg)};
+		int length = 8;
+		for (byte[] str : strings) {
+			length += 4 + (str == null ? 0 : str.length);
+		}
+		final ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + length);
+		buf.putInt(length);
+		buf.putInt(0);
+		buf.putLong(record.ts);
+		for (byte[] str : strings) {
+			if (str == null) {
+				buf.putInt(-1);
+			} else {
+				buf.putInt(str.length);
+				buf.put(str);
+			}
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(buf.array(), HEADER_SIZE, length);
+		buf.putInt(4, (int) crc.getValue());
+		buf.flip();
+		return buf;
+	}
+
+	private static byte[] bytes(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(ByteBuffer buf) {
+		final int len = buf.getInt();
+		if (len < 0) {
+			return null;
+		}
+		final byte[] data = new byte[len];
+		buf.get(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	private LogSegment(Path file, long baseSeq, int indexInterval, int filterBits) {
+		this.file = file;
+		this.baseSeq = baseSeq;
+		this.indexInterval = indexInterval;
+		this.ids = new IdFilter(filterBits);
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	long getFirstTs() {
+		return firstTs;
+	}
+
+	long getLastTs() {
+		return lastTs;
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	long getEndSeq() {
+		return baseSeq + count;
+	}
+
+	boolean isSealed() {
+		return channel == null;
+	}
+
+	boolean mightContain(String stableId) {
+		return ids.mightContain(stableId);
+	}
+
+	void append(ByteBuffer encoded, SegmentLog.Record record) throws IOException {
+		final long pos = size;
+		while (encoded.hasRemaining()) {
+			channel.write(encoded, pos + encoded.position());
+		}
+		added(pos, encoded.limit(), record);
+	}
+
+	void force() throws IOException {
+		if (channel != null) {
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Makes segment read-only and writes its index file.
+	 */
+	void seal() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		channel.force(true);
+		channel.close();
+		channel = null;
+		writeIndex();
+	}
+
+	void close() throws IOException {
+		if (channel != null) {
+			channel.force(true);
+			channel.close();
+			channel = null;
+		}
+		mapped = null;
+	}
+
+	void delete() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		mapped = null;
+		Files.deleteIfExists(indexFile());
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Returns number of records of the segment older than <code>ts</code>.
+	 */
+	int countBefore(long ts) throws IOException {
+		if (ts <= firstTs) {
+			return 0;
+		}
+		if (ts > lastTs) {
+			return count;
+		}
+		final Cursor cursor = cursorForTimestamp(ts);
+		SegmentLog.Record record;
+		while ((record = cursor.peek()) != null && record.ts < ts) {
+			cursor.skip();
+		}
+		return cursor.ordinal;
+	}
+
+	/**
+	 * Creates copy of the segment without first <code>skip</code> records, which replaces this segment.
+	 */
+	LogSegment compact(Path dir, int skip) throws IOException {
+		final long newBaseSeq = baseSeq + skip;
+		final Cursor cursor = cursorForOrdinal(skip);
+		final long from = cursor.pos;
+		final Path tmp = dir.resolve(logFile(dir, newBaseSeq).getFileName().toString() + TMP_SUFFIX);
+		try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+			 FileChannel target = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+												   StandardOpenOption.TRUNCATE_EXISTING)) {
+			long pos = from;
+			while (pos < size) {
+				pos += source.transferTo(pos, size - pos, target);
+			}
+			target.force(true);
+		}
+		final boolean sealed = isSealed();
+		Files.move(tmp, logFile(dir, newBaseSeq), StandardCopyOption.ATOMIC_MOVE);
+		delete();
+		return open(logFile(dir, newBaseSeq), sealed, indexInterval, ids.bits());
+	}
+
+	/**
+	 * Creates cursor positioned at the first record which timestamp is not older than <code>ts</code> could be.
+	 */
+	Cursor cursorForTimestamp(long ts) throws IOException {
+		int idx = Arrays.binarySearch(indexTs, 0, indexSize, ts);
+		if (idx < 0) {
+			idx = -idx - 1;
+		}
+		// there may be more entries with the same timestamp, so we need to start before all of them
+		while (idx > 0 && (idx >= indexSize || indexTs[idx] >= ts)) {
+			idx--;
+		}
+		return cursorForEntry(idx);
+	}
+
+	Cursor cursorForOrdinal(int ordinal) throws IOException {
+		int idx = Arrays.binarySearch(indexOrdinal, 0, indexSize, ordinal);
+		if (idx < 0) {
+			idx = Math.max(0, -idx - 2);
+		}
+		final Cursor cursor = cursorForEntry(idx);
+		while (cursor.ordinal < ordinal && cursor.skip()) {
+			// skipping records preceding requested one
+		}
+		return cursor;
+	}
+
+	private Cursor cursorForEntry(int idx) throws IOException {
+		if (indexSize == 0) {
+			return new Cursor(0, 0);
+		}
+		return new Cursor(indexPos[idx], indexOrdinal[idx]);
+	}
+
+	private void added(long pos, int length, SegmentLog.Record record) {
+		if (count == 0) {
+			firstTs = record.ts;
+		}
+		if (indexSize == 0 || pos - indexPos[indexSize - 1] >= indexInterval) {
+			if (indexSize == indexTs.length) {
+				indexTs = Arrays.copyOf(indexTs, indexSize * 2);
+				indexOrdinal = Arrays.copyOf(indexOrdinal, indexSize * 2);
+				indexPos = Arrays.copyOf(indexPos, indexSize * 2);
+			}
+			indexTs[indexSize] = record.ts;
+			indexOrdinal[indexSize] = count;
+			indexPos[indexSize] = (int) pos;
+			indexSize++;
+		}
+		if (record.stableId != null) {
+			ids.add(record.stableId);
+		}
+		lastTs = record.ts;
+		count++;
+		size = pos + length;
+	}
+
+	private Path indexFile() {
+		final String name = file.getFileName().toString();
+		return file.resolveSibling(name.substring(0, name.length() - LOG_SUFFIX.length()) + INDEX_SUFFIX);
+	}
+
+	private synchronized ByteBuffer mapped() throws IOException {
+		if (mapped == null) {
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+				mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+		}
+		return mapped;
+	}
+
+	/**
+	 * Reads all records of the segment and truncates it after the last valid one.
+	 */
+	private void recover() throws IOException {
+		final long fileSize = channel.size();
+		size = fileSize;
+		final Cursor cursor = new Cursor(0, 0);
+		cursor.verify = true;
+		size = 0;
+		SegmentLog.Record record;
+		while ((record = cursor.peek()) != null) {
+			final long pos = cursor.pos;
+			cursor.skip();
+			added(pos, (int) (cursor.pos - pos), record);
+		}
+		if (fileSize > size) {
+			channel.truncate(size);
+			channel.force(true);
+		}
+	}
+
+	private boolean readIndex(Path indexFile) throws IOException {
+		if (!Files.exists(indexFile)) {
+			return false;
+		}
+		final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+		try {
+			if (buf.getInt() != INDEX_MAGIC || buf.getInt() != INDEX_VERSION) {
+				return false;
+			}
+			final long logSize = buf.getLong();
+			if (logSize != Files.size(file)) {
+				return false;
+			}
+			final int count = buf.getInt();
+			final long firstTs = buf.getLong();
+			final long lastTs = buf.getLong();
+			final int entries = buf.getInt();
+			final long[] indexTs = new long[Math.max(1, entries)];
+			final int[] indexOrdinal = new int[indexTs.length];
+			final int[] indexPos = new int[indexTs.length];
+			for (int i = 0; i < entries; i++) {
+				indexTs[i] = buf.getLong();
+				indexOrdinal[i] = buf.getInt();
+				indexPos[i] = buf.getInt();
+			}
+			final long[] words = new long[buf.getInt()];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = buf.getLong();
+			}
+			if (!ids.load(words)) {
+				return false;
+			}
+			this.size = logSize;
+			this.count = count;
+			this.firstTs = firstTs;
+			this.lastTs = lastTs;
+			this.indexSize = entries;
+			this.indexTs = indexTs;
+			this.indexOrdinal = indexOrdinal;
+			this.indexPos = indexPos;
+			return true;
+		} catch (RuntimeException ex) {
+			// damaged index file, segment will be scanned
+			return false;
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		final long[] words = ids.words();
+		final ByteBuffer buf = ByteBuffer.allocate(40 + indexSize * 16 + 4 + words.length * 8);
+		buf.putInt(INDEX_MAGIC);
+		buf.putInt(INDEX_VERSION);
+		buf.putLong(size);
+		buf.putInt(count);
+		buf.putLong(firstTs);
+		buf.putLong(lastTs);
+		buf.putInt(indexSize);
+		for (int i = 0; i < indexSize; i++) {
+			buf.putLong(indexTs[i]);
+			buf.putInt(indexOrdinal[i]);
+			buf.putInt(indexPos[i]);
+		}
+		buf.putInt(words.length);
+		for (long word : words) {
+			buf.putLong(word);
+		}
+		buf.flip();
+
+		final Path indexFile = indexFile();
+		final Path tmp = indexFile.resolveSibling(indexFile.getFileName().toString() + TMP_SUFFIX);
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+											   StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buf.hasRemaining()) {
+				ch.write(buf);
+			}
+			ch.force(true);
+		}
+		Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Sequential reader of records of the segment. Sealed segment is read from memory mapped file, records of segment
+	 * open for appending are read in chunks.
+	 */
+	final class Cursor {
+
+		int ordinal;
+		long pos;
+		private ByteBuffer buf;
+		private long bufStart;
+		private final long limit = size;
+		private SegmentLog.Record next;
+		private int nextLength;
+		private boolean verify = false;
+
+		private Cursor(long pos, int ordinal) throws IOException {
+			this.pos = pos;
+			this.ordinal = ordinal;
+			if (channel == null) {
+				buf = mapped().duplicate();
+				bufStart = 0;
+			}
+		}
+
+		/**
+		 * Returns record at the current position without moving to the next one.
+		 */
+		SegmentLog.Record peek() throws IOException {
+			if (next == null) {
+				read();
+			}
+			return next;
+		}
+
+		/**
+		 * Moves to the next record.
+		 *
+		 * @return <code>false</code> if there are no more records
+		 */
+		boolean skip() throws IOException {
+			if (peek() == null) {
+				return false;
+			}
+			pos += nextLength;
+			ordinal++;
+			next = null;
+			return true;
+		}
+
+		long getSeq() {
+			return baseSeq + ordinal;
+		}
+
+		private void read() throws IOException {
+			if (pos + HEADER_SIZE > limit) {
+				return;
+			}
+			ByteBuffer header = slice(pos, HEADER_SIZE);
+			final int length = header.getInt();
+			final int checksum = header.getInt();
+			if (length < 8 || pos + HEADER_SIZE + length > limit) {
+				return;
+			}
+			final ByteBuffer data = slice(pos + HEADER_SIZE, length);
+			if (verify) {
+				final CRC32 crc = new CRC32();
+				crc.update(data.duplicate());
+				if ((int) crc.getValue() != checksum) {
+					return;
+				}
+			}
+			next = new SegmentLog.Record(data.getLong(), string(data), string(data), string(data), string(data),
+										 string(data));
+			nextLength = HEADER_SIZE + length;
+		}
+
+		/**
+		 * Returns buffer containing <code>length</code> bytes of the segment starting at <code>position</code>.
+		 */
+		private ByteBuffer slice(long position, int length) throws IOException {
+			if (channel != null &&
+					(buf == null || position < bufStart || position + length > bufStart + buf.limit())) {
+				final int toRead = (int) Math.min(Math.max(length, READ_CHUNK_SIZE), limit - position);
+				buf = ByteBuffer.allocate(toRead);
+				while (buf.hasRemaining()) {
+					if (channel.read(buf, position + buf.position()) < 0) {
+						break;
+					}
+				}
+				buf.flip();
+				bufStart = position;
+				if (buf.limit() < length) {
+					throw new IOException("Unexpected end of segment " + file);
+				}
+			}
+			final ByteBuffer result = buf.duplicate();
+			result.position((int) (position - bufStart));
+			result.limit((int) (position - bufStart) + length);
+			return result.slice();
+		}
+	}
+
+	/**
+	 * Bloom filter of ids of records stored in the segment, used to skip segments which do not contain message with
+	 * requested id.
+	 */
+	static final class IdFilter {
+
+		private static final int HASHES = 3;
+		private final long[] words;
+
+		IdFilter(int bits) {
+			this.words = new long[Math.max(1, (bits + 63) / 64)];
+		}
+
+		void add(String id) {
+			final int h1 = id.hashCode();
+			final int h2 = mix(h1);
+			for (int i = 0; i < HASHES; i++) {
+				final int bit = bit(h1 + i * h2);
+				words[bit >>> 6] |= 1L << bit;
+			}
+		}
+
+		boolean mightContain(String id) {
+			final int h1 = id.hashCode();
+			final int h2 = mix(h1);
+			for (int i = 0; i < HASHES; i++) {
+				final int bit = bit(h1 + i * h2);
+				if ((words[bit >>> 6] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		int bits() {
+			return words.length * 64;
+		}
+
+		long[] words() {
+			return words;
+		}
+
+		boolean load(long[] words) {
+			if (words.length != this.words.length) {
+				return false;
+			}
+			System.arraycopy(words, 0, this.words, 0, words.length);
+			return true;
+		}
+
+		private int bit(int hash) {
+			return (hash & 0x7fffffff) % (words.length * 64);
+		}
+
+		private static int mix(int h) {
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return h | 1;
+		}
+	}
+}
@@ -19,6 +19,7 @@ package tigase.muc.history;
 
 import tigase.component.PacketWriter;
 import tigase.db.DataSource;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.muc.Affiliation;
 import tigase.muc.Room;
 import tigase.muc.RoomConfig.Anonymity;
@@ -27,20 +28,33 @@ import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 
 /**
+ * In-memory history of rooms.
+ * <br>
+ * History of each room is kept in a fixed size ring buffer, which may be appended and read concurrently without
+ * locking. Messages are stored already serialized to UTF-8. Total size of stored messages is limited by
+ * <code>memory-budget</code> - when it is exceeded, history of rooms which were least recently active is dropped.
+ *
  * @author bmalkow
  */
 public class MemoryHistoryProvider
 		extends AbstractHistoryProvider {
 
-	private final Map<BareJID, LinkedList<HItem>> history = new ConcurrentHashMap<BareJID, LinkedList<HItem>>();
+	private final AtomicBoolean evicting = new AtomicBoolean(false);
+	private final Map<BareJID, RoomHistory> history = new ConcurrentHashMap<BareJID, RoomHistory>();
+	@ConfigField(desc = "Maximal size (in bytes) of history kept in memory", alias = "memory-budget")
+	private long memoryBudget = 64 * 1024 * 1024;
+	@ConfigField(desc = "Maximal number of messages kept for a room", alias = "max-size")
 	private int maxSize = 256;
+	private final AtomicLong usedMemory = new AtomicLong();
 
 	public MemoryHistoryProvider() {
 	}
@@ -55,24 +69,22 @@ public class MemoryHistoryProvider
 
 	@Override
 	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
-		LinkedList<HItem> stanzas = this.history.get(room.getRoomJID());
-		if (stanzas == null) {
-			stanzas = new LinkedList<HItem>();
-			this.history.put(room.getRoomJID(), stanzas);
-		}
+		final RoomHistory roomHistory = history.computeIfAbsent(room.getRoomJID(), jid -> new RoomHistory(maxSize));
+		append(roomHistory, new HItem(message == null ? null : message.toString(), body, senderJid.toString(),
+									  senderNickname, time.getTime()));
+	}
 
-		if (stanzas.size() >= this.maxSize) {
-			stanzas.poll();
+	void append(RoomHistory roomHistory, HItem item) {
+		final long delta = roomHistory.append(item);
+		usedMemory.addAndGet(delta);
+		if (roomHistory.removed) {
+			// room history was dropped while we were appending to it
+			usedMemory.addAndGet(-roomHistory.size.getAndSet(0));
 		}
 
-		HItem item = new HItem();
-		item.body = body;
-		item.senderJid = senderJid;
-		item.senderNickname = senderNickname;
-		item.timestamp = time;
-		item.msg = message == null ? null : message.toString();
-
-		stanzas.add(item);
+		if (usedMemory.get() > memoryBudget) {
+			evict();
+		}
 	}
 
 	@Override
@@ -85,48 +97,79 @@ public class MemoryHistoryProvider
 		// nothing to do
 	}
 
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public long getUsedMemory() {
+		return usedMemory.get();
+	}
+
 	@Override
 	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds,
 								   Date since, PacketWriter writer) {
-		LinkedList<HItem> stanzas = this.history.get(room.getRoomJID());
-		if (stanzas == null) {
-			stanzas = new LinkedList<HItem>();
-			this.history.put(room.getRoomJID(), stanzas);
+		final RoomHistory roomHistory = this.history.get(room.getRoomJID());
+		if (roomHistory == null || (maxchars != null && maxchars == 0)) {
+			return;
 		}
+		roomHistory.lastActivity = System.currentTimeMillis();
 
-		int c = 0;
-		final Date now = new Date();
-		for (HItem item : stanzas) {
+		final Selection selection = Selection.of(room, maxSize, maxstanzas, seconds, since);
+		if (selection.limit <= 0) {
+			return;
+		}
 
-			if (since != null) {
-				if (item.timestamp.before(since)) {
-					continue;
-				}
-			} else if (maxstanzas != null) {
-				if (c >= maxstanzas) {
-					break;
-				}
-			} else if (seconds != null) {
-				if (item.timestamp.getTime() < now.getTime() - seconds * 1000) {
-					continue;
-				}
-			} else {
-				if (c >= 25) {
-					break;
-				}
-			}
+		writeItems(room, senderJID, roomHistory.getLast(selection.limit, selection.from), writer);
+	}
+
+	RoomHistory getRoomHistory(BareJID roomJID) {
+		return history.get(roomJID);
+	}
+
+	/**
+	 * Creates new empty history of the room replacing existing one.
+	 */
+	RoomHistory createRoomHistory(BareJID roomJID, int capacity) {
+		final RoomHistory roomHistory = new RoomHistory(capacity);
+		final RoomHistory old = history.put(roomJID, roomHistory);
+		if (old != null) {
+			release(old);
+		}
+		return roomHistory;
+	}
+
+	int getRoomsCount() {
+		return history.size();
+	}
+
+	void writeItems(Room room, JID senderJID, List<HItem> items, PacketWriter writer) {
+		if (items.isEmpty()) {
+			return;
+		}
 
-			Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID()).getAffiliation();
-			boolean addRealJids = room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous ||
-					room.getConfig().getRoomAnonymity() == Anonymity.semianonymous &&
-							(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID()).getAffiliation();
+		boolean addRealJids = room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous ||
+				room.getConfig().getRoomAnonymity() == Anonymity.semianonymous &&
+						(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
 
+		for (HItem item : items) {
 			try {
-				Packet message = createMessage(room.getRoomJID(), senderJID, item.senderNickname, item.msg, item.body,
-											   item.senderJid.toString(), addRealJids, item.timestamp);
+				Packet message = createMessage(room.getRoomJID(), senderJID, item.senderNickname, item.getMsg(),
+											   item.getBody(), item.senderJid, addRealJids, new Date(item.timestamp));
 
 				writer.write(message);
-				++c;
 			} catch (Exception e) {
 				if (log.isLoggable(Level.SEVERE)) {
 					log.log(Level.SEVERE, "Can't get history", e);
@@ -148,19 +191,184 @@ public class MemoryHistoryProvider
 
 	@Override
 	public void removeHistory(Room room) {
-		this.history.remove(room.getRoomJID());
+		removeHistory(room.getRoomJID());
 	}
 
-	private static class HItem {
+	void removeHistory(BareJID roomJID) {
+		RoomHistory roomHistory = this.history.remove(roomJID);
+		if (roomHistory != null) {
+			release(roomHistory);
+		}
+	}
+
+	private void release(RoomHistory roomHistory) {
+		roomHistory.removed = true;
+		usedMemory.addAndGet(-roomHistory.size.getAndSet(0));
+	}
+
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			final long target = memoryBudget - memoryBudget / 10;
+			final List<Map.Entry<BareJID, RoomHistory>> rooms = new ArrayList<>(history.entrySet());
+			final long[] lastActivity = new long[rooms.size()];
+			final Integer[] order = new Integer[rooms.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+				// snapshot, as it may be modified during sorting
+				lastActivity[i] = rooms.get(i).getValue().lastActivity;
+			}
+			Arrays.sort(order, (a, b) -> Long.compare(lastActivity[a], lastActivity[b]));
+
+			for (int i = 0; i < order.length && usedMemory.get() > target; i++) {
+				final Map.Entry<BareJID, RoomHistory> e = rooms.get(order[i]);
+				if (history.remove(e.getKey(), e.getValue())) {
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "Dropping history of room " + e.getKey() + " as memory budget of " +
+								memoryBudget + " bytes is exceeded");
+					}
+					release(e.getValue());
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * Number of messages and time range requested by occupant.
+	 */
+	static class Selection {
+
+		final long from;
+		final int limit;
+
+		static Selection of(Room room, int defaultLimit, Integer maxstanzas, Integer seconds, Date since) {
+			Integer maxHistory = room.getConfig().getMaxHistory();
+			int limit = maxHistory == null ? defaultLimit : maxHistory;
+			long from = Long.MIN_VALUE;
+			if (since != null) {
+				from = since.getTime();
+			} else if (maxstanzas != null) {
+				limit = Math.min(limit, maxstanzas);
+			} else if (seconds != null) {
+				from = System.currentTimeMillis() - seconds * 1000L;
+			}
+			return new Selection(limit, from);
+		}
+
+		Selection(int limit, long from) {
+			this.limit = limit;
+			this.from = from;
+		}
+	}
+
+	static class RoomHistory {
+
+		/**
+		 * Set if all messages of the room were appended to this history.
+		 */
+		volatile boolean complete = false;
+		private final AtomicReferenceArray<HItem> items;
+		private final AtomicLong sequence = new AtomicLong();
+		private final AtomicLong size = new AtomicLong();
+		private volatile long lastActivity = System.currentTimeMillis();
+		private volatile boolean removed = false;
+
+		RoomHistory(int capacity) {
+			this.items = new AtomicReferenceArray<>(Math.max(1, capacity));
+		}
+
+		long append(HItem item) {
+			item.sequence = sequence.getAndIncrement();
+			final int idx = (int) (item.sequence % items.length());
+			final HItem old = items.getAndSet(idx, item);
+			if (old != null && old.sequence > item.sequence && items.compareAndSet(idx, item, old)) {
+				// slot was already reused by newer item
+				return 0;
+			}
+			final long delta = item.getSize() - (old == null ? 0 : old.getSize());
+			size.addAndGet(delta);
+			lastActivity = System.currentTimeMillis();
+			return delta;
+		}
+
+		/**
+		 * Checks if result of the selection is the same as it would be for the full history of the room.
+		 */
+		boolean covers(Selection selection) {
+			final long last = sequence.get();
+			if (complete && last <= items.length()) {
+				return true;
+			}
+			final long first = Math.max(0, last - items.length());
+			if (selection.limit <= last - first) {
+				return true;
+			}
+			final HItem oldest = items.get((int) (first % items.length()));
+			return selection.from != Long.MIN_VALUE && oldest != null && oldest.sequence == first &&
+					selection.from >= oldest.timestamp;
+		}
 
-		String body;
 		/**
-		 * whole stanza
+		 * Returns up to <code>limit</code> newest items not older than <code>since</code>, in order of appending.
 		 */
-		String msg;
-		JID senderJid;
-		String senderNickname;
-		Date timestamp;
+		List<HItem> getLast(int limit, long since) {
+			final long last = sequence.get();
+			final long first = Math.max(0, last - items.length());
+			final ArrayList<HItem> result = new ArrayList<>(Math.min(limit, (int) (last - first)));
+			for (long seq = last - 1; seq >= first && result.size() < limit; seq--) {
+				final HItem item = items.get((int) (seq % items.length()));
+				// slot may be already reused by newer item or not yet filled
+				if (item == null || item.sequence != seq) {
+					continue;
+				}
+				if (item.timestamp < since) {
+					continue;
+				}
+				result.add(item);
+			}
+			Collections.reverse(result);
+			return result;
+		}
+	}
+
+	static class HItem {
+
+		/**
+		 * whole stanza or body if stanza is not available
+		 */
+		private final byte[] data;
+		private final boolean hasMsg;
+		private final String senderJid;
+		private final String senderNickname;
+		private final long timestamp;
+		private long sequence;
+
+		HItem(String msg, String body, String senderJid, String senderNickname, long timestamp) {
+			this.hasMsg = msg != null;
+			final String data = msg != null ? msg : body;
+			this.data = data == null ? null : data.getBytes(StandardCharsets.UTF_8);
+			this.senderJid = senderJid;
+			this.senderNickname = senderNickname;
+			this.timestamp = timestamp;
+		}
+
+		String getBody() {
+			return hasMsg || data == null ? null : new String(data, StandardCharsets.UTF_8);
+		}
+
+		String getMsg() {
+			return hasMsg ? new String(data, StandardCharsets.UTF_8) : null;
+		}
+
+		long getSize() {
+			// estimated size of object with its fields
+			return 64 + (data == null ? 0 : data.length) + 2L * ((senderJid == null ? 0 : senderJid.length()) +
+					(senderNickname == null ? 0 : senderNickname.length()));
+		}
 	}
 
 }
@@ -0,0 +1,209 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of parsed messages stored in history.
+ * <br>
+ * The same stored message is rendered for each occupant joining the room and for each MAM query returning it. Instead
+ * of parsing it every time, parsed element is kept (up to <code>maxSize</code> least recently used messages, identified
+ * by room and stable id or timestamp of the message) and only its top level element is copied, so caller may set
+ * addressing attributes and add <code>delay</code> element. Children of the copy are shared and must not be modified.
+ */
+public class MessageTemplateCache {
+
+	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final Map<Key, Template> templates = new ConcurrentHashMap<>();
+	private final AtomicLong ticks = new AtomicLong();
+	private volatile int maxSize;
+
+	public static Element parse(String data) {
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, data.toCharArray(), 0, data.length());
+		return domHandler.getParsedElements().poll();
+	}
+
+	/**
+	 * Creates copy of top level element sharing its children.
+	 */
+	static Element copyTopLevel(Element element) {
+		final List<Element> children = element.getChildren();
+		final Map<String, String> attributes = element.getAttributes();
+		final String[] names = new String[attributes == null ? 0 : attributes.size()];
+		final String[] values = new String[names.length];
+		if (attributes != null) {
+			int i = 0;
+			for (Map.Entry<String, String> attr : attributes.entrySet()) {
+				names[i] = attr.getKey();
+				values[i] = attr.getValue();
+				i++;
+			}
+		}
+		return new Element(element.getName(),
+						   children == null ? new Element[0] : children.toArray(new Element[children.size()]), names,
+						   values);
+	}
+
+	public MessageTemplateCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns copy of parsed message.
+	 *
+	 * @param roomJID address of the room
+	 * @param id stable identifier or timestamp of stored message, if <code>null</code> message is not cached
+	 * @param data serialized message
+	 *
+	 * @return parsed message or <code>null</code> if <code>data</code> is not valid XML
+	 */
+	public Element get(BareJID roomJID, String id, String data) {
+		if (maxSize <= 0 || id == null) {
+			return parse(data);
+		}
+
+		final Key key = new Key(roomJID, id);
+		Template template = templates.get(key);
+		if (template != null && template.data.equals(data)) {
+			hits.incrementAndGet();
+			template.lastUsed = ticks.incrementAndGet();
+			return copyTopLevel(template.element);
+		}
+
+		misses.incrementAndGet();
+		final Element element = parse(data);
+		if (element != null) {
+			template = new Template(data, element);
+			template.lastUsed = ticks.incrementAndGet();
+			templates.put(key, template);
+			if (templates.size() > maxSize) {
+				evict();
+			}
+			return copyTopLevel(element);
+		}
+		return null;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		if (maxSize <= 0) {
+			templates.clear();
+		} else {
+			evict();
+		}
+	}
+
+	public int size() {
+		return templates.size();
+	}
+
+	/**
+	 * Removes least recently used templates. Templates are removed in bulk (down to 7/8 of <code>maxSize</code>), so
+	 * cost of sorting is shared by many insertions. If other thread is already removing templates, this call returns
+	 * immediately.
+	 */
+	private void evict() {
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			final int limit = maxSize;
+			if (templates.size() <= limit) {
+				return;
+			}
+			final List<Map.Entry<Key, Template>> entries = new ArrayList<>(templates.entrySet());
+			entries.sort((e1, e2) -> Long.compare(e1.getValue().lastUsed, e2.getValue().lastUsed));
+			final int toRemove = entries.size() - Math.max(0, limit - limit / 8);
+			for (int i = 0; i < toRemove; i++) {
+				templates.remove(entries.get(i).getKey(), entries.get(i).getValue());
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private static final class Key {
+
+		private final String id;
+		private final BareJID roomJID;
+
+		private Key(BareJID roomJID, String id) {
+			this.roomJID = roomJID;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return id.equals(key.id) && Objects.equals(roomJID, key.roomJID);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * id.hashCode() + Objects.hashCode(roomJID);
+		}
+	}
+
+	private static class Template {
+
+		private final String data;
+		private final Element element;
+		private volatile long lastUsed;
+
+		private Template(String data, Element element) {
+			this.data = data;
+			this.element = element;
+		}
+	}
+}
@@ -0,0 +1,377 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of messages of a single room stored as a sequence of segment files in a directory.
+ * <br>
+ * Each record has a sequence number, which is assigned on append and is not changed until record is removed, and
+ * timestamps of records never decrease, so records may be found by sequence number or timestamp using sparse indexes of
+ * segments. Old records are removed by deleting whole segments or by rewriting the oldest segment without them.
+ * <br>
+ * Records are appended while holding write lock and read while holding read lock of the log.
+ */
+final class SegmentLog {
+
+	private static final int BACKWARD_CHUNK = 64;
+	private static final Logger log = Logger.getLogger(SegmentLog.class.getName());
+
+	private boolean closed = false;
+	private volatile boolean dirty = false;
+	private final Path dir;
+	private final int filterBits;
+	private final int indexInterval;
+	private volatile long lastAccess = System.currentTimeMillis();
+	private long lastTs = Long.MIN_VALUE;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private long nextSeq = 0;
+	private final long segmentSize;
+	private final List<LogSegment> segments = new ArrayList<>();
+
+	SegmentLog(Path dir, long segmentSize, int indexInterval) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.indexInterval = indexInterval;
+		// about 10 bits for each record of 400 bytes
+		this.filterBits = (int) Math.min(Integer.MAX_VALUE - 64, Math.max(1024, segmentSize / 40));
+	}
+
+	/**
+	 * Opens segments of the log, recovering the last one if it was not closed properly.
+	 */
+	void open() throws IOException {
+		if (!Files.isDirectory(dir)) {
+			return;
+		}
+		final List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream) {
+				final String name = file.getFileName().toString();
+				if (name.endsWith(LogSegment.TMP_SUFFIX)) {
+					// leftover of interrupted compaction or sealing
+					Files.deleteIfExists(file);
+				} else if (name.endsWith(LogSegment.LOG_SUFFIX)) {
+					files.add(file);
+				}
+			}
+		}
+		files.sort((f1, f2) -> Long.compare(LogSegment.baseSeqOf(f1), LogSegment.baseSeqOf(f2)));
+		for (int i = 0; i < files.size(); i++) {
+			final LogSegment segment = LogSegment.open(files.get(i), i < files.size() - 1, indexInterval,
+													   filterBits);
+			// segment replaced by compaction which was interrupted before it was removed
+			while (!segments.isEmpty() && segments.get(segments.size() - 1).getEndSeq() > segment.baseSeq) {
+				segments.remove(segments.size() - 1).delete();
+			}
+			segments.add(segment);
+		}
+		if (!segments.isEmpty()) {
+			final LogSegment last = segments.get(segments.size() - 1);
+			nextSeq = last.getEndSeq();
+			for (LogSegment segment : segments) {
+				if (segment.getCount() > 0) {
+					lastTs = Math.max(lastTs, segment.getLastTs());
+				}
+			}
+		}
+	}
+
+	void lockRead() {
+		lock.readLock().lock();
+		lastAccess = System.currentTimeMillis();
+	}
+
+	void unlockRead() {
+		lock.readLock().unlock();
+	}
+
+	void lockWrite() {
+		lock.writeLock().lock();
+		lastAccess = System.currentTimeMillis();
+	}
+
+	void unlockWrite() {
+		lock.writeLock().unlock();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	boolean isDirty() {
+		return dirty;
+	}
+
+	long getLastAccess() {
+		return lastAccess;
+	}
+
+	long getFirstSeq() {
+		return segments.isEmpty() ? nextSeq : segments.get(0).baseSeq;
+	}
+
+	long getNextSeq() {
+		return nextSeq;
+	}
+
+	/**
+	 * Appends record to the log. Timestamp of the record is adjusted if it is older than timestamp of the last record,
+	 * as timestamps of records in the log cannot decrease. Requires write lock.
+	 */
+	void append(Record record) throws IOException {
+		if (record.ts < lastTs) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Timestamp " + record.ts + " of message " + record.stableId + " in " + dir +
+						" is older than timestamp of the last message, storing it with timestamp " + lastTs);
+			}
+			record = new Record(lastTs, record.stableId, record.senderNickname, record.senderJid, record.body,
+								record.msg);
+		}
+		final ByteBuffer encoded = LogSegment.encode(record);
+		LogSegment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (active != null && active.getCount() > 0 && active.getSize() + encoded.limit() > segmentSize) {
+			active.seal();
+			active = null;
+		}
+		if (active == null || active.isSealed()) {
+			Files.createDirectories(dir);
+			active = LogSegment.create(dir, nextSeq, indexInterval, filterBits);
+			segments.add(active);
+		}
+		active.append(encoded, record);
+		nextSeq++;
+		lastTs = record.ts;
+		dirty = true;
+	}
+
+	/**
+	 * Returns sequence number of the first record which is not older than <code>ts</code>. Requires read lock.
+	 */
+	long seqOf(long ts) throws IOException {
+		for (LogSegment segment : segments) {
+			if (segment.getCount() > 0 && segment.getLastTs() >= ts) {
+				final LogSegment.Cursor cursor = segment.cursorForTimestamp(ts);
+				Record record;
+				while ((record = cursor.peek()) != null && record.ts < ts) {
+					cursor.skip();
+				}
+				return cursor.getSeq();
+			}
+		}
+		return nextSeq;
+	}
+
+	/**
+	 * Passes records with sequence numbers from <code>fromSeq</code> (inclusive) to <code>toSeq</code> (exclusive) to
+	 * the visitor until it returns <code>false</code>. Requires read lock.
+	 */
+	void read(long fromSeq, long toSeq, RecordVisitor visitor) throws IOException {
+		fromSeq = Math.max(fromSeq, getFirstSeq());
+		toSeq = Math.min(toSeq, nextSeq);
+		if (fromSeq >= toSeq) {
+			return;
+		}
+		for (int i = findSegment(fromSeq); i < segments.size(); i++) {
+			final LogSegment segment = segments.get(i);
+			final LogSegment.Cursor cursor = segment.cursorForOrdinal(
+					(int) Math.max(0, fromSeq - segment.baseSeq));
+			Record record;
+			while ((record = cursor.peek()) != null) {
+				final long seq = cursor.getSeq();
+				if (seq >= toSeq) {
+					return;
+				}
+				if (!visitor.visit(seq, record)) {
+					return;
+				}
+				cursor.skip();
+			}
+		}
+	}
+
+	/**
+	 * Passes records with sequence numbers from <code>toSeq</code> (exclusive) down to <code>fromSeq</code>
+	 * (inclusive) to the visitor until it returns <code>false</code>. Records are read in chunks of
+	 * <code>BACKWARD_CHUNK</code> records, which are passed to the visitor in reverse order. Requires read lock.
+	 */
+	void readBackward(long fromSeq, long toSeq, RecordVisitor visitor) throws IOException {
+		fromSeq = Math.max(fromSeq, getFirstSeq());
+		toSeq = Math.min(toSeq, nextSeq);
+		final List<Record> chunk = new ArrayList<>(BACKWARD_CHUNK);
+		long end = toSeq;
+		while (end > fromSeq) {
+			final long start = Math.max(fromSeq, end - BACKWARD_CHUNK);
+			chunk.clear();
+			// sequence numbers of records in the log are consecutive
+			read(start, end, (seq, record) -> chunk.add(record));
+			for (int i = chunk.size() - 1; i >= 0; i--) {
+				if (!visitor.visit(start + i, chunk.get(i))) {
+					return;
+				}
+			}
+			end = start;
+		}
+	}
+
+	/**
+	 * Finds sequence number of the record with id. Segments which may contain it are scanned starting from the newest
+	 * one. Requires read lock.
+	 *
+	 * @return <code>-1</code> if there is no such record
+	 */
+	long findSeq(String stableId) throws IOException {
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			final LogSegment segment = segments.get(i);
+			if (!segment.mightContain(stableId)) {
+				continue;
+			}
+			final LogSegment.Cursor cursor = segment.cursorForOrdinal(0);
+			Record record;
+			while ((record = cursor.peek()) != null) {
+				if (stableId.equals(record.stableId)) {
+					return cursor.getSeq();
+				}
+				cursor.skip();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes records older than <code>ts</code>. Whole segments are deleted until at least <code>limit</code> records
+	 * are removed, and oldest remaining segment is rewritten without removed records. Requires write lock.
+	 *
+	 * @return number of removed records
+	 */
+	int removeBefore(long ts, int limit) throws IOException {
+		int removed = 0;
+		while (!segments.isEmpty() && removed < limit) {
+			final LogSegment segment = segments.get(0);
+			final int count = segment.countBefore(ts);
+			if (count == 0) {
+				break;
+			}
+			if (count == segment.getCount()) {
+				segments.remove(0).delete();
+			} else {
+				segments.set(0, segment.compact(dir, count));
+			}
+			removed += count;
+		}
+		return removed;
+	}
+
+	/**
+	 * Forces appended records to disk. Requires read lock.
+	 */
+	void sync() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		dirty = false;
+		if (!segments.isEmpty()) {
+			segments.get(segments.size() - 1).force();
+		}
+	}
+
+	/**
+	 * Closes files of the log. Requires write lock.
+	 */
+	void close() throws IOException {
+		closed = true;
+		dirty = false;
+		for (LogSegment segment : segments) {
+			segment.close();
+		}
+		segments.clear();
+	}
+
+	/**
+	 * Deletes all files of the log. Requires write lock.
+	 */
+	void delete() throws IOException {
+		closed = true;
+		dirty = false;
+		for (LogSegment segment : segments) {
+			segment.delete();
+		}
+		segments.clear();
+		if (Files.isDirectory(dir)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path file : stream) {
+					Files.deleteIfExists(file);
+				}
+			}
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	private int findSegment(long seq) {
+		int low = 0;
+		int high = segments.size() - 1;
+		while (low < high) {
+			final int mid = (low + high + 1) >>> 1;
+			if (segments.get(mid).baseSeq <= seq) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	interface RecordVisitor {
+
+		boolean visit(long seq, Record record) throws IOException;
+
+	}
+
+	/**
+	 * Message stored in the log.
+	 */
+	static final class Record {
+
+		final String body;
+		final String msg;
+		final String senderJid;
+		final String senderNickname;
+		final String stableId;
+		final long ts;
+
+		Record(long ts, String stableId, String senderNickname, String senderJid, String body, String msg) {
+			this.ts = ts;
+			this.stableId = stableId;
+			this.senderNickname = senderNickname;
+			this.senderJid = senderJid;
+			this.body = body;
+			this.msg = msg;
+		}
+	}
+}
@@ -0,0 +1,525 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import tigase.component.PacketWriter;
+import tigase.component.exceptions.ComponentException;
+import tigase.db.DataSource;
+import tigase.db.TigaseDBException;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.muc.Room;
+import tigase.muc.StanzaId;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.Authorization;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+import tigase.xmpp.mam.MAMRepository;
+import tigase.xmpp.mam.Query;
+import tigase.xmpp.mam.QueryImpl;
+import tigase.xmpp.rsm.RSM;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * History provider storing messages in files instead of a database.
+ * <br>
+ * Messages of each room are appended to a log of segment files kept in a separate directory, named after SHA-1 hash of
+ * the room JID, inside <code>path</code> directory. When active segment reaches <code>segment-size</code> bytes, it is
+ * sealed and a new one is started. Segments have sparse indexes of timestamps (entry for each
+ * <code>index-interval</code> bytes) and filters of message ids, so history and MAM queries read only required parts
+ * of the log, and sealed segments are read using memory mapping. Appended messages are forced to disk every
+ * <code>fsync-interval</code> milliseconds.
+ * <br>
+ * Old messages are removed by {@link HistoryRetention}, which deletes expired segments and rewrites the oldest
+ * remaining segment without expired messages.
+ * <br>
+ * Timestamps in a room log never decrease, so a message with timestamp older than the last stored message is stored
+ * with timestamp of the last stored message. MAM queries filtered by nickname (<code>with</code>) read only the
+ * requested page and do not return total count of matching messages.
+ */
+public class SegmentLogHistoryProvider
+		extends AbstractHistoryProvider<DataSource>
+		implements MAMRepository, UnregisterAware {
+
+	private static final int DEFAULT_MAX_HISTORY = 50;
+	private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+	@ConfigField(desc = "Interval (in milliseconds) of forcing appended messages to disk (0 - after each message)", alias = "fsync-interval")
+	private long fsyncInterval = 1000;
+	@ConfigField(desc = "Number of bytes of segment for each entry of its timestamp index", alias = "index-interval")
+	private int indexInterval = 4096;
+	private final Object[] locks = new Object[64];
+	private final Map<BareJID, SegmentLog> logs = new ConcurrentHashMap<>();
+	private ScheduledExecutorService maintenance;
+	@ConfigField(desc = "Maximal number of rooms with open history files", alias = "max-open-rooms")
+	private int maxOpenRooms = 1000;
+	@ConfigField(desc = "Directory in which history is stored", alias = "path")
+	private String path = "muc-history";
+	@ConfigField(desc = "Size (in bytes) of a single segment file", alias = "segment-size")
+	private long segmentSize = 8 * 1024 * 1024;
+
+	public SegmentLogHistoryProvider() {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	@Override
+	public void addJoinEvent(Room room, Date date, JID senderJID, String nickName) {
+	}
+
+	@Override
+	public void addLeaveEvent(Room room, Date date, JID senderJID, String nickName) {
+	}
+
+	@Override
+	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
+		final SegmentLog.Record record = new SegmentLog.Record(time.getTime(), StanzaId.get(message, room.getRoomJID()),
+															   senderNickname, senderJid.toString(), body,
+															   message == null ? null : message.toString());
+		try {
+			final SegmentLog roomLog = lockLog(room.getRoomJID(), true);
+			try {
+				roomLog.append(record);
+				if (fsyncInterval <= 0) {
+					roomLog.sync();
+				}
+			} finally {
+				roomLog.unlockWrite();
+			}
+		} catch (IOException e) {
+			if (log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, "Can't add MUC message to history of room " + room.getRoomJID(), e);
+			}
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void addSubjectChange(Room room, Element message, String subject, JID senderJid, String senderNickname,
+								 Date time) {
+	}
+
+	@Override
+	public void beforeUnregister() {
+		destroy();
+	}
+
+	@Override
+	public void destroy() {
+		final ScheduledExecutorService maintenance;
+		synchronized (this) {
+			maintenance = this.maintenance;
+			this.maintenance = null;
+		}
+		if (maintenance != null) {
+			maintenance.shutdown();
+		}
+		for (BareJID roomJID : new ArrayList<>(logs.keySet())) {
+			closeLog(roomJID);
+		}
+	}
+
+	public long getFsyncInterval() {
+		return fsyncInterval;
+	}
+
+	public void setFsyncInterval(long fsyncInterval) {
+		this.fsyncInterval = fsyncInterval;
+	}
+
+	public int getIndexInterval() {
+		return indexInterval;
+	}
+
+	public void setIndexInterval(int indexInterval) {
+		this.indexInterval = Math.max(1, indexInterval);
+	}
+
+	public int getMaxOpenRooms() {
+		return maxOpenRooms;
+	}
+
+	public void setMaxOpenRooms(int maxOpenRooms) {
+		this.maxOpenRooms = maxOpenRooms;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	public void setSegmentSize(long segmentSize) {
+		// positions of records in segment are kept as int
+		this.segmentSize = Math.max(1, Math.min(segmentSize, MAX_SEGMENT_SIZE));
+	}
+
+	int getOpenRoomsCount() {
+		return logs.size();
+	}
+
+	@Override
+	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds,
+								   Date since, PacketWriter writer) {
+		if (maxchars != null && maxchars == 0) {
+			return;
+		}
+		final MemoryHistoryProvider.Selection selection = MemoryHistoryProvider.Selection.of(room,
+																							 DEFAULT_MAX_HISTORY,
+																							 maxstanzas, seconds,
+																							 since);
+		if (selection.limit <= 0) {
+			return;
+		}
+
+		try {
+			final List<HistoryRow> rows = new ArrayList<>();
+			final SegmentLog roomLog = lockLog(room.getRoomJID(), false);
+			try {
+				final long to = roomLog.getNextSeq();
+				long from = Math.max(roomLog.getFirstSeq(), to - selection.limit);
+				if (selection.from != Long.MIN_VALUE) {
+					from = Math.max(from, roomLog.seqOf(selection.from));
+				}
+				roomLog.read(from, to, (seq, record) -> rows.add(toRow(record)));
+			} finally {
+				roomLog.unlockRead();
+			}
+			writeRows(room, senderJID, rows, writer);
+		} catch (IOException | TigaseStringprepException e) {
+			if (log.isLoggable(Level.SEVERE)) {
+				log.log(Level.SEVERE, "Can't get history", e);
+			}
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public boolean isCacheable() {
+		return true;
+	}
+
+	@Override
+	public boolean isPersistent(Room room) {
+		return true;
+	}
+
+	@Override
+	public Query newQuery() {
+		return new QueryImpl();
+	}
+
+	@Override
+	public void queryItems(Query query, ItemHandler itemHandler) throws TigaseDBException, ComponentException {
+		final String with = query.getWith() == null ? null : query.getWith().toString();
+		final RSM rsm = query.getRsm();
+		try {
+			final List<HistoryRow> rows = new ArrayList<>();
+			final SegmentLog roomLog = lockLog(query.getComponentJID().getBareJID(), false);
+			try {
+				final long from = query.getStart() == null
+								  ? roomLog.getFirstSeq()
+								  : roomLog.seqOf(query.getStart().getTime());
+				final long to = query.getEnd() == null
+								? roomLog.getNextSeq()
+								: roomLog.seqOf(query.getEnd().getTime() + 1);
+				if (with != null) {
+					readMatchingPage(roomLog, rsm, from, to, with, rows);
+				} else {
+					final int count = (int) Math.max(0, to - from);
+					final Integer after = getItemPosition(roomLog, rsm.getAfter(), from, to);
+					final Integer before = getItemPosition(roomLog, rsm.getBefore(), from, to);
+					calculateOffsetAndPosition(query, count, before, after);
+
+					final int index = rsm.getIndex();
+					final int end = (int) Math.min(count, (long) index + rsm.getMax());
+					if (index < end) {
+						roomLog.read(from + index, from + end, (seq, record) -> rows.add(toRow(record)));
+					}
+				}
+			} finally {
+				roomLog.unlockRead();
+			}
+
+			for (HistoryRow row : rows) {
+				itemHandler.itemFound(query, createItem(query, row));
+			}
+		} catch (IOException | TigaseStringprepException ex) {
+			throw new TigaseDBException("Could not retrieve items", ex);
+		}
+	}
+
+	@Override
+	public void removeHistory(Room room) {
+		final BareJID roomJID = room.getRoomJID();
+		try {
+			final SegmentLog roomLog = lockLog(roomJID, true);
+			try {
+				if (log.isLoggable(Level.FINE)) {
+					log.fine("Removing history of room " + roomJID + " from disk.");
+				}
+				roomLog.delete();
+				logs.remove(roomJID, roomLog);
+			} finally {
+				roomLog.unlockWrite();
+			}
+		} catch (IOException e) {
+			if (log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, "Can't delete history of room " + roomJID, e);
+			}
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public int removeHistory(BareJID roomJID, Date before, int limit) {
+		try {
+			final SegmentLog roomLog = lockLog(roomJID, true);
+			try {
+				return roomLog.removeBefore(before == null ? Long.MAX_VALUE : before.getTime(), limit);
+			} finally {
+				roomLog.unlockWrite();
+			}
+		} catch (IOException e) {
+			if (log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, "Can't delete messages from history of room " + roomJID, e);
+			}
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void setDataSource(DataSource dataSource) {
+	}
+
+	/**
+	 * Forces appended messages to disk and closes history files of least recently used rooms if there are more than
+	 * <code>max-open-rooms</code> of them.
+	 */
+	void maintain() {
+		for (SegmentLog roomLog : logs.values()) {
+			if (!roomLog.isDirty()) {
+				continue;
+			}
+			roomLog.lockRead();
+			try {
+				roomLog.sync();
+			} catch (IOException e) {
+				if (log.isLoggable(Level.WARNING)) {
+					log.log(Level.WARNING, "Can't force history to disk", e);
+				}
+			} finally {
+				roomLog.unlockRead();
+			}
+		}
+
+		if (logs.size() <= maxOpenRooms) {
+			return;
+		}
+		final List<Map.Entry<BareJID, SegmentLog>> open = new ArrayList<>(logs.entrySet());
+		final long[] lastAccess = new long[open.size()];
+		final Integer[] order = new Integer[open.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+			// snapshot, as it may be modified during sorting
+			lastAccess[i] = open.get(i).getValue().getLastAccess();
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(lastAccess[a], lastAccess[b]));
+		for (int i = 0; i < order.length - maxOpenRooms; i++) {
+			closeLog(open.get(order[i]).getKey());
+		}
+	}
+
+	private SegmentLog lockLog(BareJID roomJID, boolean write) throws IOException {
+		while (true) {
+			SegmentLog roomLog = logs.get(roomJID);
+			if (roomLog == null) {
+				synchronized (lockFor(roomJID)) {
+					roomLog = logs.get(roomJID);
+					if (roomLog == null) {
+						roomLog = new SegmentLog(getRoomDir(roomJID), segmentSize, indexInterval);
+						roomLog.open();
+						logs.put(roomJID, roomLog);
+						startMaintenance();
+					}
+				}
+			}
+			if (write) {
+				roomLog.lockWrite();
+			} else {
+				roomLog.lockRead();
+			}
+			if (!roomLog.isClosed()) {
+				return roomLog;
+			}
+			// log was closed or deleted in the meantime, so we need to open it again
+			if (write) {
+				roomLog.unlockWrite();
+			} else {
+				roomLog.unlockRead();
+			}
+		}
+	}
+
+	private void closeLog(BareJID roomJID) {
+		synchronized (lockFor(roomJID)) {
+			final SegmentLog roomLog = logs.get(roomJID);
+			if (roomLog == null) {
+				return;
+			}
+			roomLog.lockWrite();
+			try {
+				roomLog.close();
+			} catch (IOException e) {
+				if (log.isLoggable(Level.WARNING)) {
+					log.log(Level.WARNING, "Can't close history of room " + roomJID, e);
+				}
+			} finally {
+				logs.remove(roomJID, roomLog);
+				roomLog.unlockWrite();
+			}
+		}
+	}
+
+	private Object lockFor(BareJID roomJID) {
+		return locks[(roomJID.hashCode() & 0x7fffffff) % locks.length];
+	}
+
+	private synchronized void startMaintenance() {
+		if (maintenance != null) {
+			return;
+		}
+		maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "muc-history-segment-log");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final long period = fsyncInterval > 0 ? fsyncInterval : 1000;
+		maintenance.scheduleWithFixedDelay(() -> {
+			try {
+				maintain();
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "History maintenance failed", ex);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private Path getRoomDir(BareJID roomJID) {
+		try {
+			final byte[] hash = MessageDigest.getInstance("SHA-1")
+					.digest(roomJID.toString().toLowerCase().getBytes(StandardCharsets.UTF_8));
+			final StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(String.format("%02x", b));
+			}
+			final String name = sb.toString();
+			return Paths.get(path, name.substring(0, 2), name);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Integer getItemPosition(SegmentLog roomLog, String msgId, long from, long to)
+			throws IOException, ComponentException {
+		if (msgId == null) {
+			return null;
+		}
+		return (int) Math.max(0, Math.min(getItemSeq(roomLog, msgId), to) - from);
+	}
+
+	private long getItemSeq(SegmentLog roomLog, String msgId) throws IOException, ComponentException {
+		final long seq = roomLog.findSeq(msgId);
+		if (seq >= 0) {
+			return seq;
+		}
+		try {
+			// messages stored without stable id are identified by timestamp
+			return roomLog.seqOf(Long.parseLong(msgId));
+		} catch (NumberFormatException ex) {
+			throw new ComponentException(Authorization.ITEM_NOT_FOUND, "Not found message with id = " + msgId);
+		}
+	}
+
+	/**
+	 * Reads page of messages sent with the nickname. Log is read only from the message referenced by RSM (or from the
+	 * start or the end of the range) until the page is filled, so number of all matching messages is not known and
+	 * is not returned.
+	 */
+	private void readMatchingPage(SegmentLog roomLog, RSM rsm, long from, long to, String nickname,
+								  List<HistoryRow> rows) throws IOException, ComponentException {
+		final int max = rsm.getMax();
+		Integer index = null;
+		if (max > 0 && rsm.getAfter() == null && (rsm.getBefore() != null || rsm.hasBefore())) {
+			final long end = rsm.getBefore() == null ? to : Math.min(to, getItemSeq(roomLog, rsm.getBefore()));
+			roomLog.readBackward(from, end, (seq, record) -> {
+				if (nickname.equals(record.senderNickname)) {
+					rows.add(0, toRow(record));
+				}
+				return rows.size() < max;
+			});
+		} else if (max > 0) {
+			final long start = rsm.getAfter() == null ? from : Math.max(from, getItemSeq(roomLog, rsm.getAfter()) + 1);
+			final int[] skip = new int[]{rsm.getAfter() == null && rsm.getIndex() != null ? rsm.getIndex() : 0};
+			if (rsm.getAfter() == null) {
+				index = skip[0];
+			}
+			roomLog.read(start, to, (seq, record) -> {
+				if (nickname.equals(record.senderNickname)) {
+					if (skip[0] > 0) {
+						skip[0]--;
+					} else {
+						rows.add(toRow(record));
+					}
+				}
+				return rows.size() < max;
+			});
+		}
+		rsm.setIndex(index);
+		rsm.setCount(null);
+	}
+
+	private static HistoryRow toRow(SegmentLog.Record record) {
+		return new HistoryRow(record.senderNickname, new Date(record.ts), record.senderJid, record.body, record.msg,
+							  record.stableId);
+	}
+
+}
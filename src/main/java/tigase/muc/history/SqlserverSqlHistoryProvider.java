@@ -28,6 +28,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -82,6 +83,7 @@ public class SqlserverSqlHistoryProvider
 		int maxMessages = room.getConfig().getMaxHistory();
 		try {
 			ResultSet rs = null;
+			final List<HistoryRow> rows;
 			if (since != null) {
 				if (log.isLoggable(Level.FINEST)) {
 					log.finest(
@@ -95,8 +97,9 @@ public class SqlserverSqlHistoryProvider
 						st.setInt(1, maxMessages);
 						st.setString(2, roomJID);
 						st.setLong(3, since.getTime());
+						setFetchSize(st, maxMessages);
 						rs = st.executeQuery();
-						processResultSet(room, senderJID, writer, rs);
+						rows = readRows(rs);
 					} finally {
 						dataRepository.release(null, rs);
 					}
@@ -112,8 +115,9 @@ public class SqlserverSqlHistoryProvider
 						st.setInt(1, Math.min(maxstanzas, maxMessages));
 						st.setString(2, roomJID);
 						log.log(Level.FINEST, "getHistoryMessages: " + st + " || \t " + GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
+						setFetchSize(st, Math.min(maxstanzas, maxMessages));
 						rs = st.executeQuery();
-						processResultSet(room, senderJID, writer, rs);
+						rows = readRows(rs);
 					} finally {
 						dataRepository.release(null, rs);
 					}
@@ -129,8 +133,9 @@ public class SqlserverSqlHistoryProvider
 						st.setInt(1, maxMessages);
 						st.setString(2, roomJID);
 						st.setLong(3, new Date().getTime() - seconds * 1000);
+						setFetchSize(st, maxMessages);
 						rs = st.executeQuery();
-						processResultSet(room, senderJID, writer, rs);
+						rows = readRows(rs);
 					} finally {
 						dataRepository.release(null, rs);
 					}
@@ -148,14 +153,16 @@ public class SqlserverSqlHistoryProvider
 						log.log(Level.FINEST,
 						        "getHistoryMessages: " + st.toString() + " max " + maxMessages + " roomJID " + roomJID +
 										" || \t " + GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
+						setFetchSize(st, maxMessages);
 						rs = st.executeQuery();
-						processResultSet(room, senderJID, writer, rs);
+						rows = readRows(rs);
 					} finally {
 						dataRepository.release(null, rs);
 					}
 				}
 			}
 
+			writeRows(room, senderJID, rows, writer);
 		} catch (Exception e) {
 			if (log.isLoggable(Level.SEVERE)) {
 				log.log(Level.SEVERE, "Can't get history", e);
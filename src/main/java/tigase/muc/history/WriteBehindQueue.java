@@ -0,0 +1,284 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of items written in batches by a separate thread.
+ * <br>
+ * Items are collected until <code>batchSize</code> items are available or <code>flushInterval</code> passes since the
+ * first item of the batch was taken from the queue. When the queue is full, action depends on {@link OverflowPolicy}.
+ * On {@link #stop(long)} all items which are already in the queue are written before the writer thread exits. Items
+ * added after that are written synchronously in the calling thread.
+ */
+public class WriteBehindQueue<T> {
+
+	private static final Logger log = Logger.getLogger(WriteBehindQueue.class.getName());
+
+	public enum OverflowPolicy {
+		/**
+		 * Wait until there is space in the queue.
+		 */
+		block,
+		/**
+		 * Write item synchronously in the calling thread.
+		 */
+		sync,
+		/**
+		 * Drop item.
+		 */
+		drop
+	}
+
+	public interface BatchWriter<T> {
+
+		/**
+		 * Writes batch of items. Exception thrown by this method means that none of the items were written and all
+		 * of them are written again one by one. If only some of them were written, {@link PartialWriteException} with
+		 * remaining items has to be thrown.
+		 */
+		void write(List<T> batch) throws Exception;
+
+	}
+
+	/**
+	 * Thrown by {@link BatchWriter} when only part of the batch was written.
+	 */
+	public static class PartialWriteException
+			extends Exception {
+
+		private final List<?> remaining;
+
+		public PartialWriteException(List<?> remaining, Throwable cause) {
+			super(cause);
+			this.remaining = remaining;
+		}
+
+		public List<?> getRemaining() {
+			return remaining;
+		}
+	}
+
+	private final int batchSize;
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final long flushInterval;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final OverflowPolicy overflowPolicy;
+	private final BlockingQueue<T> queue;
+	private final Thread thread;
+	private final BatchWriter<T> writer;
+	private final AtomicLong written = new AtomicLong();
+	private long processed = 0;
+	private volatile boolean running = true;
+
+	public WriteBehindQueue(String name, int queueSize, int batchSize, long flushInterval,
+							OverflowPolicy overflowPolicy, BatchWriter<T> writer) {
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+		this.batchSize = Math.max(1, batchSize);
+		this.flushInterval = Math.max(0, flushInterval);
+		this.overflowPolicy = overflowPolicy;
+		this.writer = writer;
+		this.thread = new Thread(this::run, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public void add(T item) {
+		// read lock is held while item is put into the queue, so stop() cannot complete between the check and offer
+		lock.readLock().lock();
+		try {
+			if (running) {
+				enqueue(item);
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		writeSync(item);
+	}
+
+	private void enqueue(T item) {
+		if (queue.offer(item)) {
+			enqueued.incrementAndGet();
+			return;
+		}
+		switch (overflowPolicy) {
+			case block:
+				try {
+					queue.put(item);
+					enqueued.incrementAndGet();
+					return;
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				break;
+			case drop:
+				dropped.incrementAndGet();
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Queue " + thread.getName() + " is full, dropping item");
+				}
+				break;
+			default:
+				break;
+		}
+		if (overflowPolicy != OverflowPolicy.drop) {
+			writeSync(item);
+		}
+	}
+
+	/**
+	 * Waits until all items added before this call are written.
+	 */
+	public void flush(long timeout) throws InterruptedException {
+		final long target = enqueued.get();
+		final long deadline = System.currentTimeMillis() + timeout;
+		synchronized (this) {
+			while (processed < target && thread.isAlive()) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return;
+				}
+				this.wait(wait);
+			}
+		}
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Stops accepting new items and waits until all queued items are written.
+	 */
+	public void stop(long timeout) throws InterruptedException {
+		lock.writeLock().lock();
+		try {
+			running = false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		thread.join(timeout);
+		if (thread.isAlive()) {
+			log.log(Level.WARNING, "Queue " + thread.getName() + " not drained in " + timeout + "ms, " + queue.size() +
+					" items not written");
+		}
+	}
+
+	private void run() {
+		final List<T> batch = new ArrayList<>(batchSize);
+		while (running || !queue.isEmpty()) {
+			try {
+				T item = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (item == null) {
+					continue;
+				}
+				batch.add(item);
+				final long deadline = System.currentTimeMillis() + flushInterval;
+				while (batch.size() < batchSize) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long wait = deadline - System.currentTimeMillis();
+					if (batch.size() >= batchSize || wait <= 0 || !running) {
+						break;
+					}
+					item = queue.poll(wait, TimeUnit.MILLISECONDS);
+					if (item == null) {
+						break;
+					}
+					batch.add(item);
+				}
+			} catch (InterruptedException ex) {
+				// we will finish writing items from the queue
+			}
+			if (!batch.isEmpty()) {
+				writeBatch(batch);
+				batch.clear();
+			}
+		}
+		synchronized (this) {
+			this.notifyAll();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void writeBatch(List<T> batch) {
+		try {
+			writer.write(batch);
+			written.addAndGet(batch.size());
+			batches.incrementAndGet();
+		} catch (PartialWriteException ex) {
+			final List<?> remaining = ex.getRemaining();
+			log.log(Level.WARNING, "Failed to write " + remaining.size() + " of " + batch.size() +
+					" items of batch, writing them one by one", ex);
+			written.addAndGet(batch.size() - remaining.size());
+			batches.incrementAndGet();
+			for (Object item : remaining) {
+				writeSync((T) item);
+			}
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Failed to write batch of " + batch.size() + " items, writing them one by one",
+					ex);
+			for (T item : batch) {
+				writeSync(item);
+			}
+		}
+		synchronized (this) {
+			processed += batch.size();
+			this.notifyAll();
+		}
+	}
+
+	private void writeSync(T item) {
+		try {
+			writer.write(Collections.singletonList(item));
+			written.incrementAndGet();
+		} catch (Exception ex) {
+			failed.incrementAndGet();
+			log.log(Level.WARNING, "Failed to write item", ex);
+		}
+	}
+}
@@ -18,6 +18,7 @@
 package tigase.muc.modules;
 
 import tigase.component.modules.AbstractModule;
+import tigase.kernel.beans.Inject;
 import tigase.muc.Room;
 import tigase.server.Iq;
 import tigase.server.Message;
@@ -50,6 +51,9 @@ public abstract class AbstractMucModule
 		}
 	}
 
+	@Inject(nullAllowed = true)
+	protected GroupchatFanOut fanOut;
+
 	public AbstractMucModule() {
 	}
 
@@ -60,7 +64,20 @@ public abstract class AbstractMucModule
 			Packet msg = Message.getMessage(JID.jidInstance(room.getRoomJID()), jid, StanzaType.groupchat, message,
 											null, null, null);
 			msg.setXMLNS(Packet.CLIENT_XMLNS);
-			writer.write(msg);
+			write(msg);
+		}
+	}
+
+	/**
+	 * Packet is queued after messages to the same recipient which are still delivered by {@link GroupchatFanOut}, so
+	 * each recipient gets packets in the order in which they were written.
+	 */
+	@Override
+	protected void write(Packet packet) {
+		if (fanOut != null) {
+			fanOut.write(packet, writer::write);
+		} else {
+			writer.write(packet);
 		}
 	}
 
@@ -0,0 +1,264 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.muc.MUCComponent;
+import tigase.muc.MUCStatisticsProvider;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers messages to occupants of very big rooms using many threads. Recipients are assigned to lanes by their JID
+ * and each lane is processed by a single thread, so packets sent to a single recipient are delivered in the same order
+ * in which fan-outs were started.
+ * <br>
+ * Packets sent to a recipient which lane still has pending deliveries are queued in the same lane by {@link
+ * #write(Packet, Consumer)}, so presences and messages of smaller rooms never overtake queued messages. Each lane has
+ * a bounded queue and thread adding task to a full queue waits until there is space in it.
+ */
+@Bean(name = "groupchatFanOut", parent = MUCComponent.class, active = true)
+public class GroupchatFanOut
+		implements Initializable, UnregisterAware, MUCStatisticsProvider {
+
+	private static final Logger log = Logger.getLogger(GroupchatFanOut.class.getName());
+
+	private final AtomicLong fanOuts = new AtomicLong();
+	private final AtomicLong fanOutsTime = new AtomicLong();
+	private final AtomicLong fullQueueWaits = new AtomicLong();
+	private final AtomicLong maxFanOutSize = new AtomicLong();
+	private final AtomicLong queuedWrites = new AtomicLong();
+	private final AtomicLong recipients = new AtomicLong();
+	@ConfigField(desc = "Maximal number of tasks waiting in queue of a single thread", alias = "queue-size")
+	private int queueSize = 1000;
+	@ConfigField(desc = "Number of threads used for delivery of messages to big rooms", alias = "threads")
+	private int threads = Runtime.getRuntime().availableProcessors();
+	@ConfigField(desc = "Minimal number of recipients for which message is delivered using many threads", alias = "threshold")
+	private int threshold = 0;
+	private Lane[] lanes;
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return <code>true</code> if message to the number of recipients should be delivered using {@link
+	 * #fanOut(JID[], PacketFactory, Consumer)}
+	 */
+	public boolean isParallel(int recipients) {
+		return threshold > 0 && recipients >= threshold && lanes != null;
+	}
+
+	public void fanOut(JID[] jids, PacketFactory factory, Consumer<Packet> writer) {
+		final Lane[] lanes = this.lanes;
+		final List<List<JID>> chunks = new ArrayList<>(lanes.length);
+		for (int i = 0; i < lanes.length; i++) {
+			chunks.add(new ArrayList<>(jids.length / lanes.length + 1));
+		}
+		for (JID jid : jids) {
+			chunks.get(laneIndex(jid, lanes.length)).add(jid);
+		}
+
+		final long start = System.nanoTime();
+		final AtomicInteger remaining = new AtomicInteger(
+				(int) chunks.stream().filter(chunk -> !chunk.isEmpty()).count());
+		for (int i = 0; i < lanes.length; i++) {
+			final List<JID> chunk = chunks.get(i);
+			if (chunk.isEmpty()) {
+				continue;
+			}
+			submit(lanes[i], () -> {
+				try {
+					for (JID jid : chunk) {
+						try {
+							writer.accept(factory.createPacket(jid));
+						} catch (Exception e) {
+							log.log(Level.WARNING, "Problem on delivering message to " + jid, e);
+						}
+					}
+				} finally {
+					if (remaining.decrementAndGet() == 0) {
+						fanOutsTime.addAndGet(System.nanoTime() - start);
+					}
+				}
+			});
+		}
+
+		fanOuts.incrementAndGet();
+		recipients.addAndGet(jids.length);
+		maxFanOutSize.accumulateAndGet(jids.length, Math::max);
+	}
+
+	/**
+	 * Writes packet directly if there are no pending deliveries in the lane of its recipient. Otherwise packet is
+	 * queued in the lane, after packets already waiting for delivery to this recipient.
+	 */
+	public void write(Packet packet, Consumer<Packet> writer) {
+		final Lane[] lanes = this.lanes;
+		final JID to = packet.getStanzaTo();
+		if (lanes == null || to == null) {
+			writer.accept(packet);
+			return;
+		}
+		final Lane lane = lanes[laneIndex(to, lanes.length)];
+		// all tasks of the lane are completed, so nothing may be overtaken
+		if (lane.pending.get() == 0) {
+			writer.accept(packet);
+			return;
+		}
+		queuedWrites.incrementAndGet();
+		submit(lane, () -> writer.accept(packet));
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		final long count = fanOuts.get();
+		list.add(compName, "Parallel message fan-outs", count, Level.FINE);
+		list.add(compName, "Parallel message fan-outs recipients", recipients.get(), Level.FINE);
+		list.add(compName, "Parallel message fan-out max size", maxFanOutSize.get(), Level.FINE);
+		list.add(compName, "Parallel message fan-out avg time [ms]",
+				 count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(fanOutsTime.get() / count), Level.FINE);
+		list.add(compName, "Parallel message fan-out queued writes", queuedWrites.get(), Level.FINE);
+		list.add(compName, "Parallel message fan-out full queue waits", fullQueueWaits.get(), Level.FINE);
+
+		final Lane[] lanes = this.lanes;
+		if (lanes != null) {
+			int max = 0;
+			int total = 0;
+			for (Lane lane : lanes) {
+				final int depth = lane.executor.getQueue().size();
+				max = Math.max(max, depth);
+				total += depth;
+			}
+			list.add(compName, "Parallel message fan-out queues max depth", max, Level.FINE);
+			list.add(compName, "Parallel message fan-out queues total depth", total, Level.FINE);
+		}
+	}
+
+	@Override
+	public void initialize() {
+		final int count = Math.max(1, threads);
+		final Lane[] lanes = new Lane[count];
+		final AtomicInteger counter = new AtomicInteger();
+		for (int i = 0; i < count; i++) {
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+																	   new ArrayBlockingQueue<>(
+																			   Math.max(1, queueSize)), r -> {
+				Thread thread = new Thread(r, "muc-fan-out-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}, this::waitForSpace);
+			lanes[i] = new Lane(executor);
+		}
+		this.lanes = lanes;
+	}
+
+	@Override
+	public void beforeUnregister() {
+		final Lane[] lanes = this.lanes;
+		this.lanes = null;
+		if (lanes != null) {
+			for (Lane lane : lanes) {
+				lane.executor.shutdown();
+			}
+		}
+	}
+
+	private static int laneIndex(JID jid, int lanes) {
+		return Math.abs(jid.hashCode() % lanes);
+	}
+
+	private void submit(Lane lane, Runnable task) {
+		lane.pending.incrementAndGet();
+		final Runnable counted = () -> {
+			try {
+				task.run();
+			} finally {
+				lane.pending.decrementAndGet();
+			}
+		};
+		try {
+			lane.executor.execute(counted);
+		} catch (RejectedExecutionException e) {
+			// component is being stopped
+			counted.run();
+		}
+	}
+
+	/**
+	 * Rejection policy of lanes. Running the task by the caller or dropping it would break order of packets sent
+	 * to recipients of the lane, so the caller waits for space in the queue instead.
+	 */
+	private void waitForSpace(Runnable task, ThreadPoolExecutor executor) {
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException("Lane is stopped");
+		}
+		fullQueueWaits.incrementAndGet();
+		try {
+			executor.getQueue().put(task);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(e);
+		}
+	}
+
+	public interface PacketFactory {
+
+		Packet createPacket(JID recipient) throws TigaseStringprepException;
+
+	}
+
+	private static final class Lane {
+
+		private final ThreadPoolExecutor executor;
+		private final AtomicInteger pending = new AtomicInteger();
+
+		private Lane(ThreadPoolExecutor executor) {
+			this.executor = executor;
+		}
+	}
+}
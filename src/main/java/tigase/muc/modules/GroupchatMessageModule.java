@@ -22,9 +22,12 @@ import tigase.criteria.ElementCriteria;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
 import tigase.muc.Affiliation;
+import tigase.muc.ContentFilter;
 import tigase.muc.MUCConfig;
+import tigase.muc.RateLimiter;
 import tigase.muc.Role;
 import tigase.muc.Room;
+import tigase.muc.StanzaId;
 import tigase.muc.exceptions.MUCException;
 import tigase.muc.history.HistoryProvider;
 import tigase.muc.logger.MucLogger;
@@ -37,9 +40,6 @@ import tigase.xmpp.Authorization;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.*;
 import java.util.logging.Level;
@@ -53,45 +53,31 @@ public class GroupchatMessageModule
 
 	public static final String ID = "groupchat";
 	private static final Criteria CRIT = ElementCriteria.nameType("message", "groupchat");
-	private static final Criteria CRIT_CHAT_STAT = ElementCriteria.xmlns("http://jabber.org/protocol/chatstates");
-	private static final Charset UTF8 = Charset.forName("UTF-8");
-	private final Set<Criteria> allowedElements = new HashSet<Criteria>();
+	private static final String CHAT_STATES_XMLNS = "http://jabber.org/protocol/chatstates";
+	private static final Criteria CRIT_CHAT_STAT = ElementCriteria.xmlns(CHAT_STATES_XMLNS);
 
 	@Inject
 	private MUCConfig config;
 
+	@Inject
+	private ContentFilter contentFilter;
+
 	@Inject
 	private HistoryProvider historyProvider;
 
 	@Inject(nullAllowed = true)
 	private MucLogger mucLogger;
 
+	@Inject
+	private RateLimiter rateLimiter;
+
 	@Inject
 	private IMucRepository repository;
 
 	private final TimestampHelper timestampHelper = new TimestampHelper();
 
 	public static String generateSubjectId(Date ts, String subject) {
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
-			md.update(String.valueOf(ts.getTime() / 100).getBytes());
-			if (subject != null) {
-				md.update(subject.getBytes());
-			}
-			StringBuilder sb = new StringBuilder();
-			for (byte b : md.digest()) {
-				sb.append(Character.forDigit((b & 0xF0) >> 4, 16));
-				sb.append(Character.forDigit(b & 0xF, 16));
-			}
-			return sb.toString();
-		} catch (NoSuchAlgorithmException ex) {
-			return null;
-		}
-	}
-
-	public GroupchatMessageModule() {
-		allowedElements.add(ElementCriteria.name("oob", "jabber:x:oob"));
-	    allowedElements.add(ElementCriteria.name("encrypted", "eu.siacs.conversations.axolotl"));
+		return StanzaId.forSubject(ts, subject);
 	}
 
 	@Override
@@ -99,9 +85,10 @@ public class GroupchatMessageModule
 		ArrayList<String> f = new ArrayList<String>();
 
 		f.add("http://jabber.org/protocol/muc");
+		f.add(StanzaId.XMLNS);
 
 		if (isChatStateAllowed()) {
-			f.add("http://jabber.org/protocol/chatstates");
+			f.add(CHAT_STATES_XMLNS);
 		}
 
 		return f.toArray(new String[]{});
@@ -112,8 +99,12 @@ public class GroupchatMessageModule
 		return CRIT;
 	}
 
+	/**
+	 * @return <code>true</code> if chat states are among elements allowed by the message filter, so support for them
+	 * is advertised in service discovery
+	 */
 	public boolean isChatStateAllowed() {
-		return allowedElements.contains(CRIT_CHAT_STAT);
+		return contentFilter.isNamespaceAllowedInMessage(CHAT_STATES_XMLNS);
 	}
 
 	@Override
@@ -132,6 +123,10 @@ public class GroupchatMessageModule
 				throw new MUCException(Authorization.ITEM_NOT_FOUND, "There is no such room.");
 			}
 
+			if (!rateLimiter.tryAcquire(RateLimiter.Kind.message, roomJID, senderJID)) {
+				throw new MUCException(Authorization.RESOURCE_CONSTRAINT, "Too many messages sent to the room.");
+			}
+
 			final String nickName = room.getOccupantsNickname(senderJID);
 			final Role role = room.getRole(nickName);
 			final Affiliation affiliation = room.getAffiliation(senderJID.getBareJID()).getAffiliation();
@@ -169,18 +164,15 @@ public class GroupchatMessageModule
 					} else if ("subject".equals(c.getName())) {
 						subject = c;
 						content.add(c);
+					} else if (StanzaId.isStanzaId(c, roomJID)) {
+						// stanza-id added by the room cannot be provided by the sender
+						continue;
 					} else if (!config.isMessageFilterEnabled()) {
 						content.add(c);
 					} else if (config.isChatStateAllowed() && CRIT_CHAT_STAT.match(c)) {
 						content.add(c);
-					} else {
-						for (Criteria crit : allowedElements) {
-							if (crit.match(c)) {
-								content.add(c);
-
-								break;
-							}
-						}
+					} else if (contentFilter.isAllowedInMessage(c)) {
+						content.add(c);
 					}
 				}
 			}
@@ -215,13 +207,15 @@ public class GroupchatMessageModule
 				room.setSubjectChangeDate(sendDate);
 			}
 
+			final String stanzaId = StanzaId.next();
 			if (id == null && config.isAddMessageIdIfMissing()) {
 				if (subject != null) {
-					id = generateSubjectId(sendDate, subject == null ? "" : subject.getCData());
+					id = generateSubjectId(sendDate, subject.getCData());
 				} else {
-					id = UUID.randomUUID().toString();
+					id = stanzaId;
 				}
 			}
+			content.add(StanzaId.create(stanzaId, roomJID));
 
 			Packet msg = preparePacket(id, xmlLang, content.toArray(new Element[]{}));
 
@@ -265,13 +259,39 @@ public class GroupchatMessageModule
 	public void sendMessagesToAllOccupantsJids(final Room room, final JID fromJID, final Packet msg)
 			throws TigaseStringprepException {
 
-		room.getAllJidsForMessageDelivery().forEach(jid -> {
+		final JID[] recipients = room.getJidsForMessageDelivery();
+		if (fanOut != null && fanOut.isParallel(recipients.length)) {
+			// message may be modified by room listeners while it is delivered
+			final Packet source = msg.copyElementOnly();
+			if (config.isMessageSharedPayload()) {
+				final SharedPayloadMessage message = new SharedPayloadMessage(source.getElement());
+				fanOut.fanOut(recipients, jid -> message.createPacket(fromJID, jid), writer::write);
+			} else {
+				fanOut.fanOut(recipients, jid -> {
+					Packet message = source.copyElementOnly();
+					message.initVars(fromJID, jid);
+					message.setXMLNS(Packet.CLIENT_XMLNS);
+					return message;
+				}, writer::write);
+			}
+			return;
+		}
+
+		if (config.isMessageSharedPayload()) {
+			final SharedPayloadMessage message = new SharedPayloadMessage(msg.getElement());
+			for (JID jid : recipients) {
+				write(message.createPacket(fromJID, jid));
+			}
+			return;
+		}
+
+		for (JID jid : recipients) {
 			Packet message = msg.copyElementOnly();
 			message.initVars(fromJID, jid);
 			message.setXMLNS(Packet.CLIENT_XMLNS);
 
 			write(message);
-		});
+		}
 	}
 
 	protected void addMessageToHistory(Room room, final Element message, String body, JID senderJid,
@@ -336,4 +356,52 @@ public class GroupchatMessageModule
 		message.setXMLNS(Packet.CLIENT_XMLNS);
 		return message;
 	}
+
+	/**
+	 * Message which children are shared by all packets created for its recipients, so only top level element with
+	 * addressing is created for each recipient. Children of created packets must not be modified.
+	 */
+	static final class SharedPayloadMessage {
+
+		private final String[] attrNames;
+		private final String[] attrValues;
+		private final Element[] children;
+		private final String name;
+
+		SharedPayloadMessage(Element message) {
+			this.name = message.getName();
+			final List<Element> children = message.getChildren();
+			this.children = (children == null) ? new Element[0] : children.toArray(new Element[children.size()]);
+
+			final Map<String, String> attributes = message.getAttributes();
+			final ArrayList<String> names = new ArrayList<>();
+			final ArrayList<String> values = new ArrayList<>();
+			names.add("from");
+			values.add(null);
+			names.add("to");
+			values.add(null);
+			if (attributes != null) {
+				for (Map.Entry<String, String> attr : attributes.entrySet()) {
+					if (!"from".equals(attr.getKey()) && !"to".equals(attr.getKey()) &&
+							!"xmlns".equals(attr.getKey())) {
+						names.add(attr.getKey());
+						values.add(attr.getValue());
+					}
+				}
+			}
+			this.attrNames = names.toArray(new String[names.size()]);
+			this.attrValues = values.toArray(new String[values.size()]);
+		}
+
+		Packet createPacket(JID fromJID, JID toJID) throws TigaseStringprepException {
+			final String[] values = attrValues.clone();
+			values[0] = fromJID.toString();
+			values[1] = toJID.toString();
+
+			Packet packet = Packet.packetInstance(new Element(name, children, attrNames, values), fromJID, toJID);
+			packet.setXMLNS(Packet.CLIENT_XMLNS);
+			return packet;
+		}
+	}
+
 }
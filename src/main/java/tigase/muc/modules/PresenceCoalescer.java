@@ -0,0 +1,281 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.muc.MUCComponent;
+import tigase.muc.MUCConfig;
+import tigase.muc.MUCStatisticsProvider;
+import tigase.muc.Room;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drops presences identical to the last presence of an occupant and collapses rapid consecutive presence changes of
+ * an occupant, so only the latest state is broadcasted to the room once debounce window passes.
+ * <br>
+ * Deferred presence is not broadcasted by the timer thread. When the window passes, a presence carrying
+ * <code>flush</code> element is added to the component on behalf of the occupant, so it is processed by the same
+ * queue as other presences of the occupant and never overtakes processing of leave or nickname change.
+ */
+@Bean(name = "presenceCoalescer", parent = MUCComponent.class, active = true)
+public class PresenceCoalescer
+		implements MUCStatisticsProvider, Initializable, UnregisterAware {
+
+	public static final String FLUSH_XMLNS = "tigase:muc:presence-coalescer";
+	private static final String FLUSH_RESOURCE = "presence-coalescer";
+	private static final Logger log = Logger.getLogger(PresenceCoalescer.class.getName());
+
+	private final AtomicLong coalesced = new AtomicLong();
+	private final Map<BareJID, Map<JID, OccupantState>> rooms = new ConcurrentHashMap<>();
+	private final AtomicLong suppressed = new AtomicLong();
+	@Inject
+	private MUCConfig config;
+	@Inject
+	private MUCComponent mucComponent;
+	private ScheduledExecutorService timer;
+
+	private static boolean isSameElement(Element a, Element b) {
+		return Objects.equals(a.getName(), b.getName()) && Objects.equals(a.getAttributes(), b.getAttributes()) &&
+				Objects.equals(a.getCData(), b.getCData()) && isSameChildren(a.getChildren(), b.getChildren());
+	}
+
+	private static boolean isSameChildren(List<Element> a, List<Element> b) {
+		final int size = a == null ? 0 : a.size();
+		if (size != (b == null ? 0 : b.size())) {
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			if (!isSameElement(a.get(i), b.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compares type and children of presences. Addressing and <code>id</code> of presence are ignored.
+	 */
+	static boolean isSamePresence(Element last, Element presence) {
+		return Objects.equals(last.getAttributeStaticStr("type"), presence.getAttributeStaticStr("type")) &&
+				isSameChildren(last.getChildren(), presence.getChildren());
+	}
+
+	public long getCoalescedCounter() {
+		return coalesced.get();
+	}
+
+	public long getSuppressedCounter() {
+		return suppressed.get();
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Suppressed duplicated presences", suppressed.get(), Level.FINE);
+		list.add(compName, "Coalesced presences", coalesced.get(), Level.FINE);
+		list.add(compName, "Rooms with coalesced presences", rooms.size(), Level.FINEST);
+	}
+
+	@Override
+	public void initialize() {
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "muc-presence-coalescer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void beforeUnregister() {
+		final ScheduledExecutorService timer = this.timer;
+		this.timer = null;
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		rooms.clear();
+	}
+
+	/**
+	 * Checks if presence is identical to the last presence received from occupant.
+	 *
+	 * @param room room to which presence was sent
+	 * @param senderJID JID of occupant
+	 * @param presence filtered presence, as it would be stored in the room
+	 *
+	 * @return <code>true</code> if presence should be dropped
+	 */
+	public boolean isDuplicate(Room room, JID senderJID, Element presence) {
+		if (!config.isPresenceDuplicatesSuppression()) {
+			return false;
+		}
+		Element last = room.getPresenceByJid(senderJID);
+		if (last != null && isSamePresence(last, presence)) {
+			suppressed.incrementAndGet();
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Dropping duplicated presence from " + senderJID + " in room " + room.getRoomJID());
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if packet was created by {@link PresenceCoalescer} to broadcast deferred presence of occupant. Such
+	 * packets are addressed to the room and sent from the occupant JID.
+	 */
+	public boolean isFlushPacket(Packet packet) {
+		return packet.getElement().getChild("flush", FLUSH_XMLNS) != null &&
+				getFlushSource().equals(packet.getPacketFrom());
+	}
+
+	/**
+	 * Registers change of occupant presence.
+	 *
+	 * @param room room in which presence of occupant changed
+	 * @param senderJID JID of occupant
+	 *
+	 * @return <code>true</code> if presence should be broadcasted now, <code>false</code> if broadcast is deferred
+	 * until end of debounce window
+	 */
+	public boolean presenceChanged(Room room, JID senderJID) {
+		final long window = config.getPresenceDebounceWindow();
+		if (window <= 0) {
+			return true;
+		}
+		final long now = System.currentTimeMillis();
+		final OccupantState[] created = new OccupantState[1];
+		rooms.compute(room.getRoomJID(), (roomJID, occupants) -> {
+			if (occupants == null) {
+				occupants = new HashMap<>();
+			}
+			OccupantState state = occupants.get(senderJID);
+			if (state == null || now - state.lastBroadcast >= window) {
+				created[0] = new OccupantState(now);
+				occupants.put(senderJID, created[0]);
+			} else {
+				if (state.pending) {
+					coalesced.incrementAndGet();
+				}
+				state.pending = true;
+			}
+			return occupants;
+		});
+		if (created[0] != null) {
+			schedule(room.getRoomJID(), senderJID, created[0], window);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drops deferred presence of occupant which left the room.
+	 */
+	public void remove(Room room, JID senderJID) {
+		rooms.computeIfPresent(room.getRoomJID(), (roomJID, occupants) -> {
+			occupants.remove(senderJID);
+			return occupants.isEmpty() ? null : occupants;
+		});
+	}
+
+	/**
+	 * Drops deferred presences of all occupants of destroyed room.
+	 */
+	public void removeRoom(BareJID roomJID) {
+		rooms.remove(roomJID);
+	}
+
+	private void schedule(BareJID roomJID, JID occupantJID, OccupantState state, long window) {
+		final ScheduledExecutorService timer = this.timer;
+		if (timer == null) {
+			return;
+		}
+		try {
+			timer.schedule(() -> windowPassed(roomJID, occupantJID, state), window, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// component is being stopped
+		}
+	}
+
+	private void windowPassed(BareJID roomJID, JID occupantJID, OccupantState state) {
+		final long now = System.currentTimeMillis();
+		final OccupantState[] created = new OccupantState[1];
+		rooms.computeIfPresent(roomJID, (k, occupants) -> {
+			// state was replaced or removed in the meantime
+			if (occupants.get(occupantJID) != state) {
+				return occupants;
+			}
+			if (state.pending) {
+				created[0] = new OccupantState(now);
+				occupants.put(occupantJID, created[0]);
+			} else {
+				occupants.remove(occupantJID);
+			}
+			return occupants.isEmpty() ? null : occupants;
+		});
+		if (created[0] != null) {
+			flush(roomJID, occupantJID);
+			schedule(roomJID, occupantJID, created[0], config.getPresenceDebounceWindow());
+		}
+	}
+
+	private JID getFlushSource() {
+		return mucComponent.getComponentId().copyWithResourceNS(FLUSH_RESOURCE);
+	}
+
+	private void flush(BareJID roomJID, JID occupantJID) {
+		final Element presence = new Element("presence", new String[]{"from", "to"},
+											 new String[]{occupantJID.toString(), roomJID.toString()});
+		presence.addChild(new Element("flush", new String[]{"xmlns"}, new String[]{FLUSH_XMLNS}));
+		try {
+			final Packet packet = Packet.packetInstance(presence, occupantJID, JID.jidInstance(roomJID));
+			packet.setPacketFrom(getFlushSource());
+			mucComponent.addPacket(packet);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Problem on broadcasting presence of " + occupantJID + " in room " + roomJID, e);
+		}
+	}
+
+	private static class OccupantState {
+
+		private final long lastBroadcast;
+		private boolean pending;
+
+		OccupantState(long lastBroadcast) {
+			this.lastBroadcast = lastBroadcast;
+		}
+	}
+}
@@ -32,6 +32,9 @@ import tigase.xmpp.jid.JID;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * @author bmalkow
@@ -45,6 +48,135 @@ public interface PresenceModule
 
 	void sendPresencesToNewOccupant(Room room, JID senderJID) throws TigaseStringprepException;
 
+	/**
+	 * Presence of a single occupant prepared for sending to many recipients. Filtered presence payload and
+	 * <code>muc#user</code> extension are built only once for each variant (with or without real JIDs of occupant, self
+	 * presence or presence of other occupant) and are shared by all created packets, so only addressing is created for
+	 * each recipient. Elements of created packets must not be modified.
+	 */
+	class PresenceBroadcast {
+
+		private static final int VARIANT_JIDS_VISIBLE = 1;
+		private static final int VARIANT_SELF = 2;
+
+		private final Anonymity anonymity;
+		private final String[] attrNames;
+		private final String[] attrValues;
+		private final Element[] payload;
+		private final Affiliation occupantAffiliation;
+		private final BareJID occupantBareJID;
+		private final Collection<JID> occupantJIDs;
+		private final String occupantNickname;
+		private final Role occupantRole;
+		private final Room room;
+		private final int[] statusCodes;
+		private final AtomicReferenceArray<Element[]> variants = new AtomicReferenceArray<>(4);
+
+		public PresenceBroadcast(Room room, Element presence, BareJID occupantBareJID, Collection<JID> occupantJIDs,
+								 String occupantNickname, Affiliation occupantAffiliation, Role occupantRole,
+								 int... statusCodes) {
+			this.room = room;
+			this.anonymity = room.getConfig().getRoomAnonymity();
+			this.occupantBareJID = occupantBareJID;
+			this.occupantJIDs = occupantJIDs;
+			this.occupantNickname = occupantNickname;
+			this.occupantAffiliation = occupantAffiliation;
+			this.occupantRole = occupantRole;
+			this.statusCodes = statusCodes;
+
+			final List<Element> children = presence.getChildren();
+			this.payload = (children == null) ? new Element[0] : children.toArray(new Element[children.size()]);
+
+			final Map<String, String> attributes = presence.getAttributes();
+			final ArrayList<String> names = new ArrayList<>();
+			final ArrayList<String> values = new ArrayList<>();
+			names.add("from");
+			String from;
+			try {
+				from = JID.jidInstance(room.getRoomJID(), occupantNickname).toString();
+			} catch (TigaseStringprepException e) {
+				from = room.getRoomJID() + "/" + occupantNickname;
+			}
+			values.add(from);
+			names.add("to");
+			values.add(null);
+			if (attributes != null) {
+				for (Map.Entry<String, String> attr : attributes.entrySet()) {
+					if (!"from".equals(attr.getKey()) && !"to".equals(attr.getKey())) {
+						names.add(attr.getKey());
+						values.add(attr.getValue());
+					}
+				}
+			}
+			this.attrNames = names.toArray(new String[names.size()]);
+			this.attrValues = values.toArray(new String[values.size()]);
+		}
+
+		public Packet createPacket(JID destinationJID) throws TigaseStringprepException {
+			final boolean self = occupantBareJID != null && occupantBareJID.equals(destinationJID.getBareJID());
+			int variant = self ? VARIANT_SELF : 0;
+			if ((anonymity == Anonymity.nonanonymous) || ((anonymity == Anonymity.semianonymous) &&
+					room.getAffiliation(destinationJID.getBareJID()).getAffiliation().isViewOccupantsJid())) {
+				variant |= VARIANT_JIDS_VISIBLE;
+			}
+
+			Element[] children = variants.get(variant);
+			if (children == null) {
+				children = new Element[payload.length + 1];
+				System.arraycopy(payload, 0, children, 0, payload.length);
+				children[payload.length] = createX((variant & VARIANT_JIDS_VISIBLE) != 0, self);
+				if (!variants.compareAndSet(variant, null, children)) {
+					children = variants.get(variant);
+				}
+			}
+
+			final String[] values = attrValues.clone();
+			values[1] = destinationJID.toString();
+
+			Packet packet = Packet.packetInstance(new Element("presence", children, attrNames, values));
+			packet.setXMLNS(Packet.CLIENT_XMLNS);
+			if (self) {
+				packet.setPriority(Priority.HIGH);
+			}
+			return packet;
+		}
+
+		private Element createX(boolean jidsVisible, boolean self) {
+			Element x = new Element("x", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/muc#user"});
+			if (jidsVisible) {
+				for (JID jid : occupantJIDs) {
+					x.addChild(new Element("item", new String[]{"affiliation", "role", "nick", "jid"},
+										   new String[]{occupantAffiliation.name(), occupantRole.name(),
+														occupantNickname, jid.toString()}));
+				}
+			} else {
+				x.addChild(new Element("item", new String[]{"affiliation", "role", "nick"},
+									   new String[]{occupantAffiliation.name(), occupantRole.name(),
+													occupantNickname}));
+			}
+
+			final ArrayList<Integer> codes = new ArrayList<>();
+			if (self) {
+				codes.add(PresenceWrapper.STATUS_CODE_SELF_PRESENCE);
+				if (anonymity == Anonymity.nonanonymous) {
+					codes.add(PresenceWrapper.STATUS_CODE_OCCUPANT_IS_ALLOWED_TO_SEE_JID);
+				}
+				if (room.getConfig().isLoggingEnabled()) {
+					codes.add(PresenceWrapper.STATUS_CODE_ROOM_LOGGING_IS_ENABLED);
+				}
+			}
+			for (int code : statusCodes) {
+				if (!codes.contains(code)) {
+					codes.add(code);
+				}
+			}
+			for (Integer code : codes) {
+				x.addChild(new Element("status", new String[]{"code"}, new String[]{String.valueOf(code).intern()}));
+			}
+			return x;
+		}
+	}
+
 	class PresenceWrapper {
 
 		/**
@@ -25,6 +25,7 @@ import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.muc.*;
 import tigase.muc.exceptions.MUCException;
 import tigase.muc.history.HistoryProvider;
@@ -55,7 +56,10 @@ public class PresenceModuleImpl
 
 	protected static final Logger log = Logger.getLogger(PresenceModule.class.getName());
 	private static final Criteria CRIT = ElementCriteria.name("presence");
-	private final Set<Criteria> allowedElements = new HashSet<Criteria>();
+	@Inject
+	private PresenceCoalescer coalescer;
+	@Inject
+	private ContentFilter contentFilter;
 	@Inject
 	private MUCConfig config;
 	private TimestampHelper dateTimeFormatter = new TimestampHelper();
@@ -65,6 +69,11 @@ public class PresenceModuleImpl
 	private HistoryProvider historyProvider;
 	@Inject(nullAllowed = true)
 	private MucLogger mucLogger;
+	@ConfigField(desc = "Share prepared presence payload between recipients of broadcast", alias = "presence-payload-sharing")
+	private boolean presencePayloadSharing = false;
+	private final boolean preparePresenceOverridden = isPreparePresenceOverridden(getClass());
+	@Inject
+	private RateLimiter rateLimiter;
 	@Inject
 	private IMucRepository repository;
 
@@ -81,13 +90,6 @@ public class PresenceModuleImpl
 //		}
 //	}
 
-	public PresenceModuleImpl() {
-		allowedElements.add(ElementCriteria.name("show"));
-		allowedElements.add(ElementCriteria.name("status"));
-		allowedElements.add(ElementCriteria.name("priority"));
-		allowedElements.add(ElementCriteria.xmlns("http://jabber.org/protocol/caps"));
-	}
-
 	@Override
 	public void sendPresencesToNewOccupant(Room room, JID senderJID) throws TigaseStringprepException {
 		BareJID currentOccupantJid = senderJID.getBareJID();
@@ -104,54 +106,19 @@ public class PresenceModuleImpl
 			return;
 		}
 
-		for (String occupantNickname : room.getOccupantsNicknames(true)) {
-			final BareJID occupantJid = room.getOccupantsJidByNickname(occupantNickname);
-
-			if (occupantJid == null) {
-				// why the hell occupantJid is null?
-				continue;
-			}
+		if (!isPresencePayloadSharingEnabled()) {
+			sendPresencesToNewOccupantOneByOne(room, senderJID);
+			return;
+		}
 
+		final OccupantsRosterCache cache = room.getOccupantsRosterCache();
+		for (RosterItem item : getOccupantsRoster(room, cache)) {
 			// we don't include current user in occupants presence broadcast
-			if (currentOccupantJid != null && currentOccupantJid.equals(occupantJid)) {
-				continue;
-			}
-
-			Affiliation affiliation = room.getAffiliation(occupantJid).getAffiliation();
-			if (room.getConfig().isPresenceFilterEnabled() &&
-					!room.getConfig().getPresenceFilteredAffiliations().contains(affiliation)) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Filtering enabled: " + room.getConfig().isPresenceFilterEnabled() +
-							"; target occupant doesn't have propper affiliation -  don't include him in the list");
-				}
-				continue;
-			}
-
-			Element op = room.getLastPresenceCopyByJid(occupantJid);
-
-			if (op == null) {
+			if (currentOccupantJid != null && currentOccupantJid.equals(item.occupantJid)) {
 				continue;
 			}
-
-			final Collection<JID> occupantJIDs = room.getOccupantsJidsByNickname(occupantNickname);
-			final BareJID occupantBareJID = room.getOccupantsJidByNickname(occupantNickname);
-			final Affiliation occupantAffiliation = room.getAffiliation(occupantBareJID).getAffiliation();
-			final Role occupantRole = room.getRole(occupantNickname);
-
-			if (config.isMultiItemMode()) {
-				PresenceWrapper l = PresenceWrapper.preparePresenceW(room, senderJID, op.clone(), occupantBareJID,
-																	 occupantJIDs, occupantNickname,
-																	 occupantAffiliation, occupantRole);
-				write(l.packet);
-			} else {
-				for (JID jid : occupantJIDs) {
-					Collection<JID> z = new ArrayList<>(1);
-					z.add(jid);
-					PresenceWrapper l = PresenceWrapper.preparePresenceW(room, senderJID, op.clone(), occupantBareJID,
-																		 z, occupantNickname, occupantAffiliation,
-																		 occupantRole);
-					write(l.packet);
-				}
+			for (PresenceBroadcast broadcast : item.broadcasts) {
+				write(broadcast.createPacket(senderJID));
 			}
 		}
 	}
@@ -179,6 +146,7 @@ public class PresenceModuleImpl
 		Collection<JID> occupantJIDs = new ArrayList<JID>(room.getOccupantsJidsByNickname(leavingNickname));
 		boolean nicknameGone = room.removeOccupant(senderJID);
 		ghostbuster.remove(senderJID, room);
+		coalescer.remove(room, senderJID);
 
 		room.updatePresenceByJid(senderJID, leavingNickname, null);
 
@@ -203,7 +171,7 @@ public class PresenceModuleImpl
 
 		// TODO if highest priority is gone, then send current highest priority
 		// to occupants
-		if (nicknameGone) {
+		if (nicknameGone && !isPresencePayloadSharingEnabled()) {
 			for (String occupantNickname : room.getOccupantsNicknames(false)) {
 				for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
 
@@ -224,6 +192,23 @@ public class PresenceModuleImpl
 			if (room.getConfig().isLoggingEnabled()) {
 				addLeaveToHistory(room, new Date(), senderJID, leavingNickname);
 			}
+		} else if (nicknameGone) {
+			presenceElement = room.getLastPresenceCopy(senderJID.getBareJID(), leavingNickname);
+			if (presenceElement == null) {
+				presenceElement = new Element("presence", new String[]{"type"}, new String[]{"unavailable"});
+			}
+			final PresenceBroadcast broadcast = new PresenceBroadcast(room, presenceElement, senderJID.getBareJID(),
+																	  occupantJIDs, leavingNickname,
+																	  leavingAffiliation.getAffiliation(),
+																	  room.getRole(leavingNickname));
+			for (String occupantNickname : room.getOccupantsNicknames(false)) {
+				for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
+					write(broadcast.createPacket(occupantJid));
+				}
+			}
+			if (room.getConfig().isLoggingEnabled()) {
+				addLeaveToHistory(room, new Date(), senderJID, leavingNickname);
+			}
 		} else {
 			occupantJIDs = new ArrayList<JID>(room.getOccupantsJidsByNickname(leavingNickname));
 
@@ -232,25 +217,39 @@ public class PresenceModuleImpl
 			if (pe == null) {
 				pe = new Element("presence", new String[]{"type"}, new String[]{"unavailable"});
 			}
-			for (String occupantNickname : room.getOccupantsNicknames(false)) {
-				for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
-					if (config.isMultiItemMode()) {
-						PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, pe.clone(),
-																					senderJID.getBareJID(),
-																					occupantJIDs, leavingNickname,
-																					leavingAffiliation.getAffiliation(),
-																					role);
-						write(presence.packet);
-					} else {
-						for (JID jid : occupantJIDs) {
-							Collection<JID> z = new ArrayList<JID>(1);
-							z.add(jid);
+			if (isPresencePayloadSharingEnabled()) {
+				final List<PresenceBroadcast> broadcasts = prepareBroadcasts(room, pe, senderJID.getBareJID(),
+																			 occupantJIDs, leavingNickname,
+																			 leavingAffiliation.getAffiliation(), role);
+				for (String occupantNickname : room.getOccupantsNicknames(false)) {
+					for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
+						for (PresenceBroadcast broadcast : broadcasts) {
+							write(broadcast.createPacket(occupantJid));
+						}
+					}
+				}
+			} else {
+				for (String occupantNickname : room.getOccupantsNicknames(false)) {
+					for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
+						if (config.isMultiItemMode()) {
 							PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, pe.clone(),
-																						senderJID.getBareJID(), z,
-																						leavingNickname,
+																						senderJID.getBareJID(),
+																						occupantJIDs, leavingNickname,
 																						leavingAffiliation.getAffiliation(),
 																						role);
 							write(presence.packet);
+						} else {
+							for (JID jid : occupantJIDs) {
+								Collection<JID> z = new ArrayList<JID>(1);
+								z.add(jid);
+								PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid,
+																							pe.clone(),
+																							senderJID.getBareJID(), z,
+																							leavingNickname,
+																							leavingAffiliation.getAffiliation(),
+																							role);
+								write(presence.packet);
+							}
 						}
 					}
 				}
@@ -304,6 +303,10 @@ public class PresenceModuleImpl
 		final String nickName = getNicknameFromJid(JID.jidInstance(element.getAttributeStaticStr(Packet.TO_ATT)));
 		final String presenceType = element.getAttributeStaticStr(Packet.TYPE_ATT);
 
+		if (coalescer.isFlushPacket(element)) {
+			broadcastDeferredPresence(roomJID, senderJID);
+			return;
+		}
 		// final String id = element.getAttribute("id");
 		if ((presenceType != null) && "error".equals(presenceType)) {
 			if (log.isLoggable(Level.FINER)) {
@@ -315,6 +318,10 @@ public class PresenceModuleImpl
 		if (nickName == null) {
 			throw new MUCException(Authorization.JID_MALFORMED);
 		}
+		// leaving the room is never limited
+		if (presenceType == null && !rateLimiter.tryAcquire(RateLimiter.Kind.presence, roomJID, senderJID)) {
+			throw new MUCException(Authorization.RESOURCE_CONSTRAINT, "Too many presences sent to the room.");
+		}
 		try {
 			Room room = repository.getRoom(roomJID);
 
@@ -401,12 +408,8 @@ public class PresenceModuleImpl
 				@SuppressWarnings("rawtypes") List<XMLNodeIfc> children = new ArrayList<XMLNodeIfc>();
 
 				for (Element c : cc) {
-					for (Criteria crit : allowedElements) {
-						if (crit.match(c)) {
-							children.add(c);
-
-							break;
-						}
+					if (contentFilter.isAllowedInPresence(c)) {
+						children.add(c);
 					}
 				}
 				presence.setChildren(children);
@@ -429,6 +432,19 @@ public class PresenceModuleImpl
 		return wrapper;
 	}
 
+	private void broadcastDeferredPresence(BareJID roomJID, JID senderJID)
+			throws MUCException, TigaseStringprepException {
+		try {
+			final Room room = repository.getRoom(roomJID);
+			// occupant could leave the room before the deferred presence was processed
+			if (room != null && room.getOccupantsNickname(senderJID) != null) {
+				sendPresenceToAllOccupants(room, senderJID, false, null);
+			}
+		} catch (RepositoryException e) {
+			log.log(Level.WARNING, "Problem on broadcasting presence of " + senderJID + " in room " + roomJID, e);
+		}
+	}
+
 	protected void processChangeAvailabilityStatus(final Room room, final Element presenceElement, final JID senderJID,
 												   final String nickname) throws TigaseStringprepException {
 		if (log.isLoggable(Level.FINEST)) {
@@ -440,7 +456,16 @@ public class PresenceModuleImpl
 				!room.getConfig().getPresenceFilteredAffiliations().isEmpty() && room.getConfig()
 				.getPresenceFilteredAffiliations()
 				.contains(room.getAffiliation(senderJID.getBareJID()).getAffiliation()))) {
-			room.updatePresenceByJid(null, nickname, clonePresence(presenceElement));
+			final Element presence = clonePresence(presenceElement);
+			if (coalescer.isDuplicate(room, senderJID, presence)) {
+				return;
+			}
+			room.updatePresenceByJid(null, nickname, presence);
+		}
+
+		if (!coalescer.presenceChanged(room, senderJID)) {
+			// presence will be broadcasted when debounce window passes
+			return;
 		}
 
 		Element pe = room.getLastPresenceCopyByJid(senderJID.getBareJID());
@@ -720,31 +745,67 @@ public class PresenceModuleImpl
 					Arrays.asList(occupantsNicknames));
 		}
 
-		for (String destinationNickname : occupantsNicknames) {
-			for (JID destinationJID : room.getOccupantsJidsByNickname(destinationNickname)) {
+		if (!isPresencePayloadSharingEnabled()) {
+			for (String destinationNickname : occupantsNicknames) {
+				for (JID destinationJID : room.getOccupantsJidsByNickname(destinationNickname)) {
 
-				if (config.isMultiItemMode()) {
-					PresenceWrapper presence = preparePresence(destinationJID, $presence.clone(), room, senderJID,
-															   newRoomCreated);
-					if (newRoomCreated) {
-						presence.addStatusCode(PresenceWrapper.STATUS_CODE_NEW_ROOM);
-					}
-					write(presence.packet);
-				} else {
-					for (JID jid : room.getOccupantsJidsByNickname(occupantNickname)) {
-						Collection<JID> z = new ArrayList<JID>(1);
-						z.add(jid);
-						PresenceWrapper l = PresenceWrapper.preparePresenceW(room, destinationJID, $presence.clone(),
-																			 occupantJID, z, occupantNickname,
-																			 occupantAffiliation, occupantRole);
+					if (config.isMultiItemMode()) {
+						PresenceWrapper presence = preparePresence(destinationJID, $presence.clone(), room, senderJID,
+																   newRoomCreated);
 						if (newRoomCreated) {
-							l.addStatusCode(PresenceWrapper.STATUS_CODE_NEW_ROOM);
+							presence.addStatusCode(PresenceWrapper.STATUS_CODE_NEW_ROOM);
 						}
+						write(presence.packet);
+					} else {
+						for (JID jid : room.getOccupantsJidsByNickname(occupantNickname)) {
+							Collection<JID> z = new ArrayList<JID>(1);
+							z.add(jid);
+							PresenceWrapper l = PresenceWrapper.preparePresenceW(room, destinationJID,
+																				 $presence.clone(), occupantJID, z,
+																				 occupantNickname,
+																				 occupantAffiliation, occupantRole);
+							if (newRoomCreated) {
+								l.addStatusCode(PresenceWrapper.STATUS_CODE_NEW_ROOM);
+							}
 
-						write(l.packet);
+							write(l.packet);
+						}
 					}
 				}
 			}
+			return;
+		}
+
+		final int[] statusCodes = newRoomCreated ? new int[]{PresenceWrapper.STATUS_CODE_NEW_ROOM} : new int[0];
+		final List<PresenceBroadcast> broadcasts;
+		if (config.isMultiItemMode()) {
+			if (occupantNickname == null) {
+				broadcasts = Collections.singletonList(
+						new PresenceBroadcast(room, $presence, senderJID.getBareJID(), Collections.singleton(senderJID),
+											  senderJID.getBareJID().toString(),
+											  room.getAffiliation(senderJID.getBareJID()).getAffiliation(),
+											  Role.none, statusCodes));
+			} else {
+				broadcasts = Collections.singletonList(
+						new PresenceBroadcast(room, $presence, occupantJID,
+											  room.getOccupantsJidsByNickname(occupantNickname), occupantNickname,
+											  occupantAffiliation, occupantRole, statusCodes));
+			}
+		} else {
+			broadcasts = new ArrayList<>();
+			for (JID jid : room.getOccupantsJidsByNickname(occupantNickname)) {
+				broadcasts.add(new PresenceBroadcast(room, $presence, occupantJID, Collections.singleton(jid),
+													 occupantNickname, occupantAffiliation, occupantRole,
+													 statusCodes));
+			}
+		}
+
+		for (String destinationNickname : occupantsNicknames) {
+			for (JID destinationJID : room.getOccupantsJidsByNickname(destinationNickname)) {
+				for (PresenceBroadcast broadcast : broadcasts) {
+					write(broadcast.createPacket(destinationJID));
+				}
+			}
 		}
 	}
 
@@ -767,6 +828,169 @@ public class PresenceModuleImpl
 		return presence;
 	}
 
+	public boolean isPresencePayloadSharing() {
+		return presencePayloadSharing;
+	}
+
+	public void setPresencePayloadSharing(boolean presencePayloadSharing) {
+		this.presencePayloadSharing = presencePayloadSharing;
+	}
+
+	/**
+	 * Payload of presence is shared only if it is enabled and {@link #preparePresence(JID, Element, Room, JID,
+	 * boolean)} is not overridden, as shared payload is prepared without calling it.
+	 */
+	protected boolean isPresencePayloadSharingEnabled() {
+		return presencePayloadSharing && !preparePresenceOverridden;
+	}
+
+	private static boolean isPreparePresenceOverridden(Class<?> cls) {
+		for (Class<?> c = cls; c != null && c != PresenceModuleImpl.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod("preparePresence", JID.class, Element.class, Room.class, JID.class,
+									boolean.class);
+				return true;
+			} catch (NoSuchMethodException e) {
+				// not overridden at this level
+			}
+		}
+		return false;
+	}
+
+	private void sendPresencesToNewOccupantOneByOne(Room room, JID senderJID) throws TigaseStringprepException {
+		final BareJID currentOccupantJid = senderJID.getBareJID();
+		for (String occupantNickname : room.getOccupantsNicknames(true)) {
+			final BareJID occupantJid = room.getOccupantsJidByNickname(occupantNickname);
+
+			if (occupantJid == null) {
+				// why the hell occupantJid is null?
+				continue;
+			}
+
+			// we don't include current user in occupants presence broadcast
+			if (currentOccupantJid != null && currentOccupantJid.equals(occupantJid)) {
+				continue;
+			}
+
+			Affiliation affiliation = room.getAffiliation(occupantJid).getAffiliation();
+			if (room.getConfig().isPresenceFilterEnabled() &&
+					!room.getConfig().getPresenceFilteredAffiliations().contains(affiliation)) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Filtering enabled: " + room.getConfig().isPresenceFilterEnabled() +
+							"; target occupant doesn't have propper affiliation -  don't include him in the list");
+				}
+				continue;
+			}
+
+			Element op = room.getLastPresenceCopyByJid(occupantJid);
+
+			if (op == null) {
+				continue;
+			}
+
+			final Collection<JID> occupantJIDs = room.getOccupantsJidsByNickname(occupantNickname);
+			final Role occupantRole = room.getRole(occupantNickname);
+
+			if (config.isMultiItemMode()) {
+				PresenceWrapper l = PresenceWrapper.preparePresenceW(room, senderJID, op.clone(), occupantJid,
+																	 occupantJIDs, occupantNickname, affiliation,
+																	 occupantRole);
+				write(l.packet);
+			} else {
+				for (JID jid : occupantJIDs) {
+					Collection<JID> z = new ArrayList<>(1);
+					z.add(jid);
+					PresenceWrapper l = PresenceWrapper.preparePresenceW(room, senderJID, op.clone(), occupantJid, z,
+																		 occupantNickname, affiliation, occupantRole);
+					write(l.packet);
+				}
+			}
+		}
+	}
+
+	private List<RosterItem> getOccupantsRoster(Room room, OccupantsRosterCache cache) {
+		final boolean multiItemMode = config.isMultiItemMode();
+		Roster roster = cache.getRoster();
+		if (roster != null && roster.multiItemMode == multiItemMode) {
+			return roster.items;
+		}
+
+		final long version = cache.getVersion();
+		final List<RosterItem> items = new ArrayList<>();
+		for (String occupantNickname : room.getOccupantsNicknames(true)) {
+			final BareJID occupantJid = room.getOccupantsJidByNickname(occupantNickname);
+
+			if (occupantJid == null) {
+				// why the hell occupantJid is null?
+				continue;
+			}
+
+			RosterItem item = cache.getItem(occupantJid, occupantNickname);
+			if (item == null || item.multiItemMode != multiItemMode) {
+				final long itemVersion = cache.getVersion();
+				item = prepareRosterItem(room, occupantJid, occupantNickname, multiItemMode);
+				cache.putItem(occupantJid, occupantNickname, item, itemVersion);
+			}
+			if (!item.broadcasts.isEmpty()) {
+				items.add(item);
+			}
+		}
+		cache.setRoster(new Roster(multiItemMode, items), version);
+		return items;
+	}
+
+	private RosterItem prepareRosterItem(Room room, BareJID occupantJid, String occupantNickname,
+										 boolean multiItemMode) {
+		Affiliation affiliation = room.getAffiliation(occupantJid).getAffiliation();
+		if (room.getConfig().isPresenceFilterEnabled() &&
+				!room.getConfig().getPresenceFilteredAffiliations().contains(affiliation)) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Filtering enabled: " + room.getConfig().isPresenceFilterEnabled() +
+						"; target occupant doesn't have propper affiliation -  don't include him in the list");
+			}
+			return new RosterItem(occupantJid, multiItemMode, Collections.emptyList());
+		}
+
+		Element op = room.getLastPresenceCopyByJid(occupantJid);
+
+		if (op == null) {
+			return new RosterItem(occupantJid, multiItemMode, Collections.emptyList());
+		}
+
+		final Collection<JID> occupantJIDs = room.getOccupantsJidsByNickname(occupantNickname);
+		final Role occupantRole = room.getRole(occupantNickname);
+
+		final List<PresenceBroadcast> broadcasts;
+		if (multiItemMode) {
+			broadcasts = Collections.singletonList(
+					new PresenceBroadcast(room, op, occupantJid, occupantJIDs, occupantNickname, affiliation,
+										  occupantRole));
+		} else {
+			broadcasts = new ArrayList<>(occupantJIDs.size());
+			for (JID jid : occupantJIDs) {
+				broadcasts.add(new PresenceBroadcast(room, op, occupantJid, Collections.singleton(jid),
+													 occupantNickname, affiliation, occupantRole));
+			}
+		}
+		return new RosterItem(occupantJid, multiItemMode, broadcasts);
+	}
+
+	private List<PresenceBroadcast> prepareBroadcasts(Room room, Element presence, BareJID occupantBareJID,
+													  Collection<JID> occupantJIDs, String occupantNickname,
+													  Affiliation occupantAffiliation, Role occupantRole) {
+		if (config.isMultiItemMode()) {
+			return Collections.singletonList(
+					new PresenceBroadcast(room, presence, occupantBareJID, occupantJIDs, occupantNickname,
+										  occupantAffiliation, occupantRole));
+		}
+		final List<PresenceBroadcast> result = new ArrayList<>(occupantJIDs.size());
+		for (JID jid : occupantJIDs) {
+			result.add(new PresenceBroadcast(room, presence, occupantBareJID, Collections.singleton(jid),
+											 occupantNickname, occupantAffiliation, occupantRole));
+		}
+		return result;
+	}
+
 	private void sendPresenceFromRoomToNewOccupant(Room room, JID occupandJid) throws TigaseStringprepException {
 		if (room.getAvatarHash() != null) {
 			Element presence = new Element("presence");
@@ -825,6 +1049,30 @@ public class PresenceModuleImpl
 		}
 	}
 
+	private static class Roster {
+
+		private final List<RosterItem> items;
+		private final boolean multiItemMode;
+
+		Roster(boolean multiItemMode, List<RosterItem> items) {
+			this.multiItemMode = multiItemMode;
+			this.items = items;
+		}
+	}
+
+	private static class RosterItem {
+
+		private final List<PresenceBroadcast> broadcasts;
+		private final boolean multiItemMode;
+		private final BareJID occupantJid;
+
+		RosterItem(BareJID occupantJid, boolean multiItemMode, List<PresenceBroadcast> broadcasts) {
+			this.occupantJid = occupantJid;
+			this.multiItemMode = multiItemMode;
+			this.broadcasts = broadcasts;
+		}
+	}
+
 	public static class DelayDeliveryThread
 			extends Thread {
 
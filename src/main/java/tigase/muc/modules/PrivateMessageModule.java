@@ -21,6 +21,7 @@ import tigase.criteria.Criteria;
 import tigase.criteria.ElementCriteria;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
+import tigase.muc.RateLimiter;
 import tigase.muc.Role;
 import tigase.muc.Room;
 import tigase.muc.exceptions.MUCException;
@@ -44,6 +45,8 @@ public class PrivateMessageModule
 	public static final String ID = "privatemessages";
 	private static final Criteria CRIT = ElementCriteria.nameType("message", "chat");
 	@Inject
+	private RateLimiter rateLimiter;
+	@Inject
 	private IMucRepository repository;
 
 	@Override
@@ -74,6 +77,10 @@ public class PrivateMessageModule
 				throw new MUCException(Authorization.ITEM_NOT_FOUND);
 			}
 
+			if (!rateLimiter.tryAcquire(RateLimiter.Kind.privateMessage, roomJID, senderJID)) {
+				throw new MUCException(Authorization.RESOURCE_CONSTRAINT, "Too many private messages sent.");
+			}
+
 			final String senderNickname = room.getOccupantsNickname(senderJID);
 			final Role senderRole = room.getRole(senderNickname);
 
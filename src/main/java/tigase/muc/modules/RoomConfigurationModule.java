@@ -53,6 +53,8 @@ public class RoomConfigurationModule
 	@Inject
 	private MUCConfig config;
 	@Inject
+	private PresenceCoalescer coalescer;
+	@Inject
 	private HistoryProvider historyProvider;
 	@Inject(nullAllowed = false)
 	private GroupchatMessageModule messageModule;
@@ -134,6 +136,7 @@ public class RoomConfigurationModule
 		}
 
 		repository.destroyRoom(room, destroyElement);
+		coalescer.removeRoom(room.getRoomJID());
 		if (historyProvider != null) {
 			if (log.isLoggable(Level.FINE)) {
 				log.fine("Removing history of room " + room.getRoomJID());
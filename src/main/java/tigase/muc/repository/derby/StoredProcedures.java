@@ -17,6 +17,7 @@
  */
 package tigase.muc.repository.derby;
 
+import tigase.muc.StanzaId;
 import tigase.util.Algorithms;
 
 import java.nio.charset.Charset;
@@ -58,6 +59,26 @@ public class StoredProcedures {
 				stmt.execute("alter table tig_muc_rooms add avatar clob");
 				stmt.execute("alter table tig_muc_rooms add avatar_hash varchar(42)");
 			}
+			try {
+				ResultSet rs = stmt.executeQuery("select stable_id from tig_muc_room_history where room_jid_sha1 = ''");
+				rs.close();
+			} catch (SQLException ex) {
+				stmt.execute("alter table tig_muc_room_history add stable_id varchar(64)");
+				stmt.execute(
+						"create index tig_muc_room_history_room_jid_stable_id on tig_muc_room_history ( room_jid_sha1, stable_id )");
+			}
+			if (isNullable(conn, "TIG_MUC_ROOM_HISTORY", "STABLE_ID")) {
+				backfillStableIds(conn);
+				stmt.execute("alter table tig_muc_room_history alter column stable_id not null");
+			}
+			ResultSet rs = stmt.executeQuery(
+					"select 1 from sys.sysconglomerates where conglomeratename = 'TIG_MUC_ROOM_HISTORY_ROOM_JID_TS_STABLE_ID'");
+			boolean exists = rs.next();
+			rs.close();
+			if (!exists) {
+				stmt.execute(
+						"create index tig_muc_room_history_room_jid_ts_stable_id on tig_muc_room_history ( room_jid_sha1, ts, stable_id )");
+			}
 		} catch (SQLException e) {
 			throw e;
 		} finally {
@@ -65,6 +86,36 @@ public class StoredProcedures {
 		}
 	}
 
+	private static boolean isNullable(Connection conn, String table, String column) throws SQLException {
+		ResultSet rs = conn.getMetaData().getColumns(null, null, table, column);
+		try {
+			return rs.next() && rs.getInt("NULLABLE") != DatabaseMetaData.columnNoNulls;
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Assigns identifiers derived from timestamp and position to messages stored before stable ids were introduced.
+	 */
+	private static void backfillStableIds(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
+		try {
+			ResultSet rs = stmt.executeQuery(
+					"select ts, stable_id from tig_muc_room_history where stable_id is null for update of stable_id");
+			long row = 0;
+			while (rs.next()) {
+				Timestamp ts = rs.getTimestamp(1);
+				rs.updateString(2, String.format("legacy-%1$tY%1$tm%1$td%1$tH%1$tM%1$tS%2$06d-%3$010d", ts,
+												 ts.getNanos() / 1000, ++row));
+				rs.updateRow();
+			}
+			rs.close();
+		} finally {
+			stmt.close();
+		}
+	}
+
 	protected static String sha1OfLower(String data) throws SQLException {
 		try {
 			MessageDigest md = MessageDigest.getInstance("SHA-1");
@@ -76,7 +127,7 @@ public class StoredProcedures {
 	}
 
 	public static void tigMucAddMessage(String roomJid, Timestamp ts, String senderJid, String senderNick, String body,
-										Boolean publicEvent, String msg) throws SQLException {
+										Boolean publicEvent, String msg, String stableId) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
@@ -84,7 +135,8 @@ public class StoredProcedures {
 		try {
 			PreparedStatement ps = conn.prepareStatement(
 					"insert into tig_muc_room_history (room_jid, room_jid_sha1, event_type, ts, sender_jid," +
-							" sender_nickname, body, public_event, msg)" + " values (?, ?, 1, ?, ?, ?, ?, ?, ?)");
+							" sender_nickname, body, public_event, msg, stable_id)" +
+							" values (?, ?, 1, ?, ?, ?, ?, ?, ?, ?)");
 
 			ps.setString(1, roomJid);
 			ps.setString(2, sha1OfLower(roomJid));
@@ -94,6 +146,7 @@ public class StoredProcedures {
 			ps.setString(6, body);
 			ps.setBoolean(7, publicEvent);
 			ps.setString(8, msg);
+			ps.setString(9, stableId != null ? stableId : StanzaId.next(ts.getTime()));
 			ps.executeUpdate();
 		} catch (SQLException e) {
 			throw e;
@@ -146,6 +199,64 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigMucDeleteMessagesBefore(String roomJid, Timestamp before, Integer limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			final String roomJidSha1 = sha1OfLower(roomJid);
+			// Derby does not support limit in delete statement and history has no primary key, so we look for
+			// timestamp of the last message of the batch, remove all older messages and then remove only as many
+			// messages with this timestamp as needed to fill the batch
+			PreparedStatement ps = conn.prepareStatement(
+					"select h.ts" + " from tig_muc_room_history h" + " where h.room_jid_sha1 = ?" +
+							"	and (? is null or h.ts < ?)" + " order by h.ts asc" +
+							" offset 0 rows fetch next ? rows only");
+			ps.setString(1, roomJidSha1);
+			ps.setTimestamp(2, before);
+			ps.setTimestamp(3, before);
+			ps.setInt(4, limit);
+
+			Timestamp last = null;
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				last = rs.getTimestamp(1);
+			}
+			rs.close();
+
+			int deleted = 0;
+			if (last != null) {
+				ps = conn.prepareStatement(
+						"delete from tig_muc_room_history" + " where room_jid_sha1 = ?" + "	and ts < ?");
+				ps.setString(1, roomJidSha1);
+				ps.setTimestamp(2, last);
+				deleted = ps.executeUpdate();
+
+				ps = conn.prepareStatement(
+						"select ts from tig_muc_room_history" + " where room_jid_sha1 = ?" + "	and ts = ?" +
+								" for update", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
+				ps.setString(1, roomJidSha1);
+				ps.setTimestamp(2, last);
+				rs = ps.executeQuery();
+				while (deleted < limit && rs.next()) {
+					rs.deleteRow();
+					deleted++;
+				}
+				rs.close();
+			}
+
+			ps = conn.prepareStatement("values cast(? as int)");
+			ps.setInt(1, deleted);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigMucDestroyRoom(String roomJid) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -199,11 +310,12 @@ public class StoredProcedures {
 
 		try {
 			PreparedStatement ps = conn.prepareStatement(
-					"select t.sender_nickname, t.ts, t.sender_jid, t.body, t.msg from (" +
-							"select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg" +
+					"select t.sender_nickname, t.ts, t.sender_jid, t.body, t.msg, t.stable_id from (" +
+							"select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id" +
 							" from tig_muc_room_history h" + " where h.room_jid_sha1 = ?" +
 							"	and (? is null or h.ts >= ?)" +
-							" order by h.ts desc offset 0 rows fetch next ? rows only)" + " AS t order by t.ts asc");
+							" order by h.ts desc, h.stable_id desc offset 0 rows fetch next ? rows only)" +
+							" AS t order by t.ts asc, t.stable_id asc");
 
 			ps.setString(1, sha1OfLower(roomJid));
 			ps.setTimestamp(2, since);
@@ -298,6 +410,27 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigMucMamGetMessageTimestamp(String roomJid, String stableId, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select h.ts" + " from tig_muc_room_history h" + " where h.room_jid_sha1 = ?" +
+							"	and h.stable_id = ?");
+
+			ps.setString(1, sha1OfLower(roomJid));
+			ps.setString(2, stableId);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigMucMamGetMessages(String roomJid, Timestamp since, Timestamp to, String nickname,
 											Integer limit, Integer offset, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -306,10 +439,11 @@ public class StoredProcedures {
 
 		try {
 			PreparedStatement ps = conn.prepareStatement(
-					"select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg" + " from tig_muc_room_history h" +
-							" where h.room_jid_sha1 = ?" + "	and (? is null or h.ts >= ?)" +
-							"	and (? is null or h.ts <= ?)" + "	and (? is null or h.sender_nickname = ?)" +
-							" order by h.ts asc offset ? rows fetch next ? rows only");
+					"select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id" +
+							" from tig_muc_room_history h" + " where h.room_jid_sha1 = ?" +
+							"	and (? is null or h.ts >= ?)" + "	and (? is null or h.ts <= ?)" +
+							"	and (? is null or h.sender_nickname = ?)" +
+							" order by h.ts asc, h.stable_id asc offset ? rows fetch next ? rows only");
 
 			ps.setString(1, sha1OfLower(roomJid));
 			ps.setTimestamp(2, since);
@@ -328,6 +462,80 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigMucMamGetMessagesAfter(String roomJid, Timestamp since, Timestamp to, String nickname,
+												 Timestamp afterTs, String afterId, Integer limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id" +
+							" from tig_muc_room_history h" + " where h.room_jid_sha1 = ?" +
+							"	and (? is null or h.ts >= ?)" + "	and (? is null or h.ts <= ?)" +
+							"	and (? is null or h.sender_nickname = ?)" +
+							"	and (? is null or h.ts > ? or (h.ts = ? and h.stable_id > coalesce(cast(? as varchar(64)), '')))" +
+							" order by h.ts asc, h.stable_id asc offset 0 rows fetch next ? rows only");
+
+			ps.setString(1, sha1OfLower(roomJid));
+			ps.setTimestamp(2, since);
+			ps.setTimestamp(3, since);
+			ps.setTimestamp(4, to);
+			ps.setTimestamp(5, to);
+			ps.setString(6, nickname);
+			ps.setString(7, nickname);
+			ps.setTimestamp(8, afterTs);
+			ps.setTimestamp(9, afterTs);
+			ps.setTimestamp(10, afterTs);
+			ps.setString(11, afterId);
+			ps.setInt(12, limit);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigMucMamGetMessagesBefore(String roomJid, Timestamp since, Timestamp to, String nickname,
+												  Timestamp beforeTs, String beforeId, Integer limit,
+												  ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select t.sender_nickname, t.ts, t.sender_jid, t.body, t.msg, t.stable_id from (" +
+							"select h.sender_nickname, h.ts, h.sender_jid, h.body, h.msg, h.stable_id" +
+							" from tig_muc_room_history h" + " where h.room_jid_sha1 = ?" +
+							"	and (? is null or h.ts >= ?)" + "	and (? is null or h.ts <= ?)" +
+							"	and (? is null or h.sender_nickname = ?)" +
+							"	and (? is null or h.ts < ? or (h.ts = ? and h.stable_id < coalesce(cast(? as varchar(64)), '')))" +
+							" order by h.ts desc, h.stable_id desc offset 0 rows fetch next ? rows only)" +
+							" AS t order by t.ts asc, t.stable_id asc");
+
+			ps.setString(1, sha1OfLower(roomJid));
+			ps.setTimestamp(2, since);
+			ps.setTimestamp(3, since);
+			ps.setTimestamp(4, to);
+			ps.setTimestamp(5, to);
+			ps.setString(6, nickname);
+			ps.setString(7, nickname);
+			ps.setTimestamp(8, beforeTs);
+			ps.setTimestamp(9, beforeTs);
+			ps.setTimestamp(10, beforeTs);
+			ps.setString(11, beforeId);
+			ps.setInt(12, limit);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigMucMamGetMessagesCount(String roomJid, Timestamp since, Timestamp to, String nickname,
 												 ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -0,0 +1,110 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Test;
+import tigase.criteria.Criteria;
+import tigase.criteria.ElementCriteria;
+import tigase.xml.Element;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ContentFilterTest {
+
+	@Test
+	public void testMatcher() {
+		ContentFilter.Matcher matcher = ContentFilter.Matcher.compile("show", "{jabber:x:oob}oob",
+																	  "{http://jabber.org/protocol/caps}*", " ", null,
+																	  "{invalid");
+
+		assertTrue(matcher.match("show", "jabber:client"));
+		assertTrue(matcher.match("show", null));
+		assertTrue(matcher.match("oob", "jabber:x:oob"));
+		assertFalse(matcher.match("oob", "urn:xmpp:other"));
+		assertFalse(matcher.match("oob", null));
+		assertTrue(matcher.match("c", "http://jabber.org/protocol/caps"));
+		assertTrue(matcher.match("other", "http://jabber.org/protocol/caps"));
+		assertFalse(matcher.match("status", "jabber:client"));
+	}
+
+	@Test
+	public void testDefaults() {
+		ContentFilter filter = new ContentFilter();
+
+		assertTrue(filter.isAllowedInMessage(new Element("oob", new String[]{"xmlns"}, new String[]{"jabber:x:oob"})));
+		assertFalse(filter.isAllowedInMessage(new Element("x", new String[]{"xmlns"}, new String[]{"jabber:x:data"})));
+		assertTrue(filter.isAllowedInPresence(new Element("show", "away")));
+		assertTrue(filter.isAllowedInPresence(
+				new Element("c", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/caps"})));
+		assertFalse(filter.isAllowedInPresence(new Element("oob", new String[]{"xmlns"}, new String[]{"jabber:x:oob"})));
+
+		assertFalse(filter.isNamespaceAllowedInMessage("http://jabber.org/protocol/chatstates"));
+
+		filter.setMessageAllowedElements(new String[]{"{jabber:x:data}x"});
+		assertFalse(filter.isNamespaceAllowedInMessage("jabber:x:data"));
+		assertFalse(filter.isAllowedInMessage(new Element("oob", new String[]{"xmlns"}, new String[]{"jabber:x:oob"})));
+		assertTrue(filter.isAllowedInMessage(new Element("x", new String[]{"xmlns"}, new String[]{"jabber:x:data"})));
+
+		filter.setMessageAllowedElements(new String[]{"{http://jabber.org/protocol/chatstates}*"});
+		assertTrue(filter.isNamespaceAllowedInMessage("http://jabber.org/protocol/chatstates"));
+	}
+
+	@Test
+	public void testMatchesSameAsCriteria() {
+		final String[] patterns = new String[]{"{jabber:x:oob}oob", "{eu.siacs.conversations.axolotl}encrypted",
+											   "{urn:xmpp:reply:0}reply", "{urn:xmpp:message-correct:0}replace",
+											   "{urn:xmpp:hints}store", "{urn:xmpp:hints}no-store",
+											   "{urn:xmpp:reactions:0}reactions", "{urn:xmpp:eme:0}encryption"};
+		final Set<Criteria> criteria = new HashSet<>();
+		for (String pattern : patterns) {
+			int idx = pattern.indexOf('}');
+			criteria.add(ElementCriteria.name(pattern.substring(idx + 1), pattern.substring(1, idx)));
+		}
+		final ContentFilter.Matcher matcher = ContentFilter.Matcher.compile(patterns);
+
+		final List<Element> children = new ArrayList<>();
+		children.add(new Element("body", "Test message"));
+		children.add(new Element("oob", new String[]{"xmlns"}, new String[]{"jabber:x:oob"}));
+		children.add(new Element("oob", new String[]{"xmlns"}, new String[]{"urn:xmpp:hints"}));
+		children.add(new Element("origin-id", new String[]{"xmlns"}, new String[]{"urn:xmpp:sid:0"}));
+		children.add(new Element("markable", new String[]{"xmlns"}, new String[]{"urn:xmpp:chat-markers:0"}));
+		children.add(new Element("encryption", new String[]{"xmlns"}, new String[]{"urn:xmpp:eme:0"}));
+		children.add(new Element("store", new String[]{"xmlns"}, new String[]{"urn:xmpp:hints"}));
+		children.add(new Element("store", new String[]{"xmlns"}, new String[]{"urn:xmpp:reply:0"}));
+
+		// compiled patterns accept exactly the same children as the list of criteria
+		for (Element c : children) {
+			assertEquals(c.toString(), matchCriteria(criteria, c), matcher.match(c));
+		}
+	}
+
+	private static boolean matchCriteria(Set<Criteria> criteria, Element c) {
+		for (Criteria crit : criteria) {
+			if (crit.match(c)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
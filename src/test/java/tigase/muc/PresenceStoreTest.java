@@ -0,0 +1,134 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import static org.junit.Assert.*;
+
+public class PresenceStoreTest {
+
+	private static Element presence(String from, String type, Integer priority) {
+		Element presence = new Element("presence", new String[]{"from"}, new String[]{from});
+		if (type != null) {
+			presence.setAttribute("type", type);
+		}
+		if (priority != null) {
+			presence.addChild(new Element("priority", String.valueOf(priority)));
+		}
+		return presence;
+	}
+
+	@Test
+	public void testParsePriority() {
+		assertEquals(0, PresenceStore.parsePriority(null));
+		assertEquals(0, PresenceStore.parsePriority(""));
+		assertEquals(0, PresenceStore.parsePriority("-"));
+		assertEquals(0, PresenceStore.parsePriority("abc"));
+		assertEquals(0, PresenceStore.parsePriority("99999999999"));
+		assertEquals(5, PresenceStore.parsePriority("5"));
+		assertEquals(5, PresenceStore.parsePriority("+5"));
+		assertEquals(-128, PresenceStore.parsePriority("-128"));
+		assertEquals(Integer.MIN_VALUE, PresenceStore.parsePriority(String.valueOf(Integer.MIN_VALUE)));
+	}
+
+	@Test
+	public void testBestPresenceByPriority() throws Exception {
+		PresenceStore store = new PresenceStore(PresenceStore.PresenceDeliveryLogic.PREFERE_PRIORITY);
+		BareJID user = BareJID.bareJIDInstance("crone1@shakespeare.lit");
+
+		store.update(presence("crone1@shakespeare.lit/desktop", null, 5));
+		store.update(presence("crone1@shakespeare.lit/mobile", null, 1));
+		assertEquals(JID.jidInstance("crone1@shakespeare.lit/desktop"), store.getBestPresenceInt(user).getFrom());
+
+		// same priority - newer wins
+		store.update(presence("crone1@shakespeare.lit/mobile", null, 5));
+		assertEquals(JID.jidInstance("crone1@shakespeare.lit/mobile"), store.getBestPresenceInt(user).getFrom());
+
+		// best resource lowers its priority
+		store.update(presence("crone1@shakespeare.lit/mobile", null, 0));
+		assertEquals(JID.jidInstance("crone1@shakespeare.lit/desktop"), store.getBestPresenceInt(user).getFrom());
+
+		// best resource leaves
+		store.update(presence("crone1@shakespeare.lit/desktop", "unavailable", null));
+		assertEquals(JID.jidInstance("crone1@shakespeare.lit/mobile"), store.getBestPresenceInt(user).getFrom());
+		assertTrue(store.isAvailable(user));
+
+		store.remove(JID.jidInstance("crone1@shakespeare.lit/mobile"));
+		assertNull(store.getBestPresenceInt(user));
+		assertNull(store.getBestPresence(user));
+		assertFalse(store.isAvailable(user));
+	}
+
+	@Test
+	public void testBestPresenceByLast() throws Exception {
+		PresenceStore store = new PresenceStore(PresenceStore.PresenceDeliveryLogic.PREFERE_LAST);
+		BareJID user = BareJID.bareJIDInstance("crone1@shakespeare.lit");
+
+		store.update(presence("crone1@shakespeare.lit/desktop", null, 5));
+		store.update(presence("crone1@shakespeare.lit/mobile", null, 1));
+		store.update(presence("crone1@shakespeare.lit/tablet", null, 3));
+		assertEquals(JID.jidInstance("crone1@shakespeare.lit/tablet"), store.getBestPresenceInt(user).getFrom());
+
+		store.remove(JID.jidInstance("crone1@shakespeare.lit/tablet"));
+		assertEquals(JID.jidInstance("crone1@shakespeare.lit/mobile"), store.getBestPresenceInt(user).getFrom());
+
+		store.setOrdening(PresenceStore.PresenceDeliveryLogic.PREFERE_PRIORITY);
+		assertEquals(JID.jidInstance("crone1@shakespeare.lit/desktop"), store.getBestPresenceInt(user).getFrom());
+	}
+
+	@Test
+	public void testNotAvailablePresence() throws Exception {
+		PresenceStore store = new PresenceStore();
+		BareJID user = BareJID.bareJIDInstance("crone1@shakespeare.lit");
+
+		store.update(presence("crone1@shakespeare.lit/desktop", "error", null));
+		assertNull(store.getBestPresenceInt(user));
+		assertFalse(store.isAvailable(user));
+		// not available presence is still returned if there is nothing better
+		assertNotNull(store.getBestPresence(user));
+		assertTrue(store.getAllKnownJIDs().isEmpty());
+
+		store.update(presence("crone1@shakespeare.lit/mobile", null, null));
+		assertEquals(JID.jidInstance("crone1@shakespeare.lit/mobile"), store.getBestPresenceInt(user).getFrom());
+		assertEquals(1, store.getAllKnownJIDs().size());
+	}
+
+	@Test
+	public void testBestPresenceWithManyResources() throws Exception {
+		for (int resources : new int[]{1, 5, 20}) {
+			PresenceStore store = new PresenceStore();
+			BareJID user = BareJID.bareJIDInstance("crone1@shakespeare.lit");
+			for (int i = 0; i < resources; i++) {
+				store.update(presence("crone1@shakespeare.lit/res-" + i, null, i));
+			}
+			// removing resources with the highest priority one by one
+			for (int i = resources - 1; i >= 0; i--) {
+				JID best = JID.jidInstance("crone1@shakespeare.lit/res-" + i);
+				assertEquals(best, store.getBestPresenceInt(user).getFrom());
+				store.remove(best);
+			}
+			assertNull(store.getBestPresenceInt(user));
+			assertFalse(store.isAvailable(user));
+		}
+	}
+
+}
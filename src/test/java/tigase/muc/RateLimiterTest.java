@@ -0,0 +1,168 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+	@Test
+	public void testTokenBucket() {
+		RateLimiter.Limit limit = RateLimiter.parseLimit("10/3");
+		AtomicLong bucket = new AtomicLong(0);
+
+		// burst
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, 0));
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, 0));
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, 0));
+		assertFalse(RateLimiter.tryAcquire(bucket, limit, 0));
+
+		// one token every 100ms
+		assertFalse(RateLimiter.tryAcquire(bucket, limit, 50_000_000L));
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, 100_000_000L));
+		assertFalse(RateLimiter.tryAcquire(bucket, limit, 100_000_000L));
+
+		// refilled after long pause, but not over burst
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, 10_000_000_000L));
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, 10_000_000_000L));
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, 10_000_000_000L));
+		assertFalse(RateLimiter.tryAcquire(bucket, limit, 10_000_000_000L));
+	}
+
+	@Test
+	public void testTokenBucketWithOverflowingTime() {
+		RateLimiter.Limit limit = RateLimiter.parseLimit("10/2");
+		long now = Long.MAX_VALUE - 50_000_000L;
+		AtomicLong bucket = new AtomicLong(now);
+
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, now));
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, now));
+		assertFalse(RateLimiter.tryAcquire(bucket, limit, now));
+
+		now += 100_000_000L;
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, now));
+		assertFalse(RateLimiter.tryAcquire(bucket, limit, now));
+	}
+
+	@Test
+	public void testParseLimit() {
+		assertNull(RateLimiter.parseLimit(null));
+		assertNull(RateLimiter.parseLimit(""));
+		assertNull(RateLimiter.parseLimit("0/10"));
+		assertNotNull(RateLimiter.parseLimit("0.5"));
+	}
+
+	@Test
+	public void testLimits() throws Exception {
+		RateLimiter limiter = new RateLimiter();
+		BareJID room = BareJID.bareJIDInstance("coven@chat.shakespeare.lit");
+		JID crone1 = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		JID crone2 = JID.jidInstance("crone2@shakespeare.lit/desktop");
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(limiter.tryAcquire(RateLimiter.Kind.message, room, crone1));
+		}
+
+		HashMap<String, String> limits = new HashMap<>();
+		limits.put("occupant-message", "0.001/2");
+		limits.put("room-presence", "0.001/1");
+		limiter.setLimits(limits);
+
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.message, room, crone1));
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.message, room, crone1));
+		assertFalse(limiter.tryAcquire(RateLimiter.Kind.message, room, crone1));
+		// other occupant has its own bucket
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.message, room, crone2));
+		// private messages are not limited
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.privateMessage, room, crone1));
+
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.presence, room, crone1));
+		assertFalse(limiter.tryAcquire(RateLimiter.Kind.presence, room, crone2));
+
+		assertEquals(1, limiter.getRejectedCounter(RateLimiter.Kind.message));
+		assertEquals(1, limiter.getRejectedCounter(RateLimiter.Kind.presence));
+
+		// buckets which are not full are kept
+		limiter.run();
+		assertFalse(limiter.tryAcquire(RateLimiter.Kind.message, room, crone1));
+	}
+
+	@Test
+	public void testRejectedStanzaDoesNotConsumeOtherScopes() throws Exception {
+		RateLimiter limiter = new RateLimiter();
+		BareJID room = BareJID.bareJIDInstance("coven@chat.shakespeare.lit");
+		BareJID otherRoom = BareJID.bareJIDInstance("other@chat.shakespeare.lit");
+		JID crone1 = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		JID crone2 = JID.jidInstance("crone2@shakespeare.lit/desktop");
+
+		HashMap<String, String> limits = new HashMap<>();
+		limits.put("occupant-message", "0.001/2");
+		limits.put("room-message", "0.001/1");
+		limiter.setLimits(limits);
+
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.message, room, crone2));
+		// rejected by room limit many times, occupant bucket must stay untouched
+		for (int i = 0; i < 10; i++) {
+			assertFalse(limiter.tryAcquire(RateLimiter.Kind.message, room, crone1));
+		}
+		limits = new HashMap<>(limits);
+		limits.put("room-message", "0.001/100");
+		limiter.setLimits(limits);
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.message, room, crone1));
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.message, room, crone1));
+		assertFalse(limiter.tryAcquire(RateLimiter.Kind.message, room, crone1));
+
+		BareJID thirdRoom = BareJID.bareJIDInstance("third@chat.shakespeare.lit");
+		limits = new HashMap<>();
+		limits.put("room-message", "0.001/2");
+		limits.put("service-message", "0.001/1");
+		limiter.setLimits(limits);
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.message, otherRoom, crone1));
+		// rejected by service limit, room bucket must stay untouched
+		for (int i = 0; i < 10; i++) {
+			assertFalse(limiter.tryAcquire(RateLimiter.Kind.message, thirdRoom, crone1));
+		}
+		limits = new HashMap<>(limits);
+		limits.remove("service-message");
+		limiter.setLimits(limits);
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.message, thirdRoom, crone1));
+		assertTrue(limiter.tryAcquire(RateLimiter.Kind.message, thirdRoom, crone2));
+		assertFalse(limiter.tryAcquire(RateLimiter.Kind.message, thirdRoom, crone2));
+	}
+
+	@Test
+	public void testRelease() {
+		RateLimiter.Limit limit = RateLimiter.parseLimit("10/2");
+		AtomicLong bucket = new AtomicLong(0);
+
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, 0));
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, 0));
+		assertFalse(RateLimiter.tryAcquire(bucket, limit, 0));
+		RateLimiter.release(bucket, limit);
+		assertTrue(RateLimiter.tryAcquire(bucket, limit, 0));
+		assertFalse(RateLimiter.tryAcquire(bucket, limit, 0));
+	}
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RoomOccupantsTest {
+
+	private static Room createRoom(int occupants) throws Exception {
+		BareJID roomJid = BareJID.bareJIDInstance("room@muc.test");
+		Room room = new Room(new RoomConfig(roomJid), new Date(), BareJID.bareJIDInstance("owner@test"));
+		for (int i = 0; i < occupants; i++) {
+			addOccupant(room, JID.jidInstance("user-" + i + "@test/res"), "nick-" + i);
+		}
+		return room;
+	}
+
+	private static void addOccupant(Room room, JID jid, String nickname) throws Exception {
+		room.addOccupantByJid(jid, nickname, Role.participant,
+							  new Element("presence", new String[]{"from", "to"},
+										  new String[]{jid.toString(), room.getRoomJID() + "/" + nickname}));
+	}
+
+	@Test
+	public void testSenderIndexConsistency() throws Exception {
+		Room room = createRoom(0);
+		JID res1 = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		JID res2 = JID.jidInstance("crone1@shakespeare.lit/mobile");
+
+		addOccupant(room, res1, "firstwitch");
+		addOccupant(room, res2, "firstwitch");
+
+		assertEquals("firstwitch", room.getOccupantsNickname(res1));
+		assertEquals("firstwitch", room.getOccupantsNickname(res2));
+		assertTrue(room.isOccupantOnline(res1.getBareJID()));
+		assertEquals(1, room.getOccupantsNicknames(res1.getBareJID()).size());
+
+		room.changeNickName(res1, "secondwitch");
+		assertEquals("secondwitch", room.getOccupantsNickname(res2));
+		assertTrue(room.getOccupantsNicknames(res1.getBareJID()).contains("secondwitch"));
+		assertFalse(room.getOccupantsNicknames(res1.getBareJID()).contains("firstwitch"));
+
+		assertFalse(room.removeOccupant(res1));
+		assertNull(room.getOccupantsNickname(res1));
+		assertTrue(room.isOccupantOnline(res1.getBareJID()));
+
+		assertTrue(room.removeOccupant(res2));
+		assertNull(room.getOccupantsNickname(res2));
+		assertFalse(room.isOccupantOnline(res2.getBareJID()));
+		assertTrue(room.getOccupantsNicknames(res2.getBareJID()).isEmpty());
+
+		addOccupant(room, res1, "thirdwitch");
+		room.removeOccupant("thirdwitch");
+		assertNull(room.getOccupantsNickname(res1));
+		assertFalse(room.isOccupantInRoom(res1));
+		assertFalse(room.isOccupantOnline(res1.getBareJID()));
+	}
+
+	@Test
+	public void testPersistentOccupantNicknameIndex() throws Exception {
+		Room room = createRoom(0);
+		BareJID jid = BareJID.bareJIDInstance("crone1@shakespeare.lit");
+
+		room.addAffiliationByJid(jid, RoomAffiliation.from(Affiliation.member, true, "firstwitch"));
+		assertEquals(jid, room.getOccupantsJidByNickname("firstwitch"));
+		assertEquals(Role.participant, room.getRole("firstwitch"));
+
+		room.addAffiliationByJid(jid, RoomAffiliation.from(Affiliation.member, true, "secondwitch"));
+		assertNull(room.getOccupantsJidByNickname("firstwitch"));
+		assertEquals(jid, room.getOccupantsJidByNickname("secondwitch"));
+
+		room.setNewAffiliation(jid, RoomAffiliation.member);
+		assertNull(room.getOccupantsJidByNickname("secondwitch"));
+
+		Map<BareJID, RoomAffiliation> affiliations = new HashMap<>();
+		affiliations.put(jid, RoomAffiliation.from(Affiliation.admin, true, "thirdwitch"));
+		room.setAffiliations(affiliations);
+		assertEquals(jid, room.getOccupantsJidByNickname("thirdwitch"));
+		assertEquals(Role.moderator, room.getRole("thirdwitch"));
+
+		room.addAffiliationByJid(jid, RoomAffiliation.none);
+		assertNull(room.getOccupantsJidByNickname("thirdwitch"));
+		assertEquals(Role.none, room.getRole("thirdwitch"));
+	}
+
+	@Test
+	public void testPersistentOccupantsSharingNickname() throws Exception {
+		Room room = createRoom(0);
+		BareJID first = BareJID.bareJIDInstance("crone1@shakespeare.lit");
+		BareJID second = BareJID.bareJIDInstance("crone2@shakespeare.lit");
+
+		room.addAffiliationByJid(first, RoomAffiliation.from(Affiliation.member, true, "witch"));
+		room.addAffiliationByJid(second, RoomAffiliation.from(Affiliation.member, true, "witch"));
+		// first registration of the nickname is kept
+		assertEquals(first, room.getOccupantsJidByNickname("witch"));
+
+		// when first occupant is renamed, nickname belongs to the other one
+		room.addAffiliationByJid(first, RoomAffiliation.from(Affiliation.member, true, "firstwitch"));
+		assertEquals(first, room.getOccupantsJidByNickname("firstwitch"));
+		assertEquals(second, room.getOccupantsJidByNickname("witch"));
+
+		// rename of occupant which does not own the entry does not remove it
+		room.addAffiliationByJid(first, RoomAffiliation.from(Affiliation.member, true, "witch"));
+		room.addAffiliationByJid(first, RoomAffiliation.from(Affiliation.member, true, "oldwitch"));
+		assertEquals(second, room.getOccupantsJidByNickname("witch"));
+
+		room.addAffiliationByJid(second, RoomAffiliation.none);
+		assertNull(room.getOccupantsJidByNickname("witch"));
+		assertEquals(first, room.getOccupantsJidByNickname("oldwitch"));
+	}
+
+	@Test
+	public void testOccupantsCount() throws Exception {
+		Room room = createRoom(0);
+		JID online = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		BareJID persistent = BareJID.bareJIDInstance("crone2@shakespeare.lit");
+
+		addOccupant(room, online, "firstwitch");
+		addOccupant(room, JID.jidInstance("crone1@shakespeare.lit/mobile"), "firstwitch");
+		assertEquals(1, room.getOccupantsCount());
+		assertEquals(1, room.getOnlineOccupantsCount());
+
+		room.addAffiliationByJid(persistent, RoomAffiliation.memberPersistent);
+		room.addAffiliationByJid(online.getBareJID(), RoomAffiliation.memberPersistent);
+		assertEquals(2, room.getOccupantsCount());
+		assertEquals(2, room.getPersistentOccupantsCount());
+
+		room.removeOccupant("firstwitch");
+		assertEquals(2, room.getOccupantsCount());
+		assertEquals(0, room.getOnlineOccupantsCount());
+
+		room.setAffiliations(new HashMap<>());
+		assertEquals(0, room.getOccupantsCount());
+		assertEquals(0, room.getPersistentOccupantsCount());
+	}
+
+	@Test
+	public void testMessageDeliverySnapshot() throws Exception {
+		Room room = createRoom(3);
+		BareJID persistent = BareJID.bareJIDInstance("crone2@shakespeare.lit");
+
+		JID[] snapshot = room.getJidsForMessageDelivery();
+		assertEquals(3, snapshot.length);
+		assertSame(snapshot, room.getJidsForMessageDelivery());
+
+		room.addAffiliationByJid(persistent, RoomAffiliation.memberPersistent);
+		snapshot = room.getJidsForMessageDelivery();
+		assertEquals(4, snapshot.length);
+		assertTrue(Arrays.asList(snapshot).contains(JID.jidInstance(persistent)));
+
+		room.setNewRole("nick-0", Role.none);
+		snapshot = room.getJidsForMessageDelivery();
+		assertEquals(3, snapshot.length);
+		assertFalse(Arrays.asList(snapshot).contains(JID.jidInstance("user-0@test/res")));
+
+		addOccupant(room, JID.jidInstance("crone2@shakespeare.lit/desktop"), "secondwitch");
+		snapshot = room.getJidsForMessageDelivery();
+		assertEquals(4, snapshot.length);
+		assertFalse(Arrays.asList(snapshot).contains(JID.jidInstance(persistent)));
+		assertTrue(Arrays.asList(snapshot).contains(JID.jidInstance("crone2@shakespeare.lit/desktop")));
+
+		room.removeOccupant(JID.jidInstance("user-1@test/res"));
+		assertEquals(3, room.getJidsForMessageDelivery().length);
+		assertSame(room.getJidsForMessageDelivery(), room.getJidsForMessageDelivery());
+	}
+
+	@Test
+	public void testOccupantJidsSnapshot() throws Exception {
+		Room room = createRoom(0);
+		JID desktop = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		JID mobile = JID.jidInstance("crone1@shakespeare.lit/mobile");
+
+		addOccupant(room, mobile, "firstwitch");
+		addOccupant(room, desktop, "firstwitch");
+
+		Collection<JID> jids = room.getOccupantsJidsByNickname("firstwitch");
+		assertEquals(Arrays.asList(desktop, mobile), new ArrayList<>(jids));
+		assertSame(jids, room.getOccupantsJidsByNickname("firstwitch"));
+		try {
+			jids.add(JID.jidInstance("crone1@shakespeare.lit/other"));
+			fail("Occupant JIDs snapshot should not be modifiable");
+		} catch (UnsupportedOperationException ex) {
+			// expected
+		}
+
+		room.removeOccupant(desktop);
+		assertEquals(2, jids.size());
+		assertEquals(Collections.singletonList(mobile), new ArrayList<>(room.getOccupantsJidsByNickname("firstwitch")));
+	}
+
+	@Test
+	public void testOccupantsRosterCacheInvalidation() throws Exception {
+		Room room = createRoom(2);
+		OccupantsRosterCache cache = room.getOccupantsRosterCache();
+		BareJID user0 = BareJID.bareJIDInstance("user-0@test");
+		BareJID user1 = BareJID.bareJIDInstance("user-1@test");
+
+		long version = cache.getVersion();
+		cache.putItem(user0, "nick-0", "item-0", version);
+		cache.putItem(user1, "nick-1", "item-1", version);
+		cache.setRoster("roster", version);
+		assertEquals("item-0", cache.getItem(user0, "nick-0"));
+		assertEquals("roster", cache.getRoster());
+
+		room.setNewRole("nick-0", Role.visitor);
+		assertNull(cache.getItem(user0, "nick-0"));
+		assertEquals("item-1", cache.getItem(user1, "nick-1"));
+		assertNull(cache.getRoster());
+
+		// item built before modification of room state is not cached
+		version = cache.getVersion();
+		room.updatePresenceByJid(null, "nick-1", new Element("presence", new String[]{"from"},
+																	new String[]{"user-1@test/res"}));
+		assertNull(cache.getItem(user1, "nick-1"));
+		cache.putItem(user1, "nick-1", "item-1", version);
+		assertNull(cache.getItem(user1, "nick-1"));
+
+		version = cache.getVersion();
+		cache.putItem(user1, "nick-1", "item-1", version);
+		room.addAffiliationByJid(user1, RoomAffiliation.admin);
+		assertNull(cache.getItem(user1, "nick-1"));
+
+		cache.putItem(user0, "nick-0", "item-0", cache.getVersion());
+		room.removeOccupant("nick-0");
+		assertNull(cache.getItem(user0, "nick-0"));
+	}
+
+	@Test
+	public void testPresenceFilteredViews() throws Exception {
+		Room room = createRoom(0);
+		PresenceFiltered filtered = room.getPresenceFiltered();
+		JID desktop = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		JID mobile = JID.jidInstance("crone1@shakespeare.lit/mobile");
+		JID other = JID.jidInstance("crone2@shakespeare.lit/desktop");
+
+		addOccupant(room, desktop, "firstwitch");
+		addOccupant(room, mobile, "firstwitch");
+		addOccupant(room, other, "secondwitch");
+
+		Collection<JID> jids = filtered.getOccupantsPresenceFilteredJIDs();
+		Collection<String> nicknames = filtered.getOccupantsPresenceFilteredNicknames();
+		assertEquals(3, jids.size());
+		assertEquals(2, nicknames.size());
+		assertSame(jids, filtered.getOccupantsPresenceFilteredJIDs());
+
+		room.removeOccupant(desktop);
+		assertFalse(jids.contains(desktop));
+		assertTrue(jids.contains(mobile));
+		assertTrue(nicknames.contains("firstwitch"));
+
+		room.removeOccupant(mobile);
+		assertEquals(Collections.singleton(other), new HashSet<>(jids));
+		assertEquals(Collections.singleton("secondwitch"), new HashSet<>(nicknames));
+		assertFalse(filtered.getOccupantsPresenceFiltered().contains(desktop.getBareJID()));
+
+		room.removeOccupant("secondwitch");
+		assertTrue(jids.isEmpty());
+		assertTrue(nicknames.isEmpty());
+	}
+
+	@Test
+	public void testPresenceFilteredAfterNicknameChange() throws Exception {
+		Room room = createRoom(0);
+		PresenceFiltered filtered = room.getPresenceFiltered();
+		JID desktop = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		JID mobile = JID.jidInstance("crone1@shakespeare.lit/mobile");
+		JID other = JID.jidInstance("crone2@shakespeare.lit/desktop");
+
+		addOccupant(room, desktop, "firstwitch");
+		addOccupant(room, mobile, "firstwitch");
+		addOccupant(room, other, "secondwitch");
+
+		room.changeNickName(desktop, "thirdwitch");
+		Collection<String> nicknames = filtered.getOccupantsPresenceFilteredNicknames();
+		assertEquals(new HashSet<>(Arrays.asList("thirdwitch", "secondwitch")), new HashSet<>(nicknames));
+		assertEquals(3, filtered.getOccupantsPresenceFilteredJIDs().size());
+
+		// old nickname must not be kept after the occupant leaves
+		room.removeOccupant(desktop);
+		room.removeOccupant(mobile);
+		assertEquals(Collections.singleton("secondwitch"), new HashSet<>(nicknames));
+
+		room.changeNickName(other, "firstwitch");
+		assertEquals(Collections.singleton("firstwitch"), new HashSet<>(nicknames));
+		room.removeOccupant("firstwitch");
+		assertTrue(nicknames.isEmpty());
+		assertTrue(filtered.getOccupantsPresenceFilteredJIDs().isEmpty());
+	}
+
+	@Test
+	public void testSenderLookupInRoomsOfAnySize() throws Exception {
+		for (int occupants : new int[]{1, 10, 1000, 20000}) {
+			Room room = createRoom(occupants);
+			for (int i = 0; i < occupants; i += Math.max(1, occupants / 100)) {
+				JID sender = JID.jidInstance("user-" + i + "@test/res");
+				assertEquals("nick-" + i, room.getOccupantsNickname(sender));
+				assertTrue(room.isOccupantInRoom(sender));
+				assertEquals(Collections.singletonList(sender), new ArrayList<>(
+						room.getOccupantsJidsByNickname("nick-" + i)));
+			}
+			JID stranger = JID.jidInstance("user-" + occupants + "@test/res");
+			assertNull(room.getOccupantsNickname(stranger));
+			assertFalse(room.isOccupantInRoom(stranger));
+			assertFalse(room.isOccupantInRoom(JID.jidInstance("user-0@test/other")));
+		}
+	}
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SerializedRoomTest {
+
+	private static final int THREADS = 4;
+	private static final int USERS = 200;
+	private static final int OPERATIONS = 2000;
+
+	private static Element presence(JID from, Room room, String nickname) {
+		return new Element("presence", new String[]{"from", "to"},
+						   new String[]{from.toString(), room.getRoomJID() + "/" + nickname});
+	}
+
+	private static void runConcurrentJoinsAndLeaves(final Room room) throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					for (int i = 0; i < OPERATIONS; i++) {
+						int user = random.nextInt(USERS);
+						JID jid = JID.jidInstance("user-" + user + "@test/res-" + random.nextInt(3));
+						String nickname = "nick-" + user;
+						switch (random.nextInt(5)) {
+							case 0:
+							case 1:
+								room.addOccupantByJid(jid, nickname, Role.participant, presence(jid, room, nickname));
+								break;
+							case 2:
+								room.removeOccupant(jid);
+								break;
+							case 3:
+								room.setNewRole(nickname, random.nextBoolean() ? Role.visitor : Role.participant);
+								break;
+							default:
+								room.addAffiliationByJid(jid.getBareJID(), random.nextBoolean()
+																		  ? RoomAffiliation.memberPersistent
+																		  : RoomAffiliation.none);
+								break;
+						}
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(1, TimeUnit.MINUTES);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void assertConsistent(SerializedRoom<?> room) {
+		SerializedRoom.Snapshot snapshot = room.getSnapshot();
+		Set<BareJID> distinct = new HashSet<>();
+		int receivers = 0;
+		for (SerializedRoom.Occupant occupant : snapshot.getOccupants()) {
+			assertFalse("Occupant without JIDs: " + occupant, occupant.getJids().isEmpty());
+			distinct.add(occupant.getBareJID());
+			for (JID jid : occupant.getJids()) {
+				assertEquals(occupant.getBareJID(), jid.getBareJID());
+				assertEquals(occupant.getNickname(), room.getOccupantsNickname(jid));
+			}
+			assertEquals(Collections.singleton(occupant.getNickname()),
+						 new HashSet<>(room.getOccupantsNicknames(occupant.getBareJID())));
+			if (occupant.getRole().isReceiveMessages()) {
+				receivers += occupant.getJids().size();
+			}
+		}
+		assertEquals(distinct.size(), room.getOnlineOccupantsCount());
+		for (Map.Entry<BareJID, RoomAffiliation> e : snapshot.getAffiliations().entrySet()) {
+			if (e.getValue().isPersistentOccupant()) {
+				if (!distinct.contains(e.getKey())) {
+					receivers++;
+				}
+				distinct.add(e.getKey());
+			}
+		}
+		assertEquals(distinct.size(), room.getOccupantsCount());
+		assertEquals(receivers, room.getJidsForMessageDelivery().length);
+	}
+
+	@Test
+	public void testSnapshotIsCachedUntilModification() throws Exception {
+		SerializedRoom<Long> room = new SerializedRoom<>(1L, new RoomConfig(BareJID.bareJIDInstance("room@muc.test")),
+														 new Date(), BareJID.bareJIDInstance("owner@test"));
+		JID jid = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		SerializedRoom.Snapshot empty = room.getSnapshot();
+		assertSame(empty, room.getSnapshot());
+		assertTrue(empty.getOccupants().isEmpty());
+
+		room.addOccupantByJid(jid, "firstwitch", Role.participant, presence(jid, room, "firstwitch"));
+		SerializedRoom.Snapshot snapshot = room.getSnapshot();
+		assertTrue(snapshot.getVersion() > empty.getVersion());
+		assertEquals(Collections.singletonList(jid), snapshot.getOccupant("firstwitch").getJids());
+		assertTrue(empty.getOccupants().isEmpty());
+	}
+
+	@Test
+	public void testModificationUpdatesOnlyChangedEntries() throws Exception {
+		SerializedRoom<Long> room = new SerializedRoom<>(1L, new RoomConfig(BareJID.bareJIDInstance("room@muc.test")),
+														 new Date(), BareJID.bareJIDInstance("owner@test"));
+		JID jid1 = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		JID jid2 = JID.jidInstance("wiccarocks@shakespeare.lit/laptop");
+		room.addOccupantByJid(jid1, "firstwitch", Role.participant, presence(jid1, room, "firstwitch"));
+		room.addOccupantByJid(jid2, "secondwitch", Role.participant, presence(jid2, room, "secondwitch"));
+		room.addAffiliationByJid(jid2.getBareJID(), RoomAffiliation.member);
+		SerializedRoom.Snapshot before = room.getSnapshot();
+
+		Element presence = presence(jid1, room, "firstwitch");
+		presence.addChild(new Element("show", "away"));
+		room.updatePresenceByJid(jid1, "firstwitch", presence);
+		SerializedRoom.Snapshot after = room.getSnapshot();
+
+		assertNotSame(before, after);
+		assertSame(presence, after.getPresence(jid1));
+		assertNotSame(presence, before.getPresence(jid1));
+		assertSame(before.getOccupant("firstwitch"), after.getOccupant("firstwitch"));
+		assertSame(before.getOccupant("secondwitch"), after.getOccupant("secondwitch"));
+		assertSame(before.getPresence(jid2), after.getPresence(jid2));
+		assertEquals(RoomAffiliation.member, after.getAffiliations().get(jid2.getBareJID()));
+
+		room.setNewRole("secondwitch", Role.visitor);
+		assertSame(after.getOccupant("firstwitch"), room.getSnapshot().getOccupant("firstwitch"));
+		assertEquals(Role.visitor, room.getSnapshot().getOccupant("secondwitch").getRole());
+	}
+
+	@Test
+	public void testConcurrentModifications() throws Exception {
+		SerializedRoom<Long> room = new SerializedRoom<>(1L, new RoomConfig(BareJID.bareJIDInstance("room@muc.test")),
+														 new Date(), BareJID.bareJIDInstance("owner@test"));
+		runConcurrentJoinsAndLeaves(room);
+		assertConsistent(room);
+	}
+
+	@Test
+	public void testLookupsUseSnapshot() throws Exception {
+		SerializedRoom<Long> room = new SerializedRoom<>(1L, new RoomConfig(BareJID.bareJIDInstance("room@muc.test")),
+														 new Date(), BareJID.bareJIDInstance("owner@test"));
+		JID jid = JID.jidInstance("crone1@shakespeare.lit/desktop");
+		room.addOccupantByJid(jid, "firstwitch", Role.participant, presence(jid, room, "firstwitch"));
+		assertEquals("firstwitch", room.getOccupantsNickname(jid));
+		assertEquals(jid.getBareJID(), room.getOccupantsJidByNickname("firstwitch"));
+		assertEquals(Collections.singletonList(jid), new ArrayList<>(room.getOccupantsJidsByNickname("firstwitch")));
+		assertEquals(Role.participant, room.getRole("firstwitch"));
+		assertTrue(room.isOccupantInRoom(jid));
+		assertSame(room.getSnapshot().getPresence(jid), room.getPresenceByJid(jid));
+
+		Element presence = presence(jid, room, "firstwitch");
+		presence.addChild(new Element("show", "away"));
+		room.updatePresenceByJid(jid, "firstwitch", presence);
+		assertEquals("away", room.getPresenceByJid(jid).getChild("show").getCData());
+
+		room.setNewRole("firstwitch", Role.visitor);
+		assertEquals(Role.visitor, room.getRole("firstwitch"));
+
+		room.changeNickName(jid, "secondwitch");
+		assertEquals("secondwitch", room.getOccupantsNickname(jid));
+		assertNull(room.getOccupantsJidByNickname("firstwitch"));
+
+		room.removeOccupant(jid);
+		assertNull(room.getOccupantsNickname(jid));
+		assertFalse(room.isOccupantInRoom(jid));
+		assertNull(room.getPresenceByJid(jid));
+	}
+
+	@Test
+	public void testReadersSeeConsistentState() throws Exception {
+		final SerializedRoom<Long> room = new SerializedRoom<>(1L, new RoomConfig(
+				BareJID.bareJIDInstance("room@muc.test")), new Date(), BareJID.bareJIDInstance("owner@test"));
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread reader = new Thread(() -> {
+			try {
+				while (running.get()) {
+					for (String nickname : room.getOccupantsNicknames(false)) {
+						// nickname and its occupant are taken from the same snapshot only if it is not modified
+						SerializedRoom.Snapshot snapshot = room.getSnapshot();
+						SerializedRoom.Occupant occupant = snapshot.getOccupant(nickname);
+						if (occupant != null) {
+							assertFalse(occupant.getJids().isEmpty());
+							for (JID jid : occupant.getJids()) {
+								assertEquals(occupant.getBareJID(), jid.getBareJID());
+								assertNotNull(snapshot.getPresence(jid));
+							}
+						}
+					}
+				}
+			} catch (Throwable ex) {
+				error.set(ex);
+			}
+		});
+		reader.start();
+		try {
+			runConcurrentJoinsAndLeaves(room);
+		} finally {
+			running.set(false);
+			reader.join();
+		}
+		assertNull(error.get());
+		assertConsistent(room);
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class StanzaIdTest {
+
+	@Test
+	public void testMonotonic() {
+		final long now = System.currentTimeMillis();
+		String prev = StanzaId.next(now);
+		for (int i = 0; i < 10000; i++) {
+			// the same millisecond and clock moving backwards
+			String id = StanzaId.next(i % 2 == 0 ? now : now - 1);
+			assertEquals(26, id.length());
+			assertTrue(prev + " < " + id, prev.compareTo(id) < 0);
+			prev = id;
+		}
+		String id = StanzaId.next(now + 1);
+		assertTrue(prev.compareTo(id) < 0);
+		assertEquals(now + 1, StanzaId.getTimestamp(id));
+	}
+
+	@Test
+	public void testUniqueAcrossThreads() throws InterruptedException {
+		final Set<String> ids = ConcurrentHashMap.newKeySet();
+		final int threads = 4;
+		final int perThread = 50000;
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					ids.add(StanzaId.next());
+				}
+			});
+			workers.add(thread);
+			thread.start();
+		}
+		for (Thread thread : workers) {
+			thread.join();
+		}
+		assertEquals(threads * perThread, ids.size());
+	}
+
+	@Test
+	public void testSubjectId() {
+		Date ts = new Date();
+		assertEquals(StanzaId.forSubject(ts, "Subject"), StanzaId.forSubject(new Date(ts.getTime()), "Subject"));
+		assertNotEquals(StanzaId.forSubject(ts, "Subject"), StanzaId.forSubject(ts, "Other subject"));
+		assertEquals((ts.getTime() / 100) * 100, StanzaId.getTimestamp(StanzaId.forSubject(ts, null)));
+	}
+
+	@Test
+	public void testStanzaIdElement() {
+		BareJID roomJID = BareJID.bareJIDInstanceNS("room@muc.example.com");
+		String id = StanzaId.next();
+		Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+		message.addChild(new Element("body", "test"));
+		assertNull(StanzaId.get(message, roomJID));
+		message.addChild(StanzaId.create(id, roomJID));
+		assertEquals(id, StanzaId.get(message, roomJID));
+		assertNull(StanzaId.get(message, BareJID.bareJIDInstanceNS("other@muc.example.com")));
+		assertEquals(-1, StanzaId.getTimestamp("not-an-id"));
+	}
+
+}
@@ -31,6 +31,7 @@ import tigase.kernel.core.Kernel;
 import tigase.muc.Room;
 import tigase.muc.RoomAffiliation;
 import tigase.muc.RoomConfig;
+import tigase.muc.StanzaId;
 import tigase.server.Packet;
 import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
@@ -94,7 +95,7 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 		}
 
 		QueueWriter writer = new QueueWriter();
-		historyProvider.getHistoryMessages(room, creatorJID, 0, 10, null, null, writer);
+		historyProvider.getHistoryMessages(room, creatorJID, null, 10, null, null, writer);
 
 		assertEquals(10, writer.queue.size());
 
@@ -113,7 +114,7 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 		Date since = savedMessages.get(4).ts;
 
 		QueueWriter writer = new QueueWriter();
-		historyProvider.getHistoryMessages(room, creatorJID, 0, 10, null, since, writer);
+		historyProvider.getHistoryMessages(room, creatorJID, null, 10, null, since, writer);
 
 		assertEquals(6, writer.queue.size());
 
@@ -130,7 +131,7 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 	@Test
 	public void test4_getMessagesMaxStanzas() throws RepositoryException, InterruptedException {
 		QueueWriter writer = new QueueWriter();
-		historyProvider.getHistoryMessages(room, creatorJID, 0, 5, null, null, writer);
+		historyProvider.getHistoryMessages(room, creatorJID, null, 5, null, null, writer);
 
 		assertEquals(5, writer.queue.size());
 
@@ -165,6 +166,7 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 			IntStream.range(0, savedMessages.size() - 1).forEach(pos -> {
 				assertEquals(savedMessages.get(pos).body,
 							 items.get(pos).getMessage().getChildCData(new String[]{"message", "body"}));
+				assertEquals(savedMessages.get(pos).stanzaId, items.get(pos).getId());
 			});
 		}
 	}
@@ -249,7 +251,7 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 		historyProvider.removeHistory(room);
 
 		QueueWriter writer = new QueueWriter();
-		historyProvider.getHistoryMessages(room, creatorJID, 0, 10, null, null, writer);
+		historyProvider.getHistoryMessages(room, creatorJID, null, 10, null, null, writer);
 
 		assertEquals(0, writer.queue.size());
 	}
@@ -276,6 +278,7 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 		public final String nick = UUID.randomUUID().toString();
 		public final JID sender = JID.jidInstanceNS(UUID.randomUUID().toString(), "test.local",
 													UUID.randomUUID().toString());
+		public final String stanzaId = StanzaId.next();
 		public final Date ts = new Date();
 
 		public Item(String suffix) {
@@ -286,6 +289,7 @@ public abstract class AbstractHistoryProviderTest<DS extends DataSource>
 			Element message = new Element("message", new String[]{"type", "to", "from"},
 										  new String[]{"groupchat", roomJID.toString(), sender.toString()});
 			message.addChild(new Element("body", body));
+			message.addChild(StanzaId.create(stanzaId, roomJID));
 			return message;
 		}
 	}
@@ -0,0 +1,189 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Test;
+import tigase.component.PacketWriter;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HistoryHotTierTest {
+
+	private final JID recipient = JID.jidInstanceNS("recipient@test.local/res");
+	private final JID sender = JID.jidInstanceNS("sender@test.local/res");
+
+	@Test
+	public void testServingFromMemory() {
+		BackendProvider backend = new BackendProvider();
+		HistoryHotTier hotTier = new HistoryHotTier();
+		hotTier.setEnabled(true);
+		assertTrue(hotTier.isSupported(backend));
+		assertFalse(hotTier.isSupported(new MemoryHistoryProvider()));
+
+		Room room = createRoom("hot");
+		long start = System.currentTimeMillis() - 1000 * 1000;
+		for (int i = 0; i < 80; i++) {
+			addMessage(hotTier, backend, room, i, new Date(start + i * 1000));
+		}
+		assertEquals(0, backend.reads.get());
+
+		// first request loads recent history from backend
+		List<String> bodies = getHistory(hotTier, backend, room, 5, null);
+		assertEquals(5, bodies.size());
+		assertEquals("75", bodies.get(0));
+		assertEquals("79", bodies.get(4));
+		assertEquals(1, backend.reads.get());
+		assertEquals(1, hotTier.getLoads());
+		assertEquals(1, hotTier.getHits());
+
+		addMessage(hotTier, backend, room, 80, new Date(start + 80 * 1000));
+		bodies = getHistory(hotTier, backend, room, null, null);
+		assertEquals(50, bodies.size());
+		assertEquals("31", bodies.get(0));
+		assertEquals("80", bodies.get(49));
+
+		bodies = getHistory(hotTier, backend, room, null, new Date(start + 70 * 1000));
+		assertEquals(11, bodies.size());
+		assertEquals("70", bodies.get(0));
+		assertEquals(1, backend.reads.get());
+		assertEquals(3, hotTier.getHits());
+		assertEquals(0, hotTier.getMisses());
+
+		// older messages than kept in memory are requested from backend
+		room.getConfig().setValue(RoomConfig.MUC_ROOMCONFIG_MAXHISTORY_KEY, "100");
+		bodies = getHistory(hotTier, backend, room, null, null);
+		assertEquals(81, bodies.size());
+		assertEquals("0", bodies.get(0));
+		assertEquals(2, backend.reads.get());
+		assertEquals(1, hotTier.getMisses());
+
+		hotTier.removeHistory(backend, room);
+		assertTrue(getHistory(hotTier, backend, room, null, null).isEmpty());
+		assertEquals(2, hotTier.getLoads());
+	}
+
+	@Test
+	public void testCompleteHistory() {
+		BackendProvider backend = new BackendProvider();
+		HistoryHotTier hotTier = new HistoryHotTier();
+		hotTier.setEnabled(true);
+		Room room = createRoom("small");
+
+		addMessage(hotTier, backend, room, 1, new Date());
+		assertEquals(1, getHistory(hotTier, backend, room, null, null).size());
+		addMessage(hotTier, backend, room, 2, new Date());
+		assertEquals(2, getHistory(hotTier, backend, room, 20, null).size());
+		assertEquals(1, backend.reads.get());
+		assertEquals(2, hotTier.getHits());
+	}
+
+	@Test
+	public void testModificationDuringLoad() throws Exception {
+		BackendProvider backend = new BackendProvider();
+		HistoryHotTier hotTier = new HistoryHotTier();
+		hotTier.setEnabled(true);
+		Room room = createRoom("busy");
+		addMessage(hotTier, backend, room, 1, new Date());
+
+		// lock of the room is not held while history is loaded, so other threads may modify the room
+		backend.onRead = () -> {
+			backend.onRead = null;
+			Thread thread = new Thread(() -> addMessage(hotTier, backend, room, 2, new Date()));
+			thread.start();
+			try {
+				thread.join(10_000);
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+			assertFalse(thread.isAlive());
+		};
+		List<String> bodies = getHistory(hotTier, backend, room, null, null);
+		// loaded history misses message added while it was loaded, so it is not kept and history is read again
+		assertEquals(2, bodies.size());
+		assertEquals(2, backend.reads.get());
+		assertEquals(0, hotTier.getLoads());
+		assertEquals(1, hotTier.getMisses());
+
+		bodies = getHistory(hotTier, backend, room, null, null);
+		assertEquals(2, bodies.size());
+		assertEquals(3, backend.reads.get());
+		assertEquals(1, hotTier.getLoads());
+		assertEquals(1, hotTier.getHits());
+	}
+
+	private void addMessage(HistoryHotTier hotTier, HistoryProvider backend, Room room, int i, Date time) {
+		Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+		message.addChild(new Element("body", String.valueOf(i)));
+		hotTier.addMessage(backend, room, message, String.valueOf(i), sender, "nick", time);
+	}
+
+	private Room createRoom(String name) {
+		BareJID roomJID = BareJID.bareJIDInstanceNS(name, "muc.test.local");
+		return new Room.RoomFactoryImpl().newInstance(null, new RoomConfig(roomJID), new Date(),
+													  sender.getBareJID());
+	}
+
+	private List<String> getHistory(HistoryHotTier hotTier, HistoryProvider backend, Room room, Integer maxStanzas,
+									Date since) {
+		AbstractHistoryProviderTest.QueueWriter writer = new AbstractHistoryProviderTest.QueueWriter();
+		hotTier.getHistoryMessages(backend, room, recipient, null, maxStanzas, null, since, writer);
+		List<String> bodies = new ArrayList<>();
+		for (Packet packet : writer.queue) {
+			bodies.add(packet.getElemCDataStaticStr(new String[]{"message", "body"}));
+		}
+		return bodies;
+	}
+
+	private static class BackendProvider
+			extends MemoryHistoryProvider {
+
+		private final AtomicInteger reads = new AtomicInteger();
+		private volatile Runnable onRead;
+
+		BackendProvider() {
+			setMaxSize(1000);
+		}
+
+		@Override
+		public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas,
+									   Integer seconds, Date since, PacketWriter writer) {
+			reads.incrementAndGet();
+			super.getHistoryMessages(room, senderJID, maxchars, maxstanzas, seconds, since, writer);
+			final Runnable onRead = this.onRead;
+			if (onRead != null) {
+				onRead.run();
+			}
+		}
+
+		@Override
+		public boolean isCacheable() {
+			return true;
+		}
+	}
+}
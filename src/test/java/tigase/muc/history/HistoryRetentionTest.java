@@ -0,0 +1,235 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Test;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HistoryRetentionTest {
+
+	private final JID sender = JID.jidInstanceNS("sender@test.local/res");
+
+	@Test
+	public void testRemovingExpiredMessages() {
+		BatchProvider provider = new BatchProvider();
+		Room room1 = createRoom("room1");
+		Room room2 = createRoom("room2");
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 25; i++) {
+			provider.addMessage(room1, null, "old", sender, "nick", new Date(now - TimeUnit.DAYS.toMillis(40) + i));
+		}
+		for (int i = 0; i < 5; i++) {
+			provider.addMessage(room1, null, "new", sender, "nick", new Date(now - TimeUnit.DAYS.toMillis(1) + i));
+			provider.addMessage(room2, null, "new", sender, "nick", new Date(now - TimeUnit.DAYS.toMillis(1) + i));
+		}
+
+		TestRetention retention = new TestRetention(room1.getRoomJID(), room2.getRoomJID());
+		retention.setHistoryProvider(provider);
+		retention.setBatchSize(10);
+		retention.setBatchDelay(0);
+		retention.setRetentionDays(30);
+		retention.removeExpiredMessages();
+
+		assertEquals(5, provider.count(room1.getRoomJID()));
+		assertEquals(5, provider.count(room2.getRoomJID()));
+		assertEquals(25, retention.getRemovedCounter());
+		// 10 + 10 + 5
+		assertEquals(3, retention.getBatchesCounter());
+		assertEquals(4, provider.calls.get());
+		assertEquals(1, provider.flushes.get());
+		assertEquals(1, retention.getRunsCounter());
+
+		for (Integer limit : provider.limits) {
+			assertEquals(10, (int) limit);
+		}
+	}
+
+	@Test
+	public void testRetentionDisabled() {
+		BatchProvider provider = new BatchProvider();
+		Room room = createRoom("room");
+		provider.addMessage(room, null, "old", sender, "nick", new Date(0));
+
+		TestRetention retention = new TestRetention(room.getRoomJID());
+		retention.setHistoryProvider(provider);
+		retention.removeExpiredMessages();
+
+		assertEquals(1, provider.count(room.getRoomJID()));
+		assertEquals(0, provider.calls.get());
+		assertEquals(0, provider.flushes.get());
+	}
+
+	@Test
+	public void testRemovingHistoryOfDestroyedRoom() throws InterruptedException {
+		BatchProvider provider = new BatchProvider();
+		Room small = createRoom("small");
+		Room large = createRoom("large");
+		long now = System.currentTimeMillis() - 1000;
+		for (int i = 0; i < 5; i++) {
+			provider.addMessage(small, null, "msg", sender, "nick", new Date(now + i));
+		}
+		for (int i = 0; i < 95; i++) {
+			provider.addMessage(large, null, "msg", sender, "nick", new Date(now + i));
+		}
+
+		HistoryRetention retention = new HistoryRetention();
+		retention.setBatchSize(10);
+		retention.setBatchDelay(1);
+
+		// history of small rooms is removed immediately
+		retention.removeHistory(provider, small);
+		assertEquals(0, provider.count(small.getRoomJID()));
+		assertEquals(0, retention.getPendingRemovals());
+
+		retention.removeHistory(provider, large);
+		long timeout = System.currentTimeMillis() + 10000;
+		while (retention.getPendingRemovals() > 0 && System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, retention.getPendingRemovals());
+		assertEquals(0, provider.count(large.getRoomJID()));
+		assertEquals(100, retention.getRemovedCounter());
+		assertEquals(0, provider.fullRemovals.get());
+		assertEquals(2, provider.flushes.get());
+	}
+
+	@Test
+	public void testRemovingHistoryWithoutBatches() {
+		BatchProvider provider = new BatchProvider();
+		provider.batches = false;
+		Room room = createRoom("room");
+		provider.addMessage(room, null, "msg", sender, "nick", new Date());
+
+		HistoryRetention retention = new HistoryRetention();
+		retention.removeHistory(provider, room);
+		assertEquals(0, provider.count(room.getRoomJID()));
+		assertEquals(1, provider.fullRemovals.get());
+		assertEquals(0, retention.getRemovedCounter());
+	}
+
+	@Test
+	public void testRoomRetention() {
+		RoomConfig config = new RoomConfig(BareJID.bareJIDInstanceNS("room", "muc.test.local"));
+		assertNull(config.getHistoryRetention());
+		config.setValue(RoomConfig.TIGASE_ROOMCONFIG_HISTORY_RETENTION, "7");
+		assertEquals(Integer.valueOf(7), config.getHistoryRetention());
+		config.setValue(RoomConfig.TIGASE_ROOMCONFIG_HISTORY_RETENTION, "invalid");
+		assertNull(config.getHistoryRetention());
+	}
+
+	private Room createRoom(String name) {
+		BareJID roomJID = BareJID.bareJIDInstanceNS(name, "muc.test.local");
+		return new Room.RoomFactoryImpl().newInstance(null, new RoomConfig(roomJID), new Date(),
+													  sender.getBareJID());
+	}
+
+	private static class TestRetention
+			extends HistoryRetention {
+
+		private final List<BareJID> roomJIDs;
+
+		TestRetention(BareJID... roomJIDs) {
+			this.roomJIDs = Arrays.asList(roomJIDs);
+		}
+
+		@Override
+		protected Collection<BareJID> getRoomJIDs() {
+			return roomJIDs;
+		}
+	}
+
+	private static class BatchProvider
+			extends NoneHistoryProvider {
+
+		private final AtomicInteger calls = new AtomicInteger();
+		private final AtomicInteger flushes = new AtomicInteger();
+		private final AtomicInteger fullRemovals = new AtomicInteger();
+		private final List<Integer> limits = new ArrayList<>();
+		private final Map<BareJID, List<Long>> messages = new ConcurrentHashMap<>();
+		private boolean batches = true;
+
+		@Override
+		public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname,
+							   Date time) {
+			final List<Long> list = messages.computeIfAbsent(room.getRoomJID(), jid -> new ArrayList<>());
+			synchronized (list) {
+				list.add(time.getTime());
+			}
+		}
+
+		@Override
+		public void flush() {
+			flushes.incrementAndGet();
+		}
+
+		@Override
+		public void removeHistory(Room room) {
+			fullRemovals.incrementAndGet();
+			messages.remove(room.getRoomJID());
+		}
+
+		@Override
+		public int removeHistory(BareJID roomJID, Date before, int limit) {
+			if (!batches) {
+				return -1;
+			}
+			calls.incrementAndGet();
+			synchronized (limits) {
+				limits.add(limit);
+			}
+			final List<Long> list = messages.get(roomJID);
+			if (list == null) {
+				return 0;
+			}
+			int removed = 0;
+			synchronized (list) {
+				Iterator<Long> it = list.iterator();
+				while (it.hasNext() && removed < limit) {
+					final long ts = it.next();
+					if (before == null || ts < before.getTime()) {
+						it.remove();
+						removed++;
+					}
+				}
+			}
+			return removed;
+		}
+
+		int count(BareJID roomJID) {
+			final List<Long> list = messages.get(roomJID);
+			return list == null ? 0 : list.size();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.*;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.db.*;
+import tigase.kernel.core.Kernel;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that occupants joining the room are not blocked by occupant which slowly receives history.
+ */
+public class JDBCHistoryProviderConcurrencyTest
+		extends AbstractDataSourceAwareTestCase<DataRepository, HistoryProvider> {
+
+	private static final String PROJECT_ID = "muc";
+	private static final String VERSION = "3.2.0";
+	protected static String uri = System.getProperty("testDbUri");
+
+	@ClassRule
+	public static TestRule rule = new TestRule() {
+		@Override
+		public Statement apply(Statement stmnt, Description d) {
+			if (uri == null || !uri.startsWith("jdbc:")) {
+				return new Statement() {
+					@Override
+					public void evaluate() throws Throwable {
+						Assume.assumeTrue("Ignored due to not passed DB URI!", false);
+					}
+				};
+			}
+			return stmnt;
+		}
+	};
+
+	private HistoryProvider historyProvider;
+	private Room room;
+
+	@BeforeClass
+	public static void loadSchema() throws DBInitException {
+		loadSchema(PROJECT_ID, VERSION, Collections.singleton("muc"));
+	}
+
+	@Before
+	public void setup() throws Exception {
+		historyProvider = getInstance(HistoryProvider.class);
+
+		BareJID roomJID = BareJID.bareJIDInstanceNS(UUID.randomUUID().toString(), "muc.test.local");
+		RoomConfig rc = new RoomConfig(roomJID);
+		rc.setValue(RoomConfig.MUC_ROOMCONFIG_PERSISTENTROOM_KEY, Boolean.TRUE);
+		room = getInstance(Room.RoomFactory.class).newInstance(null, rc, new Date(), roomJID);
+
+		JID sender = JID.jidInstanceNS("user@test.local/res");
+		long ts = System.currentTimeMillis() - 60 * 60 * 1000;
+		for (int i = 0; i < 10; i++) {
+			String body = "Message " + i;
+			Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+			message.addChild(new Element("body", body));
+			historyProvider.addMessage(room, message, body, sender, "nick", new Date(ts + i * 1000));
+		}
+	}
+
+	@After
+	public void tearDown() {
+		if (historyProvider != null) {
+			historyProvider.removeHistory(room);
+		}
+	}
+
+	@Test
+	public void testJoinNotBlockedBySlowRecipient() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger slowReceived = new AtomicInteger();
+
+		// the first joiner stops while receiving history, all joiners use the same statement
+		final JID slowJoiner = JID.jidInstanceNS("joiner@test.local/slow");
+		final PacketWriter slowWriter = new BlockingWriter(blocked, release, slowReceived);
+		Thread slow = new Thread(
+				() -> historyProvider.getHistoryMessages(room, slowJoiner, null, 10, null, null, slowWriter));
+		slow.start();
+		try {
+			assertTrue("History was not sent to the first joiner", blocked.await(30, TimeUnit.SECONDS));
+
+			final AtomicInteger received = new AtomicInteger();
+			final JID joiner = JID.jidInstanceNS("joiner@test.local/other");
+			final PacketWriter writer = new BlockingWriter(null, null, received);
+			Thread other = new Thread(
+					() -> historyProvider.getHistoryMessages(room, joiner, null, 10, null, null, writer));
+			other.start();
+			other.join(30 * 1000);
+			assertFalse("History was not sent while other joiner was receiving it", other.isAlive());
+			assertEquals(10, received.get());
+			assertEquals(1, slowReceived.get());
+		} finally {
+			release.countDown();
+			slow.join();
+		}
+		assertEquals(10, slowReceived.get());
+	}
+
+	@Override
+	protected Class<? extends DataSourceAware> getDataSourceAwareIfc() {
+		return HistoryProvider.class;
+	}
+
+	@Override
+	protected void registerBeans(Kernel kernel) {
+		super.registerBeans(kernel);
+		kernel.registerBean(Room.RoomFactoryImpl.class).exec();
+	}
+
+	private static class BlockingWriter
+			implements PacketWriter {
+
+		private final CountDownLatch blocked;
+		private final AtomicInteger received;
+		private final CountDownLatch release;
+
+		private BlockingWriter(CountDownLatch blocked, CountDownLatch release, AtomicInteger received) {
+			this.blocked = blocked;
+			this.release = release;
+			this.received = received;
+		}
+
+		@Override
+		public void write(Collection<Packet> packets) {
+			packets.forEach(this::write);
+		}
+
+		@Override
+		public void write(Packet packet) {
+			received.incrementAndGet();
+			if (blocked != null) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.*;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import tigase.component.exceptions.ComponentException;
+import tigase.db.*;
+import tigase.kernel.core.Kernel;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.muc.StanzaId;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+import tigase.xmpp.mam.MAMRepository;
+import tigase.xmpp.mam.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks paging of MAM results using message ids instead of offsets.
+ */
+public class JDBCHistoryProviderKeysetTest
+		extends AbstractDataSourceAwareTestCase<DataRepository, HistoryProvider> {
+
+	private static final String PROJECT_ID = "muc";
+	private static final String VERSION = "3.2.0";
+	protected static String uri = System.getProperty("testDbUri");
+
+	@ClassRule
+	public static TestRule rule = new TestRule() {
+		@Override
+		public Statement apply(Statement stmnt, Description d) {
+			if (uri == null || !uri.startsWith("jdbc:")) {
+				return new Statement() {
+					@Override
+					public void evaluate() throws Throwable {
+						Assume.assumeTrue("Ignored due to not passed DB URI!", false);
+					}
+				};
+			}
+			return stmnt;
+		}
+	};
+
+	private final List<String> bodies = new ArrayList<>();
+	private JDBCHistoryProvider historyProvider;
+	private Room room;
+	private long ts;
+
+	@BeforeClass
+	public static void loadSchema() throws DBInitException {
+		loadSchema(PROJECT_ID, VERSION, Collections.singleton("muc"));
+	}
+
+	@Before
+	public void setup() throws Exception {
+		HistoryProvider provider = getInstance(HistoryProvider.class);
+		Assume.assumeTrue(provider instanceof JDBCHistoryProvider);
+		historyProvider = (JDBCHistoryProvider) provider;
+		historyProvider.setMamKeysetPagination(true);
+
+		BareJID roomJID = BareJID.bareJIDInstanceNS(UUID.randomUUID().toString(), "muc.test.local");
+		RoomConfig rc = new RoomConfig(roomJID);
+		rc.setValue(RoomConfig.MUC_ROOMCONFIG_PERSISTENTROOM_KEY, Boolean.TRUE);
+		room = getInstance(Room.RoomFactory.class).newInstance(null, rc, new Date(), roomJID);
+
+		JID sender = JID.jidInstanceNS("user@test.local/res");
+		ts = System.currentTimeMillis() - 60 * 60 * 1000;
+		for (int i = 0; i < 10; i++) {
+			String body = "Message " + i;
+			Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+			message.addChild(new Element("body", body));
+			message.addChild(StanzaId.create(StanzaId.next(), roomJID));
+			// two messages with the same timestamp are ordered by their ids
+			historyProvider.addMessage(room, message, body, sender, "nick", new Date(ts + (i / 2) * 1000));
+			bodies.add(body);
+		}
+	}
+
+	@Test
+	public void testPagingOverMessagesWithoutStableId() throws Exception {
+		JID sender = JID.jidInstanceNS("user@test.local/res");
+		Date date = new Date(ts + 10 * 1000);
+		Set<String> sameTs = new HashSet<>();
+		for (int i = 10; i < 13; i++) {
+			String body = "Message " + i;
+			Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+			message.addChild(new Element("body", body));
+			if (i == 12) {
+				message.addChild(StanzaId.create(StanzaId.next(), room.getRoomJID()));
+			}
+			historyProvider.addMessage(room, message, body, sender, "nick", date);
+			sameTs.add(body);
+		}
+
+		// messages without stable id get one assigned when stored
+		List<MAMRepository.Item> all = queryItems(newQuery(13));
+		assertEquals(13, all.size());
+		Set<String> ids = new HashSet<>();
+		for (MAMRepository.Item item : all) {
+			assertNotNull(item.getId());
+			assertNotEquals(String.valueOf(date.getTime()), item.getId());
+			ids.add(item.getId());
+		}
+		assertEquals(13, ids.size());
+		assertEquals(bodies, getBodies(all.subList(0, 10)));
+		assertEquals(sameTs, new HashSet<>(getBodies(all.subList(10, 13))));
+
+		// messages with the same timestamp are neither skipped nor repeated
+		Query query = newQuery(5);
+		query.getRsm().setAfter(all.get(10).getId());
+		assertEquals(getBodies(all.subList(11, 13)), getBodies(queryItems(query)));
+
+		query = newQuery(5);
+		query.getRsm().setBefore(all.get(12).getId());
+		assertEquals(getBodies(all.subList(7, 12)), getBodies(queryItems(query)));
+
+		// timestamp used as id before the upgrade is placed before messages with the same timestamp
+		query = newQuery(5);
+		query.getRsm().setAfter(String.valueOf(date.getTime()));
+		assertEquals(getBodies(all.subList(10, 13)), getBodies(queryItems(query)));
+
+		query = newQuery(5);
+		query.getRsm().setBefore(String.valueOf(date.getTime()));
+		assertEquals(bodies.subList(5, 10), getBodies(queryItems(query)));
+	}
+
+	@After
+	public void tearDown() {
+		if (historyProvider != null) {
+			historyProvider.setMamKeysetPagination(false);
+			historyProvider.setMamCountMode(JDBCHistoryProvider.MAMCountMode.exact);
+			historyProvider.removeHistory(room);
+		}
+	}
+
+	@Test
+	public void testPagingForward() throws Exception {
+		List<String> received = new ArrayList<>();
+		String after = null;
+		for (int page = 0; page < 4; page++) {
+			Query query = newQuery(3);
+			query.getRsm().setAfter(after);
+			List<MAMRepository.Item> items = queryItems(query);
+			assertEquals(10, query.getRsm().getCount().intValue());
+			if (page == 0) {
+				assertEquals(0, query.getRsm().getIndex().intValue());
+			}
+			for (MAMRepository.Item item : items) {
+				received.add(getBody(item));
+			}
+			if (items.isEmpty()) {
+				break;
+			}
+			after = items.get(items.size() - 1).getId();
+		}
+		assertEquals(bodies, received);
+	}
+
+	@Test
+	public void testPagingBackward() throws Exception {
+		historyProvider.setMamCountMode(JDBCHistoryProvider.MAMCountMode.none);
+
+		List<MAMRepository.Item> all = queryItems(newQuery(10));
+		assertEquals(bodies, getBodies(all));
+
+		Query query = newQuery(4);
+		query.getRsm().setBefore(all.get(9).getId());
+		List<MAMRepository.Item> items = queryItems(query);
+		assertNull(query.getRsm().getCount());
+		assertEquals(bodies.subList(5, 9), getBodies(items));
+
+		query = newQuery(4);
+		query.getRsm().setBefore(items.get(0).getId());
+		items = queryItems(query);
+		assertEquals(bodies.subList(1, 5), getBodies(items));
+
+		query = newQuery(4);
+		query.getRsm().setBefore(items.get(0).getId());
+		items = queryItems(query);
+		assertEquals(bodies.subList(0, 1), getBodies(items));
+	}
+
+	@Override
+	protected Class<? extends DataSourceAware> getDataSourceAwareIfc() {
+		return HistoryProvider.class;
+	}
+
+	@Override
+	protected void registerBeans(Kernel kernel) {
+		super.registerBeans(kernel);
+		kernel.registerBean(Room.RoomFactoryImpl.class).exec();
+	}
+
+	private String getBody(MAMRepository.Item item) {
+		return item.getMessage().getChildCData(new String[]{"message", "body"});
+	}
+
+	private List<String> getBodies(List<MAMRepository.Item> items) {
+		List<String> result = new ArrayList<>();
+		for (MAMRepository.Item item : items) {
+			result.add(getBody(item));
+		}
+		return result;
+	}
+
+	private Query newQuery(int max) {
+		Query query = historyProvider.newQuery();
+		query.setComponentJID(JID.jidInstance(room.getRoomJID()));
+		query.setQuestionerJID(JID.jidInstanceNS("admin@test.local/res"));
+		query.getRsm().setMax(max);
+		return query;
+	}
+
+	private List<MAMRepository.Item> queryItems(Query query) throws TigaseDBException, ComponentException {
+		List<MAMRepository.Item> items = new ArrayList<>();
+		historyProvider.queryItems(query, (q, item) -> items.add(item));
+		return items;
+	}
+}
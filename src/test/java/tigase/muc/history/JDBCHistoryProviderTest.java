@@ -41,7 +41,7 @@ public class JDBCHistoryProviderTest
 		extends AbstractHistoryProviderTest<DataRepository> {
 
 	private static final String PROJECT_ID = "muc";
-	private static final String VERSION = "3.0.0";
+	private static final String VERSION = "3.2.0";
 
 	@ClassRule
 	public static TestRule rule = new TestRule() {
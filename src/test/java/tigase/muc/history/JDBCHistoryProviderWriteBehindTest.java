@@ -0,0 +1,152 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.*;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import tigase.component.exceptions.ComponentException;
+import tigase.db.*;
+import tigase.kernel.core.Kernel;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+import tigase.xmpp.mam.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that no messages are lost when write-behind mode is enabled and provider is stopped.
+ */
+public class JDBCHistoryProviderWriteBehindTest
+		extends AbstractDataSourceAwareTestCase<DataRepository, HistoryProvider> {
+
+	private static final String PROJECT_ID = "muc";
+	private static final String VERSION = "3.2.0";
+	protected static String uri = System.getProperty("testDbUri");
+
+	@ClassRule
+	public static TestRule rule = new TestRule() {
+		@Override
+		public Statement apply(Statement stmnt, Description d) {
+			if (uri == null || !uri.startsWith("jdbc:derby:")) {
+				return new Statement() {
+					@Override
+					public void evaluate() throws Throwable {
+						Assume.assumeTrue("Ignored due to not passed Derby DB URI!", false);
+					}
+				};
+			}
+			return stmnt;
+		}
+	};
+
+	private JDBCHistoryProvider historyProvider;
+	private Room room;
+
+	@BeforeClass
+	public static void loadSchema() throws DBInitException {
+		loadSchema(PROJECT_ID, VERSION, Collections.singleton("muc"));
+	}
+
+	@Before
+	public void setup() throws Exception {
+		HistoryProvider provider = getInstance(HistoryProvider.class);
+		Assume.assumeTrue(provider instanceof JDBCHistoryProvider);
+		historyProvider = (JDBCHistoryProvider) provider;
+		historyProvider.setWriteBehind(true);
+
+		BareJID roomJID = BareJID.bareJIDInstanceNS(UUID.randomUUID().toString(), "muc.test.local");
+		RoomConfig rc = new RoomConfig(roomJID);
+		rc.setValue(RoomConfig.MUC_ROOMCONFIG_PERSISTENTROOM_KEY, Boolean.TRUE);
+		room = getInstance(Room.RoomFactory.class).newInstance(null, rc, new Date(), roomJID);
+	}
+
+	@After
+	public void tearDown() {
+		if (historyProvider != null) {
+			historyProvider.removeHistory(room);
+		}
+	}
+
+	@Test
+	public void testNoMessagesLostOnStop() throws Exception {
+		final int threads = 4;
+		final int messagesPerThread = 500;
+		final WriteBehindQueue<JDBCHistoryProvider.PendingMessage> queue = historyProvider.getWriteBehindQueue();
+
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			workers.add(new Thread(() -> {
+				for (int i = 0; i < messagesPerThread; i++) {
+					JID sender = JID.jidInstanceNS("user" + thread + "@test.local/res");
+					String body = "Message " + i + " from " + thread;
+					Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+					message.addChild(new Element("body", body));
+					historyProvider.addMessage(room, message, body, sender, "nick" + thread,
+											   new Date(System.currentTimeMillis() - 60 * 60 * 1000 + i));
+				}
+			}));
+		}
+		workers.forEach(Thread::start);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		// orderly stop - all queued messages have to be written
+		historyProvider.destroy();
+
+		assertEquals(threads * messagesPerThread, queue.getWritten());
+		assertEquals(0, queue.getFailed());
+		assertEquals(0, queue.getDropped());
+		assertTrue("Messages were not written in batches", queue.getBatches() < threads * messagesPerThread);
+		assertEquals(threads * messagesPerThread, countMessages());
+	}
+
+	@Override
+	protected Class<? extends DataSourceAware> getDataSourceAwareIfc() {
+		return HistoryProvider.class;
+	}
+
+	@Override
+	protected void registerBeans(Kernel kernel) {
+		super.registerBeans(kernel);
+		kernel.registerBean(Room.RoomFactoryImpl.class).exec();
+	}
+
+	private int countMessages() throws TigaseDBException, ComponentException {
+		Query query = historyProvider.newQuery();
+		query.setComponentJID(JID.jidInstance(room.getRoomJID()));
+		query.setQuestionerJID(JID.jidInstanceNS("admin@test.local/res"));
+		query.getRsm().setMax(1);
+		historyProvider.queryItems(query, (q, item) -> {
+		});
+		return query.getRsm().getCount();
+	}
+}
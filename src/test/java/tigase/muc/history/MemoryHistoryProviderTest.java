@@ -0,0 +1,164 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Test;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MemoryHistoryProviderTest {
+
+	private final JID recipient = JID.jidInstanceNS("recipient@test.local/res");
+	private final JID sender = JID.jidInstanceNS("sender@test.local/res");
+
+	@Test
+	public void testRingBuffer() {
+		MemoryHistoryProvider provider = new MemoryHistoryProvider();
+		provider.setMaxSize(10);
+		Room room = createRoom("ring");
+
+		for (int i = 0; i < 25; i++) {
+			addMessage(provider, room, i);
+		}
+
+		List<String> bodies = getHistory(provider, room, null);
+		assertEquals(10, bodies.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(String.valueOf(15 + i), bodies.get(i));
+		}
+
+		bodies = getHistory(provider, room, 3);
+		assertEquals(3, bodies.size());
+		assertEquals("22", bodies.get(0));
+		assertEquals("24", bodies.get(2));
+
+		provider.removeHistory(room);
+		assertTrue(getHistory(provider, room, null).isEmpty());
+		assertEquals(0, provider.getUsedMemory());
+	}
+
+	@Test
+	public void testConcurrentAppendAndRead() throws InterruptedException {
+		final MemoryHistoryProvider provider = new MemoryHistoryProvider();
+		provider.setMaxSize(32);
+		final Room room = createRoom("concurrent");
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<String> error = new AtomicReference<>();
+
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 2; t++) {
+			final int writer = t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 20000; i++) {
+					addMessage(provider, room, writer * 1000000 + i);
+				}
+			}));
+		}
+		Thread reader = new Thread(() -> {
+			while (running.get()) {
+				List<String> bodies = getHistory(provider, room, null);
+				if (bodies.size() > 32) {
+					error.set("Too many messages: " + bodies.size());
+				}
+				int[] last = new int[]{-1, -1};
+				for (String body : bodies) {
+					int value = Integer.parseInt(body);
+					int writer = value / 1000000;
+					if (value <= last[writer]) {
+						error.set("Messages out of order: " + bodies);
+					}
+					last[writer] = value;
+				}
+			}
+		});
+		reader.start();
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		running.set(false);
+		reader.join();
+
+		assertNull(error.get());
+		assertEquals(32, getHistory(provider, room, null).size());
+	}
+
+	@Test
+	public void testMemoryBudget() throws InterruptedException {
+		MemoryHistoryProvider provider = new MemoryHistoryProvider();
+		provider.setMaxSize(100);
+		Room room1 = createRoom("room1");
+		Room room2 = createRoom("room2");
+
+		addMessage(provider, room1, 1);
+		long itemSize = provider.getUsedMemory();
+		provider.setMemoryBudget(itemSize * 20 + 100);
+
+		for (int i = 2; i <= 10; i++) {
+			addMessage(provider, room1, i);
+		}
+		Thread.sleep(5);
+		for (int i = 1; i <= 10; i++) {
+			addMessage(provider, room2, i);
+		}
+		assertEquals(10, getHistory(provider, room1, null).size());
+		assertEquals(10, getHistory(provider, room2, null).size());
+
+		// room2 is now least recently active
+		Thread.sleep(5);
+		addMessage(provider, room1, 11);
+
+		assertTrue(getHistory(provider, room2, null).isEmpty());
+		assertEquals(11, getHistory(provider, room1, null).size());
+		assertTrue(provider.getUsedMemory() <= itemSize * 20 + 100);
+	}
+
+	private void addMessage(MemoryHistoryProvider provider, Room room, int i) {
+		Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+		message.addChild(new Element("body", String.valueOf(i)));
+		provider.addMessage(room, message, String.valueOf(i), sender, "nick", new Date());
+	}
+
+	private Room createRoom(String name) {
+		BareJID roomJID = BareJID.bareJIDInstanceNS(name, "muc.test.local");
+		return new Room.RoomFactoryImpl().newInstance(null, new RoomConfig(roomJID), new Date(),
+													  sender.getBareJID());
+	}
+
+	private List<String> getHistory(MemoryHistoryProvider provider, Room room, Integer maxStanzas) {
+		AbstractHistoryProviderTest.QueueWriter writer = new AbstractHistoryProviderTest.QueueWriter();
+		provider.getHistoryMessages(room, recipient, null, maxStanzas, null, null, writer);
+		List<String> bodies = new ArrayList<>();
+		for (Packet packet : writer.queue) {
+			bodies.add(packet.getElemCDataStaticStr(new String[]{"message", "body"}));
+		}
+		return bodies;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageTemplateCacheTest {
+
+	private static final String MESSAGE = "<message type=\"groupchat\" id=\"m1\" xmlns=\"jabber:client\">" +
+			"<body>Test message</body><origin-id xmlns=\"urn:xmpp:sid:0\" id=\"o1\"/></message>";
+
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("room@muc.test.local");
+
+	@Test
+	public void testCopiesAreIndependent() {
+		MessageTemplateCache cache = new MessageTemplateCache(10);
+
+		Element first = cache.get(roomJID, "1", MESSAGE);
+		first.setAttribute("to", "user1@test.local");
+		first.addChild(new Element("delay"));
+
+		Element second = cache.get(roomJID, "1", MESSAGE);
+		assertNull(second.getAttributeStaticStr("to"));
+		assertNull(second.getChild("delay"));
+		assertEquals("Test message", second.getChildCDataStaticStr(new String[]{"message", "body"}));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// only top level element is copied
+		assertNotSame(first, second);
+		assertSame(first.getChild("body"), second.getChild("body"));
+		assertEquals("m1", second.getAttributeStaticStr("id"));
+	}
+
+	@Test
+	public void testKeys() {
+		MessageTemplateCache cache = new MessageTemplateCache(10);
+
+		cache.get(roomJID, "1", MESSAGE);
+		cache.get(BareJID.bareJIDInstanceNS("other@muc.test.local"), "1", MESSAGE);
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.size());
+
+		// message without stable id or timestamp is not cached
+		assertNotNull(cache.get(roomJID, null, MESSAGE));
+		assertNotNull(cache.get(roomJID, null, MESSAGE));
+		assertEquals(2, cache.size());
+		assertEquals(0, cache.getHits());
+	}
+
+	@Test
+	public void testEviction() {
+		MessageTemplateCache cache = new MessageTemplateCache(2);
+		cache.get(roomJID, "1", MESSAGE);
+		cache.get(roomJID, "2", MESSAGE);
+		cache.get(roomJID, "1", MESSAGE);
+		cache.get(roomJID, "3", MESSAGE);
+		assertEquals(2, cache.size());
+
+		// "2" was least recently used
+		cache.get(roomJID, "2", MESSAGE);
+		assertEquals(4, cache.getMisses());
+
+		// message with the same id but different content is not taken from cache
+		Element changed = cache.get(roomJID, "2", MESSAGE.replace("Test message", "Changed"));
+		assertEquals("Changed", changed.getChildCDataStaticStr(new String[]{"message", "body"}));
+
+		cache.setMaxSize(0);
+		assertEquals(0, cache.size());
+		assertNotNull(cache.get(roomJID, "1", MESSAGE));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testRenderedMessage() throws Exception {
+		MemoryHistoryProvider provider = new MemoryHistoryProvider();
+		for (int i = 0; i < 2; i++) {
+			JID recipient = JID.jidInstance("user" + i + "@test.local/res");
+			Element message = provider.createMessage(roomJID, recipient, "nick", "1", MESSAGE, "Test message", null,
+													 false, new Date()).getElement();
+			assertEquals(recipient.toString(), message.getAttributeStaticStr("to"));
+			assertEquals("room@muc.test.local/nick", message.getAttributeStaticStr("from"));
+			assertEquals(1, message.getChildren().stream().filter(c -> "delay".equals(c.getName())).count());
+			assertEquals("o1", message.getChild("origin-id", "urn:xmpp:sid:0").getAttributeStaticStr("id"));
+		}
+		assertEquals(1, provider.getTemplateCache().getHits());
+	}
+
+	@Test
+	public void testRenderingFromTemplates() throws Exception {
+		final JID recipient = JID.jidInstance("user@test.local/res");
+		final List<String> messages = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			messages.add(MESSAGE.replace("m1", "m" + i));
+		}
+		final int rounds = 20;
+
+		MemoryHistoryProvider parsing = new MemoryHistoryProvider();
+		parsing.setMessageTemplateCacheSize(0);
+		MemoryHistoryProvider caching = new MemoryHistoryProvider();
+
+		List<String> parsed = render(parsing, recipient, messages, rounds);
+		List<String> cached = render(caching, recipient, messages, rounds);
+
+		// every message is parsed only once and rendered the same way as without cache
+		assertEquals(parsed, cached);
+		assertEquals(messages.size(), caching.getTemplateCache().getMisses());
+		assertEquals((rounds - 1) * messages.size(), caching.getTemplateCache().getHits());
+		assertEquals(0, parsing.getTemplateCache().size());
+	}
+
+	private List<String> render(MemoryHistoryProvider provider, JID recipient, List<String> messages, int rounds)
+			throws Exception {
+		final List<String> result = new ArrayList<>();
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < messages.size(); i++) {
+				result.add(provider.createMessage(roomJID, recipient, "nick", String.valueOf(i), messages.get(i), null,
+												  null, false, new Date(i * 1000L)).getElement().toString());
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.*;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.db.*;
+import tigase.kernel.core.Kernel;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.muc.StanzaId;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that history stored in segment log files is returned the same way as history stored in database (ie. Derby).
+ * Throughput of both is compared by <code>SegmentLogHistoryProviderBenchmark</code> in <code>jmh</code> profile.
+ */
+public class SegmentLogHistoryProviderComparisonTest
+		extends AbstractDataSourceAwareTestCase<DataRepository, HistoryProvider> {
+
+	private static final int MESSAGES = 500;
+	private static final String PROJECT_ID = "muc";
+	private static final String VERSION = "3.2.0";
+	protected static String uri = System.getProperty("testDbUri");
+
+	@ClassRule
+	public static TestRule rule = new TestRule() {
+		@Override
+		public Statement apply(Statement stmnt, Description d) {
+			if (uri == null || !uri.startsWith("jdbc:")) {
+				return new Statement() {
+					@Override
+					public void evaluate() throws Throwable {
+						Assume.assumeTrue("Ignored due to not passed DB URI!", false);
+					}
+				};
+			}
+			return stmnt;
+		}
+	};
+
+	private Path dir;
+	private final JID sender = JID.jidInstanceNS("user@test.local/res");
+
+	@BeforeClass
+	public static void loadSchema() throws DBInitException {
+		loadSchema(PROJECT_ID, VERSION, Collections.singleton("muc"));
+	}
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("muc-history");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testSameHistory() throws Exception {
+		HistoryProvider database = getInstance(HistoryProvider.class);
+		SegmentLogHistoryProvider segmentLog = new SegmentLogHistoryProvider();
+		segmentLog.setPath(dir.toString());
+
+		try {
+			List<String> databaseHistory = run(database);
+			List<String> segmentLogHistory = run(segmentLog);
+
+			assertEquals(20, databaseHistory.size());
+			assertEquals("Message " + (MESSAGES - 20), databaseHistory.get(0));
+			assertEquals(databaseHistory, segmentLogHistory);
+		} finally {
+			segmentLog.destroy();
+		}
+	}
+
+	@Override
+	protected Class<? extends DataSourceAware> getDataSourceAwareIfc() {
+		return HistoryProvider.class;
+	}
+
+	@Override
+	protected void registerBeans(Kernel kernel) {
+		super.registerBeans(kernel);
+		kernel.registerBean(Room.RoomFactoryImpl.class).exec();
+	}
+
+	/**
+	 * Returns bodies of last 20 messages of history read after appending messages.
+	 */
+	private List<String> run(HistoryProvider provider) throws Exception {
+		BareJID roomJID = BareJID.bareJIDInstanceNS(UUID.randomUUID().toString(), "muc.test.local");
+		RoomConfig rc = new RoomConfig(roomJID);
+		rc.setValue(RoomConfig.MUC_ROOMCONFIG_PERSISTENTROOM_KEY, Boolean.TRUE);
+		Room room = getInstance(Room.RoomFactory.class).newInstance(null, rc, new Date(), roomJID);
+
+		try {
+			long ts = System.currentTimeMillis() - MESSAGES * 1000L;
+			for (int i = 0; i < MESSAGES; i++) {
+				String body = "Message " + i;
+				Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+				message.addChild(new Element("body", body));
+				message.addChild(StanzaId.create(StanzaId.next(), roomJID));
+				provider.addMessage(room, message, body, sender, "nick", new Date(ts + i * 1000L));
+			}
+			provider.flush();
+
+			CollectingWriter writer = new CollectingWriter();
+			provider.getHistoryMessages(room, sender, null, 20, null, null, writer);
+			return writer.bodies;
+		} finally {
+			provider.removeHistory(room);
+		}
+	}
+
+	private static class CollectingWriter
+			implements PacketWriter {
+
+		private final List<String> bodies = new ArrayList<>();
+
+		@Override
+		public void write(Collection<Packet> packets) {
+			packets.forEach(this::write);
+		}
+
+		@Override
+		public void write(Packet packet) {
+			bodies.add(packet.getElement().getChildCData(new String[]{"message", "body"}));
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+	}
+}
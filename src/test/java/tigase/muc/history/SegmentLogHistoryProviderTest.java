@@ -0,0 +1,80 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import tigase.db.DataSource;
+import tigase.kernel.core.Kernel;
+import tigase.muc.Room;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Runs history provider tests against history stored in segment log files, which does not need a database.
+ */
+public class SegmentLogHistoryProviderTest
+		extends AbstractHistoryProviderTest<DataSource> {
+
+	private static Path dir;
+
+	@BeforeClass
+	public static void createDirectory() throws IOException {
+		dir = Files.createTempDirectory("muc-history");
+		savedMessages.clear();
+	}
+
+	@AfterClass
+	public static void removeDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Before
+	@Override
+	public void setup() {
+		SegmentLogHistoryProvider provider = new SegmentLogHistoryProvider();
+		provider.setPath(dir.toString());
+		// small segments, so messages are spread over a few of them
+		provider.setSegmentSize(2048);
+		provider.setIndexInterval(256);
+		historyProvider = provider;
+		roomFactory = new Room.RoomFactoryImpl();
+	}
+
+	@After
+	@Override
+	public void tearDown() {
+		// closing files, so next test reads history from disk
+		historyProvider.destroy();
+		super.tearDown();
+	}
+
+	@Override
+	protected void registerBeans(Kernel kernel) {
+		// provider is created by test and does not use a data source
+	}
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class SegmentLogTest {
+
+	private Path dir;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("muc-segment-log");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testAppendAndReopen() throws IOException {
+		SegmentLog log = open();
+		append(log, 0, 200);
+		assertTrue(listFiles(LogSegment.LOG_SUFFIX).size() > 1);
+		assertRecords(log, 0, 200);
+		close(log);
+
+		// sealed segments have index files, so only the active one is scanned
+		assertEquals(listFiles(LogSegment.LOG_SUFFIX).size() - 1, listFiles(LogSegment.INDEX_SUFFIX).size());
+
+		log = open();
+		log.lockRead();
+		try {
+			assertEquals(0, log.getFirstSeq());
+			assertEquals(200, log.getNextSeq());
+			assertEquals(50, log.seqOf(1050));
+			assertEquals(0, log.seqOf(0));
+			assertEquals(200, log.seqOf(5000));
+			assertEquals(123, log.findSeq("id-123"));
+			assertEquals(-1, log.findSeq("id-1000"));
+		} finally {
+			log.unlockRead();
+		}
+		assertRecords(log, 0, 200);
+
+		append(log, 200, 210);
+		assertRecords(log, 0, 210);
+		close(log);
+	}
+
+	@Test
+	public void testRecoveryOfTornWrite() throws IOException {
+		SegmentLog log = open();
+		append(log, 0, 10);
+		close(log);
+
+		List<Path> files = listFiles(LogSegment.LOG_SUFFIX);
+		Path last = files.get(files.size() - 1);
+		try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+
+		log = open();
+		log.lockRead();
+		try {
+			assertEquals(9, log.getNextSeq());
+		} finally {
+			log.unlockRead();
+		}
+		append(log, 9, 12);
+		assertRecords(log, 0, 12);
+		close(log);
+	}
+
+	@Test
+	public void testTimestampsNeverDecrease() throws IOException {
+		SegmentLog log = open();
+		log.lockWrite();
+		try {
+			log.append(new SegmentLog.Record(2000, "a", "nick", "sender@test.local", "first", null));
+			log.append(new SegmentLog.Record(1000, "b", "nick", "sender@test.local", "second", null));
+		} finally {
+			log.unlockWrite();
+		}
+		List<SegmentLog.Record> records = read(log, 0, 2);
+		assertEquals(2000, records.get(1).ts);
+		assertEquals("second", records.get(1).body);
+		close(log);
+	}
+
+	@Test
+	public void testRemoveBefore() throws IOException {
+		SegmentLog log = open();
+		append(log, 0, 200);
+
+		log.lockWrite();
+		try {
+			assertEquals(50, log.removeBefore(1050, Integer.MAX_VALUE));
+			assertEquals(50, log.getFirstSeq());
+			assertEquals(50, log.seqOf(0));
+		} finally {
+			log.unlockWrite();
+		}
+		assertRecords(log, 50, 200);
+		close(log);
+
+		log = open();
+		assertRecords(log, 50, 200);
+
+		log.lockWrite();
+		try {
+			int removed = log.removeBefore(1190, 1);
+			assertTrue(removed > 0 && removed < 140);
+			assertEquals(50 + removed, log.getFirstSeq());
+			assertEquals(140 - removed, log.removeBefore(1190, Integer.MAX_VALUE));
+			assertEquals(200 - 190, log.removeBefore(Long.MAX_VALUE, Integer.MAX_VALUE));
+			assertEquals(200, log.getFirstSeq());
+			assertEquals(200, log.getNextSeq());
+		} finally {
+			log.unlockWrite();
+		}
+		append(log, 200, 205);
+		assertRecords(log, 200, 205);
+		close(log);
+	}
+
+	@Test
+	public void testReadBackward() throws IOException {
+		SegmentLog log = open();
+		append(log, 0, 200);
+
+		List<Long> seqs = new ArrayList<>();
+		log.lockRead();
+		try {
+			log.readBackward(10, 150, (seq, record) -> {
+				assertEquals(1000 + seq, record.ts);
+				seqs.add(seq);
+				return seqs.size() < 100;
+			});
+			assertEquals(100, seqs.size());
+			assertEquals(149, (long) seqs.get(0));
+			assertEquals(50, (long) seqs.get(99));
+
+			seqs.clear();
+			log.readBackward(10, Long.MAX_VALUE, (seq, record) -> seqs.add(seq));
+			assertEquals(190, seqs.size());
+			assertEquals(199, (long) seqs.get(0));
+			assertEquals(10, (long) seqs.get(189));
+		} finally {
+			log.unlockRead();
+		}
+		close(log);
+	}
+
+	private SegmentLog open() throws IOException {
+		SegmentLog log = new SegmentLog(dir, 1024, 128);
+		log.open();
+		return log;
+	}
+
+	private void close(SegmentLog log) throws IOException {
+		log.lockWrite();
+		try {
+			log.close();
+		} finally {
+			log.unlockWrite();
+		}
+	}
+
+	private void append(SegmentLog log, int from, int to) throws IOException {
+		log.lockWrite();
+		try {
+			for (int i = from; i < to; i++) {
+				log.append(new SegmentLog.Record(1000 + i, "id-" + i, "nick-" + (i % 3), "sender@test.local/res",
+												 "Message " + i, i % 2 == 0 ? null : "<message><body>Message " + i +
+														 "</body></message>"));
+			}
+		} finally {
+			log.unlockWrite();
+		}
+	}
+
+	private void assertRecords(SegmentLog log, int from, int to) throws IOException {
+		List<SegmentLog.Record> records = read(log, 0, Long.MAX_VALUE);
+		assertEquals(to - from, records.size());
+		for (int i = from; i < to; i++) {
+			SegmentLog.Record record = records.get(i - from);
+			assertEquals(1000 + i, record.ts);
+			assertEquals("id-" + i, record.stableId);
+			assertEquals("nick-" + (i % 3), record.senderNickname);
+			assertEquals("Message " + i, record.body);
+			assertEquals(i % 2 == 0, record.msg == null);
+		}
+	}
+
+	private List<SegmentLog.Record> read(SegmentLog log, long fromSeq, long toSeq) throws IOException {
+		List<SegmentLog.Record> records = new ArrayList<>();
+		log.lockRead();
+		try {
+			log.read(fromSeq, toSeq, (seq, record) -> records.add(record));
+		} finally {
+			log.unlockRead();
+		}
+		return records;
+	}
+
+	private List<Path> listFiles(String suffix) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + suffix)) {
+			stream.forEach(files::add);
+		}
+		files.sort(Comparator.naturalOrder());
+		return files;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class WriteBehindQueueTest {
+
+	@Test
+	public void testAddAfterStopIsWrittenSynchronously() throws Exception {
+		final List<String> stored = Collections.synchronizedList(new ArrayList<>());
+		WriteBehindQueue<String> queue = new WriteBehindQueue<>("test-writer", 10, 5, 10,
+																WriteBehindQueue.OverflowPolicy.block,
+																stored::addAll);
+		queue.add("1");
+		queue.stop(1000);
+		queue.add("2");
+
+		assertEquals(2, stored.size());
+		assertEquals("2", stored.get(1));
+		assertEquals(2, queue.getWritten());
+	}
+
+	@Test
+	public void testPartialBatchRetriesOnlyRemainingItems() throws Exception {
+		final List<String> stored = Collections.synchronizedList(new ArrayList<>());
+		WriteBehindQueue<String> queue = new WriteBehindQueue<>("test-writer", 10, 3, 1000,
+																WriteBehindQueue.OverflowPolicy.block, batch -> {
+			if (batch.size() == 1) {
+				stored.addAll(batch);
+				return;
+			}
+			// first item was applied before batch failed
+			stored.add(batch.get(0));
+			throw new WriteBehindQueue.PartialWriteException(batch.subList(1, batch.size()), null);
+		});
+		queue.add("1");
+		queue.add("2");
+		queue.add("3");
+		queue.stop(1000);
+
+		assertEquals(3, stored.size());
+		assertEquals(Arrays.asList("1", "2", "3"), new ArrayList<>(stored));
+		assertEquals(3, queue.getWritten());
+		assertEquals(0, queue.getFailed());
+	}
+}
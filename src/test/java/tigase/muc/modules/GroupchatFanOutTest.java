@@ -0,0 +1,210 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class GroupchatFanOutTest {
+
+	@Test
+	public void testPerRecipientOrder() throws Exception {
+		final int recipientsCount = 500;
+		final int messages = 50;
+
+		GroupchatFanOut fanOut = new GroupchatFanOut();
+		fanOut.setThreshold(100);
+		fanOut.initialize();
+		try {
+			assertFalse(fanOut.isParallel(99));
+			assertTrue(fanOut.isParallel(recipientsCount));
+
+			JID[] recipients = new JID[recipientsCount];
+			for (int i = 0; i < recipientsCount; i++) {
+				recipients[i] = JID.jidInstance("user-" + i + "@shakespeare.lit/desktop");
+			}
+
+			final Map<JID, List<String>> received = new ConcurrentHashMap<>();
+			final CountDownLatch latch = new CountDownLatch(recipientsCount * messages);
+			for (int m = 0; m < messages; m++) {
+				final String id = String.valueOf(m);
+				fanOut.fanOut(recipients, jid -> Packet.packetInstance(
+						new Element("message", new String[]{"id", "to"}, new String[]{id, jid.toString()})), packet -> {
+					received.computeIfAbsent(packet.getStanzaTo(), jid -> new ArrayList<>())
+							.add(packet.getElement().getAttributeStaticStr("id"));
+					latch.countDown();
+				});
+			}
+
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+			for (JID jid : recipients) {
+				List<String> ids = received.get(jid);
+				assertEquals(messages, ids.size());
+				for (int m = 0; m < messages; m++) {
+					assertEquals(String.valueOf(m), ids.get(m));
+				}
+			}
+		} finally {
+			fanOut.beforeUnregister();
+		}
+	}
+
+	@Test
+	public void testPerRecipientOrderWhenCrossingThreshold() throws Exception {
+		final int recipientsCount = 200;
+		final int messages = 30;
+
+		GroupchatFanOut fanOut = new GroupchatFanOut();
+		fanOut.setThreshold(recipientsCount);
+		fanOut.setQueueSize(messages * recipientsCount);
+		fanOut.initialize();
+		try {
+			JID[] recipients = new JID[recipientsCount];
+			for (int i = 0; i < recipientsCount; i++) {
+				recipients[i] = JID.jidInstance("user-" + i + "@shakespeare.lit/desktop");
+			}
+
+			final Map<JID, List<String>> received = new ConcurrentHashMap<>();
+			final CountDownLatch gate = new CountDownLatch(1);
+			final CountDownLatch latch = new CountDownLatch(recipientsCount * messages);
+			final Consumer<Packet> writer = packet -> {
+				try {
+					// keeps deliveries pending until all messages are sent
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				received.computeIfAbsent(packet.getStanzaTo(), jid -> Collections.synchronizedList(new ArrayList<>()))
+						.add(packet.getElement().getAttributeStaticStr("id"));
+				latch.countDown();
+			};
+
+			for (int m = 0; m < messages; m++) {
+				final String id = String.valueOf(m);
+				if (m % 3 == 0) {
+					// room is smaller than threshold, so packets are written one by one
+					for (JID jid : recipients) {
+						fanOut.write(Packet.packetInstance(
+								new Element("presence", new String[]{"id", "to"}, new String[]{id, jid.toString()})),
+									 writer);
+					}
+				} else {
+					assertTrue(fanOut.isParallel(recipientsCount));
+					fanOut.fanOut(recipients, jid -> Packet.packetInstance(
+							new Element("message", new String[]{"id", "to"}, new String[]{id, jid.toString()})),
+								  writer);
+				}
+			}
+			gate.countDown();
+
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+			for (JID jid : recipients) {
+				List<String> ids = received.get(jid);
+				assertEquals(messages, ids.size());
+				for (int m = 0; m < messages; m++) {
+					assertEquals(String.valueOf(m), ids.get(m));
+				}
+			}
+		} finally {
+			fanOut.beforeUnregister();
+		}
+	}
+
+	@Test
+	public void testDirectWriteWithoutPendingDeliveries() throws Exception {
+		GroupchatFanOut fanOut = new GroupchatFanOut();
+		fanOut.setThreshold(10);
+		fanOut.initialize();
+		try {
+			final Thread caller = Thread.currentThread();
+			final List<Thread> writers = new ArrayList<>();
+			fanOut.write(Packet.packetInstance(
+					new Element("message", new String[]{"to"}, new String[]{"user@shakespeare.lit/desktop"})),
+						 packet -> writers.add(Thread.currentThread()));
+			assertEquals(Collections.singletonList(caller), writers);
+		} finally {
+			fanOut.beforeUnregister();
+		}
+	}
+
+	@Test
+	public void testFullQueueKeepsOrder() throws Exception {
+		final int messages = 20;
+		final JID recipient = JID.jidInstance("user@shakespeare.lit/desktop");
+
+		GroupchatFanOut fanOut = new GroupchatFanOut();
+		fanOut.setThreshold(1);
+		fanOut.setQueueSize(1);
+		fanOut.initialize();
+		try {
+			final List<String> received = Collections.synchronizedList(new ArrayList<>());
+			final CountDownLatch gate = new CountDownLatch(1);
+			final Consumer<Packet> writer = packet -> {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				received.add(packet.getElement().getAttributeStaticStr("id"));
+			};
+
+			final Thread sender = new Thread(() -> {
+				for (int m = 0; m < messages; m++) {
+					final String id = String.valueOf(m);
+					fanOut.fanOut(new JID[]{recipient}, jid -> Packet.packetInstance(
+							new Element("message", new String[]{"id", "to"}, new String[]{id, jid.toString()})),
+								  writer);
+				}
+			});
+			sender.start();
+			// sender waits for space in the queue instead of writing or dropping packets
+			Thread.sleep(100);
+			assertTrue(sender.isAlive());
+			assertTrue(received.isEmpty());
+
+			gate.countDown();
+			sender.join(30000);
+			assertFalse(sender.isAlive());
+
+			final long timeout = System.currentTimeMillis() + 30000;
+			while (received.size() < messages && System.currentTimeMillis() < timeout) {
+				Thread.sleep(10);
+			}
+			assertEquals(messages, received.size());
+			for (int m = 0; m < messages; m++) {
+				assertEquals(String.valueOf(m), received.get(m));
+			}
+		} finally {
+			fanOut.beforeUnregister();
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import static org.junit.Assert.*;
+
+public class GroupchatMessageFanOutTest {
+
+	private static final int RECIPIENTS = 100;
+
+	private static Element createMessage() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10 * 1024; i++) {
+			sb.append((char) ('a' + (i % 26)));
+		}
+		Element message = new Element("message", new String[]{"type", "id", "from", "to"},
+									  new String[]{"groupchat", "msg-1", "crone1@shakespeare.lit/desktop",
+												   "coven@chat.shakespeare.lit"});
+		Element encrypted = new Element("encrypted", new String[]{"xmlns"},
+										new String[]{"eu.siacs.conversations.axolotl"});
+		encrypted.addChild(new Element("payload", sb.toString()));
+		message.addChild(encrypted);
+		message.addChild(new Element("body", "I'm encrypted"));
+		return message;
+	}
+
+	@Test
+	public void testSharedPayloadMessage() throws Exception {
+		Element message = createMessage();
+		JID from = JID.jidInstance("coven@chat.shakespeare.lit/firstwitch");
+		JID to = JID.jidInstance("crone2@shakespeare.lit/desktop");
+
+		GroupchatMessageModule.SharedPayloadMessage shared = new GroupchatMessageModule.SharedPayloadMessage(message);
+		Packet packet = shared.createPacket(from, to);
+
+		Packet expected = Packet.packetInstance(message).copyElementOnly();
+		expected.initVars(from, to);
+		expected.setXMLNS(Packet.CLIENT_XMLNS);
+
+		assertEquals(from, packet.getStanzaFrom());
+		assertEquals(to, packet.getStanzaTo());
+		assertEquals("groupchat", packet.getElement().getAttributeStaticStr("type"));
+		assertEquals("msg-1", packet.getElement().getAttributeStaticStr("id"));
+		assertEquals(expected.getElement().getChildren().toString(), packet.getElement().getChildren().toString());
+		// payload is shared with other recipients
+		assertSame(message.getChild("encrypted", "eu.siacs.conversations.axolotl"),
+				   packet.getElement().getChild("encrypted", "eu.siacs.conversations.axolotl"));
+	}
+
+	@Test
+	public void testPayloadSharedBetweenRecipients() throws Exception {
+		Packet msg = Packet.packetInstance(createMessage());
+		JID from = JID.jidInstance("coven@chat.shakespeare.lit/firstwitch");
+		GroupchatMessageModule.SharedPayloadMessage shared = new GroupchatMessageModule.SharedPayloadMessage(
+				msg.getElement());
+
+		Element first = null;
+		for (int i = 0; i < RECIPIENTS; i++) {
+			JID to = JID.jidInstance("user-" + i + "@shakespeare.lit/desktop");
+			Packet packet = shared.createPacket(from, to);
+
+			Packet expected = msg.copyElementOnly();
+			expected.initVars(from, to);
+			expected.setXMLNS(Packet.CLIENT_XMLNS);
+
+			// recipient gets the same stanza as a copy of the whole message
+			assertEquals(expected.getElement().getAttributes(), packet.getElement().getAttributes());
+			assertEquals(expected.getElement().getChildren().toString(), packet.getElement().getChildren().toString());
+			assertEquals(to, packet.getStanzaTo());
+
+			if (first == null) {
+				first = packet.getElement();
+				continue;
+			}
+			// only top level element is created for every recipient
+			assertNotSame(first, packet.getElement());
+			assertEquals(first.getChildren().size(), packet.getElement().getChildren().size());
+			for (int c = 0; c < first.getChildren().size(); c++) {
+				assertSame(first.getChildren().get(c), packet.getElement().getChildren().get(c));
+			}
+		}
+		assertEquals("original message must not be modified", createMessage().toString(), msg.getElement().toString());
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.xml.Element;
+
+public class PresenceCoalescerTest {
+
+	private static Element presence(String id, String show, String status) {
+		Element presence = new Element("presence", new String[]{"from", "to", "id"},
+									   new String[]{"user@example.com/res", "room@muc.example.com/nick", id});
+		if (show != null) {
+			presence.addChild(new Element("show", show));
+		}
+		if (status != null) {
+			presence.addChild(new Element("status", status));
+		}
+		return presence;
+	}
+
+	@Test
+	public void testSamePresenceIgnoresAddressingAndId() {
+		Assert.assertTrue(PresenceCoalescer.isSamePresence(presence("1", "away", "lunch"),
+														   presence("2", "away", "lunch")));
+		Element other = presence("3", "away", "lunch");
+		other.setAttribute("to", "room@muc.example.com/other");
+		Assert.assertTrue(PresenceCoalescer.isSamePresence(presence("1", "away", "lunch"), other));
+	}
+
+	@Test
+	public void testDifferentPresences() {
+		Assert.assertFalse(PresenceCoalescer.isSamePresence(presence("1", "away", "lunch"),
+															presence("1", "dnd", "lunch")));
+		Assert.assertFalse(PresenceCoalescer.isSamePresence(presence("1", "away", "lunch"),
+															presence("1", "away", null)));
+		Assert.assertFalse(PresenceCoalescer.isSamePresence(presence("1", "away", "lunch"),
+															presence("1", "away", "meeting")));
+
+		Element unavailable = presence("1", "away", "lunch");
+		unavailable.setAttribute("type", "unavailable");
+		Assert.assertFalse(PresenceCoalescer.isSamePresence(presence("1", "away", "lunch"), unavailable));
+
+		Element caps = presence("1", "away", "lunch");
+		caps.addChild(new Element("c", new String[]{"xmlns", "ver"},
+								  new String[]{"http://jabber.org/protocol/caps", "abc"}));
+		Element otherCaps = presence("1", "away", "lunch");
+		otherCaps.addChild(new Element("c", new String[]{"xmlns", "ver"},
+									   new String[]{"http://jabber.org/protocol/caps", "def"}));
+		Assert.assertFalse(PresenceCoalescer.isSamePresence(caps, otherCaps));
+		Assert.assertTrue(PresenceCoalescer.isSamePresence(caps, caps.clone()));
+	}
+}
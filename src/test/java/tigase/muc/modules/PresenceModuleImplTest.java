@@ -0,0 +1,183 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.component.DSLBeanConfigurator;
+import tigase.component.exceptions.RepositoryException;
+import tigase.conf.ConfigWriter;
+import tigase.db.beans.DataSourceBean;
+import tigase.eventbus.EventBusFactory;
+import tigase.kernel.DefaultTypesConverter;
+import tigase.kernel.beans.config.AbstractBeanConfigurator;
+import tigase.kernel.core.Kernel;
+import tigase.muc.*;
+import tigase.muc.utils.ArrayWriter;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+
+public class PresenceModuleImplTest {
+
+	private JID admin;
+	private PresenceModuleImpl presenceModule;
+	private Room room;
+	private ArrayWriter writer;
+
+	@Before
+	public void init() throws RepositoryException, TigaseStringprepException {
+		final Kernel kernel = new Kernel();
+		kernel.registerBean(DefaultTypesConverter.class).exportable().exec();
+		kernel.registerBean(AbstractBeanConfigurator.DEFAULT_CONFIGURATOR_NAME)
+				.asClass(DSLBeanConfigurator.class)
+				.exportable()
+				.exec();
+		Map<String, Object> props = new HashMap();
+		props.put("muc/" + "multi-user-chat", BareJID.bareJIDInstance("multi-user-chat"));
+		props.put("muc/" + MUCConfig.MESSAGE_FILTER_ENABLED_KEY, Boolean.TRUE);
+		props.put("muc/" + MUCConfig.PRESENCE_FILTER_ENABLED_KEY, Boolean.FALSE);
+		props.put("muc/" + MUCConfig.LOG_DIR_KEY, "./");
+		props = ConfigWriter.buildTree(props);
+		kernel.getInstance(DSLBeanConfigurator.class).setProperties(props);
+		kernel.registerBean("eventBus").asInstance(EventBusFactory.getInstance()).exportable().exec();
+		kernel.registerBean("dataSourceBean").asClass(DataSourceBean.class).exportable().exec();
+		kernel.registerBean("mucRepository").asInstance(new MockMucRepository()).exportable().exec();
+
+		writer = new ArrayWriter();
+		kernel.registerBean("muc").asClass(TestMUCCompoent.class).exec();
+		final Kernel mucKernel = kernel.getInstance("muc#KERNEL");
+		mucKernel.registerBean("writer").asInstance(writer).exec();
+		presenceModule = mucKernel.getInstance(PresenceModuleImpl.class);
+
+		admin = JID.jidInstance("admin@example.com/res1");
+		room = kernel.getInstance(MockMucRepository.class)
+				.createNewRoom(BareJID.bareJIDInstance("darkcave@macbeth.shakespeare.lit"), admin);
+		room.addAffiliationByJid(admin.getBareJID(), RoomAffiliation.owner);
+
+		join(admin, "admin", Role.moderator, "dnd");
+		join(JID.jidInstance("member@example.com/res1"), "member", Role.participant, "away");
+		join(JID.jidInstance("member@example.com/res2"), "member", Role.participant, "away");
+		join(JID.jidInstance("visitor@example.com/res1"), "visitor", Role.visitor, null);
+	}
+
+	@Test
+	public void testPayloadSharingDisabledByDefault() {
+		Assert.assertFalse(new PresenceModuleImpl().isPresencePayloadSharing());
+		Assert.assertFalse(presenceModule.isPresencePayloadSharingEnabled());
+	}
+
+	@Test
+	public void testPayloadSharingDisabledWhenPreparePresenceIsOverridden() {
+		final PresenceModuleImpl module = new PresenceModuleImpl() {
+			@Override
+			protected PresenceWrapper preparePresence(JID destinationJID, Element presence, Room room,
+													  JID occupantJID, boolean newRoomCreated)
+					throws TigaseStringprepException {
+				return super.preparePresence(destinationJID, presence, room, occupantJID, newRoomCreated);
+			}
+		};
+		module.setPresencePayloadSharing(true);
+		Assert.assertFalse(module.isPresencePayloadSharingEnabled());
+
+		presenceModule.setPresencePayloadSharing(true);
+		Assert.assertTrue(presenceModule.isPresencePayloadSharingEnabled());
+	}
+
+	@Test
+	public void testSharedPayloadBroadcastToAllOccupants() throws Exception {
+		final JID sender = JID.jidInstance("member@example.com/res1");
+		final List<String> expected = broadcast(false, () -> presenceModule.sendPresenceToAllOccupants(room, sender,
+																										  false, null));
+		final List<String> actual = broadcast(true, () -> presenceModule.sendPresenceToAllOccupants(room, sender,
+																										false, null));
+		Assert.assertEquals(4, expected.size());
+		Assert.assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testSharedPayloadPresencesToNewOccupant() throws Exception {
+		final JID newOccupant = JID.jidInstance("visitor@example.com/res1");
+		final List<String> expected = broadcast(false,
+												() -> presenceModule.sendPresencesToNewOccupant(room, newOccupant));
+		final List<String> actual = broadcast(true,
+											  () -> presenceModule.sendPresencesToNewOccupant(room, newOccupant));
+		Assert.assertFalse(expected.isEmpty());
+		Assert.assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testSharedPayloadDoesNotModifyStoredPresence() throws Exception {
+		final JID sender = JID.jidInstance("admin@example.com/res1");
+		final String stored = room.getLastPresenceCopyByJid(sender.getBareJID()).toString();
+		broadcast(true, () -> presenceModule.sendPresenceToAllOccupants(room, sender, false, null));
+		Assert.assertEquals(stored, room.getLastPresenceCopyByJid(sender.getBareJID()).toString());
+	}
+
+	private List<String> broadcast(boolean sharing, Broadcast broadcast) throws Exception {
+		presenceModule.setPresencePayloadSharing(sharing);
+		writer.clear();
+		broadcast.run();
+		final List<String> result = new ArrayList<>();
+		for (Element element : writer.getElements()) {
+			result.add(normalize(element));
+		}
+		return result;
+	}
+
+	private void join(JID jid, String nickname, Role role, String show) throws TigaseStringprepException {
+		final Element presence = new Element("presence");
+		if (show != null) {
+			presence.addChild(new Element("show", show));
+		}
+		room.addOccupantByJid(jid, nickname, role, presence);
+		room.updatePresenceByJid(jid, nickname, presence);
+	}
+
+	// attributes and children are sorted, as both paths may create them in different order
+	private static String normalize(Element element) {
+		final StringBuilder sb = new StringBuilder("<").append(element.getName());
+		final Map<String, String> attributes = element.getAttributes();
+		if (attributes != null) {
+			sb.append(new TreeMap<>(attributes));
+		}
+		sb.append('>');
+		if (element.getCData() != null) {
+			sb.append(element.getCData());
+		}
+		final List<Element> children = element.getChildren();
+		if (children != null) {
+			final List<String> normalized = new ArrayList<>();
+			for (Element child : children) {
+				normalized.add(normalize(child));
+			}
+			Collections.sort(normalized);
+			normalized.forEach(sb::append);
+		}
+		return sb.append("</").append(element.getName()).append('>').toString();
+	}
+
+	private interface Broadcast {
+
+		void run() throws Exception;
+	}
+}